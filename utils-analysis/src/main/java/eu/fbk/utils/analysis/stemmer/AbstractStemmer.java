@@ -10,7 +10,6 @@
 
 package eu.fbk.utils.analysis.stemmer;
 
-import org.apache.commons.collections.map.LRUMap;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
@@ -31,9 +30,6 @@ public abstract class AbstractStemmer implements Stemmer {
     //
     private static Pattern spacePattern = Pattern.compile(" ");
 
-    //
-    protected LRUMap cache;
-
     //
     private int size;
 
@@ -53,11 +49,13 @@ public abstract class AbstractStemmer implements Stemmer {
 
     //
     public AbstractStemmer(int size) {
-        //cache = new LRUMap(size);
+        this.size = size;
         df = new DecimalFormat("000,000,000.#");
     } // end constructor
 
-    //
+    /**
+     * Sets the max number of stems cached (see <code>ConcurrentStemmer</code>).
+     */
     public void setCacheSize(int size) {
         this.size = size;
     } // end setCacheSize
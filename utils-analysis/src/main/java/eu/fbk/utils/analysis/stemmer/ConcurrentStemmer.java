@@ -0,0 +1,161 @@
+/*
+ * Copyright (2011) Fondazione Bruno Kessler (FBK)
+ *
+ * FBK reserves all rights in the Program as delivered.
+ * The Program or any portion thereof may not be reproduced
+ * in any form whatsoever except as provided by license
+ * without the written consent of FBK.  A license under FBK's
+ * rights in the Program may be available directly from FBK.
+ */
+
+package eu.fbk.utils.analysis.stemmer;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe stemmer. Each thread uses its own instance of
+ * the stemmer of the specified language (stemmers are not
+ * thread-safe) and the stems are memoized in a cache shared
+ * by all threads.
+ * <p>
+ * Lookups in the cache do not lock. When the cache exceeds
+ * <code>getCacheSize()</code> terms, one eighth of them is
+ * removed in arbitrary order.
+ *
+ * @author Claudio Giuliano
+ * @version %I%, %G%
+ * @since 1.0
+ */
+public class ConcurrentStemmer extends AbstractStemmer implements Stemmer {
+
+    /**
+     * Define a static logger variable so that it references the
+     * Logger instance named <code>ConcurrentStemmer</code>.
+     */
+    static Logger logger = Logger.getLogger(ConcurrentStemmer.class.getName());
+
+    /**
+     * Default size of the shared cache (100000).
+     */
+    public static final int DEFAULT_SHARED_CACHE_SIZE = 100000;
+
+    //
+    private final Locale locale;
+
+    //
+    private final ThreadLocal<Stemmer> stemmers;
+
+    //
+    private final ConcurrentHashMap<String, String> cache;
+
+    //
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    //
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    //
+    public ConcurrentStemmer(Locale locale) throws StemmerNotFoundException {
+        this(locale, DEFAULT_SHARED_CACHE_SIZE);
+    } // end constructor
+
+    /**
+     * Constructs a stemmer for the specified language that
+     * caches at most <code>size</code> terms (0 disables the
+     * cache).
+     */
+    public ConcurrentStemmer(final Locale locale, int size) throws StemmerNotFoundException {
+        super(size);
+        this.locale = locale;
+
+        // fails here if the language is not supported
+        StemmerFactory.getInstance(locale);
+        stemmers = new ThreadLocal<Stemmer>() {
+
+            @Override
+            protected Stemmer initialValue() {
+                try {
+                    return StemmerFactory.getInstance(locale);
+                } catch (StemmerNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        cache = new ConcurrentHashMap<String, String>(Math.max(16, size / 4));
+    } // end constructor
+
+    //
+    public String stem(String term) {
+        String stem = cache.get(term);
+        if (stem != null) {
+            hits.increment();
+            return stem;
+        }
+
+        misses.increment();
+        stem = stemmers.get().stem(term);
+        int size = getCacheSize();
+        if (size > 0) {
+            cache.put(term, stem);
+            if (cache.size() > size) {
+                evict(size);
+            }
+        }
+
+        return stem;
+    } // end stem
+
+    // only one thread at a time removes the terms in excess
+    private void evict(int size) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            int n = cache.size() - size + size / 8;
+            Iterator<String> it = cache.keySet().iterator();
+            while (n-- > 0 && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    } // end evict
+
+    //
+    public long hitCount() {
+        return hits.sum();
+    } // end hitCount
+
+    //
+    public long missCount() {
+        return misses.sum();
+    } // end missCount
+
+    //
+    public double hitRate() {
+        long h = hitCount();
+        long total = h + missCount();
+        return total == 0 ? 0 : (double) h / total;
+    } // end hitRate
+
+    /**
+     * Returns the number of cached terms.
+     */
+    public int size() {
+        return cache.size();
+    } // end size
+
+    //
+    public String toString() {
+        return "Concurrent Stemmer (" + locale + ", " + size() + " cached terms, hit rate " + hitRate() + ")";
+    } // end toString
+
+} // end class ConcurrentStemmer
@@ -73,6 +73,14 @@ public class StemmerFactory {
     } // end getInstance
 
     //
+    /**
+     * Returns a thread-safe stemmer for the specified language, which caches
+     * the stems (see <code>ConcurrentStemmer</code>).
+     */
+    public static Stemmer getConcurrentInstance(String lang) throws StemmerNotFoundException {
+        return new ConcurrentStemmer(new Locale(lang));
+    } // end getConcurrentInstance
+
     public static void main(String args[]) throws Exception {
         String logConfig = System.getProperty("log-config");
         if (logConfig == null) {
@@ -32,111 +32,169 @@ public class HardTokenizer extends AbstractTokenizer implements Tokenizer {
         return ourInstance;
     }
 
+    // the token is a sequence of letters and digits
+    private static final byte LETTER_OR_DIGIT = 0;
+
+    // the token is a single char
+    private static final byte OTHER = 1;
+
+    // the char is skipped
+    private static final byte SEPARATOR = 2;
+
+    // class of each char, computed once to avoid calling Character.isLetterOrDigit
+    private static final byte[] CHAR_CLASS = new byte[Character.MAX_VALUE + 1];
+
+    // single char tokens in the ASCII range
+    private static final String[] CHAR_STRINGS = new String[128];
+
+    static {
+        HardTokenizer tokenizer = new HardTokenizer();
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (Character.isLetterOrDigit((char) c)) {
+                CHAR_CLASS[c] = LETTER_OR_DIGIT;
+            } else if (tokenizer.isSeparatorChar((char) c)) {
+                CHAR_CLASS[c] = SEPARATOR;
+            } else {
+                CHAR_CLASS[c] = OTHER;
+            }
+        }
+        for (int c = 0; c < CHAR_STRINGS.length; c++) {
+            CHAR_STRINGS[c] = String.valueOf((char) c);
+        }
+    }
+
     public String[] stringArray(String text) {
         List<String> list = stringList(text);
         return list.toArray(new String[list.size()]);
     }
 
-    public List<String> stringList(String text) {
-        if (text.length() == 0) {
-            return new ArrayList<String>();
-        }
-        List<String> list = new ArrayList<String>();
-        char currentChar = text.charAt(0);
-        char previousChar = currentChar;
-        int start = 0;
-        boolean isCurrentCharLetterOrDigit;
-        boolean isPreviousCharLetterOrDigit;
-        if (!Character.isLetterOrDigit(currentChar)) {
-            if (!isSeparatorChar(currentChar)) {
-                list.add(new String(new char[] { currentChar }));
+    public List<String> stringList(final String text) {
+        final List<String> list = new ArrayList<String>();
+        tokenize(text, new TokenHandler() {
+
+            public void token(CharSequence s, int start, int end) {
+                list.add(form(text, start, end));
+            }
+        });
+        return list;
+    }
+
+    public List<Token> tokenList(final String text) {
+        final List<Token> list = new ArrayList<Token>();
+        tokenize(text, new TokenHandler() {
+
+            public void token(CharSequence s, int start, int end) {
+                list.add(new Token(start, end, form(text, start, end)));
+            }
+        });
+        return list;
+    }
+
+    //
+    private static String form(String text, int start, int end) {
+        if (end - start == 1) {
+            char c = text.charAt(start);
+            if (c < CHAR_STRINGS.length) {
+                return CHAR_STRINGS[c];
             }
         }
+        return text.substring(start, end);
+    }
 
-        //logger.debug("0\t" + (int) previousChar + "\t<" + previousChar + ">");
-        for (int i = 1; i < text.length(); i++) {
-            currentChar = text.charAt(i);
-            isCurrentCharLetterOrDigit = Character.isLetterOrDigit(currentChar);
-            isPreviousCharLetterOrDigit = Character.isLetterOrDigit(previousChar);
-            //logger.debug(i + (int) currentChar + "\t<" + currentChar + ">");
-            if (isCurrentCharLetterOrDigit) {
-                if (!isPreviousCharLetterOrDigit) {
-                    start = i;
+    /**
+     * Calls the handler for each token of the text: sequences of letters
+     * and digits, and single chars that are neither letters, digits nor
+     * separators.
+     */
+    public void tokenize(CharSequence text, TokenHandler handler) {
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            byte type = CHAR_CLASS[text.charAt(i)];
+            if (type == LETTER_OR_DIGIT) {
+                int start = i++;
+                while (i < length && CHAR_CLASS[text.charAt(i)] == LETTER_OR_DIGIT) {
+                    i++;
                 }
+                handler.token(text, start, i);
             } else {
-                if (isPreviousCharLetterOrDigit) {
-                    // word o number
-                    list.add(text.substring(start, i));
-                    if (!isSeparatorChar(currentChar)) {
-                        list.add(new String(new char[] { currentChar }));
-                    }
-                } else {
-                    //otherPageCounter
-                    if (!isSeparatorChar(currentChar)) {
-                        list.add(new String(new char[] { currentChar }));
-                    }
+                if (type == OTHER) {
+                    handler.token(text, i, i + 1);
                 }
+                i++;
             }
-            previousChar = currentChar;
         }
-        if (Character.isLetterOrDigit(previousChar)) {
-            list.add(text.substring(start, text.length()));
-        }
-
-        return list;
     }
 
-    public List<Token> tokenList(String text) {
-        if (text.length() == 0) {
-            return new ArrayList<>();
-        }
-        List<Token> list = new ArrayList<Token>();
-        char currentChar = text.charAt(0);
-        char previousChar = currentChar;
-        int start = 0;
-        boolean isCurrentCharLetterOrDigit;
-        boolean isPreviousCharLetterOrDigit;
-        Token token;
-
-        if (!Character.isLetterOrDigit(currentChar)) {
-            if (!isSeparatorChar(currentChar)) {
-                list.add(new Token(0, 1, new String(new char[] { currentChar })));
+    /**
+     * Stores the offsets of the tokens of the text in the array: the
+     * i-th token is text[offsets[2 * i], offsets[2 * i + 1]). Returns
+     * the number of tokens, which can be greater than offsets.length / 2;
+     * in this case, only the first offsets.length / 2 tokens are stored.
+     */
+    public int tokenize(CharSequence text, int[] offsets) {
+        int length = text.length();
+        int capacity = offsets.length / 2;
+        int n = 0;
+        int i = 0;
+        while (i < length) {
+            byte type = CHAR_CLASS[text.charAt(i)];
+            if (type == LETTER_OR_DIGIT) {
+                int start = i++;
+                while (i < length && CHAR_CLASS[text.charAt(i)] == LETTER_OR_DIGIT) {
+                    i++;
+                }
+                if (n < capacity) {
+                    offsets[2 * n] = start;
+                    offsets[2 * n + 1] = i;
+                }
+                n++;
+            } else {
+                if (type == OTHER) {
+                    if (n < capacity) {
+                        offsets[2 * n] = i;
+                        offsets[2 * n + 1] = i + 1;
+                    }
+                    n++;
+                }
+                i++;
             }
         }
+        return n;
+    }
 
-        //logger.debug("0\t" + (int) previousChar + "\t<" + previousChar + ">");
-        for (int i = 1; i < text.length(); i++) {
-            currentChar = text.charAt(i);
-            isCurrentCharLetterOrDigit = Character.isLetterOrDigit(currentChar);
-            isPreviousCharLetterOrDigit = Character.isLetterOrDigit(previousChar);
-            //logger.debug(i + (int) currentChar + "\t<" + currentChar + ">");
-            if (isCurrentCharLetterOrDigit) {
-                if (!isPreviousCharLetterOrDigit) {
-                    start = i;
+    /**
+     * Same as <code>tokenize(CharSequence, int[])</code> for the chars in
+     * text[from, to); offsets are relative to the beginning of the array.
+     */
+    public int tokenize(char[] text, int from, int to, int[] offsets) {
+        int capacity = offsets.length / 2;
+        int n = 0;
+        int i = from;
+        while (i < to) {
+            byte type = CHAR_CLASS[text[i]];
+            if (type == LETTER_OR_DIGIT) {
+                int start = i++;
+                while (i < to && CHAR_CLASS[text[i]] == LETTER_OR_DIGIT) {
+                    i++;
+                }
+                if (n < capacity) {
+                    offsets[2 * n] = start;
+                    offsets[2 * n + 1] = i;
                 }
+                n++;
             } else {
-                if (isPreviousCharLetterOrDigit) {
-                    // word o number
-
-                    list.add(new Token(start, i, text.substring(start, i)));
-                    if (!isSeparatorChar(currentChar)) {
-                        // otherPageCounter
-                        list.add(new Token(i, i + 1, new String(new char[] { currentChar })));
-                    }
-                } else {
-                    //otherPageCounter
-                    if (!isSeparatorChar(currentChar)) {
-                        list.add(new Token(i, i + 1, new String(new char[] { currentChar })));
+                if (type == OTHER) {
+                    if (n < capacity) {
+                        offsets[2 * n] = i;
+                        offsets[2 * n + 1] = i + 1;
                     }
+                    n++;
                 }
+                i++;
             }
-            previousChar = currentChar;
-        }
-        if (Character.isLetterOrDigit(previousChar)) {
-            list.add(new Token(start, text.length(), text.substring(start, text.length())));
         }
-
-        return list;
+        return n;
     }
 
     public Token[] tokenArray(String text) {
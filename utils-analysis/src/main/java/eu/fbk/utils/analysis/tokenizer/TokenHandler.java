@@ -0,0 +1,13 @@
+package eu.fbk.utils.analysis.tokenizer;
+
+/**
+ * Receives the tokens found by <code>HardTokenizer.tokenize</code>
+ * as offsets in the input text, without creating any object.
+ */
+public interface TokenHandler {
+
+    /**
+     * Called for each token in text[start, end).
+     */
+    public abstract void token(CharSequence text, int start, int end);
+}
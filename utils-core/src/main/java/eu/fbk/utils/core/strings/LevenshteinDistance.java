@@ -28,7 +28,17 @@ import java.util.Arrays;
  * </p>
  *
  * <p>
- * This code has been adapted from Apache Commons Lang 3.3.
+ * The interface has been adapted from Apache Commons Lang 3.3. Distances are
+ * computed with the bit-parallel algorithm of Myers, in the formulation of
+ * Hyyr&ouml; (G. Myers, "A fast bit-vector algorithm for approximate string
+ * matching based on dynamic programming", JACM 1999): the shorter string is
+ * encoded as bit masks and each character of the longer string updates 64
+ * cells of the DP table at once, using blocks of 64 cells for strings longer
+ * than 64 characters. The masks and blocks live in a per-thread workspace, so
+ * no memory is allocated after the first calls of a thread; the workspace
+ * keeps only the memory needed by short patterns, and patterns whose masks
+ * would take too much memory (many blocks and many distinct non Latin-1
+ * characters) fall back to the linear-space dynamic programming algorithm.
  * </p>
  */
 public class LevenshteinDistance implements EditDistance<Integer> {
@@ -105,10 +115,50 @@ public class LevenshteinDistance implements EditDistance<Integer> {
    * @throws IllegalArgumentException if either String input {@code null}
    */
   public Integer apply(CharSequence left, CharSequence right) {
-    if (threshold != null) {
-      return limitedCompare(left, right, threshold);
-    } else {
-      return unlimitedCompare(left, right);
+    return distance(left, right, threshold != null ? threshold : Integer.MAX_VALUE);
+  }
+
+  /**
+   * <p>Find the Levenshtein distance between a query and many candidates,
+   * e.g. the entries of a gazetteer. The masks of the query are computed once
+   * for all the candidates.</p>
+   *
+   * @param query the query string, must not be null
+   * @param candidates the candidate strings, must not be null
+   * @param out the array receiving the distance of each candidate (-1 if greater
+   *        than the threshold), at least as long as candidates
+   * @throws IllegalArgumentException if any string is {@code null}
+   */
+  public void apply(CharSequence query, CharSequence[] candidates, int[] out) {
+    if (query == null || candidates == null) {
+      throw new IllegalArgumentException("Strings must not be null");
+    }
+    if (out.length < candidates.length) {
+      throw new IllegalArgumentException("Output array too short");
+    }
+    final int limit = threshold != null ? threshold : Integer.MAX_VALUE;
+    final int m = query.length();
+    final Workspace workspace = WORKSPACE.get();
+    try {
+      final boolean masked = workspace.init(query);
+      for (int i = 0; i < candidates.length; i++) {
+        final CharSequence candidate = candidates[i];
+        if (candidate == null) {
+          throw new IllegalArgumentException("Strings must not be null");
+        }
+        final int n = candidate.length();
+        if (Math.abs(n - m) > limit) {
+          out[i] = -1;
+        } else if (m == 0) {
+          out[i] = n;
+        } else if (masked) {
+          out[i] = workspace.distance(m, candidate, limit);
+        } else {
+          out[i] = dp(query, candidate, limit);
+        }
+      }
+    } finally {
+      workspace.clear();
     }
   }
 
@@ -134,280 +184,357 @@ public class LevenshteinDistance implements EditDistance<Integer> {
    * Find the Levenshtein distance between two CharSequences if it's less than or
    * equal to a given threshold.
    *
-   * <p>
-   * This implementation follows from Algorithms on Strings, Trees and
-   * Sequences by Dan Gusfield and Chas Emerick's implementation of the
-   * Levenshtein distance algorithm from <a
-   * href="http://www.merriampark.com/ld.htm"
-   * >http://www.merriampark.com/ld.htm</a>
-   * </p>
-   *
    * <pre>
-   * limitedCompare(null, *, *)             = IllegalArgumentException
-   * limitedCompare(*, null, *)             = IllegalArgumentException
-   * limitedCompare(*, *, -1)               = IllegalArgumentException
-   * limitedCompare("","", 0)               = 0
-   * limitedCompare("aaapppp", "", 8)       = 7
-   * limitedCompare("aaapppp", "", 7)       = 7
-   * limitedCompare("aaapppp", "", 6))      = -1
-   * limitedCompare("elephant", "hippo", 7) = 7
-   * limitedCompare("elephant", "hippo", 6) = -1
-   * limitedCompare("hippo", "elephant", 7) = 7
-   * limitedCompare("hippo", "elephant", 6) = -1
+   * distance(null, *, *)             = IllegalArgumentException
+   * distance(*, null, *)             = IllegalArgumentException
+   * distance("","", 0)               = 0
+   * distance("aaapppp", "", 8)       = 7
+   * distance("aaapppp", "", 7)       = 7
+   * distance("aaapppp", "", 6))      = -1
+   * distance("elephant", "hippo", 7) = 7
+   * distance("elephant", "hippo", 6) = -1
+   * distance("hippo", "elephant", 7) = 7
+   * distance("hippo", "elephant", 6) = -1
    * </pre>
    *
    * @param left the first string, must not be null
    * @param right the second string, must not be null
-   * @param threshold the target threshold, must not be negative
+   * @param threshold the target threshold, Integer.MAX_VALUE if unlimited
    * @return result distance, or -1
    */
-  private static int limitedCompare(CharSequence left, CharSequence right, int threshold) {
+  private static int distance(CharSequence left, CharSequence right, int threshold) {
     if (left == null || right == null) {
       throw new IllegalArgumentException("Strings must not be null");
     }
-    if (threshold < 0) {
-      throw new IllegalArgumentException("Threshold must not be negative");
-    }
 
-        /*
-         * This implementation only computes the distance if it's less than or
-         * equal to the threshold value, returning -1 if it's greater. The
-         * advantage is performance: unbounded distance is O(nm), but a bound of
-         * k allows us to reduce it to O(km) time by only computing a diagonal
-         * stripe of width 2k + 1 of the cost table. It is also possible to use
-         * this to compute the unbounded Levenshtein distance by starting the
-         * threshold at 1 and doubling each time until the distance is found;
-         * this is O(dm), where d is the distance.
-         *
-         * One subtlety comes from needing to ignore entries on the border of
-         * our stripe eg. p[] = |#|#|#|* d[] = *|#|#|#| We must ignore the entry
-         * to the left of the leftmost member We must ignore the entry above the
-         * rightmost member
-         *
-         * Another subtlety comes from our stripe running off the matrix if the
-         * strings aren't of the same size. Since string s is always swapped to
-         * be the shorter of the two, the stripe will always run off to the
-         * upper right instead of the lower left of the matrix.
-         *
-         * As a concrete example, suppose s is of length 5, t is of length 7,
-         * and our threshold is 1. In this case we're going to walk a stripe of
-         * length 3. The matrix would look like so:
-         *
-         * <pre>
-         *    1 2 3 4 5
-         * 1 |#|#| | | |
-         * 2 |#|#|#| | |
-         * 3 | |#|#|#| |
-         * 4 | | |#|#|#|
-         * 5 | | | |#|#|
-         * 6 | | | | |#|
-         * 7 | | | | | |
-         * </pre>
-         *
-         * Note how the stripe leads off the table as there is no possible way
-         * to turn a string of length 5 into one of length 7 in edit distance of
-         * 1.
-         *
-         * Additionally, this implementation decreases memory usage by using two
-         * single-dimensional arrays and swapping them back and forth instead of
-         * allocating an entire n by m matrix. This requires a few minor
-         * changes, such as immediately returning when it's detected that the
-         * stripe has run off the matrix and initially filling the arrays with
-         * large values so that entries we don't compute are ignored.
-         *
-         * See Algorithms on Strings, Trees and Sequences by Dan Gusfield for
-         * some discussion.
-         */
-
-    int n = left.length(); // length of left
-    int m = right.length(); // length of right
-
-    // if one string is empty, the edit distance is necessarily the length
-    // of the other
-    if (n == 0) {
-      return m <= threshold ? m : -1;
-    } else if (m == 0) {
-      return n <= threshold ? n : -1;
-    }
+    int m = left.length();
+    int n = right.length();
 
-    if (n > m) {
-      // swap the two strings to consume less memory
+    if (n < m) {
+      // the shorter string is the pattern, so that fewer blocks are needed
       final CharSequence tmp = left;
       left = right;
       right = tmp;
-      n = m;
-      m = right.length();
+      m = n;
+      n = right.length();
     }
 
-    int[] p = new int[n + 1]; // 'previous' cost array, horizontally
-    int[] d = new int[n + 1]; // cost array, horizontally
-    int[] tempD; // placeholder to assist in swapping p and d
-
-    // fill in starting table values
-    final int boundary = Math.min(n, threshold) + 1;
-    for (int i = 0; i < boundary; i++) {
-      p[i] = i;
+    // the distance is at least the difference of the lengths
+    if (n - m > threshold) {
+      return -1;
+    } else if (m == 0) {
+      return n;
     }
-    // these fills ensure that the value above the rightmost entry of our
-    // stripe will be ignored in following loop iterations
-    Arrays.fill(p, boundary, p.length, Integer.MAX_VALUE);
-    Arrays.fill(d, Integer.MAX_VALUE);
-
-    // iterates through t
-    for (int j = 1; j <= m; j++) {
-      final char rightJ = right.charAt(j - 1); // jth character of right
-      d[0] = j;
 
-      // compute stripe indices, constrain to array size
-      final int min = Math.max(1, j - threshold);
-      final int max = j > Integer.MAX_VALUE - threshold ? n : Math.min(
-          n, j + threshold);
-
-      // the stripe may lead off of the table if s and t are of different
-      // sizes
-      if (min > max) {
-        return -1;
+    final Workspace workspace = WORKSPACE.get();
+    try {
+      if (workspace.init(left)) {
+        return workspace.distance(m, right, threshold);
       }
+      return dp(left, right, threshold);
+    } finally {
+      workspace.clear();
+    }
+  }
 
-      // ignore entry left of leftmost
-      if (min > 1) {
-        d[min - 1] = Integer.MAX_VALUE;
+  /**
+   * Computes the distance with the classic dynamic programming algorithm, in
+   * space linear in the length of the pattern, returning -1 as soon as the
+   * distance exceeds the threshold.
+   */
+  private static int dp(final CharSequence pattern, final CharSequence text, final int threshold) {
+    final int m = pattern.length();
+    final int n = text.length();
+    int[] p = new int[m + 1];
+    int[] d = new int[m + 1];
+    for (int i = 0; i <= m; i++) {
+      p[i] = i;
+    }
+    for (int j = 1; j <= n; j++) {
+      final char c = text.charAt(j - 1);
+      d[0] = j;
+      int min = j;
+      for (int i = 1; i <= m; i++) {
+        final int cost = pattern.charAt(i - 1) == c ? 0 : 1;
+        d[i] = Math.min(Math.min(d[i - 1] + 1, p[i] + 1), p[i - 1] + cost);
+        min = Math.min(min, d[i]);
       }
-
-      // iterates through [min, max] in s
-      for (int i = min; i <= max; i++) {
-        if (left.charAt(i - 1) == rightJ) {
-          // diagonally left and up
-          d[i] = p[i - 1];
-        } else {
-          // 1 + minimum of cell to the left, to the top, diagonally
-          // left and up
-          d[i] = 1 + Math.min(Math.min(d[i - 1], p[i]), p[i - 1]);
-        }
+      // the values of a row never decrease in the following rows
+      if (min > threshold) {
+        return -1;
       }
-
-      // copy current distance counts to 'previous row' distance counts
-      tempD = p;
+      final int[] t = p;
       p = d;
-      d = tempD;
+      d = t;
     }
+    return p[m] <= threshold ? p[m] : -1;
+  }
 
-    // if p[n] is greater than the threshold, there's no guarantee on it
-    // being the correct
-    // distance
-    if (p[n] <= threshold) {
-      return p[n];
+  private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+
+    @Override
+    protected Workspace initialValue() {
+      return new Workspace();
     }
-    return -1;
-  }
+  };
 
   /**
-   * <p>Find the Levenshtein distance between two Strings.</p>
-   *
-   * <p>A higher score indicates a greater distance.</p>
-   *
-   * <p>The previous implementation of the Levenshtein distance algorithm
-   * was from <a href="http://www.merriampark.com/ld.htm">http://www.merriampark.com/ld.htm</a></p>
-   *
-   * <p>Chas Emerick has written an implementation in Java, which avoids an OutOfMemoryError
-   * which can occur when my Java implementation is used with very large strings.<br>
-   * This implementation of the Levenshtein distance algorithm
-   * is from <a href="http://www.merriampark.com/ldjava.htm">http://www.merriampark.com/ldjava.htm</a></p>
-   *
-   * <pre>
-   * unlimitedCompare(null, *)             = IllegalArgumentException
-   * unlimitedCompare(*, null)             = IllegalArgumentException
-   * unlimitedCompare("","")               = 0
-   * unlimitedCompare("","a")              = 1
-   * unlimitedCompare("aaapppp", "")       = 7
-   * unlimitedCompare("frog", "fog")       = 1
-   * unlimitedCompare("fly", "ant")        = 3
-   * unlimitedCompare("elephant", "hippo") = 7
-   * unlimitedCompare("hippo", "elephant") = 7
-   * unlimitedCompare("hippo", "zzzzzzzz") = 8
-   * unlimitedCompare("hello", "hallo")    = 1
-   * </pre>
-   *
-   * @param left the first String, must not be null
-   * @param right the second String, must not be null
-   * @return result distance, or -1
-   * @throws IllegalArgumentException if either String input {@code null}
+   * Per-thread state: the match masks of the pattern characters and the
+   * vertical deltas (Pv, Mv) of each block. Masks are stored in rows of
+   * {@code stride} longs, one per block of the pattern: rows 0-255 for Latin-1
+   * characters, row 256 is always zero (characters not in the pattern) and the
+   * following rows are the slots of an open addressing table for the other
+   * characters, sized by the number of distinct ones. All masks are zero
+   * between calls, and arrays larger than {@code MAX_RETAINED} are released at
+   * the end of the call.
    */
-  private static int unlimitedCompare(CharSequence left, CharSequence right) {
-    if (left == null || right == null) {
-      throw new IllegalArgumentException("Strings must not be null");
-    }
+  private static final class Workspace {
 
-        /*
-           The difference between this impl. and the previous is that, rather
-           than creating and retaining a matrix of size s.length() + 1 by t.length() + 1,
-           we maintain two single-dimensional arrays of length s.length() + 1.  The first, d,
-           is the 'current working' distance array that maintains the newest distance cost
-           counts as we iterate through the characters of String s.  Each time we increment
-           the index of String t we are comparing, d is copied to p, the second int[].  Doing so
-           allows us to retain the previous cost counts as required by the algorithm (taking
-           the minimum of the cost count to the left, up one, and diagonally up and to the left
-           of the current cost count being calculated).  (Note that the arrays aren't really
-           copied anymore, just switched...this is clearly much better than cloning an array
-           or doing a System.arraycopy() each time  through the outer loop.)
-
-           Effectively, the difference between the two implementations is this one does not
-           cause an out of memory condition when calculating the LD over two very large strings.
-         */
-
-    int n = left.length(); // length of left
-    int m = right.length(); // length of right
-
-    if (n == 0) {
-      return m;
-    } else if (m == 0) {
-      return n;
+    private static final int LATIN = 256;
+
+    private static final int EMPTY = -1;
+
+    private static final int MIN_KEYS = 16;
+
+    // max number of mask longs of a pattern, above that the DP is used (16 MB)
+    private static final int MAX_MASKS = 1 << 21;
+
+    // max number of mask longs (or keys) kept between calls (256 KB)
+    private static final int MAX_RETAINED = 1 << 15;
+
+    private int stride;
+
+    private int[] keys;
+
+    private int numKeys;
+
+    private long[] masks;
+
+    // number of mask longs of the current pattern, 0 if no mask is set
+    private int used;
+
+    // Latin-1 characters of the current pattern, one bit each
+    private final long[] latin = new long[LATIN / 64];
+
+    private long[] pv;
+
+    private long[] mv;
+
+    private int blocks;
+
+    Workspace() {
+      reset();
     }
 
-    if (n > m) {
-      // swap the input strings to consume less memory
-      final CharSequence tmp = left;
-      left = right;
-      right = tmp;
-      n = m;
-      m = right.length();
+    private void reset() {
+      keys = new int[MIN_KEYS];
+      Arrays.fill(keys, EMPTY);
+      stride = 1;
+      masks = new long[(LATIN + 1 + keys.length) * stride];
+      pv = new long[1];
+      mv = new long[1];
     }
 
-    int[] p = new int[n + 1]; //'previous' cost array, horizontally
-    int[] d = new int[n + 1]; // cost array, horizontally
-    int[] tempD; //placeholder to assist in swapping p and d
+    /**
+     * Computes the masks of the pattern; returns false, leaving them unset, if
+     * they would take more than {@code MAX_MASKS} longs.
+     */
+    boolean init(final CharSequence pattern) {
+      final int m = pattern.length();
+      blocks = (m + 63) >>> 6;
+
+      // keys first, so that the table is sized by the distinct characters
+      for (int i = 0; i < m; i++) {
+        final char c = pattern.charAt(i);
+        if (c >= LATIN && insert(c)) {
+          if (2 * numKeys > keys.length) {
+            rehash(keys.length * 2);
+          }
+        }
+      }
 
-    // indexes into strings left and right
-    int i; // iterates through left
-    int j; // iterates through right
+      final long size = (long) (LATIN + 1 + keys.length) * blocks;
+      if (size > MAX_MASKS) {
+        return false;
+      }
+      if (masks.length < size) {
+        masks = new long[(int) size];
+      }
+      if (pv.length < blocks) {
+        pv = new long[blocks];
+        mv = new long[blocks];
+      }
+      // masks are all zero, so the layout can change at each call
+      stride = blocks;
+      used = (int) size;
+
+      for (int i = 0; i < m; i++) {
+        final char c = pattern.charAt(i);
+        final int row;
+        if (c < LATIN) {
+          latin[c >>> 6] |= 1L << c;
+          row = c;
+        } else {
+          row = row(c);
+          if (row == LATIN) {
+            // the sequence changed since the keys were computed
+            throw new IllegalStateException("Pattern modified during init");
+          }
+        }
+        masks[row * stride + (i >>> 6)] |= 1L << i;
+      }
+      return true;
+    }
 
-    char rightJ; // jth character of right
+    /**
+     * Zeroes the masks and keys of the pattern, even after a partial init, and
+     * releases the arrays grown beyond {@code MAX_RETAINED}.
+     */
+    void clear() {
+      if (used > 0) {
+        for (int w = 0; w < latin.length; w++) {
+          for (long bits = latin[w]; bits != 0; bits &= bits - 1) {
+            final int row = w << 6 | Long.numberOfTrailingZeros(bits);
+            Arrays.fill(masks, row * stride, row * stride + blocks, 0L);
+          }
+        }
+        if (numKeys > 0) {
+          for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+              final int row = LATIN + 1 + slot;
+              Arrays.fill(masks, row * stride, row * stride + blocks, 0L);
+            }
+          }
+        }
+        used = 0;
+      }
+      Arrays.fill(latin, 0L);
+      if (masks.length > MAX_RETAINED || keys.length > MAX_RETAINED) {
+        reset();
+      } else if (numKeys > 0) {
+        // keys are removed only now, as removing them breaks the probe sequences
+        Arrays.fill(keys, EMPTY);
+      }
+      numKeys = 0;
+    }
 
-    int cost; // cost
+    private int row(final char c) {
+      if (c < LATIN) {
+        return c;
+      }
+      final int mask = keys.length - 1;
+      for (int slot = c * 0x9E3779B1 >>> 16 & mask; ; slot = slot + 1 & mask) {
+        final int key = keys[slot];
+        if (key == c) {
+          return LATIN + 1 + slot;
+        } else if (key == EMPTY) {
+          return LATIN;
+        }
+      }
+    }
 
-    for (i = 0; i <= n; i++) {
-      p[i] = i;
+    // adds a non Latin-1 character to the keys, returns false if already there
+    private boolean insert(final char c) {
+      final int mask = keys.length - 1;
+      for (int slot = c * 0x9E3779B1 >>> 16 & mask; ; slot = slot + 1 & mask) {
+        final int key = keys[slot];
+        if (key == EMPTY) {
+          keys[slot] = c;
+          numKeys++;
+          return true;
+        } else if (key == c) {
+          return false;
+        }
+      }
     }
 
-    for (j = 1; j <= m; j++) {
-      rightJ = right.charAt(j - 1);
-      d[0] = j;
+    // grows the keys table, before any mask is set
+    private void rehash(final int capacity) {
+      final int[] old = keys;
+      keys = new int[capacity];
+      Arrays.fill(keys, EMPTY);
+      numKeys = 0;
+      for (final int key : old) {
+        if (key != EMPTY) {
+          insert((char) key);
+        }
+      }
+    }
 
-      for (i = 1; i <= n; i++) {
-        cost = left.charAt(i - 1) == rightJ ? 0 : 1;
-        // minimum of cell to the left+1, to the top+1, diagonally left and up +cost
-        d[i] = Math.min(Math.min(d[i - 1] + 1, p[i] + 1), p[i - 1] + cost);
+    /**
+     * Returns the distance between the pattern of length m and the text, or -1
+     * if it exceeds the threshold.
+     */
+    int distance(final int m, final CharSequence text, final int threshold) {
+      final int n = text.length();
+      int score = m;
+
+      if (blocks == 1) {
+        final long last = 1L << (m - 1);
+        long pv = -1L;
+        long mv = 0L;
+        for (int j = 0; j < n; j++) {
+          final long eq = masks[row(text.charAt(j)) * stride];
+          final long xv = eq | mv;
+          final long xh = (((eq & pv) + pv) ^ pv) | eq;
+          long ph = mv | ~(xh | pv);
+          long mh = pv & xh;
+          if ((ph & last) != 0) {
+            score++;
+          } else if ((mh & last) != 0) {
+            score--;
+          }
+          // the first row of the table is 0 1 2 ..., hence the carry in ph
+          ph = ph << 1 | 1L;
+          mh <<= 1;
+          pv = mh | ~(xv | ph);
+          mv = ph & xv;
+          // the score decreases by at most one per remaining character
+          if (score - (n - j - 1) > threshold) {
+            return -1;
+          }
+        }
+        return score;
       }
 
-      // copy current distance counts to 'previous row' distance counts
-      tempD = p;
-      p = d;
-      d = tempD;
+      final long[] pvs = pv;
+      final long[] mvs = mv;
+      Arrays.fill(pvs, 0, blocks, -1L);
+      Arrays.fill(mvs, 0, blocks, 0L);
+      final int lastBlock = blocks - 1;
+      final int lastBit = (m - 1) & 63;
+      for (int j = 0; j < n; j++) {
+        final int base = row(text.charAt(j)) * stride;
+        int hin = 1; // horizontal delta entering the block from above
+        for (int b = 0; b < blocks; b++) {
+          final long pv = pvs[b];
+          final long mv = mvs[b];
+          final long hinNeg = hin < 0 ? 1L : 0L;
+          long eq = masks[base + b];
+          final long xv = eq | mv;
+          eq |= hinNeg;
+          final long xh = (((eq & pv) + pv) ^ pv) | eq;
+          long ph = mv | ~(xh | pv);
+          long mh = pv & xh;
+          final int hout;
+          if (b == lastBlock) {
+            hout = (int) (ph >>> lastBit & 1L) - (int) (mh >>> lastBit & 1L);
+            score += hout;
+          } else {
+            hout = (int) (ph >>> 63) - (int) (mh >>> 63);
+          }
+          ph = ph << 1 | (hin > 0 ? 1L : 0L);
+          mh = mh << 1 | hinNeg;
+          pvs[b] = mh | ~(xv | ph);
+          mvs[b] = ph & xv;
+          hin = hout;
+        }
+        if (score - (n - j - 1) > threshold) {
+          return -1;
+        }
+      }
+      return score;
     }
-
-    // our last action in the above loop was to switch d and p, so p now
-    // actually has the most recent cost counts
-    return p[n];
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,210 @@
+package eu.fbk.utils.core.strings;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class LevenshteinDistanceTest {
+
+    @Test
+    public void testExamples() {
+        final LevenshteinDistance distance = LevenshteinDistance.getDefaultInstance();
+        Assert.assertEquals(0, (int) distance.apply("", ""));
+        Assert.assertEquals(1, (int) distance.apply("", "a"));
+        Assert.assertEquals(7, (int) distance.apply("aaapppp", ""));
+        Assert.assertEquals(1, (int) distance.apply("frog", "fog"));
+        Assert.assertEquals(3, (int) distance.apply("fly", "ant"));
+        Assert.assertEquals(7, (int) distance.apply("elephant", "hippo"));
+        Assert.assertEquals(7, (int) distance.apply("hippo", "elephant"));
+        Assert.assertEquals(8, (int) distance.apply("hippo", "zzzzzzzz"));
+        Assert.assertEquals(1, (int) distance.apply("hello", "hallo"));
+
+        final LevenshteinDistance limited = new LevenshteinDistance(6);
+        Assert.assertEquals(-1, (int) limited.apply("aaapppp", ""));
+        Assert.assertEquals(-1, (int) limited.apply("elephant", "hippo"));
+        Assert.assertEquals(7, (int) new LevenshteinDistance(7).apply("hippo", "elephant"));
+    }
+
+    @Test
+    public void testRandom() {
+        final Random random = new Random(17);
+        final LevenshteinDistance distance = LevenshteinDistance.getDefaultInstance();
+        for (int i = 0; i < 3000; ++i) {
+            final String left = randomString(random);
+            final String right = randomString(random);
+            final int expected = dp(left, right);
+            Assert.assertEquals(left + " / " + right, expected, (int) distance.apply(left, right));
+            final int threshold = random.nextInt(Math.max(1, expected * 2));
+            Assert.assertEquals(expected <= threshold ? expected : -1,
+                    (int) new LevenshteinDistance(threshold).apply(left, right));
+        }
+    }
+
+    @Test
+    public void testBatch() {
+        final Random random = new Random(19);
+        for (int i = 0; i < 100; ++i) {
+            final String query = randomString(random);
+            final CharSequence[] candidates = new CharSequence[50];
+            for (int j = 0; j < candidates.length; ++j) {
+                candidates[j] = randomString(random);
+            }
+            final int[] out = new int[candidates.length];
+            final LevenshteinDistance distance = new LevenshteinDistance(random.nextBoolean() ? null : 20);
+            distance.apply(query, candidates, out);
+            for (int j = 0; j < candidates.length; ++j) {
+                Assert.assertEquals((int) distance.apply(query, candidates[j]), out[j]);
+            }
+        }
+    }
+
+    @Test
+    public void testLongPatterns() {
+        final Random random = new Random(29);
+        final LevenshteinDistance distance = LevenshteinDistance.getDefaultInstance();
+        final LevenshteinDistance limited = new LevenshteinDistance(2500);
+        for (final int alphabet : new int[] { 26, 500, 20000 }) {
+            // Latin-only, mixed with few non Latin-1 characters, mostly distinct ones (DP fallback)
+            final int length = alphabet == 20000 ? 12000 : 5000;
+            final String left = longString(random, length, alphabet);
+            final String right = longString(random, length + random.nextInt(100), alphabet);
+            final int expected = dp(left, right);
+            Assert.assertEquals(expected, (int) distance.apply(left, right));
+            Assert.assertEquals(expected <= 2500 ? expected : -1, (int) limited.apply(left, right));
+            final int[] out = new int[2];
+            distance.apply(left, new CharSequence[] { right, left }, out);
+            Assert.assertEquals(expected, out[0]);
+            Assert.assertEquals(0, out[1]);
+            // the workspace is still clean
+            Assert.assertEquals(3, (int) distance.apply("kitten", "sitting"));
+            Assert.assertEquals(2, (int) distance.apply("\u03b1\u03b2\u03b3", "\u03b1\u03b4\u03b5"));
+        }
+    }
+
+    @Test
+    public void testFailingSequence() {
+        final LevenshteinDistance distance = LevenshteinDistance.getDefaultInstance();
+        final String pattern = "ab\u03b1\u03b2cd\u03b3";
+        // the pattern is read twice by init, fail on each read in turn
+        for (int k = 0; k < 2 * pattern.length(); ++k) {
+            final int failAt = k;
+            final CharSequence failing = new CharSequence() {
+
+                private int reads;
+
+                @Override
+                public int length() {
+                    return pattern.length();
+                }
+
+                @Override
+                public char charAt(final int index) {
+                    if (reads++ == failAt) {
+                        throw new IllegalStateException("failing at read " + failAt);
+                    }
+                    return pattern.charAt(index);
+                }
+
+                @Override
+                public CharSequence subSequence(final int start, final int end) {
+                    return pattern.subSequence(start, end);
+                }
+            };
+            try {
+                distance.apply(failing, "zzzzzzzzzz");
+                Assert.fail("exception expected");
+            } catch (final IllegalStateException ex) {
+                // expected
+            }
+            // no stale mask is left in the workspace of this thread
+            Assert.assertEquals(dp("xyz\u03b4", pattern), (int) distance.apply("xyz\u03b4", pattern));
+            Assert.assertEquals(dp("b\u03b2", "zzzzzzzzzz"), (int) distance.apply("b\u03b2", "zzzzzzzzzz"));
+        }
+    }
+
+    @Ignore
+    @Test
+    public void benchmark() {
+        final Random random = new Random(23);
+        for (final int length : new int[] { 10, 30, 60, 200 }) {
+            final String[] strings = new String[2000];
+            for (int i = 0; i < strings.length; ++i) {
+                final StringBuilder builder = new StringBuilder();
+                for (int j = 0; j < length; ++j) {
+                    builder.append((char) ('a' + random.nextInt(26)));
+                }
+                strings[i] = builder.toString();
+            }
+            final LevenshteinDistance distance = LevenshteinDistance.getDefaultInstance();
+            final int[] out = new int[strings.length];
+            for (int round = 0; round < 3; ++round) {
+                long sum = 0;
+                long ts = System.nanoTime();
+                for (int i = 0; i < 200; ++i) {
+                    for (final String string : strings) {
+                        sum += dp(strings[i], string);
+                    }
+                }
+                final long dpTime = System.nanoTime() - ts;
+                ts = System.nanoTime();
+                for (int i = 0; i < 200; ++i) {
+                    for (final String string : strings) {
+                        sum -= distance.apply(strings[i], string);
+                    }
+                }
+                final long bitTime = System.nanoTime() - ts;
+                ts = System.nanoTime();
+                for (int i = 0; i < 200; ++i) {
+                    distance.apply(strings[i], strings, out);
+                }
+                final long batchTime = System.nanoTime() - ts;
+                System.out.printf("length %d: dp %d ms, bit-parallel %d ms, batch %d ms (%d)%n", length,
+                        dpTime / 1000000, bitTime / 1000000, batchTime / 1000000, sum);
+            }
+        }
+    }
+
+    private static String longString(final Random random, final int length, final int alphabet) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; ++i) {
+            final int c = random.nextInt(alphabet);
+            builder.append((char) (c < 26 ? 'a' + c : 0x400 + c));
+        }
+        return builder.toString();
+    }
+
+    private static String randomString(final Random random) {
+        final int length = random.nextInt(4) == 0 ? random.nextInt(200) : random.nextInt(70);
+        final int alphabet = 2 + random.nextInt(6);
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; ++i) {
+            final int c = random.nextInt(alphabet);
+            // mix Latin-1 and other characters
+            builder.append((char) (c % 2 == 0 ? 'a' + c : 0x3b1 + c * 257));
+        }
+        return builder.toString();
+    }
+
+    // classic dynamic programming, as in the previous implementation, used as reference
+    private static int dp(final String left, final String right) {
+        int[] p = new int[left.length() + 1];
+        int[] d = new int[left.length() + 1];
+        for (int i = 0; i <= left.length(); ++i) {
+            p[i] = i;
+        }
+        for (int j = 1; j <= right.length(); ++j) {
+            d[0] = j;
+            for (int i = 1; i <= left.length(); ++i) {
+                final int cost = left.charAt(i - 1) == right.charAt(j - 1) ? 0 : 1;
+                d[i] = Math.min(Math.min(d[i - 1] + 1, p[i] + 1), p[i - 1] + cost);
+            }
+            final int[] t = p;
+            p = d;
+            d = t;
+        }
+        return p[left.length()];
+    }
+
+}
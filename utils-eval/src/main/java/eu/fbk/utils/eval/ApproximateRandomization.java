@@ -1,11 +1,16 @@
 package eu.fbk.utils.eval;
 
+import com.google.common.base.Preconditions;
+import eu.fbk.utils.core.Environment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by alessio on 04/02/16.
@@ -14,7 +19,12 @@ import java.util.Random;
 public class ApproximateRandomization {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ApproximateRandomization.class);
-    private static DecimalFormat formatter = new DecimalFormat("###,###.####");
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private static final double TOLERANCE = 1e-9;
+
+    private static final double Z = 1.959964;
 
     private static void swap(double[] y, double[] z, Random rdm) {
         //logger.info("swap");
@@ -46,56 +56,277 @@ public class ApproximateRandomization {
         // the less probable it is that that the null
         // hypothesis holds. That is, the two systems are
         // are significantly different.
+        return test(Metric.MEAN, iterations, 123, new double[][] { a }, new double[][] { b }).getPValue();
+    }
+
+    /**
+     * Approximate randomization test: the outputs of the two systems are swapped item by item
+     * with probability 1/2 and the p-value is the fraction of shuffles whose (absolute) score
+     * difference is at least the observed one. The arrays are indexed by metric column and then
+     * by item (e.g., {@code {tp, fp, fn}} for {@link Metric#F1}). Shuffles are split in fixed
+     * chunks run on all cores, each with its own random generator derived from the seed, so the
+     * result depends only on the seed and not on the number of cores.
+     */
+    public static Result test(final Metric metric, final int iterations, final long seed, final double[][] a,
+            final double[][] b) {
+        return run(false, metric, iterations, seed, a, b);
+    }
+
+    /**
+     * Paired bootstrap test: the items are resampled with replacement (the same items for both
+     * systems) and the p-value is the fraction of samples whose score difference, shifted by the
+     * observed one to obey the null hypothesis, is at least as extreme as the observed difference.
+     * The result also reports a percentile confidence interval of the difference.
+     */
+    public static Result bootstrap(final Metric metric, final int iterations, final long seed, final double[][] a,
+            final double[][] b) {
+        return run(true, metric, iterations, seed, a, b);
+    }
 
-        double bs = calculateScore(a);
-        double ps = calculateScore(b);
-        double d = Math.abs(ps - bs);
-        LOGGER.debug(
-                "Original score bs, ps, d: " + formatter.format(bs * 100) + "%, " + formatter.format(ps * 100) + "%, "
-                        + formatter.format(d * 100) + "%");
-
-        double p = 0;
-        double mean = 0;
-        double variance = 0;
-        double sum = 0;
-        double ssum = 0;
-
-        // c - number of times that the pseudostatistic is
-        // greater or equal to the true statistic
-        int c = 0;
-        for (int i = 0; i < iterations; i++) {
-            double[] x = new double[a.length];
-            double[] y = new double[b.length];
-//            Evaluator[] baselineEvalCopy = new Evaluator[baselineEval.length];
-//            Evaluator[] preferredEvalCopy = new Evaluator[preferredEval.length];
-
-            System.arraycopy(a, 0, x, 0, a.length);
-            System.arraycopy(b, 0, y, 0, b.length);
-
-            swap(x, y, new Random(i * 123));
-            bs = calculateScore(x);
-            ps = calculateScore(y);
-
-            double di = Math.abs(ps - bs);
-            sum += di;
-            ssum += Math.pow(di, 2);
-            //logger.debug("score at " + i + " bs, ps,d: " + formatter.format(bs) + ", " + formatter.format(ps) + ", " + formatter.format(di) + ", (" + formatter.format(d) + ")");
-
-            if (di >= d) {
-                c++;
+    private static Result run(final boolean bootstrap, final Metric metric, final int iterations, final long seed,
+            final double[][] a, final double[][] b) {
+
+        final int columns = metric.getColumns();
+        Preconditions.checkArgument(iterations > 0, "Invalid number of iterations %s", iterations);
+        Preconditions.checkArgument(a.length == columns && b.length == columns,
+                "Metric %s requires %s columns", metric, columns);
+        final int n = a[0].length;
+        for (int c = 0; c < columns; ++c) {
+            Preconditions.checkArgument(a[c].length == n && b[c].length == n, "Columns of different length");
+        }
+        Preconditions.checkArgument(n > 0, "No items");
+
+        // per-item differences b - a, so that a swap only adds them to the running sums
+        final double[][] diffs = new double[columns][n];
+        final double[] totalsA = new double[columns];
+        final double[] totalsB = new double[columns];
+        for (int c = 0; c < columns; ++c) {
+            for (int i = 0; i < n; ++i) {
+                diffs[c][i] = b[c][i] - a[c][i];
+                totalsA[c] += a[c][i];
+                totalsB[c] += b[c][i];
             }
+        }
+        final double d = metric.score(totalsB, n) - metric.score(totalsA, n);
+        final double threshold = Math.abs(d) - TOLERANCE * Math.max(1.0, Math.abs(d));
 
-        } // end for i
+        final AtomicLong count = new AtomicLong();
+        final double[] samples = bootstrap ? new double[iterations] : null;
+        final List<Runnable> chunks = new ArrayList<>();
+        final SplittableRandom random = new SplittableRandom(seed);
+        for (int start = 0; start < iterations; start += CHUNK_SIZE) {
+            final int from = start;
+            final int to = Math.min(iterations, start + CHUNK_SIZE);
+            final SplittableRandom chunkRandom = random.split();
+            chunks.add(() -> {
+                final double[] sums = new double[columns];
+                final double[] sumsA = new double[columns];
+                final double[] sumsB = new double[columns];
+                int c = 0;
+                for (int i = from; i < to; ++i) {
+                    final double di;
+                    if (bootstrap) {
+                        Arrays.fill(sumsA, 0.0);
+                        Arrays.fill(sumsB, 0.0);
+                        for (int j = 0; j < n; ++j) {
+                            final int k = chunkRandom.nextInt(n);
+                            for (int h = 0; h < columns; ++h) {
+                                sumsA[h] += a[h][k];
+                                sumsB[h] += b[h][k];
+                            }
+                        }
+                        di = metric.score(sumsB, n) - metric.score(sumsA, n);
+                        samples[i] = di;
+                        if (Math.abs(di - d) >= threshold) {
+                            c++;
+                        }
+                    } else {
+                        Arrays.fill(sums, 0.0);
+                        for (int w = 0; w < n; w += 64) {
+                            // one random bit per item: set bits are swapped
+                            long mask = chunkRandom.nextLong();
+                            if (n - w < 64) {
+                                mask &= (1L << n - w) - 1;
+                            }
+                            while (mask != 0L) {
+                                final int k = w + Long.numberOfTrailingZeros(mask);
+                                for (int h = 0; h < columns; ++h) {
+                                    sums[h] += diffs[h][k];
+                                }
+                                mask &= mask - 1;
+                            }
+                        }
+                        for (int h = 0; h < columns; ++h) {
+                            sumsA[h] = totalsA[h] + sums[h];
+                            sumsB[h] = totalsB[h] - sums[h];
+                        }
+                        di = metric.score(sumsB, n) - metric.score(sumsA, n);
+                        if (Math.abs(di) >= threshold) {
+                            c++;
+                        }
+                    }
+                }
+                count.addAndGet(c);
+            });
+        }
+        Environment.run(chunks);
+
+        double low = Double.NaN;
+        double high = Double.NaN;
+        if (bootstrap) {
+            Arrays.sort(samples);
+            low = samples[(int) Math.floor(0.025 * (iterations - 1))];
+            high = samples[(int) Math.ceil(0.975 * (iterations - 1))];
+        }
+        final Result result = new Result(d, count.get(), iterations, low, high);
+        LOGGER.debug("{} ({}, {} iterations): {}", bootstrap ? "Bootstrap" : "Approximate randomization", metric,
+                iterations, result);
+        return result;
+    }
+
+    /**
+     * A score computed from the per-column sums of the items of a system. Additive scores are the
+     * mean of a single column, while scores such as F1 are computed from summed counts.
+     */
+    public interface Metric {
+
+        /**
+         * Mean of the per-item scores (single column).
+         */
+        Metric MEAN = new Metric() {
+
+            @Override
+            public int getColumns() {
+                return 1;
+            }
+
+            @Override
+            public double score(final double[] sums, final int items) {
+                return sums[0] / items;
+            }
+
+            @Override
+            public String toString() {
+                return "mean";
+            }
+
+        };
+
+        /**
+         * F1 from per-item tp, fp and fn counts (three columns, in this order); 0 if undefined.
+         */
+        Metric F1 = new Metric() {
+
+            @Override
+            public int getColumns() {
+                return 3;
+            }
+
+            @Override
+            public double score(final double[] sums, final int items) {
+                final double denominator = 2 * sums[0] + sums[1] + sums[2];
+                return denominator == 0.0 ? 0.0 : 2 * sums[0] / denominator;
+            }
 
-        mean = sum / iterations;
-        variance = (iterations * ssum - Math.pow(sum, 2)) / iterations * (iterations - 1);
+            @Override
+            public String toString() {
+                return "F1";
+            }
+
+        };
+
+        int getColumns();
+
+        /**
+         * Returns the score for the given column sums; called once per iteration by many threads,
+         * so it should neither allocate nor keep state.
+         */
+        double score(double[] sums, int items);
+
+    }
+
+    public static final class Result {
+
+        private final double difference;
 
-        p = (double) (c + 1) / (iterations + 1);
+        private final long count;
 
-        LOGGER.debug("Mean: " + mean + ", " + Math.sqrt(variance));
-        LOGGER.debug(p + " = (" + c + " + 1) / (" + iterations + " + 1)");
+        private final int iterations;
+
+        private final double low;
+
+        private final double high;
+
+        Result(final double difference, final long count, final int iterations, final double low,
+                final double high) {
+            this.difference = difference;
+            this.count = count;
+            this.iterations = iterations;
+            this.low = low;
+            this.high = high;
+        }
+
+        /**
+         * Returns the observed score difference (second system minus first one).
+         */
+        public double getDifference() {
+            return this.difference;
+        }
+
+        public int getIterations() {
+            return this.iterations;
+        }
+
+        /**
+         * Returns the p-value, as (c + 1) / (iterations + 1).
+         */
+        public double getPValue() {
+            return (this.count + 1.0) / (this.iterations + 1.0);
+        }
+
+        /**
+         * Returns the lower bound of the 95% (Wilson) confidence interval of the p-value, which
+         * accounts for the finite number of iterations.
+         */
+        public double getPValueLow() {
+            return wilson(-Z);
+        }
+
+        public double getPValueHigh() {
+            return wilson(Z);
+        }
+
+        /**
+         * Returns the lower bound of the 95% percentile interval of the difference (bootstrap
+         * only, NaN otherwise).
+         */
+        public double getDifferenceLow() {
+            return this.low;
+        }
+
+        public double getDifferenceHigh() {
+            return this.high;
+        }
+
+        private double wilson(final double z) {
+            final double n = this.iterations + 1.0;
+            final double p = getPValue();
+            final double center = p + z * z / (2 * n);
+            final double spread = z * Math.sqrt(p * (1 - p) / n + z * z / (4 * n * n));
+            return Math.min(1.0, Math.max(0.0, (center + spread) / (1 + z * z / n)));
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append(String.format("d=%.4f, p=%.5f [%.5f, %.5f]", this.difference, getPValue(),
+                    getPValueLow(), getPValueHigh()));
+            if (!Double.isNaN(this.low)) {
+                builder.append(String.format(", d in [%.4f, %.4f]", this.low, this.high));
+            }
+            return builder.toString();
+        }
 
-        return p;
     }
 
     public static void main(String[] args) {
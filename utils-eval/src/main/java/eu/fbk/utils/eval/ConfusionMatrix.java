@@ -2,12 +2,16 @@ package eu.fbk.utils.eval;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 import com.google.common.collect.Ordering;
 
 import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public final class ConfusionMatrix implements Serializable {
 
@@ -83,11 +87,17 @@ public final class ConfusionMatrix implements Serializable {
         return this.countTotal;
     }
 
-    public synchronized PrecisionRecall getLabelPR(final int label) {
-        if (this.labelPRs == null) {
-            this.labelPRs = new PrecisionRecall[this.numLabels];
+    // cached measures are computed without locking: concurrent callers may compute the same
+    // (immutable) value twice, which is harmless
+
+    public PrecisionRecall getLabelPR(final int label) {
+        PrecisionRecall[] labelPRs = this.labelPRs;
+        if (labelPRs == null) {
+            labelPRs = new PrecisionRecall[this.numLabels];
+            this.labelPRs = labelPRs;
         }
-        if (this.labelPRs[label] == null) {
+        PrecisionRecall pr = labelPRs[label];
+        if (pr == null) {
             final double tp = this.counts[label * this.numLabels + label];
             double fp = 0.0;
             double fn = 0.0;
@@ -98,13 +108,15 @@ public final class ConfusionMatrix implements Serializable {
                 }
             }
             final double tn = getCountTotal() - tp - fp - fn;
-            this.labelPRs[label] = PrecisionRecall.forCounts(tp, fp, fn, tn);
+            pr = PrecisionRecall.forCounts(tp, fp, fn, tn);
+            labelPRs[label] = pr;
         }
-        return this.labelPRs[label];
+        return pr;
     }
 
-    public synchronized PrecisionRecall getMicroPR() {
-        if (this.microPR == null) {
+    public PrecisionRecall getMicroPR() {
+        PrecisionRecall pr = this.microPR;
+        if (pr == null) {
             double tp = 0.0;
             for (int i = 0; i < this.numLabels; ++i) {
                 tp += this.counts[i * this.numLabels + i];
@@ -113,28 +125,31 @@ public final class ConfusionMatrix implements Serializable {
             final double fp = total - tp;
             final double fn = fp;
             final double tn = total * this.numLabels - tp - fp - fn;
-            this.microPR = PrecisionRecall.forCounts(tp, fp, fn, tn);
+            pr = PrecisionRecall.forCounts(tp, fp, fn, tn);
+            this.microPR = pr;
         }
-        return this.microPR;
+        return pr;
     }
 
-    public synchronized PrecisionRecall getMacroPR() {
-        if (this.macroPR == null) {
+    public PrecisionRecall getMacroPR() {
+        PrecisionRecall pr = this.macroPR;
+        if (pr == null) {
             double p = 0.0;
             double r = 0.0;
             double a = 0.0;
             for (int i = 0; i < this.numLabels; ++i) {
-                final PrecisionRecall pr = getLabelPR(i);
-                p += pr.getPrecision();
-                r += pr.getRecall();
-                a += pr.getAccuracy();
+                final PrecisionRecall labelPR = getLabelPR(i);
+                p += labelPR.getPrecision();
+                r += labelPR.getRecall();
+                a += labelPR.getAccuracy();
             }
             p = p / this.numLabels;
             r = r / this.numLabels;
             a = a / this.numLabels;
-            this.macroPR = PrecisionRecall.forMeasures(p, r, a, getCountTotal());
+            pr = PrecisionRecall.forMeasures(p, r, a, getCountTotal());
+            this.macroPR = pr;
         }
-        return this.macroPR;
+        return pr;
     }
 
     @Override
@@ -327,6 +342,47 @@ public final class ConfusionMatrix implements Serializable {
         return new Evaluator(numLabels);
     }
 
+    /**
+     * Returns an accumulator counting all the (gold, predicted) pairs added so far.
+     */
+    public static Accumulator accumulator(final int numLabels) {
+        return new Accumulator(numLabels, 1, Accumulator.NO_WINDOW, 0.0, Ticker.systemTicker());
+    }
+
+    public static Accumulator windowedAccumulator(final int numLabels, final long window,
+            final TimeUnit unit, final int numBuckets) {
+        return windowedAccumulator(numLabels, window, unit, numBuckets, Ticker.systemTicker());
+    }
+
+    /**
+     * Returns an accumulator counting the pairs added in the last {@code window} time units.
+     * The window is split in {@code numBuckets} buckets and slides one bucket at a time.
+     */
+    public static Accumulator windowedAccumulator(final int numLabels, final long window,
+            final TimeUnit unit, final int numBuckets, final Ticker ticker) {
+        Preconditions.checkArgument(numBuckets > 0 && unit.toNanos(window) >= numBuckets);
+        return new Accumulator(numLabels, numBuckets, unit.toNanos(window) / numBuckets, 0.0,
+                ticker);
+    }
+
+    public static Accumulator decayingAccumulator(final int numLabels, final long halfLife,
+            final TimeUnit unit) {
+        return decayingAccumulator(numLabels, halfLife, unit, Ticker.systemTicker());
+    }
+
+    /**
+     * Returns an accumulator whose counts decay exponentially with the given half-life. Counts
+     * are kept in buckets a quarter of half-life wide, covering the last 16 half-lives (older
+     * pairs would weigh less than 1/65536); the pairs in a bucket are weighted based on the age
+     * of the middle of its interval.
+     */
+    public static Accumulator decayingAccumulator(final int numLabels, final long halfLife,
+            final TimeUnit unit, final Ticker ticker) {
+        final long halfLifeNanos = unit.toNanos(halfLife);
+        Preconditions.checkArgument(halfLifeNanos >= 4);
+        return new Accumulator(numLabels, 64, halfLifeNanos / 4, 1.0 / halfLifeNanos, ticker);
+    }
+
     public static final class Evaluator {
 
         private final double[][] counts;
@@ -382,4 +438,167 @@ public final class ConfusionMatrix implements Serializable {
 
     }
 
+    /**
+     * Concurrent accumulator of (gold, predicted) counts, snapshotted into a
+     * {@code ConfusionMatrix} at any time. Counts are kept in {@code long} cells striped by
+     * thread, so that concurrent threads rarely update the same cell (as in {@link java.util.concurrent.atomic.LongAdder}),
+     * and neither {@link #add(int, int)} nor {@link #snapshot()} lock. A snapshot is not an
+     * atomic cut of concurrent additions, but every cell it reports is exact at some point
+     * during the snapshot.
+     * <p>
+     * Windowed and decaying accumulators keep a ring of buckets, each counting the pairs added
+     * in a time interval. A bucket is replaced (not cleared) when it is reused, so an addition
+     * racing with the replacement may be lost: this only happens at bucket boundaries.
+     * <p>
+     * Stripes are limited so that all the buckets stay within 8MB, but each bucket always keeps
+     * at least a dense {@code numLabels x numLabels} table: for large label sets, memory is
+     * dominated by the number of buckets in use. Buckets and stripes are allocated the first
+     * time they are written, so that a single-threaded accumulator has a single stripe.
+     */
+    public static final class Accumulator {
+
+        // keep all striped cells within 8MB (unless a single stripe per bucket is larger)
+        private static final int MAX_CELLS = 1 << 20;
+
+        // bucket width of accumulators without window, whose single bucket never expires
+        private static final long NO_WINDOW = Long.MAX_VALUE;
+
+        // longs between stripes (a cache line at least), to avoid false sharing
+        private static final int PADDING = 16;
+
+        private final int numLabels;
+
+        private final int numStripes;
+
+        private final int stride;
+
+        private final long bucketNanos;
+
+        private final double decayRate;
+
+        private final Ticker ticker;
+
+        private final AtomicReferenceArray<Bucket> buckets;
+
+        private Accumulator(final int numLabels, final int numBuckets, final long bucketNanos,
+                final double decayRate, final Ticker ticker) {
+            Preconditions.checkArgument(numLabels > 0
+                    && (long) numLabels * numLabels + PADDING <= Integer.MAX_VALUE,
+                    "Invalid number of labels %s", numLabels);
+            final int cells = numLabels * numLabels;
+            final int maxStripes = Math.max(1, MAX_CELLS / numBuckets / (cells + PADDING));
+            final int cores = Runtime.getRuntime().availableProcessors();
+            this.numLabels = numLabels;
+            this.numStripes = Math.min(Integer.highestOneBit(maxStripes),
+                    Integer.highestOneBit(Math.max(1, cores * 2 - 1)));
+            this.stride = cells + PADDING;
+            this.bucketNanos = bucketNanos;
+            this.decayRate = decayRate;
+            this.ticker = ticker;
+            this.buckets = new AtomicReferenceArray<>(numBuckets);
+        }
+
+        public int getNumLabels() {
+            return this.numLabels;
+        }
+
+        public Accumulator add(final int labelGold, final int labelPredicted) {
+            return add(labelGold, labelPredicted, 1L);
+        }
+
+        public Accumulator add(final int labelGold, final int labelPredicted, final long count) {
+            Preconditions.checkArgument(labelGold >= 0 && labelGold < this.numLabels,
+                    "Invalid gold label %s", labelGold);
+            Preconditions.checkArgument(labelPredicted >= 0 && labelPredicted < this.numLabels,
+                    "Invalid predicted label %s", labelPredicted);
+            final int stripe = (int) Thread.currentThread().getId() & this.numStripes - 1;
+            bucket(epoch()).cells(stripe).getAndAdd(labelGold * this.numLabels + labelPredicted,
+                    count);
+            return this;
+        }
+
+        /**
+         * Returns the counts accumulated so far (in the current window, or decayed to the current
+         * time), without blocking concurrent additions.
+         */
+        public ConfusionMatrix snapshot() {
+            final long now = this.ticker.read();
+            final long epoch = epoch(now);
+            final double[][] counts = new double[this.numLabels][this.numLabels];
+            for (int i = 0; i < this.buckets.length(); ++i) {
+                final Bucket bucket = this.buckets.get(i);
+                if (bucket == null || bucket.epoch <= epoch - this.buckets.length()
+                        || bucket.epoch > epoch) {
+                    continue;
+                }
+                // decay measured from the middle of the bucket interval
+                final long age = now - (bucket.epoch * this.bucketNanos + this.bucketNanos / 2);
+                final double weight = this.decayRate == 0.0 ? 1.0
+                        : Math.pow(0.5, this.decayRate * Math.max(0L, age));
+                for (int stripe = 0; stripe < this.numStripes; ++stripe) {
+                    final AtomicLongArray cells = bucket.stripes.get(stripe);
+                    if (cells == null) {
+                        continue;
+                    }
+                    for (int gold = 0; gold < this.numLabels; ++gold) {
+                        for (int predicted = 0; predicted < this.numLabels; ++predicted) {
+                            counts[gold][predicted] += weight
+                                    * cells.get(gold * this.numLabels + predicted);
+                        }
+                    }
+                }
+            }
+            return new ConfusionMatrix(counts);
+        }
+
+        // the ticker is not read by accumulators without window
+        private long epoch() {
+            return this.bucketNanos == NO_WINDOW ? 0L : epoch(this.ticker.read());
+        }
+
+        private long epoch(final long nanos) {
+            return this.bucketNanos == NO_WINDOW ? 0L : Math.floorDiv(nanos, this.bucketNanos);
+        }
+
+        private Bucket bucket(final long epoch) {
+            final int index = (int) Math.floorMod(epoch, (long) this.buckets.length());
+            while (true) {
+                final Bucket bucket = this.buckets.get(index);
+                if (bucket != null && bucket.epoch >= epoch) {
+                    return bucket; // a late addition for an old epoch goes in the newer bucket
+                }
+                final Bucket newBucket = new Bucket(epoch, this.numStripes, this.stride);
+                if (this.buckets.compareAndSet(index, bucket, newBucket)) {
+                    return newBucket;
+                }
+            }
+        }
+
+        private static final class Bucket {
+
+            final long epoch;
+
+            final int stride;
+
+            final AtomicReferenceArray<AtomicLongArray> stripes;
+
+            Bucket(final long epoch, final int numStripes, final int stride) {
+                this.epoch = epoch;
+                this.stride = stride;
+                this.stripes = new AtomicReferenceArray<>(numStripes);
+            }
+
+            AtomicLongArray cells(final int stripe) {
+                final AtomicLongArray cells = this.stripes.get(stripe);
+                if (cells != null) {
+                    return cells;
+                }
+                this.stripes.compareAndSet(stripe, null, new AtomicLongArray(this.stride));
+                return this.stripes.get(stripe);
+            }
+
+        }
+
+    }
+
 }
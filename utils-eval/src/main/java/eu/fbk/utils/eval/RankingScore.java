@@ -5,10 +5,14 @@ import com.google.common.collect.*;
 import eu.fbk.utils.core.CommandLine;
 
 import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.Serializable;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
 
 public class RankingScore implements Serializable {
 
@@ -71,6 +75,99 @@ public class RankingScore implements Serializable {
         return evaluator(Iterables.size(ranking)).add(ranking, relevances).get();
     }
 
+    /**
+     * Evaluates a TREC run file ({@code qid Q0 docno rank score tag}) against a TREC qrels file
+     * ({@code qid iter docno rel}), as done by trec_eval: documents with a positive relevance
+     * are relevant, the documents of a query are ranked by decreasing score (then decreasing
+     * docno), and queries without relevance judgements are skipped. Only the qrels are kept in
+     * memory, while the run is read one query at a time and thus has to be grouped by query.
+     *
+     * @param qrels         the qrels file
+     * @param run           the run file
+     * @param maxN          the maximum rank for measures at N
+     * @param queryConsumer an optional consumer notified of the score of each query
+     * @return the score averaged over the evaluated queries
+     */
+    public static RankingScore evaluateTrec(final Path qrels, final Path run, final int maxN,
+            @Nullable final BiConsumer<String, RankingScore> queryConsumer) throws IOException {
+
+        final Map<String, Map<String, Double>> rels = Maps.newHashMap();
+        try (BufferedReader reader = Files.newBufferedReader(qrels)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 4) {
+                    continue;
+                }
+                final double rel = Double.parseDouble(tokens[3]);
+                final Map<String, Double> map = rels.computeIfAbsent(tokens[0],
+                        k -> Maps.newHashMap());
+                if (rel > 0.0) {
+                    map.put(tokens[2], rel);
+                }
+            }
+        }
+
+        final Evaluator evaluator = evaluator(maxN);
+        final Set<String> done = Sets.newHashSet();
+        final List<String> docs = Lists.newArrayList();
+        final List<Double> scores = Lists.newArrayList();
+        String query = null;
+        try (BufferedReader reader = Files.newBufferedReader(run)) {
+            while (true) {
+                final String line = reader.readLine();
+                final String[] tokens = line == null ? null : line.trim().split("\\s+");
+                if (tokens != null && tokens.length < 5) {
+                    continue;
+                }
+                if (query != null && (tokens == null || !tokens[0].equals(query))) {
+                    final Map<String, Double> queryRels = rels.get(query);
+                    if (queryRels != null) {
+                        final List<String> ranking = rankTrec(docs, scores);
+                        if (queryConsumer == null) {
+                            evaluator.add(ranking, queryRels);
+                        } else {
+                            final RankingScore score = evaluator(maxN).add(ranking, queryRels)
+                                    .get();
+                            evaluator.add(score);
+                            queryConsumer.accept(query, score);
+                        }
+                    }
+                    docs.clear();
+                    scores.clear();
+                    query = null;
+                }
+                if (tokens == null) {
+                    break;
+                }
+                if (query == null) {
+                    query = tokens[0];
+                    Preconditions.checkArgument(done.add(query),
+                            "Run file not grouped by query: %s", query);
+                }
+                docs.add(tokens[2]);
+                scores.add(Double.parseDouble(tokens[4]));
+            }
+        }
+        return evaluator.get();
+    }
+
+    private static List<String> rankTrec(final List<String> docs, final List<Double> scores) {
+        final Integer[] order = new Integer[docs.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (i, j) -> {
+            final int result = Double.compare(scores.get(j), scores.get(i));
+            return result != 0 ? result : docs.get(j).compareTo(docs.get(i));
+        });
+        final List<String> ranking = Lists.newArrayListWithCapacity(order.length);
+        for (final Integer index : order) {
+            ranking.add(docs.get(index));
+        }
+        return ranking;
+    }
+
     public static RankingScore average(final Iterable<RankingScore> scores) {
         int maxN = Integer.MAX_VALUE;
         for (final RankingScore score : scores) {
@@ -240,14 +337,27 @@ public class RankingScore implements Serializable {
                             CommandLine.Type.FILE_EXISTING, true, false, true)
                     .withOption("r", "ranking", "specifies the ranking FILE", "FILE",
                             CommandLine.Type.FILE_EXISTING, true, false, true)
+                    .withOption("t", "trec", "reads TREC qrels (gold) and run (ranking) files")
                     .withHeader("Evaluates the ranking from a file against the gold relevances " //
                             + "in another file. File format: rank_id item1_id[:rel] ... " //
                             + "where rel is 1 if omitted")
                     .parse(args);
 
+            final Path goldPath = cmd.getOptionValue("g", Path.class);
+            final Path rankingPath = cmd.getOptionValue("r", Path.class);
+            System.out.println("# key\tp@1\tp@3\tp@5\tp@10\tmrr\tndcg\tndcg@10\tmap\tmap@10");
+
+            // TREC files are evaluated while streaming the run
+            if (cmd.hasOption("t")) {
+                final RankingScore s = evaluateTrec(goldPath, rankingPath, 10,
+                        (key, score) -> System.out.println(key + "\t" + format(score)));
+                System.out.println("ALL\t" + format(s));
+                return;
+            }
+
             // Parse gold relevances
             final Map<String, Map<String, Double>> rels = Maps.newHashMap();
-            for (final String line : Files.readAllLines(cmd.getOptionValue("g", Path.class))) {
+            for (final String line : Files.readAllLines(goldPath)) {
                 final String[] tokens = line.split("[\\s+,;]+");
                 final Map<String, Double> map = Maps.newHashMap();
                 rels.put(tokens[0], map);
@@ -262,33 +372,28 @@ public class RankingScore implements Serializable {
                 }
             }
 
-            // Process rankings
-            System.out.println("# key\tp@1\tp@3\tp@5\tp@10\tmrr\tndcg\tndcg@10\tmap\tmap@10");
+            // Process rankings, one line at a time
             final RankingScore.Evaluator evaluator = RankingScore.evaluator(10);
-            for (final String line : Files.readAllLines(cmd.getOptionValue("r", Path.class))) {
-                final String[] tokens = line.split("[\\s+,;]+");
-                final String key = tokens[0];
-                final List<String> ranking = Lists.newArrayList();
-                for (int i = 1; i < tokens.length; ++i) {
-                    final int j = tokens[i].lastIndexOf(':');
-                    ranking.add(j < 0 ? tokens[i] : tokens[i].substring(0, i));
-                }
-                if (!rels.containsKey(key)) {
-                    throw new CommandLine.Exception("No gold relevances for key " + key);
+            try (BufferedReader reader = Files.newBufferedReader(rankingPath)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] tokens = line.split("[\\s+,;]+");
+                    final String key = tokens[0];
+                    final List<String> ranking = Lists.newArrayList();
+                    for (int i = 1; i < tokens.length; ++i) {
+                        final int j = tokens[i].lastIndexOf(':');
+                        ranking.add(j < 0 ? tokens[i] : tokens[i].substring(0, j));
+                    }
+                    if (!rels.containsKey(key)) {
+                        throw new CommandLine.Exception("No gold relevances for key " + key);
+                    }
+                    final RankingScore s = RankingScore.evaluator(10).add(ranking, rels.get(key))
+                            .get();
+                    evaluator.add(s);
+                    System.out.println(key + "\t" + format(s));
                 }
-                final RankingScore s = RankingScore.evaluator(10).add(ranking, rels.get(key))
-                        .get();
-                evaluator.add(s);
-                System.out.println(key + "\t" + s.getPrecision(1) + "\t" + s.getPrecision(3) + "\t"
-                        + s.getPrecision(5) + "\t" + s.getPrecision(10) + "\t" + s.getMRR() + "\t"
-                        + s.getNDCG() + "\t" + s.getNDCG(10) + "\t" + s.getMAP() + "\t"
-                        + s.getMAP(10));
             }
-            final RankingScore s = evaluator.get();
-            System.out.println("ALL\t" + s.getPrecision(1) + "\t" + s.getPrecision(3) + "\t"
-                    + s.getPrecision(5) + "\t" + s.getPrecision(10) + "\t" + s.getMRR() + "\t"
-                    + s.getNDCG() + "\t" + s.getNDCG(10) + "\t" + s.getMAP() + "\t"
-                    + s.getMAP(10));
+            System.out.println("ALL\t" + format(evaluator.get()));
 
         } catch (final Throwable ex) {
             // Display error information and terminate
@@ -296,6 +401,12 @@ public class RankingScore implements Serializable {
         }
     }
 
+    private static String format(final RankingScore s) {
+        return s.getPrecision(1) + "\t" + s.getPrecision(3) + "\t" + s.getPrecision(5) + "\t"
+                + s.getPrecision(10) + "\t" + s.getMRR() + "\t" + s.getNDCG() + "\t"
+                + s.getNDCG(10) + "\t" + s.getMAP() + "\t" + s.getMAP(10);
+    }
+
     public static final class Measure {
 
         public static final Measure P1 = new Measure("p", 1);
@@ -379,55 +490,51 @@ public class RankingScore implements Serializable {
 
     }
 
+    /**
+     * Accumulates the scores of many rankings. Rankings can be added concurrently: each thread
+     * accumulates sums in its own {@code Sums} object (whose lock is never contended by other
+     * adding threads), and the sums of all threads are merged when {@link #get()} is called.
+     * The thread creating the evaluator, often the only one using it, adds to sums owned by the
+     * evaluator, so that the per-thread sums are allocated only once another thread adds.
+     */
     public static final class Evaluator {
 
-        private int maxN;
-
-        private int numRanking;
-
-        private int[] numRankings;
+        private volatile int maxN;
 
-        private double[] sumPrecision;
+        private final Thread owner;
 
-        private double sumMRR;
+        private final Sums ownerSums;
 
-        private double sumNDCG;
-
-        private double[] sumNDCGs;
-
-        private double sumAltNDCG;
-
-        private double[] sumAltNDCGs;
-
-        private double sumMAP;
-
-        private double[] sumMAPs;
-
-        private RankingScore result;
+        @Nullable
+        private volatile LocalSums localSums;
 
         private Evaluator(final int maxN) {
             this.maxN = maxN;
-            this.numRanking = 0;
-            this.numRankings = new int[maxN];
-            this.sumPrecision = new double[maxN];
-            this.sumMRR = 0.0;
-            this.sumNDCG = 0.0;
-            this.sumNDCGs = new double[maxN];
-            this.sumAltNDCG = 0.0;
-            this.sumAltNDCGs = new double[maxN];
-            this.sumMAP = 0.0;
-            this.sumMAPs = new double[maxN];
-            this.result = null;
-        }
-
-        private void shrinkIfNeeded(final int maxN) {
+            this.owner = Thread.currentThread();
+            this.ownerSums = new Sums(maxN);
+            this.localSums = null;
+        }
+
+        private Sums sums() {
+            if (Thread.currentThread() == this.owner) {
+                return this.ownerSums;
+            }
+            LocalSums localSums = this.localSums;
+            if (localSums == null) {
+                synchronized (this) {
+                    localSums = this.localSums;
+                    if (localSums == null) {
+                        localSums = new LocalSums();
+                        this.localSums = localSums;
+                    }
+                }
+            }
+            return localSums.get();
+        }
+
+        private synchronized void shrinkIfNeeded(final int maxN) {
             if (maxN < this.maxN) {
                 this.maxN = maxN;
-                this.numRankings = Arrays.copyOf(this.numRankings, maxN);
-                this.sumPrecision = Arrays.copyOf(this.sumPrecision, maxN);
-                this.sumNDCGs = Arrays.copyOf(this.sumNDCGs, maxN);
-                this.sumAltNDCGs = Arrays.copyOf(this.sumAltNDCGs, maxN);
-                this.sumMAPs = Arrays.copyOf(this.sumMAPs, maxN);
             }
         }
 
@@ -441,30 +548,34 @@ public class RankingScore implements Serializable {
         private <T> void update(final Iterable<T> ranking, final Set<T> relItems,
                 @Nullable final Map<T, Double> rels) {
 
-            double[] relsSorted = null;
-            if (rels != null) {
-                relsSorted = new double[rels.size()];
-                int i = 0;
-                for (final Double rel : rels.values()) {
-                    relsSorted[i++] = rel;
-                }
-                Arrays.sort(relsSorted);
-            }
+            final Sums sums = sums();
+            final int maxN = sums.numRankings.length;
+
+            synchronized (sums) {
 
-            int n = 0; // index of current item
-            int c = 0; // num relevant items
-            double mapNum = 0.0; // MAP numerator
-            double ndcgNum = 0.0; // NDCG numerator
-            double ndcgDen = 0.0; // NDCG denominator
-            double altNdcgNum = 0.0; // NDCG numerator
-            double altNdcgDen = 0.0; // NDCG denominator
-            final double ln2 = Math.log(2.0); // constant for transforming log_e(n) to log_2(n)
-            double pn = 0.0;
+                // relevances sorted in a per-thread buffer (only the first relItems.size() used)
+                double[] relsSorted = null;
+                if (rels != null) {
+                    relsSorted = sums.buffer(rels.size());
+                    int i = 0;
+                    for (final Double rel : rels.values()) {
+                        relsSorted[i++] = rel;
+                    }
+                    Arrays.sort(relsSorted, 0, i);
+                }
+                final int numRels = relItems.size();
 
-            synchronized (this) {
+                int n = 0; // index of current item
+                int c = 0; // num relevant items
+                double mapNum = 0.0; // MAP numerator
+                double ndcgNum = 0.0; // NDCG numerator
+                double ndcgDen = 0.0; // NDCG denominator
+                double altNdcgNum = 0.0; // NDCG numerator
+                double altNdcgDen = 0.0; // NDCG denominator
+                final double ln2 = Math.log(2.0); // constant for transforming log_e(n) to log_2(n)
+                double pn = 0.0;
 
-                ++this.numRanking;
-                this.result = null; // invalidate cached result
+                ++sums.numRanking;
 
                 for (final T item : ranking) {
                     ++n;
@@ -476,7 +587,7 @@ public class RankingScore implements Serializable {
                     mapNum += pn * r;
 
                     if (r == 1 && c == 1.0) {
-                        this.sumMRR += 1.0 / n; // first relevant result at position n
+                        sums.sumMRR += 1.0 / n; // first relevant result at position n
                     }
 
                     if (r == 1) {
@@ -484,47 +595,47 @@ public class RankingScore implements Serializable {
                         altNdcgNum += (rels == null ? 1.0 : Math.pow(2.0, //
                                 rels.get(item)) - 1) * altF;
                     }
-                    if (n <= relItems.size()) {
-                        ndcgDen += (rels == null ? 1.0 : relsSorted[relsSorted.length - n]) * f;
+                    if (n <= numRels) {
+                        ndcgDen += (rels == null ? 1.0 : relsSorted[numRels - n]) * f;
                         altNdcgDen += (rels == null ? 1.0
-                                : Math.pow(2.0, relsSorted[relsSorted.length - n]) - 1) * altF;
+                                : Math.pow(2.0, relsSorted[numRels - n]) - 1) * altF;
                     }
 
-                    if (n <= this.maxN) {
-                        ++this.numRankings[n - 1];
-                        this.sumPrecision[n - 1] += pn;
-                        this.sumNDCGs[n - 1] += ndcgNum / ndcgDen;
-                        this.sumAltNDCGs[n - 1] += altNdcgNum / altNdcgDen;
-                        if (!relItems.isEmpty()) {
+                    if (n <= maxN) {
+                        ++sums.numRankings[n - 1];
+                        sums.sumPrecision[n - 1] += pn;
+                        sums.sumNDCGs[n - 1] += ndcgNum / ndcgDen;
+                        sums.sumAltNDCGs[n - 1] += altNdcgNum / altNdcgDen;
+                        if (numRels > 0) {
                             // division by relItems.size() and not Math.min(n, relItems.size()) is
                             // justified by: http://www.msr-waypoint.net/pubs/130616/fp146-radlinski.pdf
-                            this.sumMAPs[n - 1] += mapNum / relItems.size();
+                            sums.sumMAPs[n - 1] += mapNum / numRels;
                         }
                     }
                 }
 
-                final int limit = Math.max(this.maxN, relItems.size());
+                final int limit = Math.max(maxN, numRels);
                 for (++n; n <= limit; ++n) {
-                    if (n <= relItems.size()) {
+                    if (n <= numRels) {
                         final double f = n == 1 ? 1 : ln2 / Math.log(n); // factor used for NDCG
                         final double altF = ln2 / Math.log(n + 1); // factor used for alt NDCG
-                        ndcgDen += (rels == null ? 1.0 : relsSorted[relsSorted.length - n]) * f;
+                        ndcgDen += (rels == null ? 1.0 : relsSorted[numRels - n]) * f;
                         altNdcgDen += (rels == null ? 1.0
-                                : Math.pow(2.0, relsSorted[relsSorted.length - n]) - 1) * altF;
+                                : Math.pow(2.0, relsSorted[numRels - n]) - 1) * altF;
                     }
-                    if (n <= this.maxN) {
-                        this.sumNDCGs[n - 1] += ndcgNum / ndcgDen;
-                        this.sumAltNDCGs[n - 1] += altNdcgNum / altNdcgDen;
-                        if (!relItems.isEmpty()) {
-                            this.sumMAPs[n - 1] += mapNum / relItems.size();
+                    if (n <= maxN) {
+                        sums.sumNDCGs[n - 1] += ndcgNum / ndcgDen;
+                        sums.sumAltNDCGs[n - 1] += altNdcgNum / altNdcgDen;
+                        if (numRels > 0) {
+                            sums.sumMAPs[n - 1] += mapNum / numRels;
                         }
                     }
                 }
 
-                if (!relItems.isEmpty()) {
-                    this.sumNDCG += ndcgNum / ndcgDen;
-                    this.sumAltNDCG += altNdcgNum / altNdcgDen;
-                    this.sumMAP += mapNum / relItems.size();
+                if (numRels > 0) {
+                    sums.sumNDCG += ndcgNum / ndcgDen;
+                    sums.sumAltNDCG += altNdcgNum / altNdcgDen;
+                    sums.sumMAP += mapNum / numRels;
                 }
             }
         }
@@ -541,73 +652,145 @@ public class RankingScore implements Serializable {
         }
 
         public Evaluator add(final RankingScore score) {
-            synchronized (this) {
-                shrinkIfNeeded(score.maxN);
-                this.numRanking += score.numRanking;
-                this.sumMRR += score.mrr * score.numRanking;
-                this.sumNDCG += score.ndcg * score.numRanking;
-                this.sumAltNDCG += score.altNdcg * score.numRanking;
-                this.sumMAP += score.map * score.numRanking;
-                for (int i = 0; i < this.maxN; ++i) {
-                    this.numRankings[i] += score.numRankings[i];
-                    this.sumPrecision[i] += score.numRankings[i] == 0 ? 0
+            shrinkIfNeeded(score.maxN);
+            final Sums sums = sums();
+            synchronized (sums) {
+                sums.numRanking += score.numRanking;
+                sums.sumMRR += score.mrr * score.numRanking;
+                sums.sumNDCG += score.ndcg * score.numRanking;
+                sums.sumAltNDCG += score.altNdcg * score.numRanking;
+                sums.sumMAP += score.map * score.numRanking;
+                final int maxN = Math.min(score.maxN, sums.numRankings.length);
+                for (int i = 0; i < maxN; ++i) {
+                    sums.numRankings[i] += score.numRankings[i];
+                    sums.sumPrecision[i] += score.numRankings[i] == 0 ? 0
                             : score.precisions[i] * score.numRankings[i];
-                    this.sumNDCGs[i] += score.ndcgs[i] * score.numRanking;
-                    this.sumAltNDCGs[i] += score.altNdcgs[i] * score.numRanking;
-                    this.sumMAPs[i] += score.maps[i] * score.numRanking;
+                    sums.sumNDCGs[i] += score.ndcgs[i] * score.numRanking;
+                    sums.sumAltNDCGs[i] += score.altNdcgs[i] * score.numRanking;
+                    sums.sumMAPs[i] += score.maps[i] * score.numRanking;
                 }
-                this.result = null;
             }
             return this;
         }
 
         public Evaluator add(final Evaluator evaluator) {
-            synchronized (evaluator) {
-                synchronized (this) {
-                    shrinkIfNeeded(evaluator.maxN);
-                    this.numRanking += evaluator.numRanking;
-                    this.sumMRR += evaluator.sumMRR;
-                    this.sumNDCG += evaluator.sumNDCG;
-                    this.sumAltNDCG += evaluator.sumAltNDCG;
-                    this.sumMAP += evaluator.sumMAP;
-                    for (int i = 0; i < this.maxN; ++i) {
-                        this.numRankings[i] += evaluator.numRankings[i];
-                        this.sumPrecision[i] += evaluator.sumPrecision[i];
-                        this.sumNDCGs[i] += evaluator.sumNDCGs[i];
-                        this.sumAltNDCGs[i] += evaluator.sumAltNDCGs[i];
-                        this.sumMAPs[i] += evaluator.sumMAPs[i];
+            final Sums merged = evaluator.merge();
+            shrinkIfNeeded(merged.numRankings.length);
+            final Sums sums = sums();
+            synchronized (sums) {
+                sums.add(merged);
+            }
+            return this;
+        }
+
+        private Sums merge() {
+            final Sums merged = new Sums(this.maxN);
+            synchronized (this.ownerSums) {
+                merged.add(this.ownerSums);
+            }
+            final LocalSums localSums = this.localSums;
+            if (localSums != null) {
+                for (final Sums sums : localSums.allSums) {
+                    synchronized (sums) {
+                        merged.add(sums);
                     }
-                    this.result = null;
                 }
             }
-            return this;
+            return merged;
         }
 
         public RankingScore get() {
-            synchronized (this) {
-                if (this.result == null) {
-                    final double factor = this.numRanking == 0 ? 0.0 : 1.0 / this.numRanking;
-                    final double mrr = this.sumMRR * factor;
-                    final double ndcg = this.sumNDCG * factor;
-                    final double altNdcg = this.sumAltNDCG * factor;
-                    final double map = this.sumMAP * factor;
-                    final double[] precisions = new double[this.maxN];
-                    final double[] ndcgs = new double[this.maxN];
-                    final double[] altNdcgs = new double[this.maxN];
-                    final double[] maps = new double[this.maxN];
-                    for (int i = 0; i < this.maxN; ++i) {
-                        precisions[i] = this.numRankings[i] == 0 ? Double.NaN
-                                : this.sumPrecision[i] / this.numRankings[i];
-                        ndcgs[i] = this.sumNDCGs[i] * factor;
-                        altNdcgs[i] = this.sumAltNDCGs[i] * factor;
-                        maps[i] = this.sumMAPs[i] * factor;
-                    }
-                    this.result = new RankingScore(this.maxN, this.numRanking,
-                            this.numRankings.clone(), precisions, mrr, ndcg, ndcgs, altNdcg,
-                            altNdcgs, map, maps);
+            final Sums sums = merge();
+            final int maxN = sums.numRankings.length;
+            final double factor = sums.numRanking == 0 ? 0.0 : 1.0 / sums.numRanking;
+            final double mrr = sums.sumMRR * factor;
+            final double ndcg = sums.sumNDCG * factor;
+            final double altNdcg = sums.sumAltNDCG * factor;
+            final double map = sums.sumMAP * factor;
+            final double[] precisions = new double[maxN];
+            final double[] ndcgs = new double[maxN];
+            final double[] altNdcgs = new double[maxN];
+            final double[] maps = new double[maxN];
+            for (int i = 0; i < maxN; ++i) {
+                precisions[i] = sums.numRankings[i] == 0 ? Double.NaN
+                        : sums.sumPrecision[i] / sums.numRankings[i];
+                ndcgs[i] = sums.sumNDCGs[i] * factor;
+                altNdcgs[i] = sums.sumAltNDCGs[i] * factor;
+                maps[i] = sums.sumMAPs[i] * factor;
+            }
+            return new RankingScore(maxN, sums.numRanking, sums.numRankings, precisions, mrr,
+                    ndcg, ndcgs, altNdcg, altNdcgs, map, maps);
+        }
+
+        private final class LocalSums extends ThreadLocal<Sums> {
+
+            final Queue<Sums> allSums = new ConcurrentLinkedQueue<>();
+
+            @Override
+            protected Sums initialValue() {
+                final Sums sums = new Sums(Evaluator.this.maxN);
+                this.allSums.add(sums);
+                return sums;
+            }
+
+        }
+
+        private static final class Sums {
+
+            int numRanking;
+
+            final int[] numRankings;
+
+            final double[] sumPrecision;
+
+            double sumMRR;
+
+            double sumNDCG;
+
+            final double[] sumNDCGs;
+
+            double sumAltNDCG;
+
+            final double[] sumAltNDCGs;
+
+            double sumMAP;
+
+            final double[] sumMAPs;
+
+            private double[] buffer;
+
+            Sums(final int maxN) {
+                this.numRankings = new int[maxN];
+                this.sumPrecision = new double[maxN];
+                this.sumNDCGs = new double[maxN];
+                this.sumAltNDCGs = new double[maxN];
+                this.sumMAPs = new double[maxN];
+            }
+
+            double[] buffer(final int size) {
+                if (this.buffer == null || this.buffer.length < size) {
+                    this.buffer = new double[Math.max(size, 16)];
                 }
-                return this.result;
+                return this.buffer;
             }
+
+            // sums may have been created before the evaluator was shrunk
+            void add(final Sums sums) {
+                this.numRanking += sums.numRanking;
+                this.sumMRR += sums.sumMRR;
+                this.sumNDCG += sums.sumNDCG;
+                this.sumAltNDCG += sums.sumAltNDCG;
+                this.sumMAP += sums.sumMAP;
+                final int maxN = Math.min(this.numRankings.length, sums.numRankings.length);
+                for (int i = 0; i < maxN; ++i) {
+                    this.numRankings[i] += sums.numRankings[i];
+                    this.sumPrecision[i] += sums.sumPrecision[i];
+                    this.sumNDCGs[i] += sums.sumNDCGs[i];
+                    this.sumAltNDCGs[i] += sums.sumAltNDCGs[i];
+                    this.sumMAPs[i] += sums.sumMAPs[i];
+                }
+            }
+
         }
 
     }
@@ -2,16 +2,23 @@ package eu.fbk.utils.eval;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
+import com.google.common.primitives.Ints;
 
 import javax.annotation.Nullable;
 import java.io.Serializable;
 import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToDoubleBiFunction;
 
 public final class SetPrecisionRecall implements Serializable {
 
@@ -90,6 +97,10 @@ public final class SetPrecisionRecall implements Serializable {
         @Nullable
         Object similarity;
 
+        int index1;
+
+        int index2;
+
         public AlignPair(final T object1, final T object2, final Object similarity) {
             this.object1 = object1;
             this.object2 = object2;
@@ -122,52 +133,286 @@ public final class SetPrecisionRecall implements Serializable {
     public static <T, E extends T> T[][] align(final Class<T> clazz, final Iterable<E> objects1,
             final Iterable<E> objects2, final boolean functional, final boolean invFunctional,
             final boolean emitUnaligned, final BiFunction<? super E, ? super E, ?> matcher) {
+        return align(clazz, objects1, objects2, functional, invFunctional, emitUnaligned, matcher,
+                null);
+    }
 
-        final Table<E, E, AlignPair<E>> table = HashBasedTable.create();
-        for (final E object1 : objects1) {
-            for (final E object2 : objects2) {
+    /**
+     * Greedily aligns two collections of objects, repeatedly picking the pair with the highest
+     * (non-null) similarity returned by the matcher; among pairs with the same similarity, the
+     * one whose objects come first in the two collections is picked. If a {@code keys} function
+     * is supplied, the objects are indexed by their keys (e.g., the members of a set) and only
+     * pairs sharing at least a key are passed to the matcher, which must then return null for
+     * all the other pairs.
+     */
+    public static <T, E extends T> T[][] align(final Class<T> clazz, final Iterable<E> objects1,
+            final Iterable<E> objects2, final boolean functional, final boolean invFunctional,
+            final boolean emitUnaligned, final BiFunction<? super E, ? super E, ?> matcher,
+            @Nullable final Function<? super E, ? extends Iterable<?>> keys) {
+
+        final List<E> list1 = ImmutableList.copyOf(Sets.newLinkedHashSet(objects1));
+        final List<E> list2 = ImmutableList.copyOf(Sets.newLinkedHashSet(objects2));
+
+        // Score candidate pairs, in the order of the two lists
+        final List<AlignPair<E>> candidates = Lists.newArrayList();
+        final int[][] columns = candidates(list1, list2, keys);
+        for (int i = 0; i < list1.size(); ++i) {
+            final E object1 = list1.get(i);
+            for (final int j : columns[i]) {
+                final E object2 = list2.get(j);
                 final Object similarity = matcher.apply(object1, object2);
-                table.put(object1, object2, new AlignPair<E>(object1, object2, similarity));
+                if (similarity != null) {
+                    final AlignPair<E> pair = new AlignPair<E>(object1, object2, similarity);
+                    pair.index1 = i;
+                    pair.index2 = j;
+                    candidates.add(pair);
+                }
             }
         }
 
-        final Set<E> set1 = emitUnaligned ? Sets.newHashSet(objects1) : null;
-        final Set<E> set2 = emitUnaligned ? Sets.newHashSet(objects2) : null;
+        // Stable sort: equal pairs keep the list order
+        Collections.sort(candidates, Collections.reverseOrder());
 
+        final boolean[] aligned1 = new boolean[list1.size()];
+        final boolean[] aligned2 = new boolean[list2.size()];
         final List<T[]> pairs = Lists.newArrayList();
+        for (final AlignPair<E> candidate : candidates) {
+            if (functional && aligned1[candidate.index1]
+                    || invFunctional && aligned2[candidate.index2]) {
+                continue;
+            }
+            pairs.add(newArray(clazz, candidate.object1, candidate.object2));
+            aligned1[candidate.index1] = true;
+            aligned2[candidate.index2] = true;
+        }
 
-        while (!table.isEmpty()) {
-            final AlignPair<E> bestPair = Ordering.natural().max(table.values());
-            if (bestPair.similarity == null) {
-                break; // no more matches
+        if (emitUnaligned) {
+            addUnaligned(clazz, pairs, objects1, objects2, list1, list2, aligned1, aligned2);
+        }
+        return pairs.toArray(newArray(clazz, pairs.size(), -1));
+    }
+
+    /**
+     * Aligns two collections of objects one-to-one so that the total weight of the aligned pairs
+     * is maximal (Hungarian algorithm). Pairs with a non-positive weight are never aligned. As in
+     * {@link #align(Class, Iterable, Iterable, boolean, boolean, boolean, BiFunction, Function)},
+     * the optional {@code keys} function restricts weighting to pairs sharing a key, and the
+     * assignment problem is solved separately on each group of objects connected by such pairs.
+     */
+    public static <T, E extends T> T[][] alignOptimal(final Class<T> clazz,
+            final Iterable<E> objects1, final Iterable<E> objects2, final boolean emitUnaligned,
+            final ToDoubleBiFunction<? super E, ? super E> weight,
+            @Nullable final Function<? super E, ? extends Iterable<?>> keys) {
+
+        final List<E> list1 = ImmutableList.copyOf(Sets.newLinkedHashSet(objects1));
+        final List<E> list2 = ImmutableList.copyOf(Sets.newLinkedHashSet(objects2));
+        final int size1 = list1.size();
+
+        // Weight candidate pairs and group objects in connected components (union-find over
+        // objects1 numbered 0..size1-1 and objects2 numbered size1..)
+        final int[][] columns = candidates(list1, list2, keys);
+        final double[][] weights = new double[size1][];
+        final int[] parents = new int[size1 + list2.size()];
+        for (int i = 0; i < parents.length; ++i) {
+            parents[i] = i;
+        }
+        for (int i = 0; i < size1; ++i) {
+            weights[i] = new double[columns[i].length];
+            for (int k = 0; k < columns[i].length; ++k) {
+                weights[i][k] = weight.applyAsDouble(list1.get(i), list2.get(columns[i][k]));
+                if (weights[i][k] > 0.0) {
+                    parents[find(parents, i)] = find(parents, size1 + columns[i][k]);
+                }
             }
-            final T[] pair = newArray(clazz, bestPair.object1, bestPair.object2);
-            pairs.add(pair);
-            if (functional) {
-                table.rowKeySet().remove(bestPair.object1);
+        }
+        final Map<Integer, List<Integer>> components = Maps.newLinkedHashMap();
+        for (int i = 0; i < parents.length; ++i) {
+            components.computeIfAbsent(find(parents, i), k -> Lists.newArrayList()).add(i);
+        }
+
+        final boolean[] aligned1 = new boolean[size1];
+        final boolean[] aligned2 = new boolean[list2.size()];
+        final List<T[]> pairs = Lists.newArrayList();
+        for (final List<Integer> component : components.values()) {
+            final int n = Iterables.size(Iterables.filter(component, i -> i < size1));
+            final int m = component.size() - n;
+            if (n == 0 || m == 0) {
+                continue;
             }
-            if (invFunctional) {
-                table.columnKeySet().remove(bestPair.object2);
+            // rows are the smallest side of the component, as required by hungarian()
+            final boolean transpose = n > m;
+            final int[] rows = new int[Math.min(n, m)];
+            final int[] cols = new int[Math.max(n, m)];
+            final Map<Integer, Integer> positions = Maps.newHashMap();
+            int r = 0;
+            int c = 0;
+            for (final int node : component) {
+                if (node < size1 != transpose) {
+                    positions.put(node, r);
+                    rows[r++] = node;
+                } else {
+                    positions.put(node, c);
+                    cols[c++] = node;
+                }
             }
-            if (!functional && !invFunctional) {
-                table.remove(bestPair.object1, bestPair.object2);
+            final double[][] costs = new double[rows.length][cols.length];
+            for (final int node : component) {
+                if (node < size1) {
+                    for (int k = 0; k < columns[node].length; ++k) {
+                        final double w = weights[node][k];
+                        if (w > 0.0) {
+                            final int i = positions.get(node);
+                            final int j = positions.get(size1 + columns[node][k]);
+                            costs[transpose ? j : i][transpose ? i : j] = -w;
+                        }
+                    }
+                }
             }
-            if (emitUnaligned) {
-                set1.remove(bestPair.object1);
-                set2.remove(bestPair.object2);
+            final int[] assignment = hungarian(costs);
+            for (int i = 0; i < rows.length; ++i) {
+                if (costs[i][assignment[i]] < 0.0) {
+                    final int index1 = transpose ? cols[assignment[i]] : rows[i];
+                    final int index2 = (transpose ? rows[i] : cols[assignment[i]]) - size1;
+                    pairs.add(newArray(clazz, list1.get(index1), list2.get(index2)));
+                    aligned1[index1] = true;
+                    aligned2[index2] = true;
+                }
             }
         }
 
         if (emitUnaligned) {
-            for (final E object1 : set1) {
-                pairs.add(newArray(clazz, object1, null));
+            addUnaligned(clazz, pairs, objects1, objects2, list1, list2, aligned1, aligned2);
+        }
+        return pairs.toArray(newArray(clazz, pairs.size(), -1));
+    }
+
+    // unaligned objects are emitted in the same order of previous versions, which collected
+    // them by removing aligned objects from hash sets built on the input iterables
+    private static <T, E extends T> void addUnaligned(final Class<T> clazz, final List<T[]> pairs,
+            final Iterable<E> objects1, final Iterable<E> objects2, final List<E> list1,
+            final List<E> list2, final boolean[] aligned1, final boolean[] aligned2) {
+        final Set<E> set1 = Sets.newHashSet(objects1);
+        final Set<E> set2 = Sets.newHashSet(objects2);
+        for (int i = 0; i < list1.size(); ++i) {
+            if (aligned1[i]) {
+                set1.remove(list1.get(i));
+            }
+        }
+        for (int j = 0; j < list2.size(); ++j) {
+            if (aligned2[j]) {
+                set2.remove(list2.get(j));
             }
-            for (final E object2 : set2) {
-                pairs.add(newArray(clazz, null, object2));
+        }
+        for (final E object1 : set1) {
+            pairs.add(newArray(clazz, object1, null));
+        }
+        for (final E object2 : set2) {
+            pairs.add(newArray(clazz, null, object2));
+        }
+    }
+
+    /**
+     * Returns, for each object of the first list, the sorted indexes of the objects of the
+     * second list sharing some key with it (all the objects, if keys is null).
+     */
+    private static <E> int[][] candidates(final List<E> list1, final List<E> list2,
+            @Nullable final Function<? super E, ? extends Iterable<?>> keys) {
+
+        final int[][] columns = new int[list1.size()][];
+        if (keys == null) {
+            final int[] all = new int[list2.size()];
+            for (int j = 0; j < all.length; ++j) {
+                all[j] = j;
             }
+            Arrays.fill(columns, all);
+            return columns;
         }
 
-        return pairs.toArray(newArray(clazz, pairs.size(), -1));
+        final ListMultimap<Object, Integer> index = ArrayListMultimap.create();
+        for (int j = 0; j < list2.size(); ++j) {
+            for (final Object key : keys.apply(list2.get(j))) {
+                index.put(key, j);
+            }
+        }
+        final Set<Integer> js = Sets.newHashSet();
+        for (int i = 0; i < list1.size(); ++i) {
+            js.clear();
+            for (final Object key : keys.apply(list1.get(i))) {
+                js.addAll(index.get(key));
+            }
+            columns[i] = Ints.toArray(js);
+            Arrays.sort(columns[i]);
+        }
+        return columns;
+    }
+
+    private static int find(final int[] parents, int node) {
+        while (parents[node] != node) {
+            parents[node] = parents[parents[node]];
+            node = parents[node];
+        }
+        return node;
+    }
+
+    /**
+     * Solves the assignment problem for an n x m cost matrix with n <= m, returning the column
+     * assigned to each row so that the total cost is minimal (O(n^2 m) potentials version).
+     */
+    private static int[] hungarian(final double[][] costs) {
+        final int n = costs.length;
+        final int m = costs[0].length;
+        final double[] u = new double[n + 1];
+        final double[] v = new double[m + 1];
+        final int[] p = new int[m + 1]; // row (1-based) assigned to each column, 0 if none
+        final int[] way = new int[m + 1];
+        final double[] minv = new double[m + 1];
+        final boolean[] used = new boolean[m + 1];
+        for (int i = 1; i <= n; ++i) {
+            p[0] = i;
+            int j0 = 0;
+            Arrays.fill(minv, Double.POSITIVE_INFINITY);
+            Arrays.fill(used, false);
+            do {
+                used[j0] = true;
+                final int i0 = p[j0];
+                double delta = Double.POSITIVE_INFINITY;
+                int j1 = 0;
+                for (int j = 1; j <= m; ++j) {
+                    if (!used[j]) {
+                        final double cur = costs[i0 - 1][j - 1] - u[i0] - v[j];
+                        if (cur < minv[j]) {
+                            minv[j] = cur;
+                            way[j] = j0;
+                        }
+                        if (minv[j] < delta) {
+                            delta = minv[j];
+                            j1 = j;
+                        }
+                    }
+                }
+                for (int j = 0; j <= m; ++j) {
+                    if (used[j]) {
+                        u[p[j]] += delta;
+                        v[j] -= delta;
+                    } else {
+                        minv[j] -= delta;
+                    }
+                }
+                j0 = j1;
+            } while (p[j0] != 0);
+            do {
+                final int j1 = way[j0];
+                p[j0] = p[j1];
+                j0 = j1;
+            } while (j0 != 0);
+        }
+        final int[] assignment = new int[n];
+        for (int j = 1; j <= m; ++j) {
+            if (p[j] != 0) {
+                assignment[p[j] - 1] = j - 1;
+            }
+        }
+        return assignment;
     }
 
     @Override
@@ -228,39 +473,59 @@ public final class SetPrecisionRecall implements Serializable {
     }
 
     public static Evaluator evaluator() {
-        return new Evaluator();
+        return new Evaluator(false);
     }
 
+    /**
+     * Returns an evaluator whose aligned precision/recall is based on the one-to-one alignment
+     * maximizing the sum of the pair similarities, rather than on the greedy alignment.
+     */
+    public static Evaluator evaluator(final boolean optimalAlignment) {
+        return new Evaluator(optimalAlignment);
+    }
+
+    /**
+     * Accumulates set precision/recall measures. Sets can be added concurrently: each thread
+     * updates its own sums (locked only by that thread and by the merge), and the sums of all
+     * threads are merged when {@link #getResult()} is called. The thread creating the
+     * evaluator, often the only one using it, updates sums owned by the evaluator, so that the
+     * per-thread sums are allocated only once another thread adds.
+     */
     public static final class Evaluator {
 
         private static final Object DUMMY_LABEL = new Object();
 
-        private final PrecisionRecall.Evaluator exactEvaluator;
-
-        private double overlapP;
-
-        private double overlapR;
+        private final Thread owner;
 
-        private double intersectionP;
+        private final Sums ownerSums;
 
-        private double intersectionR;
-
-        private double alignedP;
+        @Nullable
+        private volatile LocalSums localSums;
 
-        private double alignedR;
+        private final boolean optimal;
 
-        @Nullable
-        private SetPrecisionRecall score;
+        private Evaluator(final boolean optimal) {
+            this.optimal = optimal;
+            this.owner = Thread.currentThread();
+            this.ownerSums = new Sums();
+            this.localSums = null;
+        }
 
-        private Evaluator() {
-            this.exactEvaluator = PrecisionRecall.evaluator();
-            this.overlapP = 0.0;
-            this.overlapR = 0.0;
-            this.intersectionP = 0.0;
-            this.intersectionR = 0.0;
-            this.alignedP = 0.0;
-            this.alignedR = 0.0;
-            this.score = null;
+        private Sums sums() {
+            if (Thread.currentThread() == this.owner) {
+                return this.ownerSums;
+            }
+            LocalSums localSums = this.localSums;
+            if (localSums == null) {
+                synchronized (this) {
+                    localSums = this.localSums;
+                    if (localSums == null) {
+                        localSums = new LocalSums();
+                        this.localSums = localSums;
+                    }
+                }
+            }
+            return localSums.get();
         }
 
         public <T> Evaluator add(final Iterable<Set<T>> goldSets, final Iterable<Set<T>> testSets) {
@@ -294,55 +559,40 @@ public final class SetPrecisionRecall implements Serializable {
                 }
             }
 
-            // Compute deltas for overlap precision/recall
+            // Index sets by member, so that only overlapping sets are compared
+            final ListMultimap<Object, Entry<Set<T>, L>> goldIndex = index(goldMap);
+            final ListMultimap<Object, Entry<Set<T>, L>> testIndex = index(testMap);
+
+            // Compute deltas for overlap and intersection precision/recall: the intersection
+            // counts the members of a set that belong to some other set with the same label
             double overlapP = 0.0;
             double overlapR = 0.0;
-            for (final Entry<Set<T>, L> te : testMap.entrySet()) {
-                for (final Entry<Set<T>, L> ge : goldMap.entrySet()) {
-                    if (Objects.equals(te.getValue(), ge.getValue())
-                            && !Sets.intersection(te.getKey(), ge.getKey()).isEmpty()) {
-                        overlapP += 1.0;
-                        break;
-                    }
-                }
-            }
-            for (final Entry<Set<T>, L> ge : goldMap.entrySet()) {
-                for (final Entry<Set<T>, L> te : testMap.entrySet()) {
-                    if (Objects.equals(te.getValue(), ge.getValue())
-                            && !Sets.intersection(te.getKey(), ge.getKey()).isEmpty()) {
-                        overlapR += 1.0;
-                        break;
-                    }
-                }
-            }
-
-            // Compute deltas for intersection precision/recall
             double intersectionP = 0.0;
             double intersectionR = 0.0;
             for (final Entry<Set<T>, L> te : testMap.entrySet()) {
-                final Set<Object> intersection = Sets.newHashSet();
-                for (final Entry<Set<T>, L> ge : goldMap.entrySet()) {
-                    if (Objects.equals(te.getValue(), ge.getValue())) {
-                        intersection.addAll(Sets.intersection(te.getKey(), ge.getKey()));
-                    }
-                }
-                intersectionP += (double) intersection.size() / (double) te.getKey().size();
+                final int intersection = countShared(te, goldIndex);
+                overlapP += intersection > 0 ? 1.0 : 0.0;
+                intersectionP += (double) intersection / (double) te.getKey().size();
             }
             for (final Entry<Set<T>, L> ge : goldMap.entrySet()) {
-                final Set<Object> intersection = Sets.newHashSet();
-                for (final Entry<Set<T>, L> te : testMap.entrySet()) {
-                    if (Objects.equals(te.getValue(), ge.getValue())) {
-                        intersection.addAll(Sets.intersection(te.getKey(), ge.getKey()));
-                    }
-                }
-                intersectionR += (double) intersection.size() / (double) ge.getKey().size();
+                final int intersection = countShared(ge, testIndex);
+                overlapR += intersection > 0 ? 1.0 : 0.0;
+                intersectionR += (double) intersection / (double) ge.getKey().size();
             }
 
             // Compute deltas for aligned precision/recall
             double alignedP = 0.0;
             double alignedR = 0.0;
-            final Entry<Set<T>, L>[][] pairs = align(Entry.class, goldMap.entrySet(),
-                    testMap.entrySet(), true, true, true, matcherLabelled());
+            final Function<Entry<Set<T>, L>, Set<T>> keys = Entry::getKey;
+            final Entry<Set<T>, L>[][] pairs = this.optimal
+                    ? alignOptimal(Entry.class, goldMap.entrySet(), testMap.entrySet(), true,
+                            (ge, te) -> {
+                                final List<Double> scores = SetPrecisionRecall
+                                        .<T, L>matcherLabelled().apply(ge, te);
+                                return scores == null ? 0.0 : scores.get(0) + scores.get(1);
+                            }, (Function) keys)
+                    : align(Entry.class, goldMap.entrySet(), testMap.entrySet(), true, true, true,
+                            matcherLabelled(), (Function) keys);
             for (final Entry[] pair : pairs) {
                 if (pair[0] != null && pair[1] != null) {
                     final Set g = (Set) pair[0].getKey();
@@ -353,67 +603,108 @@ public final class SetPrecisionRecall implements Serializable {
                 }
             }
 
-            // Update the evaluator state atomically
-            synchronized (this) {
-                this.score = null;
-                this.exactEvaluator.add(exactTP, testSize - exactTP, goldSize - exactTP);
-                this.overlapP += overlapP;
-                this.overlapR += overlapR;
-                this.intersectionP += intersectionP;
-                this.intersectionR += intersectionR;
-                this.alignedP += alignedP;
-                this.alignedR += alignedR;
+            // Update the sums of this thread
+            final Sums sums = sums();
+            synchronized (sums) {
+                sums.tp += exactTP;
+                sums.fp += testSize - exactTP;
+                sums.fn += goldSize - exactTP;
+                sums.overlapP += overlapP;
+                sums.overlapR += overlapR;
+                sums.intersectionP += intersectionP;
+                sums.intersectionR += intersectionR;
+                sums.alignedP += alignedP;
+                sums.alignedR += alignedR;
             }
             return this;
         }
 
-        public synchronized Evaluator add(final SetPrecisionRecall spr) {
-            synchronized (spr) {
-                final double tn = spr.getExactPR().getTP() + spr.getExactPR().getFP();
-                final double gn = spr.getExactPR().getTP() + spr.getExactPR().getFN();
-                this.score = null;
-                this.exactEvaluator.add(spr.getExactPR());
-                this.overlapP += spr.getOverlapPR().getPrecision() * tn;
-                this.overlapR += spr.getOverlapPR().getRecall() * gn;
-                this.intersectionP += spr.getIntersectionPR().getPrecision() * tn;
-                this.intersectionR += spr.getIntersectionPR().getRecall() * gn;
-                this.alignedP += spr.getAlignedPR().getPrecision() * tn;
-                this.alignedR += spr.getAlignedPR().getRecall() * gn;
+        private static <T, L> ListMultimap<Object, Entry<Set<T>, L>> index(
+                final Map<Set<T>, L> map) {
+            final ListMultimap<Object, Entry<Set<T>, L>> index = ArrayListMultimap.create();
+            for (final Entry<Set<T>, L> entry : map.entrySet()) {
+                for (final T member : entry.getKey()) {
+                    index.put(member, entry);
+                }
+            }
+            return index;
+        }
+
+        private static <T, L> int countShared(final Entry<Set<T>, L> entry,
+                final ListMultimap<Object, Entry<Set<T>, L>> index) {
+            int count = 0;
+            for (final T member : entry.getKey()) {
+                for (final Entry<Set<T>, L> other : index.get(member)) {
+                    if (Objects.equals(entry.getValue(), other.getValue())) {
+                        ++count;
+                        break;
+                    }
+                }
+            }
+            return count;
+        }
+
+        public Evaluator add(final SetPrecisionRecall spr) {
+            final PrecisionRecall exactPR = spr.getExactPR();
+            final double tn = exactPR.getTP() + exactPR.getFP();
+            final double gn = exactPR.getTP() + exactPR.getFN();
+            final Sums sums = sums();
+            synchronized (sums) {
+                sums.tp += exactPR.getTP();
+                sums.fp += exactPR.getFP();
+                sums.fn += exactPR.getFN();
+                sums.tn += exactPR.getTN();
+                sums.overlapP += spr.getOverlapPR().getPrecision() * tn;
+                sums.overlapR += spr.getOverlapPR().getRecall() * gn;
+                sums.intersectionP += spr.getIntersectionPR().getPrecision() * tn;
+                sums.intersectionR += spr.getIntersectionPR().getRecall() * gn;
+                sums.alignedP += spr.getAlignedPR().getPrecision() * tn;
+                sums.alignedR += spr.getAlignedPR().getRecall() * gn;
             }
             return this;
         }
 
-        public synchronized Evaluator add(final Evaluator evaluator) {
-            synchronized (evaluator) {
-                this.score = null;
-                this.exactEvaluator.add(evaluator.exactEvaluator);
-                this.overlapP += evaluator.overlapP;
-                this.overlapR += evaluator.overlapR;
-                this.intersectionP += evaluator.intersectionP;
-                this.intersectionR += evaluator.intersectionR;
-                this.alignedP += evaluator.alignedP;
-                this.alignedR += evaluator.alignedR;
+        public Evaluator add(final Evaluator evaluator) {
+            final Sums merged = evaluator.merge();
+            final Sums sums = sums();
+            synchronized (sums) {
+                sums.add(merged);
             }
             return this;
         }
 
-        public synchronized SetPrecisionRecall getResult() {
-            if (this.score == null) {
-                final PrecisionRecall exactPR = this.exactEvaluator.getResult();
-                final double tn = exactPR.getTP() + exactPR.getFP();
-                final double gn = exactPR.getTP() + exactPR.getFN();
-                final PrecisionRecall overlapPR = PrecisionRecall.forMeasures( //
-                        this.overlapP / tn, this.overlapR / gn, //
-                        1 / (2 * (tn + gn) / (this.overlapP + this.overlapR) - 1));
-                final PrecisionRecall intersectionPR = PrecisionRecall.forMeasures( //
-                        this.intersectionP / tn, this.intersectionR / gn, //
-                        1 / (2 * (tn + gn) / (this.intersectionP + this.intersectionR) - 1));
-                final PrecisionRecall alignedPR = PrecisionRecall.forMeasures( //
-                        this.alignedP / tn, this.alignedR / gn, //
-                        1 / (2 * (tn + gn) / (this.alignedP + this.alignedR) - 1));
-                this.score = new SetPrecisionRecall(exactPR, overlapPR, intersectionPR, alignedPR);
+        private Sums merge() {
+            final Sums merged = new Sums();
+            synchronized (this.ownerSums) {
+                merged.add(this.ownerSums);
             }
-            return this.score;
+            final LocalSums localSums = this.localSums;
+            if (localSums != null) {
+                for (final Sums sums : localSums.allSums) {
+                    synchronized (sums) {
+                        merged.add(sums);
+                    }
+                }
+            }
+            return merged;
+        }
+
+        public SetPrecisionRecall getResult() {
+            final Sums sums = merge();
+            final PrecisionRecall exactPR = PrecisionRecall.forCounts(sums.tp, sums.fp, sums.fn,
+                    sums.tn);
+            final double tn = exactPR.getTP() + exactPR.getFP();
+            final double gn = exactPR.getTP() + exactPR.getFN();
+            final PrecisionRecall overlapPR = PrecisionRecall.forMeasures( //
+                    sums.overlapP / tn, sums.overlapR / gn, //
+                    1 / (2 * (tn + gn) / (sums.overlapP + sums.overlapR) - 1));
+            final PrecisionRecall intersectionPR = PrecisionRecall.forMeasures( //
+                    sums.intersectionP / tn, sums.intersectionR / gn, //
+                    1 / (2 * (tn + gn) / (sums.intersectionP + sums.intersectionR) - 1));
+            final PrecisionRecall alignedPR = PrecisionRecall.forMeasures( //
+                    sums.alignedP / tn, sums.alignedR / gn, //
+                    1 / (2 * (tn + gn) / (sums.alignedP + sums.alignedR) - 1));
+            return new SetPrecisionRecall(exactPR, overlapPR, intersectionPR, alignedPR);
         }
 
         @Override
@@ -421,6 +712,56 @@ public final class SetPrecisionRecall implements Serializable {
             return getResult().toString();
         }
 
+        private static final class LocalSums extends ThreadLocal<Sums> {
+
+            final Queue<Sums> allSums = new ConcurrentLinkedQueue<>();
+
+            @Override
+            protected Sums initialValue() {
+                final Sums sums = new Sums();
+                this.allSums.add(sums);
+                return sums;
+            }
+
+        }
+
+        private static final class Sums {
+
+            double tp;
+
+            double fp;
+
+            double fn;
+
+            double tn;
+
+            double overlapP;
+
+            double overlapR;
+
+            double intersectionP;
+
+            double intersectionR;
+
+            double alignedP;
+
+            double alignedR;
+
+            void add(final Sums sums) {
+                this.tp += sums.tp;
+                this.fp += sums.fp;
+                this.fn += sums.fn;
+                this.tn += sums.tn;
+                this.overlapP += sums.overlapP;
+                this.overlapR += sums.overlapR;
+                this.intersectionP += sums.intersectionP;
+                this.intersectionR += sums.intersectionR;
+                this.alignedP += sums.alignedP;
+                this.alignedR += sums.alignedR;
+            }
+
+        }
+
     }
 
 }
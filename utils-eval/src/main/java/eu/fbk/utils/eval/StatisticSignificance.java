@@ -37,9 +37,15 @@ public class StatisticSignificance {
                     .withHeader("Apply Student's t-test to a file with two-column doubles")
                     .withOption("i", "input", "Input file", "FILE", CommandLine.Type.FILE_EXISTING, true, false,
                             true)
+                    .withOption("n", "iterations", "Number of approximate randomization iterations (default 1000)",
+                            "NUM", CommandLine.Type.POSITIVE_INTEGER, true, false, false)
+                    .withOption("s", "seed", "Random seed (default 0)", "NUM", CommandLine.Type.INTEGER, true,
+                            false, false)
                     .withLogger(LoggerFactory.getLogger("eu.fbk")).parse(args);
 
             File inputFile = cmd.getOptionValue("input", File.class);
+            int iterations = cmd.getOptionValue("iterations", Integer.class, 1000);
+            long seed = cmd.getOptionValue("seed", Long.class, 0L);
 
             File[] files;
             if (inputFile.isDirectory()) {
@@ -77,7 +83,8 @@ public class StatisticSignificance {
 
                 TTest test = new TTest();
                 double p = test.pairedTTest(c1d, c2d);
-                double r = ApproximateRandomization.test(1000, c1d, c2d);
+                double r = ApproximateRandomization.test(ApproximateRandomization.Metric.MEAN, iterations, seed,
+                        new double[][] { c1d }, new double[][] { c2d }).getPValue();
                 System.out.println(formatter.format(p));
                 System.out.println(formatter.format(r));
 //                LOGGER.info("{} ---> t-test {}", file.getName(), formatter.format(p));
@@ -0,0 +1,94 @@
+package eu.fbk.utils.eval;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ApproximateRandomizationTest {
+    private static final double COMP_DELTA = 0.00001;
+
+    @Test
+    public void testIdenticalSystems() {
+        double[] a = random(500, 1);
+        ApproximateRandomization.Result result = ApproximateRandomization.test(ApproximateRandomization.Metric.MEAN,
+                5000, 0, new double[][] { a }, new double[][] { a.clone() });
+        assertEquals(0.0, result.getDifference(), COMP_DELTA);
+        assertEquals(1.0, result.getPValue(), COMP_DELTA);
+    }
+
+    @Test
+    public void testDifferentSystems() {
+        double[] a = random(500, 1);
+        double[] b = random(500, 2);
+        for (int i = 0; i < b.length; i++) {
+            b[i] += 0.2;
+        }
+        for (boolean bootstrap : new boolean[] { false, true }) {
+            ApproximateRandomization.Result result = run(bootstrap, ApproximateRandomization.Metric.MEAN, a, b);
+            assertTrue(result.getPValue() < 0.001);
+            assertTrue(result.getPValueLow() <= result.getPValue());
+            assertTrue(result.getPValueHigh() >= result.getPValue());
+        }
+        ApproximateRandomization.Result result = run(true, ApproximateRandomization.Metric.MEAN, a, b);
+        assertTrue(result.getDifferenceLow() < result.getDifference());
+        assertTrue(result.getDifferenceHigh() > result.getDifference());
+    }
+
+    @Test
+    public void testReproducible() {
+        double[] a = random(300, 3);
+        double[] b = random(300, 4);
+        for (boolean bootstrap : new boolean[] { false, true }) {
+            assertEquals(run(bootstrap, ApproximateRandomization.Metric.MEAN, a, b).getPValue(),
+                    run(bootstrap, ApproximateRandomization.Metric.MEAN, a, b).getPValue(), 0.0);
+        }
+    }
+
+    @Test
+    public void testF1() {
+        Random random = new Random(5);
+        double[][] a = new double[3][200];
+        double[][] b = new double[3][200];
+        for (int i = 0; i < 200; i++) {
+            // one decision per item: tp, fp or fn
+            a[random.nextInt(3)][i] = 1;
+            b[random.nextDouble() < 0.8 ? 0 : 1 + random.nextInt(2)][i] = 1;
+        }
+        ApproximateRandomization.Result result = run(false, ApproximateRandomization.Metric.F1, a, b);
+        double f1a = PrecisionRecall.forCounts(sum(a[0]), sum(a[1]), sum(a[2])).getF1();
+        double f1b = PrecisionRecall.forCounts(sum(b[0]), sum(b[1]), sum(b[2])).getF1();
+        assertEquals(f1b - f1a, result.getDifference(), COMP_DELTA);
+        assertTrue(result.getPValue() < 0.001);
+    }
+
+    private static ApproximateRandomization.Result run(boolean bootstrap, ApproximateRandomization.Metric metric,
+            double[] a, double[] b) {
+        return run(bootstrap, metric, new double[][] { a }, new double[][] { b });
+    }
+
+    private static ApproximateRandomization.Result run(boolean bootstrap, ApproximateRandomization.Metric metric,
+            double[][] a, double[][] b) {
+        return bootstrap ? ApproximateRandomization.bootstrap(metric, 10000, 42, a, b)
+                : ApproximateRandomization.test(metric, 10000, 42, a, b);
+    }
+
+    private static double[] random(int size, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextDouble();
+        }
+        return values;
+    }
+
+    private static double sum(double[] values) {
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,104 @@
+package eu.fbk.utils.eval;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConfusionMatrixTest {
+    private static final double COMP_DELTA = 0.00001;
+
+    @Test
+    public void testConcurrentAccumulator() throws InterruptedException {
+        ConfusionMatrix.Accumulator accumulator = ConfusionMatrix.accumulator(3);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    accumulator.add(i % 3, i % 2);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        ConfusionMatrix.Evaluator evaluator = ConfusionMatrix.evaluator(3);
+        for (int i = 0; i < 100000; i++) {
+            evaluator.add(i % 3, i % 2, threads.length);
+        }
+        assertEquals(evaluator.getResult(), accumulator.snapshot());
+        assertEquals(400000, accumulator.snapshot().getCountTotal(), COMP_DELTA);
+    }
+
+    @Test
+    public void testWindowedAccumulator() {
+        FakeTicker ticker = new FakeTicker();
+        ConfusionMatrix.Accumulator accumulator = ConfusionMatrix.windowedAccumulator(2, 10,
+                TimeUnit.SECONDS, 10, ticker);
+        accumulator.add(0, 0, 5);
+        ticker.advance(5);
+        accumulator.add(1, 0, 3);
+        assertEquals(8, accumulator.snapshot().getCountTotal(), COMP_DELTA);
+        ticker.advance(5);
+        assertEquals(3, accumulator.snapshot().getCountTotal(), COMP_DELTA);
+        assertEquals(3, accumulator.snapshot().getCount(1, 0), COMP_DELTA);
+        ticker.advance(5);
+        assertEquals(0, accumulator.snapshot().getCountTotal(), COMP_DELTA);
+        accumulator.add(1, 1);
+        ticker.advance(100);
+        accumulator.add(0, 1);
+        assertEquals(1, accumulator.snapshot().getCount(0, 1), COMP_DELTA);
+        assertEquals(1, accumulator.snapshot().getCountTotal(), COMP_DELTA);
+    }
+
+    @Test
+    public void testDecayingAccumulator() {
+        FakeTicker ticker = new FakeTicker();
+        ConfusionMatrix.Accumulator accumulator = ConfusionMatrix.decayingAccumulator(2, 4,
+                TimeUnit.SECONDS, ticker);
+        accumulator.add(0, 0, 1000);
+        // pairs are aged from the middle of their 1s bucket
+        ticker.advance(4);
+        assertEquals(1000 * Math.pow(0.5, 3.5 / 4), accumulator.snapshot().getCount(0, 0),
+                COMP_DELTA);
+        accumulator.add(0, 0, 1000);
+        ticker.advance(4);
+        assertEquals(1000 * Math.pow(0.5, 7.5 / 4) + 1000 * Math.pow(0.5, 3.5 / 4),
+                accumulator.snapshot().getCount(0, 0), COMP_DELTA);
+        ticker.advance(100);
+        assertEquals(0, accumulator.snapshot().getCountTotal(), COMP_DELTA);
+    }
+
+    @Test
+    public void testSingleBucketWindowedAccumulator() {
+        FakeTicker ticker = new FakeTicker();
+        ConfusionMatrix.Accumulator accumulator = ConfusionMatrix.windowedAccumulator(2, 10,
+                TimeUnit.SECONDS, 1, ticker);
+        accumulator.add(0, 0, 5);
+        ticker.advance(5);
+        accumulator.add(1, 0, 3);
+        assertEquals(8, accumulator.snapshot().getCountTotal(), COMP_DELTA);
+        ticker.advance(10);
+        assertEquals(0, accumulator.snapshot().getCountTotal(), COMP_DELTA);
+        accumulator.add(1, 1);
+        assertEquals(1, accumulator.snapshot().getCountTotal(), COMP_DELTA);
+    }
+
+    private static final class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong(TimeUnit.DAYS.toNanos(1000));
+
+        void advance(long seconds) {
+            this.nanos.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+        }
+
+        @Override
+        public long read() {
+            return this.nanos.get();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package eu.fbk.utils.eval;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RankingScoreTest {
+    private static final double COMP_DELTA = 0.00001;
+
+    @Test
+    public void testConcurrentAdd() throws InterruptedException {
+        Random random = new Random(7);
+        List<List<Integer>> rankings = Lists.newArrayList();
+        List<Map<Integer, Double>> rels = Lists.newArrayList();
+        for (int i = 0; i < 2000; i++) {
+            List<Integer> ranking = Lists.newArrayList();
+            Map<Integer, Double> rel = Maps.newHashMap();
+            for (int j = 0; j < 20; j++) {
+                ranking.add(random.nextInt(50));
+                if (random.nextInt(5) == 0) {
+                    rel.put(random.nextInt(50), 1.0 + random.nextInt(3));
+                }
+            }
+            rankings.add(ranking);
+            rels.add(rel);
+        }
+
+        RankingScore.Evaluator sequential = RankingScore.evaluator(10);
+        for (int i = 0; i < rankings.size(); i++) {
+            sequential.add(rankings.get(i), rels.get(i));
+        }
+
+        RankingScore.Evaluator concurrent = RankingScore.evaluator(10);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = offset; i < rankings.size(); i += threads.length) {
+                    concurrent.add(rankings.get(i), rels.get(i));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        RankingScore expected = sequential.get();
+        RankingScore actual = concurrent.get();
+        assertEquals(expected.getNumRankings(), actual.getNumRankings());
+        for (RankingScore.Measure measure : Arrays.asList(RankingScore.Measure.P1, RankingScore.Measure.P10,
+                RankingScore.Measure.MRR, RankingScore.Measure.NDCG, RankingScore.Measure.NDCG10,
+                RankingScore.Measure.MAP, RankingScore.Measure.MAP10)) {
+            assertEquals(expected.get(measure), actual.get(measure), COMP_DELTA);
+        }
+
+        RankingScore merged = RankingScore.evaluator(10).add(sequential).add(concurrent).get();
+        assertEquals(2 * expected.getNumRankings(), merged.getNumRankings());
+        assertEquals(expected.getMAP(), merged.getMAP(), COMP_DELTA);
+    }
+
+    @Test
+    public void testTrec() throws IOException {
+        Path qrels = File.createTempFile("qrels", ".txt").toPath();
+        Path run = File.createTempFile("run", ".txt").toPath();
+        try {
+            Files.write(qrels, Arrays.asList("q1 0 d1 1", "q1 0 d2 0", "q1 0 d3 2", "q2 0 d4 1"),
+                    StandardCharsets.UTF_8);
+            Files.write(run, Arrays.asList("q1 Q0 d2 1 0.9 x", "q1 Q0 d3 2 0.5 x", "q1 Q0 d1 3 0.7 x",
+                    "q2 Q0 d5 1 0.3 x", "q2 Q0 d4 2 0.2 x", "q3 Q0 d1 1 0.1 x"), StandardCharsets.UTF_8);
+
+            Map<String, RankingScore> scores = Maps.newHashMap();
+            RankingScore score = RankingScore.evaluateTrec(qrels, run, 10, scores::put);
+
+            RankingScore q1 = RankingScore.evaluate(Arrays.asList("d2", "d1", "d3"),
+                    ImmutableMap.of("d1", 1.0, "d3", 2.0));
+            RankingScore q2 = RankingScore.evaluate(Arrays.asList("d5", "d4"), ImmutableSet.of("d4"));
+            assertEquals(ImmutableSet.of("q1", "q2"), scores.keySet());
+            assertEquals(q1.getMAP(), scores.get("q1").getMAP(), COMP_DELTA);
+            assertEquals(q1.getNDCG(), scores.get("q1").getNDCG(), COMP_DELTA);
+            assertEquals(2, score.getNumRankings());
+            assertEquals((q1.getMRR() + q2.getMRR()) / 2, score.getMRR(), COMP_DELTA);
+            assertEquals((q1.getMAP() + q2.getMAP()) / 2, score.getMAP(), COMP_DELTA);
+        } finally {
+            Files.delete(qrels);
+            Files.delete(run);
+        }
+    }
+}
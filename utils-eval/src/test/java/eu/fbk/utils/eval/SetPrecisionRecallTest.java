@@ -0,0 +1,107 @@
+package eu.fbk.utils.eval;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToDoubleBiFunction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SetPrecisionRecallTest {
+    private static final double COMP_DELTA = 0.00001;
+
+    private static final ToDoubleBiFunction<Set<Integer>, Set<Integer>> WEIGHT = (g, t) -> {
+        double intersection = Sets.intersection(g, t).size();
+        return intersection == 0 ? 0.0 : intersection / g.size() + intersection / t.size();
+    };
+
+    @Test
+    public void testIndexedAlignment() {
+        Random random = new Random(11);
+        for (int doc = 0; doc < 200; doc++) {
+            List<Set<Integer>> gold = randomSets(random);
+            List<Set<Integer>> test = randomSets(random);
+            Set<Integer>[][] expected = SetPrecisionRecall.align(Set.class, gold, test, true, true, true,
+                    SetPrecisionRecall.matcher());
+            Set<Integer>[][] actual = SetPrecisionRecall.align(Set.class, gold, test, true, true, true,
+                    SetPrecisionRecall.matcher(), Function.identity());
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i][0], actual[i][0]);
+                assertEquals(expected[i][1], actual[i][1]);
+            }
+        }
+    }
+
+    @Test
+    public void testOptimalAlignment() {
+        // greedy aligns {1,2} with {1,2,3}, leaving {3,4} unaligned
+        List<Set<Integer>> gold = ImmutableList.of(ImmutableSet.of(1, 2), ImmutableSet.of(3, 4));
+        List<Set<Integer>> test = ImmutableList.of(ImmutableSet.of(1, 2, 3));
+        Set<Integer>[][] pairs = SetPrecisionRecall.alignOptimal(Set.class, gold, test, false, WEIGHT,
+                Function.identity());
+        assertEquals(1, pairs.length);
+        assertEquals(ImmutableSet.of(1, 2), pairs[0][0]);
+
+        Random random = new Random(13);
+        for (int doc = 0; doc < 200; doc++) {
+            List<Set<Integer>> g = randomSets(random);
+            List<Set<Integer>> t = randomSets(random);
+            double greedy = weight(SetPrecisionRecall.align(Set.class, g, t, true, true, false,
+                    SetPrecisionRecall.matcher(), Function.identity()));
+            double optimal = weight(SetPrecisionRecall.alignOptimal(Set.class, g, t, false, WEIGHT,
+                    Function.identity()));
+            assertTrue(optimal >= greedy - COMP_DELTA);
+            if (g.size() <= 6 && t.size() <= 6) {
+                assertEquals(bruteForce(g, t, 0, Sets.newHashSet()), optimal, COMP_DELTA);
+            }
+        }
+    }
+
+    private static double weight(Set<Integer>[][] pairs) {
+        double weight = 0;
+        for (Set<Integer>[] pair : pairs) {
+            weight += WEIGHT.applyAsDouble(pair[0], pair[1]);
+        }
+        return weight;
+    }
+
+    private static double bruteForce(List<Set<Integer>> gold, List<Set<Integer>> test, int i, Set<Integer> used) {
+        if (i == gold.size()) {
+            return 0;
+        }
+        double best = bruteForce(gold, test, i + 1, used);
+        for (int j = 0; j < test.size(); j++) {
+            if (used.add(j)) {
+                best = Math.max(best,
+                        WEIGHT.applyAsDouble(gold.get(i), test.get(j)) + bruteForce(gold, test, i + 1, used));
+                used.remove(j);
+            }
+        }
+        return best;
+    }
+
+    // distinct sets, as align() merges equal objects
+    private static List<Set<Integer>> randomSets(Random random) {
+        Set<Set<Integer>> sets = Sets.newLinkedHashSet();
+        int size = random.nextInt(10);
+        for (int i = 0; i < size; i++) {
+            int start = random.nextInt(25);
+            int length = 1 + random.nextInt(4);
+            Set<Integer> set = Sets.newLinkedHashSet();
+            for (int k = start; k < start + length; k++) {
+                set.add(k);
+            }
+            sets.add(set);
+        }
+        return Lists.newArrayList(sets);
+    }
+}
@@ -11,13 +11,16 @@
 package eu.fbk.utils.lsa;
 
 import eu.fbk.utils.lsa.io.DenseBinaryMatrixFileReader;
+import eu.fbk.utils.lsa.io.DenseBinaryMatrixFileWriter;
 import eu.fbk.utils.lsa.io.DenseTextVectorFileReader;
+import eu.fbk.utils.lsa.io.MappedDenseMatrix;
 import org.apache.log4j.Logger;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.FloatBuffer;
 import java.text.DecimalFormat;
 import java.util.Iterator;
 import java.util.Map;
@@ -44,6 +47,24 @@ public abstract class AbstractLSI {
      */
     protected float[][] Uk;
 
+    /**
+     * Uk (already rescaled) mapped in memory; null if Uk
+     * is loaded on the heap.
+     */
+    protected MappedDenseMatrix mappedUk;
+
+    /**
+     * Approximate nearest neighbour index over the rows of Uk;
+     * null if not built or read.
+     */
+    protected HnswIndex termNeighbourIndex;
+
+    /**
+     * Approximate nearest neighbour index over the documents;
+     * null if not built or read.
+     */
+    protected HnswIndex documentNeighbourIndex;
+
     /**
      * Matrix created by SVD
      */
@@ -70,6 +91,18 @@ public abstract class AbstractLSI {
     //
     protected int dim;
 
+    // Uk is weighted by idf
+    private boolean rescaleIdf;
+
+    // Uk rows are normalized
+    private boolean normalize;
+
+    // flags of the term neighbour index
+    private static final int IDF_FLAG = 1;
+
+    //
+    private static final int NORMALIZE_FLAG = 2;
+
     /**
      * Constructs a <code>AbstractLSI</code> object.
      */
@@ -108,13 +141,53 @@ public abstract class AbstractLSI {
     } // end loadLSM
 
     /**
-     * Constructs a <code>AbstractLSI</code> object.
+     * Constructs a <code>AbstractLSI</code> object from an Uk matrix
+     * previously saved with <code>write</code>. The matrix is
+     * memory-mapped instead of being loaded on the heap, while
+     * the (small) S matrix is read from SFile as usual; rescaleIdf
+     * and normalize must be the ones Uk was written with.
      */
-    private void init(File UtFile, File SFile, File rowFile, File colFile, File dfFile, int dim, boolean rescaleIdf,
+    public AbstractLSI(File UkFile, File SFile, File rowFile, File colFile, File dfFile, boolean rescaleIdf,
             boolean normalize) throws IOException {
+        this.rescaleIdf = rescaleIdf;
+        this.normalize = normalize;
+        readIndexes(rowFile, colFile, dfFile);
 
-        this.dim = dim;
+        // map Uk matrix
+        logger.info("mapping Uk matrix from " + UkFile + "...");
+        mappedUk = new MappedDenseMatrix(UkFile);
+        dim = mappedUk.columns();
+        logger.info("Uk[" + mappedUk.rows() + " X " + mappedUk.columns() + "]");
+
+        // read S matrix
+        logger.info("reading S matrix from " + SFile + "...");
+        DenseTextVectorFileReader SVectorFileReader = new DenseTextVectorFileReader(SFile, dim);
+        Sk = SVectorFileReader.read();
+        logger.info("Sk[" + Sk.length + "]");
+    } // end constructor
+
+    /**
+     * Writes the Uk matrix (rescaled and, if requested, idf weighted
+     * and normalized) in dense binary format, one row per term. The
+     * file can be loaded with <code>AbstractLSI(UkFile, SFile, rowFile, colFile, dfFile, rescaleIdf, normalize)</code>.
+     */
+    public void write(File UkFile) throws IOException {
+        logger.info("writing Uk matrix to " + UkFile + "...");
+        DenseBinaryMatrixFileWriter matrixFileWriter = new DenseBinaryMatrixFileWriter(UkFile);
+
+        // row by row, so that a mapped Uk is not copied on the heap
+        int nr = rows();
+        int nc = columns();
+        matrixFileWriter.writeHeader(nr, nc);
+        float[] buffer = new float[nc];
+        for (int i = 0; i < nr; i++) {
+            matrixFileWriter.writeRow(row(i, buffer));
+        }
+        matrixFileWriter.close();
+    } // end write
 
+    //
+    private void readIndexes(File rowFile, File colFile, File dfFile) throws IOException {
         // read term index
         logger.info("reading term index from " + rowFile + "...");
         termIndex = new Index();
@@ -137,6 +210,19 @@ public abstract class AbstractLSI {
         //voc.read(new FileReader(dfFile));
         voc.read(new InputStreamReader(new FileInputStream(dfFile), "UTF-8"));
         createIdf(voc, l);
+    } // end readIndexes
+
+    /**
+     * Constructs a <code>AbstractLSI</code> object.
+     */
+    private void init(File UtFile, File SFile, File rowFile, File colFile, File dfFile, int dim, boolean rescaleIdf,
+            boolean normalize) throws IOException {
+
+        this.dim = dim;
+        this.rescaleIdf = rescaleIdf;
+        this.normalize = normalize;
+
+        readIndexes(rowFile, colFile, dfFile);
 
         // read S matrix
         logger.info("reading S matrix from " + SFile + "...");
@@ -195,15 +281,19 @@ public abstract class AbstractLSI {
     protected void print(String msg) {
         logger.info("\n" + msg);
 
-        if (Uk.length < 50 && Uk[0].length < 50) {
+        int nr = rows();
+        int nc = columns();
+        float[] buffer = new float[nc];
+        if (nr < 50 && nc < 50) {
 
-            for (int i = 0; i < Uk.length; i++) {
-                for (int j = 0; j < Uk[i].length; j++) {
+            for (int i = 0; i < nr; i++) {
+                float[] row = row(i, buffer);
+                for (int j = 0; j < nc; j++) {
                     if (j != 0) {
                         System.out.print(" ");
                     }
 
-                    System.out.print(Uk[i][j]);
+                    System.out.print(row[j]);
                 }
                 System.out.print("\n");
             }
@@ -211,45 +301,35 @@ public abstract class AbstractLSI {
         }
 
         for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-                if (j != 0) {
-                    System.out.print("\t");
-                }
-
-                System.out.print(Uk[i][j]);
-            }
-
-            System.out.print("\t...\t");
-            for (int j = (Uk[i].length - 3); j < Uk[i].length; j++) {
-                if (j != 0) {
-                    System.out.print("\t");
-                }
-
-                System.out.print(Uk[i][j]);
-            }
-            System.out.print("\n");
+            printRow(row(i, buffer));
         }
 
         System.out.print("...\n");
-        for (int i = (Uk.length - 3); i < Uk.length; i++) {
-            for (int j = 0; j < 3; j++) {
-                if (j != 0) {
-                    System.out.print("\t");
-                }
-                System.out.print(Uk[i][j]);
+        for (int i = (nr - 3); i < nr; i++) {
+            printRow(row(i, buffer));
+        }
+    } // end print
+
+    // first and last 3 elements of a row
+    private void printRow(float[] row) {
+        for (int j = 0; j < 3; j++) {
+            if (j != 0) {
+                System.out.print("\t");
             }
 
-            System.out.print("\t...\t");
-            for (int j = (Uk[i].length - 3); j < Uk[i].length; j++) {
-                if (j != 0) {
-                    System.out.print("\t");
-                }
+            System.out.print(row[j]);
+        }
 
-                System.out.print(Uk[i][j]);
+        System.out.print("\t...\t");
+        for (int j = (row.length - 3); j < row.length; j++) {
+            if (j != 0) {
+                System.out.print("\t");
             }
-            System.out.print("\n");
+
+            System.out.print(row[j]);
         }
-    } // end print
+        System.out.print("\n");
+    } // end printRow
 
     //
     public static final double LOG2 = Math.log(2);
@@ -271,9 +351,52 @@ public abstract class AbstractLSI {
         }
 
         //return Uk.viewRow(i);
-        return Uk[i];
+        return row(i);
     } // end getVector
 
+    /**
+     * Returns the i-th row of Uk. All the accesses to Uk go through
+     * this method: if Uk is on the heap the row itself is returned,
+     * otherwise it is copied from the mapped matrix into buffer (a
+     * new array if buffer is null).
+     */
+    protected float[] row(int i, float[] buffer) {
+        if (mappedUk != null) {
+            return mappedUk.getRow(i, buffer != null ? buffer : new float[mappedUk.columns()]);
+        }
+
+        return Uk[i];
+    } // end row
+
+    /**
+     * Returns the i-th row of Uk; a copy if Uk is memory-mapped.
+     */
+    protected float[] row(int i) {
+        return row(i, null);
+    } // end row
+
+    /**
+     * Returns the number of rows of Uk.
+     */
+    protected int rows() {
+        if (mappedUk != null) {
+            return mappedUk.rows();
+        }
+
+        return Uk.length;
+    } // end rows
+
+    /**
+     * Returns the number of columns of Uk.
+     */
+    protected int columns() {
+        if (mappedUk != null) {
+            return mappedUk.columns();
+        }
+
+        return Uk[0].length;
+    } // end columns
+
     //
     private void createIdf(Vocabulary voc, int l) {
         long begin = System.currentTimeMillis();
@@ -310,14 +433,15 @@ public abstract class AbstractLSI {
      */
     private void rescale() {
         long begin = System.currentTimeMillis();
-        logger.info("rescale: Uk[" + Uk.length + " X " + Uk[0].length + "] * Sk[" + Uk[0].length + " X " + Uk[0].length
+        logger.info("rescale: Uk[" + rows() + " X " + columns() + "] * Sk[" + columns() + " X " + columns()
                 + "]");
 
         // rows (error)
-        for (int i = 0; i < Uk.length; i++) {
+        for (int i = 0; i < rows(); i++) {
+            float[] row = row(i);
             // col
-            for (int j = 0; j < Uk[i].length; j++) {
-                Uk[i][j] *= Sk[j];
+            for (int j = 0; j < row.length; j++) {
+                row[j] *= Sk[j];
             } // end for j
         } // end for i
 
@@ -331,20 +455,21 @@ public abstract class AbstractLSI {
      */
     private void normalize() {
         long begin = System.currentTimeMillis();
-        logger.info("normalize: IN[" + Iidf.length + " X " + Iidf.length + "] * Uk[" + Uk.length + " X " + Uk[0].length
+        logger.info("normalize: IN[" + Iidf.length + " X " + Iidf.length + "] * Uk[" + rows() + " X " + columns()
                 + "]");
 
         // Uk.rows = N
-        for (int i = 0; i < Uk.length; i++) {
+        for (int i = 0; i < rows(); i++) {
+            float[] row = row(i);
             double sum = 0;
-            for (int j = 0; j < Uk[i].length; j++) {
-                sum += Math.pow(Uk[i][j], 2);
+            for (int j = 0; j < row.length; j++) {
+                sum += Math.pow(row[j], 2);
             }
 
             //  normalization
             sum = Math.sqrt(sum);
-            for (int j = 0; j < Uk[i].length; j++) {
-                Uk[i][j] /= (float) sum;
+            for (int j = 0; j < row.length; j++) {
+                row[j] /= (float) sum;
             }
         } // end for i
 
@@ -353,6 +478,213 @@ public abstract class AbstractLSI {
 
     } // end normalize
 
+    /**
+     * Builds an approximate nearest neighbour index over the rows of Uk
+     * used by <code>nearestTerms</code>.
+     */
+    public void buildTermNeighbourIndex(int m, int efConstruction) {
+        logger.info("building term neighbour index (" + rows() + " terms)...");
+
+        // rows are read from Uk, not copied
+        termNeighbourIndex = HnswIndex.build(new HnswIndex.Rows(rows(), columns()) {
+
+            public float[] row(int i, float[] buffer) {
+                return AbstractLSI.this.row(i, buffer);
+            }
+        }, m, efConstruction);
+        termNeighbourIndex.setFlags(flags());
+    } // end buildTermNeighbourIndex
+
+    //
+    private int flags() {
+        return (rescaleIdf ? IDF_FLAG : 0) | (normalize ? NORMALIZE_FLAG : 0);
+    } // end flags
+
+    /**
+     * Builds an approximate nearest neighbour index over the documents
+     * used by <code>nearestDocuments</code>. Documents are read from the
+     * Vt matrix created by SVD and mapped as S^2 * Vt, that is, as their
+     * columns of the term-by-document matrix would be mapped by
+     * <code>mapPseudoDocument</code> without idf.
+     */
+    public void buildDocumentNeighbourIndex(File VtFile, int m, int efConstruction) throws IOException {
+        logger.info("reading Vt matrix from " + VtFile + "...");
+        DenseBinaryMatrixFileReader matrixFileReader = new DenseBinaryMatrixFileReader(VtFile, dim);
+        float[][] V = matrixFileReader.read(true);
+        matrixFileReader.close();
+        for (int i = 0; i < V.length; i++) {
+            for (int j = 0; j < V[i].length; j++) {
+                V[i][j] *= Sk[j] * Sk[j];
+            }
+        }
+
+        documentNeighbourIndex = HnswIndex.build(V, m, efConstruction);
+    } // end buildDocumentNeighbourIndex
+
+    /**
+     * Reads the nearest neighbour indexes from root-hnsw-row and
+     * root-hnsw-col, if they exist. The term index must have been
+     * built from a model with the same idf and normalization.
+     */
+    public void readNeighbourIndexes(String root) throws IOException {
+        File row = new File(root + "-hnsw-row");
+        if (row.exists()) {
+            HnswIndex index = HnswIndex.read(row);
+            if (index.size() != rows() || index.getDimension() != columns()) {
+                throw new IOException(row + " indexes " + index.size() + " X " + index.getDimension()
+                        + " vectors, while Uk is " + rows() + " X " + columns());
+            }
+            if (index.getFlags() != flags()) {
+                throw new IOException(row + " was built with idf=" + ((index.getFlags() & IDF_FLAG) != 0)
+                        + " and normalize=" + ((index.getFlags() & NORMALIZE_FLAG) != 0) + ", while the model has idf="
+                        + rescaleIdf + " and normalize=" + normalize);
+            }
+            termNeighbourIndex = index;
+        }
+
+        // documents are mapped without idf, whatever the model
+        File col = new File(root + "-hnsw-col");
+        if (col.exists()) {
+            HnswIndex index = HnswIndex.read(col);
+            if (index.getDimension() != columns()) {
+                throw new IOException(col + " indexes vectors of size " + index.getDimension() + ", while Uk has "
+                        + columns() + " columns");
+            }
+            documentNeighbourIndex = index;
+        }
+    } // end readNeighbourIndexes
+
+    /**
+     * Writes the nearest neighbour indexes built so far to
+     * root-hnsw-row and root-hnsw-col.
+     */
+    public void writeNeighbourIndexes(String root) throws IOException {
+        if (termNeighbourIndex != null) {
+            termNeighbourIndex.write(new File(root + "-hnsw-row"));
+        }
+
+        if (documentNeighbourIndex != null) {
+            documentNeighbourIndex.write(new File(root + "-hnsw-col"));
+        }
+    } // end writeNeighbourIndexes
+
+    /**
+     * Returns the k terms most similar to the specified term. If
+     * the term neighbour index is not available, all terms are
+     * compared with the specified one.
+     */
+    public ScoreTermMap nearestTerms(String term, int k) throws TermNotFoundException {
+        int i = termIndex.get(term);
+
+        if (i == -1) {
+            throw new TermNotFoundException(term);
+        }
+
+        ScoreTermMap map = new ScoreTermMap(term, k);
+        if (termNeighbourIndex != null) {
+            HnswIndex.Neighbour[] neighbours = termNeighbourIndex.search(i, k);
+            for (int j = 0; j < neighbours.length; j++) {
+                map.put(neighbours[j].score(), termIndex.get(neighbours[j].index()));
+            }
+            return map;
+        }
+
+        float[] x1 = row(i);
+        float n1 = dot(x1, x1);
+        float[] buffer = new float[x1.length];
+        for (int j = 0; j < termCount(); j++) {
+            if (j != i) {
+                float[] x2 = row(j, buffer);
+                double n = n1 * dot(x2, x2);
+                map.put(n == 0 ? 0 : dot(x1, x2) / Math.sqrt(n), termIndex.get(j));
+            }
+        }
+        return map;
+    } // end nearestTerms
+
+    /**
+     * Returns the k documents most similar to the specified vector
+     * in the latent semantic space (see <code>mapPseudoDocument</code>).
+     */
+    public ScoreTermMap nearestDocuments(float[] doc, int k) {
+        if (documentNeighbourIndex == null) {
+            throw new IllegalStateException("document neighbour index not available");
+        }
+
+        ScoreTermMap map = new ScoreTermMap("", k);
+        HnswIndex.Neighbour[] neighbours = documentNeighbourIndex.search(doc, k);
+        for (int j = 0; j < neighbours.length; j++) {
+            map.put(neighbours[j].score(), documentIndex.get(neighbours[j].index()));
+        }
+        return map;
+    } // end nearestDocuments
+
+    //
+    private static float dot(float[] x1, float[] x2) {
+        float sum = 0;
+        for (int j = 0; j < x1.length; j++) {
+            sum += x1[j] * x2[j];
+        }
+        return sum;
+    } // end dot
+
+    /**
+     * Returns the indexes of the specified terms in the VSM (-1 for
+     * the unknown ones), to be used with <code>mapPseudoDocuments(int[][], ...)</code>.
+     */
+    public int[] termIndexes(String[] terms) {
+        return BatchMapper.termIndexes(termIndex, terms);
+    } // end termIndexes
+
+    /**
+     * Maps many documents in the latent semantic space; out[i] is set
+     * to the projection of bows[i] weighted by <code>bow.tf(term)</code>
+     * and idf, as <code>mapPseudoDocument(mapDocument(bows[i]))</code>.
+     * Documents are processed in parallel.
+     */
+    public void mapPseudoDocuments(BOW[] bows, float[][] out) {
+        batchMapper().map(bows, termIndex, out, null);
+    } // end mapPseudoDocuments
+
+    /**
+     * Maps many documents, represented as sequences of term indexes
+     * (see <code>termIndexes</code>), in the latent semantic space,
+     * using logarithmic term frequency and idf. Repeated indexes are
+     * counted as term frequency, negative ones are ignored. Documents
+     * are processed in parallel.
+     */
+    public void mapPseudoDocuments(int[][] docs, float[][] out) {
+        batchMapper().map(docs, out, null);
+    } // end mapPseudoDocuments
+
+    /**
+     * Maps many documents as <code>mapPseudoDocuments(int[][], float[][])</code>;
+     * the i-th document is written at position i * getDimension() of out.
+     */
+    public void mapPseudoDocuments(int[][] docs, FloatBuffer out) {
+        batchMapper().map(docs, null, out);
+    } // end mapPseudoDocuments
+
+    //
+    private BatchMapper batchMapper() {
+        return new BatchMapper(columns()) {
+
+            float[] row(int index, float[] buffer) {
+                return AbstractLSI.this.row(index, buffer);
+            }
+
+            float weight(int index, int tf) {
+                // as BOW.logarithmicFrequency
+                double w = tf == 1 ? 1 : Math.log(tf + 1) / LOG2;
+                return (float) w * Iidf[index];
+            }
+
+            float weight(BOW bow, String term, int index) {
+                return (float) bow.tf(term) * Iidf[index];
+            }
+        };
+    } // end batchMapper
+
     //
     public Iterator<String> terms() {
         return termIndex.itemSet().iterator();
@@ -381,16 +713,17 @@ public abstract class AbstractLSI {
     private void idf() {
         long begin = System.currentTimeMillis();
         logger.info(
-                "idf: Iidf[" + Iidf.length + " X " + Iidf.length + "] * Uk[" + Uk.length + " X " + Uk[0].length + "]");
+                "idf: Iidf[" + Iidf.length + " X " + Iidf.length + "] * Uk[" + rows() + " X " + columns() + "]");
 
         // Uk.rows = N
-        for (int i = 0; i < Uk.length; i++) {
+        for (int i = 0; i < rows(); i++) {
+            float[] row = row(i);
 
             // I^idf X (Uk * Sk)
-            for (int j = 0; j < Uk[i].length; j++) {
-                //logger.info("before " + Uk[i][j]);
-                Uk[i][j] *= Iidf[i];
-                //logger.info("after " + Uk[i][j]);
+            for (int j = 0; j < row.length; j++) {
+                //logger.info("before " + row[j]);
+                row[j] *= Iidf[i];
+                //logger.info("after " + row[j]);
 
             }
         } // end for i
@@ -0,0 +1,237 @@
+/*
+ * Copyright (2010) Fondazione Bruno Kessler (FBK)
+ *
+ * FBK reserves all rights in the Program as delivered.
+ * The Program or any portion thereof may not be reproduced
+ * in any form whatsoever except as provided by license
+ * without the written consent of FBK.  A license under FBK's
+ * rights in the Program may be available directly from FBK.
+ */
+
+package eu.fbk.utils.lsa;
+
+import eu.fbk.utils.core.Environment;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps many documents into the latent semantic space at once.
+ * <p>
+ * Documents are split in blocks processed in parallel on
+ * <code>Environment.getPool()</code>; each document is projected
+ * by accumulating the rows of Uk of its terms (read through
+ * <code>row</code>), weighted by <code>weight</code>, into the
+ * caller-supplied output. Index and
+ * weight buffers are reused by each thread, so no memory is
+ * allocated per document.
+ *
+ * @version %I%, %G%
+ * @author Claudio Giuliano
+ * @since 1.1
+ */
+abstract class BatchMapper {
+
+    /**
+     * Number of documents processed by a single task.
+     */
+    static final int BLOCK_SIZE = 256;
+
+    //
+    private int k;
+
+    //
+    private static ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    //
+    BatchMapper(int k) {
+        this.k = k;
+    } // end constructor
+
+    /**
+     * Returns the specified row of Uk, possibly copied into buffer.
+     */
+    abstract float[] row(int index, float[] buffer);
+
+    /**
+     * Returns the indexes of the specified terms in termIndex (-1 for
+     * the unknown ones), as expected by <code>map(int[][], ...)</code>.
+     */
+    static int[] termIndexes(Index termIndex, String[] terms) {
+        int[] indexes = new int[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            indexes[i] = termIndex.get(terms[i]);
+        }
+        return indexes;
+    } // end termIndexes
+
+    /**
+     * Returns the weight of a term occurring tf times in a document.
+     */
+    abstract float weight(int index, int tf);
+
+    /**
+     * Returns the weight of the specified term of a bag of words.
+     */
+    float weight(BOW bow, String term, int index) {
+        return weight(index, bow.getFrequency(term));
+    } // end weight
+
+    /**
+     * Maps the documents represented as bag of words.
+     */
+    void map(final BOW[] bows, final Index termIndex, float[][] out, FloatBuffer buffer) {
+        run(bows.length, out, buffer, new Source() {
+
+            public int terms(int d, Scratch s) {
+                BOW bow = bows[d];
+                s.ensure(bow.size(), k);
+                int n = 0;
+                for (String term : bow.termSet()) {
+                    int index = termIndex.get(term);
+                    if (index != -1) {
+                        s.indexes[n] = index;
+                        s.weights[n] = weight(bow, term, index);
+                        n++;
+                    }
+                }
+                return n;
+            }
+        });
+    } // end map
+
+    /**
+     * Maps the documents represented as sequences of term indexes;
+     * negative indexes (unknown terms) are ignored.
+     */
+    void map(final int[][] docs, float[][] out, FloatBuffer buffer) {
+        run(docs.length, out, buffer, new Source() {
+
+            public int terms(int d, Scratch s) {
+                int[] doc = docs[d];
+                s.ensure(doc.length, k);
+                System.arraycopy(doc, 0, s.tokens, 0, doc.length);
+                Arrays.sort(s.tokens, 0, doc.length);
+
+                // count the occurrences of each term
+                int n = 0;
+                for (int i = 0; i < doc.length; ) {
+                    int index = s.tokens[i];
+                    int j = i + 1;
+                    while (j < doc.length && s.tokens[j] == index) {
+                        j++;
+                    }
+                    if (index >= 0) {
+                        s.indexes[n] = index;
+                        s.weights[n] = weight(index, j - i);
+                        n++;
+                    }
+                    i = j;
+                }
+                return n;
+            }
+        });
+    } // end map
+
+    //
+    private void run(int size, final float[][] out, final FloatBuffer buffer, final Source source) {
+        List<Runnable> blocks = new ArrayList<Runnable>();
+        for (int from = 0; from < size; from += BLOCK_SIZE) {
+            final int begin = from;
+            final int end = Math.min(size, from + BLOCK_SIZE);
+            blocks.add(new Runnable() {
+
+                public void run() {
+                    project(begin, end, source, out, buffer);
+                }
+            });
+        }
+
+        if (blocks.size() == 1) {
+            blocks.get(0).run();
+        } else if (blocks.size() > 1) {
+            Environment.run(blocks);
+        }
+    } // end run
+
+    //
+    private void project(int begin, int end, Source source, float[][] out, FloatBuffer buffer) {
+        Scratch s = scratch.get();
+        s.ensure(0, k);
+        for (int d = begin; d < end; d++) {
+            int n = source.terms(d, s);
+            float[] acc = out != null ? out[d] : s.acc;
+            Arrays.fill(acc, 0, k, 0);
+
+            // sparse x dense: acc += w * Uk[index] for each term
+            for (int j = 0; j < n; j++) {
+                float w = s.weights[j];
+                float[] row = row(s.indexes[j], s.row);
+                for (int i = 0; i < k; i++) {
+                    acc[i] += row[i] * w;
+                }
+            }
+
+            if (out == null) {
+                int offset = d * k;
+                for (int i = 0; i < k; i++) {
+                    buffer.put(offset + i, acc[i]);
+                }
+            }
+        }
+    } // end project
+
+    //
+    private interface Source {
+
+        /**
+         * Fills the index and weight buffers with the terms of
+         * the d-th document and returns their number.
+         */
+        int terms(int d, Scratch s);
+
+    } // end interface Source
+
+    //
+    private static class Scratch {
+
+        //
+        int[] tokens = new int[0];
+
+        //
+        int[] indexes = new int[0];
+
+        //
+        float[] weights = new float[0];
+
+        //
+        float[] acc = new float[0];
+
+        //
+        float[] row = new float[0];
+
+        //
+        void ensure(int n, int k) {
+            if (tokens.length < n) {
+                int size = Math.max(n, 2 * tokens.length);
+                tokens = new int[size];
+                indexes = new int[size];
+                weights = new float[size];
+            }
+            if (acc.length < k) {
+                acc = new float[k];
+                row = new float[k];
+            }
+        } // end ensure
+
+    } // end class Scratch
+
+} // end class BatchMapper
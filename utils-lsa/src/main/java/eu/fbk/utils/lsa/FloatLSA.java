@@ -11,12 +11,15 @@
 package eu.fbk.utils.lsa;
 
 import eu.fbk.utils.lsa.io.DenseBinaryMatrixFileReader;
+import eu.fbk.utils.lsa.io.DenseBinaryMatrixFileWriter;
 import eu.fbk.utils.lsa.io.DenseTextVectorFileReader;
+import eu.fbk.utils.lsa.io.MappedDenseMatrix;
 import eu.fbk.utils.math.FloatVector;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 import java.io.*;
+import java.nio.FloatBuffer;
 import java.text.DecimalFormat;
 import java.util.Iterator;
 import java.util.Map;
@@ -41,6 +44,24 @@ public class FloatLSA {
      */
     protected float[][] Uk;
 
+    /**
+     * Uk (already rescaled) mapped in memory; null if Uk
+     * is loaded on the heap.
+     */
+    protected MappedDenseMatrix mappedUk;
+
+    /**
+     * Approximate nearest neighbour index over the rows of Uk;
+     * null if not built or read.
+     */
+    protected HnswIndex termNeighbourIndex;
+
+    /**
+     * Approximate nearest neighbour index over the documents;
+     * null if not built or read.
+     */
+    protected HnswIndex documentNeighbourIndex;
+
     /**
      * Matrix created by SVD
      */
@@ -70,6 +91,18 @@ public class FloatLSA {
     //
     private int dim;
 
+    // Uk is weighted by idf
+    private boolean rescaleIdf;
+
+    // Uk rows are normalized
+    private boolean normalize;
+
+    // flags of the term neighbour index
+    private static final int IDF_FLAG = 1;
+
+    //
+    private static final int NORMALIZE_FLAG = 2;
+
     /**
      * Constructs a <code>FloatLSA</code> object.
      */
@@ -108,13 +141,53 @@ public class FloatLSA {
     } // end loadLSM
 
     /**
-     * Constructs a <code>FloatLSA</code> object.
+     * Constructs a <code>FloatLSA</code> object from an Uk matrix
+     * previously saved with <code>write</code>. The matrix is
+     * memory-mapped instead of being loaded on the heap, while
+     * the (small) S matrix is read from SFile as usual; rescaleIdf
+     * and normalize must be the ones Uk was written with.
      */
-    private void init(File UtFile, File SFile, File rowFile, File colFile, File dfFile, int dim, boolean rescaleIdf,
+    public FloatLSA(File UkFile, File SFile, File rowFile, File colFile, File dfFile, boolean rescaleIdf,
             boolean normalize) throws IOException {
+        this.rescaleIdf = rescaleIdf;
+        this.normalize = normalize;
+        readIndexes(rowFile, colFile, dfFile);
 
-        this.dim = dim;
+        // map Uk matrix
+        logger.info("mapping Uk matrix from " + UkFile + "...");
+        mappedUk = new MappedDenseMatrix(UkFile);
+        dim = mappedUk.columns();
+        logger.info("Uk[" + mappedUk.rows() + " X " + mappedUk.columns() + "]");
 
+        // read S matrix
+        logger.info("reading S matrix from " + SFile + "...");
+        DenseTextVectorFileReader SVectorFileReader = new DenseTextVectorFileReader(SFile, dim);
+        Sk = SVectorFileReader.read();
+        logger.info("Sk[" + Sk.length + "]");
+    } // end constructor
+
+    /**
+     * Writes the Uk matrix (rescaled and, if requested, idf weighted
+     * and normalized) in dense binary format, one row per term. The
+     * file can be loaded with <code>FloatLSA(UkFile, SFile, rowFile, colFile, dfFile, rescaleIdf, normalize)</code>.
+     */
+    public void write(File UkFile) throws IOException {
+        logger.info("writing Uk matrix to " + UkFile + "...");
+        DenseBinaryMatrixFileWriter matrixFileWriter = new DenseBinaryMatrixFileWriter(UkFile);
+
+        // row by row, so that a mapped Uk is not copied on the heap
+        int nr = rows();
+        int nc = columns();
+        matrixFileWriter.writeHeader(nr, nc);
+        float[] buffer = new float[nc];
+        for (int i = 0; i < nr; i++) {
+            matrixFileWriter.writeRow(row(i, buffer));
+        }
+        matrixFileWriter.close();
+    } // end write
+
+    //
+    private void readIndexes(File rowFile, File colFile, File dfFile) throws IOException {
         // read term index
         logger.info("reading term index from " + rowFile + "...");
         termIndex = new Index();
@@ -137,6 +210,19 @@ public class FloatLSA {
         //voc.read(new FileReader(dfFile));
         voc.read(new InputStreamReader(new FileInputStream(dfFile), "UTF-8"));
         createIdf(voc, l);
+    } // end readIndexes
+
+    /**
+     * Constructs a <code>FloatLSA</code> object.
+     */
+    private void init(File UtFile, File SFile, File rowFile, File colFile, File dfFile, int dim, boolean rescaleIdf,
+            boolean normalize) throws IOException {
+
+        this.dim = dim;
+        this.rescaleIdf = rescaleIdf;
+        this.normalize = normalize;
+
+        readIndexes(rowFile, colFile, dfFile);
 
         // read S matrix
         logger.info("reading S matrix from " + SFile + "...");
@@ -195,15 +281,19 @@ public class FloatLSA {
     protected void print(String msg) {
         logger.info("\n" + msg);
 
-        if (Uk.length < 50 && Uk[0].length < 50) {
+        int nr = rows();
+        int nc = columns();
+        float[] buffer = new float[nc];
+        if (nr < 50 && nc < 50) {
 
-            for (int i = 0; i < Uk.length; i++) {
-                for (int j = 0; j < Uk[i].length; j++) {
-	                if (j != 0) {
-		                System.out.print(" ");
-	                }
+            for (int i = 0; i < nr; i++) {
+                float[] row = row(i, buffer);
+                for (int j = 0; j < nc; j++) {
+                    if (j != 0) {
+                        System.out.print(" ");
+                    }
 
-                    System.out.print(Uk[i][j]);
+                    System.out.print(row[j]);
                 }
                 System.out.print("\n");
             }
@@ -211,45 +301,35 @@ public class FloatLSA {
         }
 
         for (int i = 0; i < 3; i++) {
-            for (int j = 0; j < 3; j++) {
-	            if (j != 0) {
-		            System.out.print("\t");
-	            }
-
-                System.out.print(Uk[i][j]);
-            }
-
-            System.out.print("\t...\t");
-            for (int j = (Uk[i].length - 3); j < Uk[i].length; j++) {
-	            if (j != 0) {
-		            System.out.print("\t");
-	            }
-
-                System.out.print(Uk[i][j]);
-            }
-            System.out.print("\n");
+            printRow(row(i, buffer));
         }
 
         System.out.print("...\n");
-        for (int i = (Uk.length - 3); i < Uk.length; i++) {
-            for (int j = 0; j < 3; j++) {
-	            if (j != 0) {
-		            System.out.print("\t");
-	            }
-                System.out.print(Uk[i][j]);
+        for (int i = (nr - 3); i < nr; i++) {
+            printRow(row(i, buffer));
+        }
+    } // end print
+
+    // first and last 3 elements of a row
+    private void printRow(float[] row) {
+        for (int j = 0; j < 3; j++) {
+            if (j != 0) {
+                System.out.print("\t");
             }
 
-            System.out.print("\t...\t");
-            for (int j = (Uk[i].length - 3); j < Uk[i].length; j++) {
-	            if (j != 0) {
-		            System.out.print("\t");
-	            }
+            System.out.print(row[j]);
+        }
 
-                System.out.print(Uk[i][j]);
+        System.out.print("\t...\t");
+        for (int j = (row.length - 3); j < row.length; j++) {
+            if (j != 0) {
+                System.out.print("\t");
             }
-            System.out.print("\n");
+
+            System.out.print(row[j]);
         }
-    } // end print
+        System.out.print("\n");
+    } // end printRow
 
     //
     public static final float LOG2 = (float) Math.log(2);
@@ -271,9 +351,52 @@ public class FloatLSA {
 	    }
 
         //return Uk.viewRow(i);
-        return Uk[i];
+        return row(i);
     } // end getVector
 
+    /**
+     * Returns the i-th row of Uk. All the accesses to Uk go through
+     * this method: if Uk is on the heap the row itself is returned,
+     * otherwise it is copied from the mapped matrix into buffer (a
+     * new array if buffer is null).
+     */
+    protected float[] row(int i, float[] buffer) {
+        if (mappedUk != null) {
+            return mappedUk.getRow(i, buffer != null ? buffer : new float[mappedUk.columns()]);
+        }
+
+        return Uk[i];
+    } // end row
+
+    /**
+     * Returns the i-th row of Uk; a copy if Uk is memory-mapped.
+     */
+    protected float[] row(int i) {
+        return row(i, null);
+    } // end row
+
+    /**
+     * Returns the number of rows of Uk.
+     */
+    protected int rows() {
+        if (mappedUk != null) {
+            return mappedUk.rows();
+        }
+
+        return Uk.length;
+    } // end rows
+
+    /**
+     * Returns the number of columns of Uk.
+     */
+    protected int columns() {
+        if (mappedUk != null) {
+            return mappedUk.columns();
+        }
+
+        return Uk[0].length;
+    } // end columns
+
     //
     private void createIdf(Vocabulary voc, int l) {
         long begin = System.currentTimeMillis();
@@ -310,14 +433,15 @@ public class FloatLSA {
      */
     private void rescale() {
         long begin = System.currentTimeMillis();
-        logger.info("rescale: Uk[" + Uk.length + " X " + Uk[0].length + "] * Sk[" + Uk[0].length + " X " + Uk[0].length
+        logger.info("rescale: Uk[" + rows() + " X " + columns() + "] * Sk[" + columns() + " X " + columns()
                 + "]");
 
         // rows (error)
-        for (int i = 0; i < Uk.length; i++) {
+        for (int i = 0; i < rows(); i++) {
+            float[] row = row(i);
             // col
-            for (int j = 0; j < Uk[i].length; j++) {
-                Uk[i][j] *= Sk[j];
+            for (int j = 0; j < row.length; j++) {
+                row[j] *= Sk[j];
             } // end for j
         } // end for i
 
@@ -331,20 +455,21 @@ public class FloatLSA {
      */
     private void normalize() {
         long begin = System.currentTimeMillis();
-        logger.info("normalize: IN[" + Iidf.length + " X " + Iidf.length + "] * Uk[" + Uk.length + " X " + Uk[0].length
+        logger.info("normalize: IN[" + Iidf.length + " X " + Iidf.length + "] * Uk[" + rows() + " X " + columns()
                 + "]");
 
         // Uk.rows = N
-        for (int i = 0; i < Uk.length; i++) {
+        for (int i = 0; i < rows(); i++) {
+            float[] row = row(i);
             float sum = 0;
-	        for (int j = 0; j < Uk[i].length; j++) {
-		        sum += Math.pow(Uk[i][j], 2);
+	        for (int j = 0; j < row.length; j++) {
+		        sum += Math.pow(row[j], 2);
 	        }
 
             //  normalization
             sum = (float) Math.sqrt(sum);
-            for (int j = 0; j < Uk[i].length; j++) {
-                Uk[i][j] /= sum;
+            for (int j = 0; j < row.length; j++) {
+                row[j] /= sum;
             }
         } // end for i
 
@@ -353,6 +478,156 @@ public class FloatLSA {
 
     } // end normalize
 
+    /**
+     * Builds an approximate nearest neighbour index over the rows of Uk
+     * used by <code>nearestTerms</code>.
+     */
+    public void buildTermNeighbourIndex(int m, int efConstruction) {
+        logger.info("building term neighbour index (" + rows() + " terms)...");
+
+        // rows are read from Uk, not copied
+        termNeighbourIndex = HnswIndex.build(new HnswIndex.Rows(rows(), columns()) {
+
+            public float[] row(int i, float[] buffer) {
+                return FloatLSA.this.row(i, buffer);
+            }
+        }, m, efConstruction);
+        termNeighbourIndex.setFlags(flags());
+    } // end buildTermNeighbourIndex
+
+    //
+    private int flags() {
+        return (rescaleIdf ? IDF_FLAG : 0) | (normalize ? NORMALIZE_FLAG : 0);
+    } // end flags
+
+    /**
+     * Builds an approximate nearest neighbour index over the documents
+     * used by <code>nearestDocuments</code>. Documents are read from the
+     * Vt matrix created by SVD and mapped as S^2 * Vt, that is, as their
+     * columns of the term-by-document matrix would be mapped by
+     * <code>mapPseudoDocument</code> without idf.
+     */
+    public void buildDocumentNeighbourIndex(File VtFile, int m, int efConstruction) throws IOException {
+        logger.info("reading Vt matrix from " + VtFile + "...");
+        DenseBinaryMatrixFileReader matrixFileReader = new DenseBinaryMatrixFileReader(VtFile, dim);
+        float[][] V = matrixFileReader.read(true);
+        matrixFileReader.close();
+        for (int i = 0; i < V.length; i++) {
+            for (int j = 0; j < V[i].length; j++) {
+                V[i][j] *= Sk[j] * Sk[j];
+            }
+        }
+
+        documentNeighbourIndex = HnswIndex.build(V, m, efConstruction);
+    } // end buildDocumentNeighbourIndex
+
+    /**
+     * Reads the nearest neighbour indexes from root-hnsw-row and
+     * root-hnsw-col, if they exist. The term index must have been
+     * built from a model with the same idf and normalization.
+     */
+    public void readNeighbourIndexes(String root) throws IOException {
+        File row = new File(root + "-hnsw-row");
+        if (row.exists()) {
+            HnswIndex index = HnswIndex.read(row);
+            if (index.size() != rows() || index.getDimension() != columns()) {
+                throw new IOException(row + " indexes " + index.size() + " X " + index.getDimension()
+                        + " vectors, while Uk is " + rows() + " X " + columns());
+            }
+            if (index.getFlags() != flags()) {
+                throw new IOException(row + " was built with idf=" + ((index.getFlags() & IDF_FLAG) != 0)
+                        + " and normalize=" + ((index.getFlags() & NORMALIZE_FLAG) != 0) + ", while the model has idf="
+                        + rescaleIdf + " and normalize=" + normalize);
+            }
+            termNeighbourIndex = index;
+        }
+
+        // documents are mapped without idf, whatever the model
+        File col = new File(root + "-hnsw-col");
+        if (col.exists()) {
+            HnswIndex index = HnswIndex.read(col);
+            if (index.getDimension() != columns()) {
+                throw new IOException(col + " indexes vectors of size " + index.getDimension() + ", while Uk has "
+                        + columns() + " columns");
+            }
+            documentNeighbourIndex = index;
+        }
+    } // end readNeighbourIndexes
+
+    /**
+     * Writes the nearest neighbour indexes built so far to
+     * root-hnsw-row and root-hnsw-col.
+     */
+    public void writeNeighbourIndexes(String root) throws IOException {
+        if (termNeighbourIndex != null) {
+            termNeighbourIndex.write(new File(root + "-hnsw-row"));
+        }
+
+        if (documentNeighbourIndex != null) {
+            documentNeighbourIndex.write(new File(root + "-hnsw-col"));
+        }
+    } // end writeNeighbourIndexes
+
+    /**
+     * Returns the k terms most similar to the specified term. If
+     * the term neighbour index is not available, all terms are
+     * compared with the specified one.
+     */
+    public ScoreTermMap nearestTerms(String term, int k) throws TermNotFoundException {
+        int i = termIndex.get(term);
+
+        if (i == -1) {
+            throw new TermNotFoundException(term);
+        }
+
+        ScoreTermMap map = new ScoreTermMap(term, k);
+        if (termNeighbourIndex != null) {
+            HnswIndex.Neighbour[] neighbours = termNeighbourIndex.search(i, k);
+            for (int j = 0; j < neighbours.length; j++) {
+                map.put(neighbours[j].score(), termIndex.get(neighbours[j].index()));
+            }
+            return map;
+        }
+
+        float[] x1 = row(i);
+        float n1 = dot(x1, x1);
+        float[] buffer = new float[x1.length];
+        for (int j = 0; j < termCount(); j++) {
+            if (j != i) {
+                float[] x2 = row(j, buffer);
+                double n = n1 * dot(x2, x2);
+                map.put(n == 0 ? 0 : dot(x1, x2) / Math.sqrt(n), termIndex.get(j));
+            }
+        }
+        return map;
+    } // end nearestTerms
+
+    /**
+     * Returns the k documents most similar to the specified pseudo
+     * document (see <code>mapPseudoDocument</code>).
+     */
+    public ScoreTermMap nearestDocuments(FloatVector doc, int k) {
+        if (documentNeighbourIndex == null) {
+            throw new IllegalStateException("document neighbour index not available");
+        }
+
+        ScoreTermMap map = new ScoreTermMap("", k);
+        HnswIndex.Neighbour[] neighbours = documentNeighbourIndex.search(doc.values, k);
+        for (int j = 0; j < neighbours.length; j++) {
+            map.put(neighbours[j].score(), documentIndex.get(neighbours[j].index()));
+        }
+        return map;
+    } // end nearestDocuments
+
+    //
+    private static float dot(float[] x1, float[] x2) {
+        float sum = 0;
+        for (int j = 0; j < x1.length; j++) {
+            sum += x1[j] * x2[j];
+        }
+        return sum;
+    } // end dot
+
     //
     public Iterator<String> terms() {
         return termIndex.itemSet().iterator();
@@ -381,16 +656,17 @@ public class FloatLSA {
     private void idf() {
         long begin = System.currentTimeMillis();
         logger.info(
-                "idf: Iidf[" + Iidf.length + " X " + Iidf.length + "] * Uk[" + Uk.length + " X " + Uk[0].length + "]");
+                "idf: Iidf[" + Iidf.length + " X " + Iidf.length + "] * Uk[" + rows() + " X " + columns() + "]");
 
         // Uk.rows = N
-        for (int i = 0; i < Uk.length; i++) {
+        for (int i = 0; i < rows(); i++) {
+            float[] row = row(i);
 
             // I^idf X (Uk * Sk)
-            for (int j = 0; j < Uk[i].length; j++) {
-                //logger.info("before " + Uk[i][j]);
-                Uk[i][j] *= Iidf[i];
-                //logger.info("after " + Uk[i][j]);
+            for (int j = 0; j < row.length; j++) {
+                //logger.info("before " + row[j]);
+                row[j] *= Iidf[i];
+                //logger.info("after " + row[j]);
 
             }
         } // end for i
@@ -418,7 +694,7 @@ public class FloatLSA {
 		    throw new TermNotFoundException(term);
 	    }
 
-        FloatVector nodes = new FloatVector(Uk[i]);
+        FloatVector nodes = new FloatVector(row(i));
         return nodes;
     } // end mapTerm
 
@@ -482,30 +758,87 @@ public class FloatLSA {
     public FloatVector mapPseudoDocument(FloatVector doc) {
         //logger.info("mapPseudoDocument " + doc);
         // N = Uk.rows();
-        //float[] pdoc = new float[Uk[0].length];
-        FloatVector nodes = new FloatVector(Uk[0].length);
-        //logger.info("Uk.size " + Uk.length + " X " + Uk[0].length);
+        int k = columns();
+        FloatVector nodes = new FloatVector(k);
         //logger.info("doc.size " + doc.size());
-        //logger.info("pdoc.size " + pdoc.length);
-        int index;
-        for (int i = 0; i < Uk[0].length; i++) {
-            //Iterator<Integer> it = doc.nonZeroElements();
-
-            for (int j = 0; j < doc.length(); j++) {
-                //Integer index = it.next().intValue();
-                index = doc.indexes[j];
-                //logger.info(i + ", i: " + index);
-                //logger.info(i + ", v:" + doc.get(index));
-                //logger.info(i + ", Uk: " + Uk[index][i]);
+
+        // sparse x dense, one row of Uk per term
+        float[] buffer = new float[k];
+        for (int j = 0; j < doc.length(); j++) {
+            float[] row = row(doc.indexes[j], buffer);
+            float w = doc.values[j];
+            for (int i = 0; i < k; i++) {
                 //pdoc[i] +=  Uk[index][i] * doc.get(index);
-                nodes.values[i] += Uk[index][i] * doc.values[j];
-            } // end for j
-        } // end for i
+                nodes.values[i] += row[i] * w;
+            } // end for i
+        } // end for j
 
         //logger.info("pdoc.size " + pdoc.length);
         return nodes;
     } // end mapPseudoDocument
 
+    // 1 + log10(tf) for small tf
+    private static final float[] LOG_TF = new float[256];
+
+    static {
+        for (int i = 1; i < LOG_TF.length; i++) {
+            LOG_TF[i] = (float) (1.0 + Math.log10(i));
+        }
+    }
+
+    /**
+     * Returns the indexes of the specified terms in the VSM (-1 for
+     * the unknown ones), to be used with <code>mapPseudoDocuments(int[][], ...)</code>.
+     */
+    public int[] termIndexes(String[] terms) {
+        return BatchMapper.termIndexes(termIndex, terms);
+    } // end termIndexes
+
+    //
+    private BatchMapper batchMapper(final boolean b) {
+        return new BatchMapper(columns()) {
+
+            float[] row(int index, float[] buffer) {
+                return FloatLSA.this.row(index, buffer);
+            }
+
+            float weight(int index, int tf) {
+                float tfIdf = tf < LOG_TF.length ? LOG_TF[tf] : (float) (1.0 + Math.log10(tf));
+                if (b) {
+                    tfIdf *= Iidf[index];
+                }
+                return tfIdf;
+            }
+        };
+    } // end batchMapper
+
+    /**
+     * Maps many documents in the latent semantic space; out[i] is set
+     * to <code>mapPseudoDocument(mapDocument(bows[i], b))</code>.
+     * Documents are processed in parallel.
+     */
+    public void mapPseudoDocuments(BOW[] bows, boolean b, float[][] out) {
+        batchMapper(b).map(bows, termIndex, out, null);
+    } // end mapPseudoDocuments
+
+    /**
+     * Maps many documents, represented as sequences of term indexes
+     * (see <code>termIndexes</code>), in the latent semantic space.
+     * Repeated indexes are counted as term frequency, negative ones
+     * are ignored. Documents are processed in parallel.
+     */
+    public void mapPseudoDocuments(int[][] docs, boolean b, float[][] out) {
+        batchMapper(b).map(docs, out, null);
+    } // end mapPseudoDocuments
+
+    /**
+     * Maps many documents as <code>mapPseudoDocuments(int[][], boolean, float[][])</code>;
+     * the i-th document is written at position i * getDimension() of out.
+     */
+    public void mapPseudoDocuments(int[][] docs, boolean b, FloatBuffer out) {
+        batchMapper(b).map(docs, null, out);
+    } // end mapPseudoDocuments
+
     public float compare(String term1, String term2) throws TermNotFoundException {
         FloatVector x1 = mapTerm(term1);
         FloatVector x2 = mapTerm(term2);
@@ -569,17 +902,7 @@ public class FloatLSA {
                     query = query.toLowerCase();
                     logger.debug("query " + query);
                     long begin = System.nanoTime();
-                    ScoreTermMap map = new ScoreTermMap(query, 20);
-                    FloatVector vec1 = mapTerm(query);
-
-                    String term = null;
-                    Iterator<String> it = terms();
-                    while (it.hasNext()) {
-                        term = it.next();
-                        FloatVector vec2 = mapTerm(term);
-                        float cos = (float) (vec1.dot(vec2) / Math.sqrt(vec1.dot(vec1) * vec2.dot(vec2)));
-                        map.put(cos, term);
-                    }
+                    ScoreTermMap map = nearestTerms(query, 20);
                     long end = System.nanoTime();
 
                     logger.info(map.toString());
@@ -604,7 +927,7 @@ public class FloatLSA {
 
         PropertyConfigurator.configure(logConfig);
 
-        if (args.length != 5) {
+        if (args.length != 5 && args.length != 6) {
             logger.info(getHelp());
             System.exit(1);
         }
@@ -621,6 +944,12 @@ public class FloatLSA {
 
         FloatLSA lsi = new FloatLSA(Ut, Sk, r, c, df, dim, rescaleIdf);
 
+        if (args.length == 6) {
+            lsi.write(new File(args[5]));
+            return;
+        }
+
+        lsi.readNeighbourIndexes(args[0]);
         lsi.interactive();
 
         long end = System.currentTimeMillis();
@@ -639,7 +968,7 @@ public class FloatLSA {
         //sb.append(License.get());
 
         // Usage
-        sb.append("Usage: java -cp dist/jcore.jar -mx2G eu.fbk.utils.lsa.FloatLSA input threshold size dim idf\n\n");
+        sb.append("Usage: java -cp dist/jcore.jar -mx2G eu.fbk.utils.lsa.FloatLSA input threshold size dim idf [Uk]\n\n");
 
         // Arguments
         sb.append("Arguments:\n");
@@ -648,6 +977,7 @@ public class FloatLSA {
         sb.append("\tsize\t\t-> number of similar terms to return\n");
         sb.append("\tdim\t\t-> number of dimensions\n");
         sb.append("\tidf\t\t-> if true rescale using the idf\n");
+        sb.append("\tUk\t\t-> if specified, write the rescaled Uk matrix in this file and exit\n");
         //sb.append("\tterm\t\t-> input term\n");
 
         // Arguments
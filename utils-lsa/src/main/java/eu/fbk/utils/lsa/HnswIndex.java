@@ -0,0 +1,802 @@
+/*
+ * Copyright (2010) Fondazione Bruno Kessler (FBK)
+ *
+ * FBK reserves all rights in the Program as delivered.
+ * The Program or any portion thereof may not be reproduced
+ * in any form whatsoever except as provided by license
+ * without the written consent of FBK.  A license under FBK's
+ * rights in the Program may be available directly from FBK.
+ */
+
+package eu.fbk.utils.lsa;
+
+import eu.fbk.utils.core.Environment;
+import eu.fbk.utils.lsa.io.MappedDenseMatrix;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Approximate nearest neighbour index over dense vectors
+ * based on a Hierarchical Navigable Small World graph
+ * (Malkov and Yashunin, 2016).
+ * <p>
+ * Vectors are identified by their row index (e.g., the
+ * term index of Uk) and compared by cosine similarity.
+ * The index does not copy the vectors: they are read
+ * through <code>Rows</code> (e.g., from a memory-mapped Uk)
+ * while building, and mapped from the index file after
+ * <code>read</code>. Vectors are inserted in parallel on
+ * <code>Environment.getPool()</code>, locking the neighbour
+ * list being read or updated; once built, <code>search</code>
+ * can be called from many threads.
+ * <p>
+ * Format:
+ * <p><pre>
+ * version flags dim m efConstruction size maxLevel entryPoint
+ * size dim
+ * 	for each vector:
+ * 		for each column:
+ * 			value
+ * 	for each vector:
+ * 		level
+ * 		for each level:
+ * 			numNeighbours
+ * 			for each neighbour:
+ * 				index
+ * </pre><p>
+ * All are 4-byte integers, but values that are 4-byte floats
+ * (normalized vectors, stored as a dense binary matrix that
+ * is mapped by <code>read</code>). All are in network byte order.
+ *
+ * @version %I%, %G%
+ * @author Claudio Giuliano
+ * @since 1.1
+ */
+public class HnswIndex {
+
+    /**
+     * Define a static logger variable so that it references the
+     * Logger instance named <code>HnswIndex</code>.
+     */
+    static Logger logger = Logger.getLogger(HnswIndex.class.getName());
+
+    //
+    private static final int VERSION = 2;
+
+    // size of the header, the matrix of vectors follows
+    private static final int HEADER_SIZE = 32;
+
+    // number of vectors inserted by a single task
+    private static final int BLOCK_SIZE = 1024;
+
+    //
+    public static final int DEFAULT_M = 16;
+
+    //
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+
+    //
+    public static final int DEFAULT_EF = 50;
+
+    //
+    private static final Comparator<Neighbour> BEST_FIRST = new Comparator<Neighbour>() {
+
+        public int compare(Neighbour n1, Neighbour n2) {
+            return Float.compare(n2.score, n1.score);
+        }
+    };
+
+    //
+    private static final Comparator<Neighbour> WORST_FIRST = new Comparator<Neighbour>() {
+
+        public int compare(Neighbour n1, Neighbour n2) {
+            return Float.compare(n1.score, n2.score);
+        }
+    };
+
+    //
+    private Rows rows;
+
+    // 1 / norm of each vector; null if the vectors are normalized
+    private float[] inverseNorms;
+
+    //
+    private int dim;
+
+    // max number of neighbours per node on the upper levels
+    private int m;
+
+    // max number of neighbours per node on level 0
+    private int m0;
+
+    //
+    private int efConstruction;
+
+    //
+    private int ef;
+
+    // properties of the indexed vectors, set by the caller
+    private int flags;
+
+    // neighbours[i][l][0] is the number of neighbours of i at level l
+    private int[][][] neighbours;
+
+    //
+    private int size;
+
+    // guarded by this while building
+    private int maxLevel;
+
+    // guarded by this while building
+    private int entryPoint;
+
+    //
+    private ThreadLocal<Scratch> scratch;
+
+    /**
+     * Constructs an empty <code>HnswIndex</code> over the
+     * specified vectors.
+     */
+    private HnswIndex(Rows rows, int m, int efConstruction) {
+        this.rows = rows;
+        this.dim = rows.dimension();
+        this.m = m;
+        this.m0 = 2 * m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.ef = DEFAULT_EF;
+        size = rows.size();
+        neighbours = new int[size][][];
+        maxLevel = -1;
+        entryPoint = -1;
+        scratch = new ThreadLocal<Scratch>() {
+
+            @Override
+            protected Scratch initialValue() {
+                return new Scratch(neighbours.length, dim, m0);
+            }
+        };
+    } // end constructor
+
+    /**
+     * Builds an index over the rows of the specified matrix.
+     */
+    public static HnswIndex build(final float[][] matrix, int m, int efConstruction) {
+        int dim = matrix.length == 0 ? 0 : matrix[0].length;
+        return build(new Rows(matrix.length, dim) {
+
+            public float[] row(int i, float[] buffer) {
+                return matrix[i];
+            }
+        }, m, efConstruction);
+    } // end build
+
+    /**
+     * Builds an index over the specified vectors.
+     */
+    public static HnswIndex build(Rows rows, int m, int efConstruction) {
+        long begin = System.currentTimeMillis();
+        logger.info("building hnsw index: " + rows.size() + " X " + rows.dimension() + " (m=" + m + ", ef="
+                + efConstruction + ")");
+        final HnswIndex index = new HnswIndex(rows, m, efConstruction);
+        int n = index.size;
+
+        // levels are drawn in order, so they do not depend on the scheduling
+        Random random = new Random(42);
+        double levelMultiplier = 1 / Math.log(m);
+        index.inverseNorms = new float[n];
+        float[] buffer = new float[index.dim];
+        for (int i = 0; i < n; i++) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            index.neighbours[i] = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                index.neighbours[i][l] = new int[(l == 0 ? index.m0 : m) + 1];
+            }
+
+            float[] row = rows.row(i, buffer);
+            float norm = 0;
+            for (int j = 0; j < index.dim; j++) {
+                norm += row[j] * row[j];
+            }
+            norm = (float) Math.sqrt(norm);
+            index.inverseNorms[i] = norm == 0 ? 0 : 1 / norm;
+        }
+
+        if (n > 0) {
+            index.entryPoint = 0;
+            index.maxLevel = index.neighbours[0].length - 1;
+        }
+
+        final AtomicInteger count = new AtomicInteger(1);
+        final long start = begin;
+        List<Runnable> blocks = new ArrayList<Runnable>();
+        for (int from = 1; from < n; from += BLOCK_SIZE) {
+            final int first = from;
+            final int last = Math.min(n, from + BLOCK_SIZE);
+            blocks.add(new Runnable() {
+
+                public void run() {
+                    Scratch s = index.scratch.get();
+                    for (int i = first; i < last; i++) {
+                        index.insert(i, s);
+                        int c = count.incrementAndGet();
+                        if ((c % 100000) == 0) {
+                            logger.info(c + " vectors indexed (" + (System.currentTimeMillis() - start) + " ms)");
+                        }
+                    }
+                }
+            });
+        }
+
+        if (blocks.size() == 1) {
+            blocks.get(0).run();
+        } else if (blocks.size() > 1) {
+            Environment.run(blocks);
+        }
+
+        long end = System.currentTimeMillis();
+        logger.info("took " + (end - begin) + " ms");
+        return index;
+    } // end build
+
+    //
+    public int size() {
+        return size;
+    } // end size
+
+    //
+    public int getDimension() {
+        return dim;
+    } // end getDimension
+
+    /**
+     * Sets the size of the candidate list used by <code>search</code>;
+     * higher values give better recall but slower queries.
+     */
+    public void setEf(int ef) {
+        this.ef = ef;
+    } // end setEf
+
+    //
+    public int getEf() {
+        return ef;
+    } // end getEf
+
+    /**
+     * Sets the properties of the indexed vectors (e.g., how they
+     * were weighted), stored in the header to be checked by the
+     * caller after <code>read</code>.
+     */
+    public void setFlags(int flags) {
+        this.flags = flags;
+    } // end setFlags
+
+    //
+    public int getFlags() {
+        return flags;
+    } // end getFlags
+
+    /**
+     * Links the id-th vector to the vectors already in the graph.
+     */
+    private void insert(int id, Scratch s) {
+        int level = neighbours[id].length - 1;
+        float[] q = normalized(id, s.q, s);
+
+        int top;
+        Neighbour ep;
+        synchronized (this) {
+            top = maxLevel;
+            ep = new Neighbour(entryPoint, 0);
+        }
+        ep.score = dot(q, ep.index, s);
+
+        // greedy descent on the levels above the level of the new node
+        for (int l = top; l > level; l--) {
+            ep = greedy(q, ep, l, s);
+        }
+
+        PriorityQueue<Neighbour> entries = new PriorityQueue<Neighbour>(11, BEST_FIRST);
+        entries.add(ep);
+        for (int l = Math.min(level, top); l >= 0; l--) {
+            PriorityQueue<Neighbour> found = searchLevel(q, entries, efConstruction, l, s);
+
+            // the new node is reachable once linked by another thread
+            PriorityQueue<Neighbour> candidates = new PriorityQueue<Neighbour>(found.size() + 1, WORST_FIRST);
+            for (Neighbour n : found) {
+                if (n.index != id) {
+                    candidates.add(n);
+                }
+            }
+
+            Neighbour[] selected = select(candidates, m, s);
+            for (Neighbour n : selected) {
+                connect(id, n.index, l, s);
+                connect(n.index, id, l, s);
+            }
+
+            entries = new PriorityQueue<Neighbour>(candidates.size() + 1, BEST_FIRST);
+            entries.addAll(candidates);
+            if (entries.isEmpty()) {
+                entries.add(ep);
+            }
+        }
+
+        if (level > top) {
+            synchronized (this) {
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    entryPoint = id;
+                }
+            }
+        }
+    } // end insert
+
+    /**
+     * Returns the (approximate) k nearest neighbours of the specified
+     * vector, sorted by decreasing cosine similarity.
+     */
+    public Neighbour[] search(float[] query, int k) {
+        if (entryPoint == -1) {
+            return new Neighbour[0];
+        }
+
+        // normalize
+        float[] q = new float[dim];
+        float norm = 0;
+        for (int j = 0; j < dim; j++) {
+            norm += query[j] * query[j];
+        }
+        norm = (float) Math.sqrt(norm);
+        for (int j = 0; j < dim; j++) {
+            q[j] = norm == 0 ? 0 : query[j] / norm;
+        }
+
+        Scratch s = scratch.get();
+        Neighbour ep = new Neighbour(entryPoint, dot(q, entryPoint, s));
+        for (int l = maxLevel; l > 0; l--) {
+            ep = greedy(q, ep, l, s);
+        }
+
+        PriorityQueue<Neighbour> entries = new PriorityQueue<Neighbour>(11, BEST_FIRST);
+        entries.add(ep);
+        PriorityQueue<Neighbour> candidates = searchLevel(q, entries, Math.max(ef, k), 0, s);
+        while (candidates.size() > k) {
+            candidates.poll();
+        }
+
+        Neighbour[] result = candidates.toArray(new Neighbour[candidates.size()]);
+        Arrays.sort(result, BEST_FIRST);
+        return result;
+    } // end search
+
+    /**
+     * Returns the (approximate) k nearest neighbours of the
+     * i-th vector in the index, i excluded.
+     */
+    public Neighbour[] search(int i, int k) {
+        float[] query = rows.row(i, new float[dim]);
+        Neighbour[] result = search(query, k + 1);
+        Neighbour[] shorter = new Neighbour[Math.min(k, result.length)];
+        int current = 0;
+        for (int j = 0; j < result.length && current < shorter.length; j++) {
+            if (result[j].index != i) {
+                shorter[current++] = result[j];
+            }
+        }
+        if (current < shorter.length) {
+            return Arrays.copyOf(shorter, current);
+        }
+        return shorter;
+    } // end search
+
+    // copies the i-th vector, normalized, into buffer
+    private float[] normalized(int i, float[] buffer, Scratch s) {
+        float[] row = rows.row(i, s.a);
+        float scale = inverseNorms == null ? 1 : inverseNorms[i];
+        for (int d = 0; d < dim; d++) {
+            buffer[d] = row[d] * scale;
+        }
+        return buffer;
+    } // end normalized
+
+    // cosine between two indexed vectors
+    private float score(int i, int j, Scratch s) {
+        float[] x = rows.row(i, s.a);
+        float[] y = rows.row(j, s.b);
+        float sum = 0;
+        for (int d = 0; d < dim; d++) {
+            sum += x[d] * y[d];
+        }
+        return inverseNorms == null ? sum : sum * inverseNorms[i] * inverseNorms[j];
+    } // end score
+
+    // cosine between the normalized vector q and the j-th indexed vector
+    private float dot(float[] q, int j, Scratch s) {
+        float[] y = rows.row(j, s.b);
+        float sum = 0;
+        for (int d = 0; d < dim; d++) {
+            sum += q[d] * y[d];
+        }
+        return inverseNorms == null ? sum : sum * inverseNorms[j];
+    } // end dot
+
+    // copies the neighbours of i at the specified level into list
+    private int neighbours(int i, int level, int[] list) {
+        int[] source = neighbours[i][level];
+        synchronized (source) {
+            System.arraycopy(source, 1, list, 0, source[0]);
+            return source[0];
+        }
+    } // end neighbours
+
+    //
+    private Neighbour greedy(float[] q, Neighbour ep, int level, Scratch s) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int n = neighbours(ep.index, level, s.list);
+            for (int i = 0; i < n; i++) {
+                float score = dot(q, s.list[i], s);
+                if (score > ep.score) {
+                    ep = new Neighbour(s.list[i], score);
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    } // end greedy
+
+    /**
+     * Returns the ef best nodes found at the specified level as
+     * a queue whose head is the worst one.
+     */
+    private PriorityQueue<Neighbour> searchLevel(float[] q, PriorityQueue<Neighbour> entries, int ef, int level,
+            Scratch s) {
+        int[] visited = s.visited;
+        if (++s.epoch == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            s.epoch = 1;
+        }
+        int mark = s.epoch;
+
+        PriorityQueue<Neighbour> candidates = new PriorityQueue<Neighbour>(entries);
+        PriorityQueue<Neighbour> results = new PriorityQueue<Neighbour>(ef + 1, WORST_FIRST);
+        for (Neighbour n : entries) {
+            visited[n.index] = mark;
+            results.add(n);
+        }
+        while (results.size() > ef) {
+            results.poll();
+        }
+
+        while (!candidates.isEmpty()) {
+            Neighbour c = candidates.poll();
+            if (results.size() >= ef && c.score < results.peek().score) {
+                break;
+            }
+
+            int size = neighbours(c.index, level, s.list);
+            for (int i = 0; i < size; i++) {
+                int n = s.list[i];
+                if (visited[n] == mark) {
+                    continue;
+                }
+                visited[n] = mark;
+
+                float score = dot(q, n, s);
+                if (results.size() < ef || score > results.peek().score) {
+                    Neighbour neighbour = new Neighbour(n, score);
+                    candidates.add(neighbour);
+                    results.add(neighbour);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+
+        return results;
+    } // end searchLevel
+
+    /**
+     * Selects up to max neighbours using the heuristic of the
+     * original paper, which favours diverse directions.
+     */
+    private Neighbour[] select(PriorityQueue<Neighbour> candidates, int max, Scratch s) {
+        Neighbour[] sorted = candidates.toArray(new Neighbour[candidates.size()]);
+        Arrays.sort(sorted, BEST_FIRST);
+        Neighbour[] selected = new Neighbour[Math.min(max, sorted.length)];
+        int current = 0;
+        for (int i = 0; i < sorted.length && current < selected.length; i++) {
+            boolean good = true;
+            for (int j = 0; j < current; j++) {
+                if (score(sorted[i].index, selected[j].index, s) > sorted[i].score) {
+                    good = false;
+                    break;
+                }
+            }
+            if (good) {
+                selected[current++] = sorted[i];
+            }
+        }
+
+        // fill with the closest discarded ones
+        for (int i = 0; i < sorted.length && current < selected.length; i++) {
+            boolean found = false;
+            for (int j = 0; j < current; j++) {
+                if (selected[j] == sorted[i]) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                selected[current++] = sorted[i];
+            }
+        }
+        return selected;
+    } // end select
+
+    /**
+     * Adds j to the neighbours of i at the specified level, pruning
+     * the list when it is full.
+     */
+    private void connect(int i, int j, int level, Scratch s) {
+        int[] list = neighbours[i][level];
+        synchronized (list) {
+            // j may have been linked by the thread inserting it
+            for (int k = 1; k <= list[0]; k++) {
+                if (list[k] == j) {
+                    return;
+                }
+            }
+
+            int max = list.length - 1;
+            if (list[0] < max) {
+                list[++list[0]] = j;
+                return;
+            }
+
+            PriorityQueue<Neighbour> candidates = new PriorityQueue<Neighbour>(max + 2, WORST_FIRST);
+            candidates.add(new Neighbour(j, score(i, j, s)));
+            for (int k = 1; k <= list[0]; k++) {
+                candidates.add(new Neighbour(list[k], score(i, list[k], s)));
+            }
+
+            Neighbour[] selected = select(candidates, max, s);
+            list[0] = selected.length;
+            for (int k = 0; k < selected.length; k++) {
+                list[k + 1] = selected[k].index;
+            }
+        }
+    } // end connect
+
+    /**
+     * Writes the index to the specified file.
+     */
+    public void write(File f) throws IOException {
+        long begin = System.currentTimeMillis();
+        logger.info("writing hnsw index to " + f + "...");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(flags);
+            out.writeInt(dim);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(size);
+            out.writeInt(maxLevel);
+            out.writeInt(entryPoint);
+
+            // dense binary matrix
+            out.writeInt(size);
+            out.writeInt(dim);
+            Scratch s = scratch.get();
+            for (int i = 0; i < size; i++) {
+                float[] row = normalized(i, s.q, s);
+                for (int j = 0; j < dim; j++) {
+                    out.writeFloat(row[j]);
+                }
+            }
+
+            for (int i = 0; i < size; i++) {
+                out.writeInt(neighbours[i].length);
+                for (int l = 0; l < neighbours[i].length; l++) {
+                    int[] list = neighbours[i][l];
+                    out.writeInt(list[0]);
+                    for (int k = 1; k <= list[0]; k++) {
+                        out.writeInt(list[k]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        long end = System.currentTimeMillis();
+        logger.info("took " + (end - begin) + " ms");
+    } // end write
+
+    /**
+     * Reads an index previously written with <code>write</code>;
+     * the vectors are memory-mapped, only the graph is loaded on
+     * the heap.
+     */
+    public static HnswIndex read(File f) throws IOException {
+        long begin = System.currentTimeMillis();
+        logger.info("reading hnsw index from " + f + "...");
+
+        int flags, dim, m, efConstruction, size, maxLevel, entryPoint;
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported hnsw index version " + version + " in " + f);
+            }
+
+            flags = raf.readInt();
+            dim = raf.readInt();
+            m = raf.readInt();
+            efConstruction = raf.readInt();
+            size = raf.readInt();
+            maxLevel = raf.readInt();
+            entryPoint = raf.readInt();
+        } finally {
+            raf.close();
+        }
+
+        final MappedDenseMatrix matrix = new MappedDenseMatrix(f, HEADER_SIZE);
+        if (matrix.rows() != size || matrix.columns() != dim) {
+            throw new IOException(f + " has an invalid matrix (" + matrix.rows() + " x " + matrix.columns() + ")");
+        }
+
+        HnswIndex index = new HnswIndex(new Rows(size, dim) {
+
+            public float[] row(int i, float[] buffer) {
+                return matrix.getRow(i, buffer);
+            }
+        }, m, efConstruction);
+        index.flags = flags;
+        index.maxLevel = maxLevel;
+        index.entryPoint = entryPoint;
+
+        // the graph follows the matrix
+        FileInputStream fin = new FileInputStream(f);
+        fin.getChannel().position(HEADER_SIZE + 8 + (long) size * dim * 4);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(fin));
+        try {
+            for (int i = 0; i < size; i++) {
+                int levels = in.readInt();
+                index.neighbours[i] = new int[levels][];
+                for (int l = 0; l < levels; l++) {
+                    int[] list = new int[(l == 0 ? index.m0 : m) + 1];
+                    list[0] = in.readInt();
+                    for (int k = 1; k <= list[0]; k++) {
+                        list[k] = in.readInt();
+                    }
+                    index.neighbours[i][l] = list;
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        long end = System.currentTimeMillis();
+        logger.info(size + " vectors read in " + (end - begin) + " ms");
+        return index;
+    } // end read
+
+    /**
+     * Random access to the indexed vectors, e.g. the rows of
+     * a (possibly memory-mapped) matrix. Implementations must
+     * be thread-safe.
+     */
+    public abstract static class Rows {
+
+        //
+        private int size;
+
+        //
+        private int dim;
+
+        //
+        public Rows(int size, int dim) {
+            this.size = size;
+            this.dim = dim;
+        } // end constructor
+
+        //
+        public int size() {
+            return size;
+        } // end size
+
+        //
+        public int dimension() {
+            return dim;
+        } // end dimension
+
+        /**
+         * Returns the i-th vector, possibly copied into buffer;
+         * the returned array must not be modified.
+         */
+        public abstract float[] row(int i, float[] buffer);
+
+    } // end class Rows
+
+    /**
+     * Per-thread buffers, so that no memory is allocated
+     * per visited node.
+     */
+    private static class Scratch {
+
+        // visited marks, one per node
+        int[] visited;
+
+        // current mark
+        int epoch;
+
+        // normalized vector being inserted
+        float[] q;
+
+        //
+        float[] a;
+
+        //
+        float[] b;
+
+        // copy of a neighbour list
+        int[] list;
+
+        //
+        Scratch(int size, int dim, int max) {
+            visited = new int[size];
+            q = new float[dim];
+            a = new float[dim];
+            b = new float[dim];
+            list = new int[max];
+        } // end constructor
+
+    } // end class Scratch
+
+    /**
+     * A neighbour and its cosine similarity with the query.
+     */
+    public static class Neighbour {
+
+        //
+        private int index;
+
+        //
+        private float score;
+
+        //
+        public Neighbour(int index, float score) {
+            this.index = index;
+            this.score = score;
+        } // end constructor
+
+        //
+        public int index() {
+            return index;
+        } // end index
+
+        //
+        public float score() {
+            return score;
+        } // end score
+
+        //
+        public String toString() {
+            return index + ":" + score;
+        } // end toString
+
+    } // end class Neighbour
+
+} // end class HnswIndex
@@ -55,6 +55,11 @@ public class LSI extends AbstractLSI {
         super(UtFile, SFile, rowFile, colFile, dfFile, dim, rescaleIdf, normalize);
     }
 
+    public LSI(File UkFile, File SFile, File rowFile, File colFile, File dfFile, boolean rescaleIdf,
+            boolean normalize) throws IOException {
+        super(UkFile, SFile, rowFile, colFile, dfFile, rescaleIdf, normalize);
+    }
+
     /**
      * Returns a term in the VSM
      */
@@ -65,9 +70,10 @@ public class LSI extends AbstractLSI {
 		    throw new TermNotFoundException(term);
 	    }
 
-        Node[] nodes = new Node[Uk[i].length];
-        for (int j = 0; j < Uk[i].length; j++) {
-            nodes[j] = new Node(j, Uk[i][j]);
+        float[] row = row(i);
+        Node[] nodes = new Node[row.length];
+        for (int j = 0; j < row.length; j++) {
+            nodes[j] = new Node(j, row[j]);
         }
 
         return nodes;
@@ -193,24 +199,23 @@ public class LSI extends AbstractLSI {
         //logger.info("mapPseudoDocument " + doc);
         // N = Uk.rows();
         //float[] pdoc = new float[Uk[0].length];
-        Node[] nodes = new Node[Uk[0].length];
+        Node[] nodes = new Node[columns()];
         //logger.info("Uk.size " + Uk.length + " X " + Uk[0].length);
         //logger.info("doc.size " + doc.size());
         //logger.info("pdoc.size " + pdoc.length);
-        int index;
-        for (int i = 0; i < Uk[0].length; i++) {
-            //Iterator<Integer> it = doc.nonZeroElements();
+        for (int i = 0; i < nodes.length; i++) {
             nodes[i] = new Node(i, 0);
-            for (int j = 0; j < doc.length; j++) {
-                //Integer index = it.next().intValue();
-                index = doc[j].index;
-                //logger.info(i + ", i: " + index);
-                //logger.info(i + ", v:" + doc.get(index));
-                //logger.info(i + ", Uk: " + Uk[index][i]);
+        }
+
+        // sparse x dense, one row of Uk per term
+        float[] buffer = new float[nodes.length];
+        for (int j = 0; j < doc.length; j++) {
+            float[] row = row(doc[j].index, buffer);
+            for (int i = 0; i < nodes.length; i++) {
                 //pdoc[i] +=  Uk[index][i] * doc.get(index);
-                nodes[i].value += Uk[index][i] * doc[j].value;
-            } // end for j
-        } // end for i
+                nodes[i].value += row[i] * doc[j].value;
+            } // end for i
+        } // end for j
 
         //logger.info("pdoc.size " + pdoc.length);
         return nodes;
@@ -280,17 +285,7 @@ public class LSI extends AbstractLSI {
                     query = query.toLowerCase();
                     logger.debug("query " + query);
                     long begin = System.nanoTime();
-                    ScoreTermMap map = new ScoreTermMap(query, 20);
-                    Node[] vec1 = mapTerm(query);
-
-                    String term = null;
-                    Iterator<String> it = terms();
-                    while (it.hasNext()) {
-                        term = it.next();
-                        Node[] vec2 = mapTerm(term);
-                        double cos = Node.dot(vec1, vec2) / Math.sqrt(Node.dot(vec1, vec1) * Node.dot(vec2, vec2));
-                        map.put(cos, term);
-                    }
+                    ScoreTermMap map = nearestTerms(query, 20);
                     long end = System.nanoTime();
 
                     logger.info(map.toString());
@@ -332,6 +327,7 @@ public class LSI extends AbstractLSI {
 
         LSI lsi = new LSI(Ut, Sk, r, c, df, dim, rescaleIdf);
 
+        lsi.readNeighbourIndexes(args[0]);
         lsi.interactive();
 
         long end = System.currentTimeMillis();
@@ -58,6 +58,11 @@ public class LSM extends AbstractLSI {
         super(UtFile, SFile, rowFile, colFile, dfFile, dim, rescaleIdf, normalize);
     }
 
+    public LSM(File UkFile, File SFile, File rowFile, File colFile, File dfFile, boolean rescaleIdf,
+            boolean normalize) throws IOException {
+        super(UkFile, SFile, rowFile, colFile, dfFile, rescaleIdf, normalize);
+    }
+
     /**
      * Returns a term in the VSM
      */
@@ -68,7 +73,7 @@ public class LSM extends AbstractLSI {
 		    throw new TermNotFoundException(term);
 	    }
 
-        return new DenseVector(Uk[i]);
+        return new DenseVector(row(i));
     } // end mapTerm
 
     /**
@@ -167,7 +172,7 @@ public class LSM extends AbstractLSI {
     public Vector mapPseudoDocument(Vector doc) {
         //logger.info("lsm.mapPseudoDocument " + doc);
         // N = Uk.rows();
-        float[] pdoc = new float[Uk[0].length];
+        float[] pdoc = new float[columns()];
 
         //logger.info("Uk.size " + Uk.length + " X " + Uk[0].length);
         //logger.info("doc.size " + doc.size());
@@ -176,17 +181,18 @@ public class LSM extends AbstractLSI {
         //for (int j=0;j<doc.size();j++)
         //	logger.info(j + " " + doc.get(j));
 
-        for (int i = 0; i < Uk[0].length; i++) {
-            Iterator<Integer> it = doc.nonZeroElements();
-            for (int j = 0; it.hasNext(); j++) {
-                Integer index = it.next().intValue();
-                //logger.info(i + ", i: " + index);
-                //logger.info(i + ", v:" + doc.get(index));
+        // sparse x dense, one row of Uk per term
+        float[] buffer = new float[pdoc.length];
+        Iterator<Integer> it = doc.nonZeroElements();
+        while (it.hasNext()) {
+            int index = it.next().intValue();
+            float[] row = row(index, buffer);
+            float w = doc.get(index);
+            for (int i = 0; i < pdoc.length; i++) {
                 //logger.info(i + ", Uk: " + Uk[index][i]);
-                pdoc[i] += Uk[index][i] * doc.get(index);
-
-            } // end for j
-        } // end for i
+                pdoc[i] += row[i] * w;
+            } // end for i
+        } // end while
 
         //logger.info("pdoc.size " + pdoc.length);
         return new DenseVector(pdoc);
@@ -242,17 +248,7 @@ public class LSM extends AbstractLSI {
                     query = query.toLowerCase();
                     logger.debug("query " + query);
                     long begin = System.nanoTime();
-                    ScoreTermMap map = new ScoreTermMap(query, 20);
-                    Vector vec1 = mapTerm(query);
-
-                    String term = null;
-                    Iterator<String> it = terms();
-                    while (it.hasNext()) {
-                        term = it.next();
-                        Vector vec2 = mapTerm(term);
-                        double cos = vec1.dotProduct(vec2) / Math.sqrt(vec1.dotProduct(vec1) * vec2.dotProduct(vec2));
-                        map.put(cos, term);
-                    }
+                    ScoreTermMap map = nearestTerms(query, 20);
                     long end = System.nanoTime();
 
                     logger.info(map.toString());
@@ -294,6 +290,7 @@ public class LSM extends AbstractLSI {
 
         LSM LSM = new LSM(Ut, Sk, r, c, df, dim, rescaleIdf);
 
+        LSM.readNeighbourIndexes(args[0]);
         LSM.interactive();
 
         long end = System.currentTimeMillis();
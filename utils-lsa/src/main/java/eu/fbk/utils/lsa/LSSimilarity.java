@@ -229,7 +229,7 @@ public class LSSimilarity implements TextSimilarity {
         Stemmer stemmer = null;
         if (args.length == 6) {
             try {
-                stemmer = StemmerFactory.getInstance(args[5]);
+                stemmer = StemmerFactory.getConcurrentInstance(args[5]);
             } catch (StemmerNotFoundException e) {
                 logger.error(e);
             }
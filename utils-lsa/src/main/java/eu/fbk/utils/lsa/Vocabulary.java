@@ -71,6 +71,22 @@ public class Vocabulary {
         //logger.debug("added " + token + " (" + tf + ")");
     } // end add
 
+    /**
+     * Adds <code>freq</code> occurrences of a token to the Vocabulary
+     *
+     * @param token the token.
+     * @param freq  the number of occurrences.
+     */
+    public void add(String token, int freq) {
+        TermFrequency tf = map.get(token);
+
+        if (tf == null) {
+            map.put(token, new TermFrequency(freq));
+        } else {
+            tf.tf += freq;
+        }
+    } // end add
+
     /**
      * Add a token to the index Vocabulary
      *
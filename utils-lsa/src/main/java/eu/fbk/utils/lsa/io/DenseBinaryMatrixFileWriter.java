@@ -90,22 +90,35 @@ public class DenseBinaryMatrixFileWriter //implements MatrixWriter
     public void write(float[][] matrix) throws IOException {
         int nr = matrix.length;
         int nc = matrix[0].length;
-        logger.debug("matrix " + nr + " x " + nc);
-        outputStream.writeInt(nr);
-        outputStream.writeInt(nc);
+        writeHeader(nr, nc);
 
         for (int i = 0; i < nr; i++) {
             //System.out.print(i + " ");
-            for (int j = 0; j < nc; j++) {
-                // read the value
-                outputStream.writeFloat(matrix[i][j]);
-                //logger.debug(i + ", " + j + " = " + matrix[i][j]);
-            } // end for j
+            writeRow(matrix[i]);
         } // end for i
 
         //return matrix;
     } // end write
 
+    /**
+     * Writes the number of rows and columns of a matrix
+     * that is then written row by row with <code>writeRow</code>.
+     */
+    public void writeHeader(int nr, int nc) throws IOException {
+        logger.debug("matrix " + nr + " x " + nc);
+        outputStream.writeInt(nr);
+        outputStream.writeInt(nc);
+    } // end writeHeader
+
+    /**
+     * Writes the next row of the matrix.
+     */
+    public void writeRow(float[] row) throws IOException {
+        for (int j = 0; j < row.length; j++) {
+            outputStream.writeFloat(row[j]);
+        } // end for j
+    } // end writeRow
+
     //
     public void close() throws IOException {
         outputStream.close();
@@ -0,0 +1,159 @@
+/*
+ * Copyright (2010) Fondazione Bruno Kessler (FBK)
+ *
+ * FBK reserves all rights in the Program as delivered.
+ * The Program or any portion thereof may not be reproduced
+ * in any form whatsoever except as provided by license
+ * without the written consent of FBK.  A license under FBK's
+ * rights in the Program may be available directly from FBK.
+ */
+
+package eu.fbk.utils.lsa.io;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-maps a matrix in dense binary format (see
+ * <code>DenseBinaryMatrixFileWriter</code>) without
+ * copying it on the heap.
+ * <p>
+ * Rows are addressed by index (e.g., the term index
+ * for an Uk matrix written with <code>write(float[][])</code>).
+ * The mapped region is read-only and shared with other
+ * processes mapping the same file. Files larger than
+ * 2 GB are mapped as a sequence of row-aligned segments.
+ * Instances are thread-safe.
+ *
+ * @version %I%, %G%
+ * @author Claudio Giuliano
+ * @since 1.0
+ */
+public class MappedDenseMatrix {
+
+    /**
+     * Define a static logger variable so that it references the
+     * Logger instance named <code>MappedDenseMatrix</code>.
+     */
+    static Logger logger = Logger.getLogger(MappedDenseMatrix.class.getName());
+
+    // size of the header (numRows numCols)
+    private static final int HEADER_SIZE = 8;
+
+    // max number of bytes mapped by a single segment
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * The number of rows.
+     */
+    private int nr;
+
+    /**
+     * The number of columns.
+     */
+    private int nc;
+
+    //
+    private int rowsPerSegment;
+
+    //
+    private FloatBuffer[] segments;
+
+    /**
+     * Maps the specified dense binary matrix file.
+     *
+     * @param f the file containing the matrix.
+     */
+    public MappedDenseMatrix(File f) throws IOException {
+        this(f, 0);
+    } // end constructor
+
+    /**
+     * Maps a dense binary matrix stored in the specified file
+     * starting at offset (e.g., after the header of another
+     * format).
+     *
+     * @param f      the file containing the matrix.
+     * @param offset the position of the matrix in the file.
+     */
+    public MappedDenseMatrix(File f, long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            raf.seek(offset);
+            nr = raf.readInt();
+            nc = raf.readInt();
+            logger.debug("map matrix: " + nr + " x " + nc);
+
+            if (nr < 0 || nc <= 0) {
+                throw new IOException(f + " has an invalid size (" + nr + " x " + nc + ")");
+            }
+
+            long expected = offset + HEADER_SIZE + (long) nr * nc * 4;
+            if (raf.length() < expected) {
+                throw new IOException(f + " is truncated (" + raf.length() + " < " + expected + " bytes)");
+            }
+
+            rowsPerSegment = (int) Math.min(nr, MAX_SEGMENT_SIZE / ((long) nc * 4));
+            int n = nr == 0 ? 0 : (nr + rowsPerSegment - 1) / rowsPerSegment;
+            segments = new FloatBuffer[n];
+
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < n; i++) {
+                int rows = Math.min(rowsPerSegment, nr - i * rowsPerSegment);
+                long position = offset + HEADER_SIZE + (long) i * rowsPerSegment * nc * 4;
+                long size = (long) rows * nc * 4;
+
+                // DataOutputStream writes in network byte order
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.BIG_ENDIAN)
+                        .asFloatBuffer();
+            } // end for i
+        } finally {
+            // the mapping remains valid after the channel is closed
+            raf.close();
+        }
+    } // end constructor
+
+    //
+    public int rows() {
+        return nr;
+    } // end rows
+
+    //
+    public int columns() {
+        return nc;
+    } // end columns
+
+    /**
+     * Returns the element (i, j).
+     */
+    public float get(int i, int j) {
+        return segments[i / rowsPerSegment].get((i % rowsPerSegment) * nc + j);
+    } // end get
+
+    /**
+     * Copies the i-th row into the specified array and
+     * returns it.
+     */
+    public float[] getRow(int i, float[] row) {
+        // bulk read from a view, as the position of segments is shared
+        FloatBuffer segment = segments[i / rowsPerSegment].duplicate();
+        segment.position((i % rowsPerSegment) * nc);
+        segment.get(row, 0, nc);
+
+        return row;
+    } // end getRow
+
+    /**
+     * Returns a copy of the i-th row.
+     */
+    public float[] getRow(int i) {
+        return getRow(i, new float[nc]);
+    } // end getRow
+
+} // end MappedDenseMatrix
@@ -15,6 +15,7 @@ import org.apache.log4j.PropertyConfigurator;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Writes in Sparse Binary Matrix File.
@@ -61,6 +62,9 @@ public class SparseBinaryMatrixFileWriter extends MatrixFileWriter implements Ma
      */
     private int nz;
 
+    // buffer of the column being written (big-endian)
+    private ByteBuffer buffer;
+
     /**
      * Constructs a sparse binary matrix writer.
      *
@@ -73,6 +77,9 @@ public class SparseBinaryMatrixFileWriter extends MatrixFileWriter implements Ma
         nc = 0;
         nz = 0;
 
+        // columns are appended after the header
+        raf.setLength(0);
+
         // a place holder
         writeHeader();
 
@@ -112,10 +119,16 @@ public class SparseBinaryMatrixFileWriter extends MatrixFileWriter implements Ma
         // increment the number of columns
         nc++;
 
-        raf.seek(raf.length());
+        // the column is encoded in a single buffer and written
+        // with one call, the file pointer is always at the end
+        int size = 4 + 8 * indexes.length;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, 2 * (buffer == null ? 0 : buffer.capacity())));
+        }
+        buffer.clear();
 
         // write the number of non zero values
-        raf.writeInt(indexes.length);
+        buffer.putInt(indexes.length);
         //logger.debug(Integer.toString(indexes.length));
 
         for (int i = 0; i < indexes.length; i++) {
@@ -126,16 +139,17 @@ public class SparseBinaryMatrixFileWriter extends MatrixFileWriter implements Ma
             }
 
             // write the row index
-            raf.writeInt(indexes[i]);
+            buffer.putInt(indexes[i]);
 
             // write the value
-            raf.writeFloat(values[i]);
+            buffer.putFloat(values[i]);
 
             //logger.debug(indexes[i] + " " + values[i]);
             // increment the number of non zero values
             nz++;
         } // end for i
 
+        raf.write(buffer.array(), 0, size);
     } // end writeColumn
 
     //
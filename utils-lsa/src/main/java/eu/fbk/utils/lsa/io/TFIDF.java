@@ -17,13 +17,17 @@ import org.apache.log4j.PropertyConfigurator;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 /**
  * This class multiplies the term-by-document matrix in sparse binary
  * format and the inverse document frequency diagonal matrix.
  * <p>
+ * The matrix is streamed through a buffer of fixed size, each value
+ * is rescaled in place and the buffer is written to the output, so
+ * the memory used does not depend on the number of non zero values
+ * (the buffer plus one float per row).
  *
  * @version %I%, %G%
  * @author Claudio Giuliano
@@ -58,20 +62,41 @@ public class TFIDF {
     //
     private FileChannel channel;
 
+    // the idf of each row
+    private float[] idf;
+
     //
-    private InverseVocabulary inverseVocabulary;
+    private int bufferSize;
+
+    /**
+     * Default size of the buffer (8 MB).
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    // size of the header (numRows numCols nonZeros)
+    private static final int HEADER_SIZE = 12;
+
+    public TFIDF(File in, File out, File row, File df) throws IOException {
+        this(in, out, row, df, DEFAULT_BUFFER_SIZE);
+    } // end constructor
 
     /**
      * Constructs a sparse binary matrix writer.
      *
-     * @param file the file where to write the matrix.
+     * @param bufferSize the size in bytes of the buffer used to stream the matrix.
      */
-    public TFIDF(File in, File out, File row, File df) throws IOException {
+    public TFIDF(File in, File out, File row, File df, int bufferSize) throws IOException {
+        if (bufferSize < 8) {
+            throw new IllegalArgumentException("buffer size " + bufferSize + " < 8");
+        }
+
+        this.bufferSize = bufferSize;
         inRAF = new RandomAccessFile(in, "r");
         outRAF = new RandomAccessFile(out, "rw");
+        outRAF.setLength(0);
         channel = inRAF.getChannel();
 
-        inverseVocabulary = new InverseVocabulary(row, df);
+        InverseVocabulary inverseVocabulary = new InverseVocabulary(row, df);
 
         nr = 0;
         nc = 0;
@@ -85,6 +110,12 @@ public class TFIDF {
             System.exit(-1);
         }
 
+        // to avoid a division-by-zero
+        idf = new float[nr];
+        for (int i = 0; i < nr; i++) {
+            idf[i] = (float) Math.log10((double) nc / (1 + inverseVocabulary.get(i)));
+        }
+
         convert();
         close();
 
@@ -131,20 +162,67 @@ public class TFIDF {
     } // end writeHeader
 
     /**
-     *
+     * Rescales the columns block by block. A column can span
+     * two blocks, the entries not yet complete are moved at
+     * the beginning of the buffer before reading the next block.
      */
     public void convert() throws IOException {
-        for (int i = 0; i < nc; i++) {
-            Entry[] col = readColumn();
-            if ((i % 10000) == 0) {
-                System.out.print(".");
+        FileChannel outChannel = outRAF.getChannel();
+        channel.position(HEADER_SIZE);
+        outChannel.position(HEADER_SIZE);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        int count = 0, remaining = 0;
+        while (true) {
+            int n = channel.read(buffer);
+            buffer.flip();
+
+            int limit = buffer.limit();
+            int p = 0;
+            while (true) {
+                if (remaining == 0) {
+                    // the number of non zero values of the next column
+                    if (limit - p < 4) {
+                        break;
+                    }
+                    remaining = buffer.getInt(p);
+                    p += 4;
+                    if ((count % 10000) == 0) {
+                        System.out.print(".");
+                    }
+                    count++;
+                } else {
+                    // row index and value
+                    if (limit - p < 8) {
+                        break;
+                    }
+                    int j = buffer.getInt(p);
+                    buffer.putFloat(p + 4, buffer.getFloat(p + 4) * idf[j]);
+                    p += 8;
+                    remaining--;
+                }
+            } // end while
+
+            buffer.limit(p);
+            while (buffer.hasRemaining()) {
+                outChannel.write(buffer);
+            }
+            buffer.limit(limit);
+            buffer.compact();
+
+            if (n == -1) {
+                if (buffer.position() > 0 || remaining > 0) {
+                    throw new IOException("unexpected end of matrix at column " + count);
+                }
+                break;
             }
-            //logger.debug(i +  " " + col.length);
-            writeColumn(col);
-        } // end for i
+        } // end while
 
         System.out.print("\n");
-    } // end read
+        if (count != nc) {
+            logger.warn(count + " columns read, " + nc + " expected");
+        }
+    } // end convert
 
     //
     private static final double LOG2 = Math.log(2);
@@ -154,93 +232,6 @@ public class TFIDF {
         return Math.log(d) / LOG2;
     } //
 
-    /**
-     * Writes the number of non zero values for a column and
-     * or each non-zero value in the column: row index and
-     * value. All values are 4-byte integers except value,
-     * which is a 4-byte float. All are in network byte
-     * order.
-     *
-     * @param indexes the column indexes.
-     * @param values  the column values.
-     */
-    public void writeColumn(Entry[] col) throws IOException {
-        //outRAF.seek(outRAF.length());
-
-        // write the number of non zero values
-        outRAF.writeInt(col.length);
-        //logger.debug(Integer.toString(indexes.length));
-
-        for (int i = 0; i < col.length; i++) {
-            // write the row index
-            int j = col[i].index();
-            //float df = (float) log2((double) nc / inverseVocabulary.get(j));
-            //float df = (float) Math.log10((double) nc / inverseVocabulary.get(j));
-            // to avoid a division-by-zero
-            float df = (float) Math.log10((double) nc / (1 + inverseVocabulary.get(j)));
-            //logger.info(df + " = log(" + nc + " / " + inverseVocabulary.get(j) + ")");
-
-            float tf = col[i].value();
-
-            //logger.info(tf + " = " + tf);
-            //
-            // ATTENZIONE DEVO PRENDERE IL 1+LOG_10(tf)
-            // OPPURE tf/numero_di_parole_doc
-            //
-            float w = tf * df;
-            //logger.debug(w + "[" + i + "] = " + tf + " * " + df);
-
-            outRAF.writeInt(j);
-
-            // write the value
-            outRAF.writeFloat(w);
-        } // end for i
-
-    } // end writeColumn
-
-    //
-    public Entry[] readColumn() throws IOException {
-        //float[] col = new float[nr];
-
-        // read the number of elements stored in this column
-        int l = inRAF.readInt();
-        Entry[] col = new Entry[l];
-
-        long position = inRAF.getFilePointer();
-        long size = l * 4 * 2;
-
-        MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
-
-        for (int i = 0; i < l; i++) {
-            //col[mbb.getInt()] = mbb.getFloat();
-            col[i] = new Entry(mbb.getInt(), mbb.getFloat());
-        }
-
-        // next column
-        inRAF.seek(position + size);
-        return col;
-    } // end readColumn
-
-    //
-    public Entry[] readColumnArray() throws IOException {
-        // read the number of elements stored in this column
-        int l = inRAF.readInt();
-        Entry[] array = new Entry[l];
-
-        long position = inRAF.getFilePointer();
-        long size = l * 4 * 2;
-
-        MappedByteBuffer mbb = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
-
-        for (int i = 0; i < l; i++) {
-            array[i] = new Entry(mbb.getInt(), mbb.getFloat());
-        }
-
-        // next column
-        inRAF.seek(position + size);
-        return array;
-    } // end readColumnArray
-
     //
     public void close() throws IOException {
         inRAF.close();
@@ -258,8 +249,8 @@ public class TFIDF {
 
         PropertyConfigurator.configure(logConfig);
 
-        if (args.length != 4) {
-            System.out.println("Usage: java -mx1024M eu.fbk.utils.lsa.io.TFIDF in out row df");
+        if (args.length != 4 && args.length != 5) {
+            System.out.println("Usage: java -mx1024M eu.fbk.utils.lsa.io.TFIDF in out row df [buffer-size]");
             System.exit(1);
         }
 
@@ -268,37 +259,15 @@ public class TFIDF {
         File row = new File(args[2]);
         File df = new File(args[3]);
 
-        TFIDF tfidf = new TFIDF(in, out, row, df);
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        if (args.length == 5) {
+            bufferSize = Integer.parseInt(args[4]);
+        }
+
+        TFIDF tfidf = new TFIDF(in, out, row, df, bufferSize);
 
         long end = System.currentTimeMillis();
         System.out.println("matrix read in " + (end - begin) + " ms");
     } // end main
 
-    //
-    public class Entry {
-
-        //
-        private int index;
-
-        //
-        private float value;
-
-        //
-        public Entry(int index, float value) {
-            this.index = index;
-            this.value = value;
-        } // end constructor
-
-        //
-        public int index() {
-            return index;
-        }    // end index
-
-        //
-        public float value() {
-            return value;
-        }    // end value
-
-    } // end class Entry
-
 } // end TFIDF
\ No newline at end of file
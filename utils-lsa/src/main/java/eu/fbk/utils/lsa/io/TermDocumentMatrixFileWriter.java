@@ -10,7 +10,9 @@
 
 package eu.fbk.utils.lsa.io;
 
+import eu.fbk.utils.analysis.stemmer.ConcurrentStemmer;
 import eu.fbk.utils.analysis.stemmer.Stemmer;
+import eu.fbk.utils.core.Environment;
 import eu.fbk.utils.lsa.Index;
 import eu.fbk.utils.lsa.TermSet;
 import eu.fbk.utils.lsa.Vocabulary;
@@ -18,8 +20,7 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 import java.io.*;
-import java.util.Date;
-import java.util.Iterator;
+import java.util.*;
 import java.util.regex.Pattern;
 
 /**
@@ -43,6 +44,12 @@ import java.util.regex.Pattern;
  * X-row:						row index
  * X-df:						document frequency
  * </pre>
+ * <p/>
+ * When more than one thread is specified, documents are read in
+ * batches and each batch is split in shards that are tokenized,
+ * stemmed and filtered in parallel. Shards are merged in document
+ * order, therefore the output is the same produced by a single
+ * thread.
  *
  * @author Claudio Giuliano
  * @version %I%, %G%
@@ -94,16 +101,27 @@ public class TermDocumentMatrixFileWriter {
 
     Stemmer stemmer;
 
+    /**
+     * Number of documents processed by a shard in a batch.
+     */
+    public static final int SHARD_SIZE = 1000;
+
     public TermDocumentMatrixFileWriter(File root, String matrixName, File stopwordFile, File keywordFile, int n,
             boolean saveMatrix) {
         this(root, matrixName, stopwordFile, keywordFile, n, saveMatrix, null);
     }
 
+    public TermDocumentMatrixFileWriter(File root, String matrixName, File stopwordFile, File keywordFile, int n,
+            boolean saveMatrix, Stemmer stemmer) {
+        this(root, matrixName, stopwordFile, keywordFile, n, saveMatrix, stemmer, 1);
+    }
+
     /**
-     * Constructs a reader.
+     * Constructs a reader that processes the corpus using
+     * the specified number of shards.
      */
     public TermDocumentMatrixFileWriter(File root, String matrixName, File stopwordFile, File keywordFile, int n,
-            boolean saveMatrix, Stemmer stemmer) {
+            boolean saveMatrix, Stemmer stemmer, int threads) {
         this.indexAllTokens = indexAllTokens;
         this.stemmer = stemmer;
 
@@ -152,56 +170,59 @@ public class TermDocumentMatrixFileWriter {
             int lineCount = 1;
             Date start = new Date();
             Date start1 = new Date();
-            while ((line = lnr.readLine()) != null) {
-                if (lineCount > n) {
-                    break;
-                }
+            if (threads > 1) {
+                addDocuments(lnr, n, threads);
+            } else {
+                while ((line = lnr.readLine()) != null) {
+                    if (lineCount > n) {
+                        break;
+                    }
 
-                addDocument(spacePattern.split(line));
-
-                if ((lineCount % 100000) == 0) {
-                    //logger.info("*");
-                    Date end = new Date();
-                    logger.info(
-                            lineCount + "\t" + ((double) (end.getTime() - start1.getTime()) / 1000) + " total s (" + end
-                                    + "), voc size:" + corpusVocabulary.size() + ", term index size:" + termIndex.size()
-                                    + ", totalKW: " + totalKW);
-                    //logger.info("corpusVocabulary size: " + corpusVocabulary.size());
-                    start1 = new Date();
-                    start = new Date();
-                } else if ((lineCount % 10000) == 0) {
-                    //logger.info("*");
-                    Date end = new Date();
-                    logger.info(lineCount + "\t" + ((double) (end.getTime() - start.getTime()) / 1000)
-                            + " total s,  voc size:" + corpusVocabulary.size());
-                    start = new Date();
-                } else if ((lineCount % 500) == 0) {
-                    System.out.print(".");
-                }
+                    addDocument(spacePattern.split(line));
+
+                    if ((lineCount % 100000) == 0) {
+                        //logger.info("*");
+                        Date end = new Date();
+                        logger.info(lineCount + "\t" + ((double) (end.getTime() - start1.getTime()) / 1000)
+                                + " total s (" + end + "), voc size:" + corpusVocabulary.size()
+                                + ", term index size:" + termIndex.size() + ", totalKW: " + totalKW);
+                        //logger.info("corpusVocabulary size: " + corpusVocabulary.size());
+                        start1 = new Date();
+                        start = new Date();
+                    } else if ((lineCount % 10000) == 0) {
+                        //logger.info("*");
+                        Date end = new Date();
+                        logger.info(lineCount + "\t" + ((double) (end.getTime() - start.getTime()) / 1000)
+                                + " total s,  voc size:" + corpusVocabulary.size());
+                        start = new Date();
+                    } else if ((lineCount % 500) == 0) {
+                        System.out.print(".");
+                    }
+
+                    if ((lineCount % 1000000) == 0) {
+                        logger.info("keyword stat");
+                        //corpusVocabulary.stat();
+                        logger.info("doc stat");
+                        //					lengthFreq
+                        double c = 0;
+                        for (int i = 1; i < lengthFreq.length; i++) {
+
+                            if (lengthFreq[i] > 0) {
+                                c += (double) lengthFreq[i] / lineCount;
+                                logger.info("F(" + i + ")=" + lengthFreq[i] + " (" + c + ")");
+                            }
 
-                if ((lineCount % 1000000) == 0) {
-                    logger.info("keyword stat");
-                    //corpusVocabulary.stat();
-                    logger.info("doc stat");
-                    //					lengthFreq
-                    double c = 0;
-                    for (int i = 1; i < lengthFreq.length; i++) {
-
-                        if (lengthFreq[i] > 0) {
-                            c += (double) lengthFreq[i] / lineCount;
-                            logger.info("F(" + i + ")=" + lengthFreq[i] + " (" + c + ")");
                         }
 
-                    }
+                        if (lengthFreq[0] > 0) {
+                            c += (double) lengthFreq[0] / lineCount;
+                            logger.info("F(freq>100)=" + lengthFreq[0] + " (" + c + ")");
+                        }
 
-                    if (lengthFreq[0] > 0) {
-                        c += (double) lengthFreq[0] / lineCount;
-                        logger.info("F(freq>100)=" + lengthFreq[0] + " (" + c + ")");
                     }
-
-                }
-                lineCount++;
-            } // end while
+                    lineCount++;
+                } // end while
+            }
             long end = System.currentTimeMillis();
             System.out.print("\n");
             logger.info(root + " processed in " + (end - begin) + " ms");
@@ -317,6 +338,107 @@ public class TermDocumentMatrixFileWriter {
 
     } // end addDocument
 
+    /**
+     * Reads the corpus in batches of <code>threads</code> shards
+     * of <code>SHARD_SIZE</code> documents. Shards are processed
+     * in parallel and merged in document order.
+     */
+    private void addDocuments(LineNumberReader lnr, int n, int threads) throws IOException {
+        Shard[] shards = new Shard[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new Shard();
+        }
+
+        String[] lines = new String[threads * SHARD_SIZE];
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        int lineCount = 0, logCount = 0;
+        long start = System.currentTimeMillis();
+        while (lineCount < n) {
+            // reads the next batch
+            int size = 0;
+            String line = null;
+            while (size < lines.length && lineCount < n && (line = lnr.readLine()) != null) {
+                lines[size++] = line;
+                lineCount++;
+            }
+
+            if (size == 0) {
+                break;
+            }
+
+            tasks.clear();
+            for (int i = 0; i < threads; i++) {
+                final Shard shard = shards[i];
+                final String[] batch = lines;
+                final int from = Math.min(size, i * SHARD_SIZE);
+                final int to = Math.min(size, from + SHARD_SIZE);
+                shard.clear();
+                tasks.add(new Runnable() {
+
+                    public void run() {
+                        shard.addDocuments(batch, from, to);
+                    }
+                });
+            } // end for i
+            Environment.run(tasks);
+
+            for (int i = 0; i < threads; i++) {
+                merge(shards[i]);
+            }
+
+            if (lineCount / 100000 > logCount) {
+                logCount = lineCount / 100000;
+                long end = System.currentTimeMillis();
+                logger.info(lineCount + "\t" + ((double) (end - start) / 1000) + " total s, term index size:"
+                        + termIndex.size() + ", totalKW: " + totalKW);
+                start = end;
+            }
+        } // end while
+
+        // document frequencies are merged once at the end
+        for (int i = 0; i < threads; i++) {
+            Shard shard = shards[i];
+            for (int j = 0; j < shard.termList.size(); j++) {
+                if (shard.df[j] > 0) {
+                    corpusVocabulary.add(shard.termList.get(j), shard.df[j]);
+                }
+            }
+        }
+    } // end addDocuments
+
+    /**
+     * Assigns the term and document indexes to the documents of
+     * the shard in the same order used by <code>addDocument</code>
+     * and writes them.
+     */
+    private void merge(Shard shard) throws IOException {
+        for (int d = 0; d < shard.docCount; d++) {
+            int from = shard.offsets[d];
+            int size = shard.offsets[d + 1] - from;
+            if (saveMatrix) {
+                documentIndex.add(shard.names.get(d));
+
+                int[] indexes = new int[size];
+                float[] values = new float[size];
+                for (int j = 0; j < size; j++) {
+                    int id = shard.docTerms[from + j];
+                    if (shard.global[id] == -1) {
+                        shard.global[id] = termIndex.add(shard.termList.get(id));
+                    }
+                    indexes[j] = shard.global[id];
+                    values[j] = (float) shard.docFreqs[from + j] / size;
+                }
+                matrixWriter.writeColumn(indexes, values);
+            }
+            columnCount++;
+        } // end for d
+
+        totalKW += shard.totalKW;
+        for (int i = 0; i < lengthFreq.length; i++) {
+            lengthFreq[i] += shard.lengthFreq[i];
+        }
+    } // end merge
+
     //
     private boolean isWord(String s) {
 
@@ -344,6 +466,215 @@ public class TermDocumentMatrixFileWriter {
         return true;
     } // end isWord
 
+    /**
+     * A shard of the corpus. Terms are identified by local
+     * indexes mapped to the global term index during the
+     * merge; term frequencies are counted in primitive arrays
+     * indexed by local index.
+     */
+    private class Shard {
+
+        // max number of entries in the token cache
+        private static final int MAX_TOKEN_CACHE_SIZE = 1 << 20;
+
+        // lowercased token -> local index (-1 if filtered)
+        private Map<String, Integer> tokens = new HashMap<String, Integer>();
+
+        // term -> local index
+        private Map<String, Integer> terms = new HashMap<String, Integer>();
+
+        //
+        private List<String> termList = new ArrayList<String>();
+
+        // term frequency in the current document
+        private int[] counts = new int[1024];
+
+        // document frequency
+        private int[] df = new int[1024];
+
+        // local index -> global index (-1 if not assigned yet)
+        private int[] global = new int[1024];
+
+        // local indexes of the terms of the current document
+        private int[] docIndexes = new int[1024];
+
+        //
+        private List<String> names = new ArrayList<String>();
+
+        // offsets of the documents in docTerms and docFreqs
+        private int[] offsets = new int[SHARD_SIZE + 1];
+
+        //
+        private int[] docTerms = new int[4096];
+
+        //
+        private int[] docFreqs = new int[4096];
+
+        //
+        private int docCount;
+
+        //
+        private int totalKW;
+
+        //
+        private int[] lengthFreq = new int[101];
+
+        Shard() {
+            Arrays.fill(global, -1);
+        } // end constructor
+
+        //
+        void clear() {
+            names.clear();
+            docCount = 0;
+            totalKW = 0;
+            Arrays.fill(lengthFreq, 0);
+        } // end clear
+
+        //
+        void addDocuments(String[] lines, int from, int to) {
+            for (int l = from; l < to; l++) {
+                String[] array = spacePattern.split(lines[l]);
+                if (array.length == 0) {
+                    continue;
+                }
+
+                totalKW += (array.length - 1);
+                int size = 0;
+                for (int i = 1; i < array.length; i++) {
+                    int index = index(array[i].toLowerCase());
+                    if (index != -1 && counts[index]++ == 0) {
+                        docIndexes[size++] = index;
+                    }
+                } // end for i
+
+                if (array.length <= 100) {
+                    lengthFreq[array.length - 1]++;
+                } else {
+                    lengthFreq[0]++;
+                }
+
+                if (size == 0) {
+                    continue;
+                }
+
+                // same order of the document vocabulary
+                sort(docIndexes, 0, size - 1);
+
+                int offset = offsets[docCount];
+                if (docTerms.length < offset + size) {
+                    int capacity = Math.max(offset + size, 2 * docTerms.length);
+                    docTerms = Arrays.copyOf(docTerms, capacity);
+                    docFreqs = Arrays.copyOf(docFreqs, capacity);
+                }
+
+                for (int j = 0; j < size; j++) {
+                    int index = docIndexes[j];
+                    docTerms[offset + j] = index;
+                    docFreqs[offset + j] = counts[index];
+                    counts[index] = 0;
+                    df[index]++;
+                }
+
+                names.add(array[0]);
+                offsets[++docCount] = offset + size;
+            } // end for l
+        } // end addDocuments
+
+        /**
+         * Returns the local index of the specified token, or -1
+         * if the token is filtered.
+         */
+        private int index(String token) {
+            Integer index = tokens.get(token);
+            if (index == null) {
+                if (tokens.size() >= MAX_TOKEN_CACHE_SIZE) {
+                    tokens.clear();
+                }
+
+                index = add(token);
+                tokens.put(token, index);
+            }
+
+            return index;
+        } // end index
+
+        //
+        private int add(String token) {
+            String term = token;
+            if (stemmer instanceof ConcurrentStemmer) {
+                term = stemmer.stem(token);
+            } else if (stemmer != null) {
+                // other stemmers are not thread-safe
+                synchronized (stemmer) {
+                    term = stemmer.stem(token);
+                }
+            }
+
+            if (!isWord(term)) {
+                return -1;
+            }
+
+            if (keywordSet.size() == 0) {
+                if (stopwordSet.size() != 0 && stopwordSet.contains(term)) {
+                    return -1;
+                }
+            } else if (!keywordSet.contains(term)) {
+                return -1;
+            }
+
+            Integer index = terms.get(term);
+            if (index == null) {
+                index = termList.size();
+                terms.put(term, index);
+                termList.add(term);
+                if (index == counts.length) {
+                    int capacity = 2 * counts.length;
+                    counts = Arrays.copyOf(counts, capacity);
+                    df = Arrays.copyOf(df, capacity);
+                    docIndexes = Arrays.copyOf(docIndexes, capacity);
+                    global = Arrays.copyOf(global, capacity);
+                    Arrays.fill(global, index, capacity, -1);
+                }
+            }
+
+            return index;
+        } // end add
+
+        /**
+         * Sorts the local indexes in a[lo..hi] by term.
+         */
+        private void sort(int[] a, int lo, int hi) {
+            while (lo < hi) {
+                String pivot = termList.get(a[(lo + hi) >>> 1]);
+                int i = lo, j = hi;
+                while (i <= j) {
+                    while (termList.get(a[i]).compareTo(pivot) < 0) {
+                        i++;
+                    }
+                    while (termList.get(a[j]).compareTo(pivot) > 0) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        int t = a[i];
+                        a[i++] = a[j];
+                        a[j--] = t;
+                    }
+                }
+
+                // recurses on the smaller part
+                if (j - lo < hi - i) {
+                    sort(a, lo, j);
+                    lo = i;
+                } else {
+                    sort(a, i, hi);
+                    hi = j;
+                }
+            }
+        } // end sort
+
+    } // end class Shard
+
     //
     public static void main(String[] args) throws Exception {
         String logConfig = System.getProperty("log-config");
@@ -355,7 +686,7 @@ public class TermDocumentMatrixFileWriter {
 
         PropertyConfigurator.configure(logConfig);
 
-        if (args.length != 6) {
+        if (args.length != 6 && args.length != 7) {
             logger.info(getHelp());
             System.exit(1);
         }
@@ -365,7 +696,11 @@ public class TermDocumentMatrixFileWriter {
         String output = args[3];
         int n = Integer.parseInt(args[4]);
         boolean b = Boolean.parseBoolean(args[5]);
-        new TermDocumentMatrixFileWriter(root, output, stopwordFile, keywordFile, n, b);
+        int threads = 1;
+        if (args.length == 7) {
+            threads = Integer.parseInt(args[6]);
+        }
+        new TermDocumentMatrixFileWriter(root, output, stopwordFile, keywordFile, n, b, null, threads);
 
         long end = System.currentTimeMillis();
         logger.info("corpus readDocumentList in " + (end - begin) + " ms");
@@ -384,7 +719,7 @@ public class TermDocumentMatrixFileWriter {
 
         // Usage
         sb.append(
-                "Usage: java -mx1024M com.rt.task2.TermDocumentMatrixFileWriter input stowordSet keywordSet output n b\n\n");
+                "Usage: java -mx1024M com.rt.task2.TermDocumentMatrixFileWriter input stowordSet keywordSet output n b [threads]\n\n");
 
         // Arguments
         sb.append("Arguments:\n");
@@ -395,6 +730,7 @@ public class TermDocumentMatrixFileWriter {
                 "\toutput\t\t-> root of files in which to store resulting term-by-document matrix (in sparse binary format), row index, col index and document frequency\n");
         sb.append("\tn\t\t-> number of documents to process\n");
         sb.append("\tb\t\t-> true to save the matrix; false to save the term document frequency only\n");
+        sb.append("\tthreads\t\t-> number of documents processed in parallel (default is 1)\n");
         // Arguments
         //sb.append("Arguments:\n");
 
@@ -3,6 +3,7 @@ package eu.fbk.utils.lsa.util;
 import eu.fbk.utils.analysis.stemmer.Stemmer;
 import eu.fbk.utils.analysis.stemmer.StemmerFactory;
 import eu.fbk.utils.analysis.stemmer.StemmerNotFoundException;
+import eu.fbk.utils.core.Environment;
 import eu.fbk.utils.lsa.io.DenseText2DenseBinary;
 import eu.fbk.utils.lsa.io.FileFreqFilter;
 import eu.fbk.utils.lsa.io.TFIDF;
@@ -82,7 +83,8 @@ public class CreateLsa {
             File devNull = new File("/dev/null");
             if (cutoff > 1) {
                 logger.info("calculating df...");
-                new TermDocumentMatrixFileWriter(corpusFile, rootFile, stopWordFile, devNull, numDoc, false, stemmer);
+                new TermDocumentMatrixFileWriter(corpusFile, rootFile, stopWordFile, devNull, numDoc, false, stemmer,
+                        Environment.getCores());
 
                 File df = new File(outputDirName + "X-df");
                 File filteredDf = new File(outputDirName + "X-df.cutoff-" + cutoff);
@@ -90,10 +92,12 @@ public class CreateLsa {
                 new FileFreqFilter(df, filteredDf, cutoff);
 
                 logger.info("creating term-by-document matrix...");
-                new TermDocumentMatrixFileWriter(corpusFile, rootFile, devNull, filteredDf, numDoc, true, stemmer);
+                new TermDocumentMatrixFileWriter(corpusFile, rootFile, devNull, filteredDf, numDoc, true, stemmer,
+                        Environment.getCores());
             } else {
                 logger.info("creating term-by-document matrix...");
-                new TermDocumentMatrixFileWriter(corpusFile, rootFile, stopWordFile, devNull, numDoc, true, stemmer);
+                new TermDocumentMatrixFileWriter(corpusFile, rootFile, stopWordFile, devNull, numDoc, true, stemmer,
+                        Environment.getCores());
             }
 
             File matrixFile = new File(rootFile + "-matrix");
@@ -107,6 +111,10 @@ public class CreateLsa {
             logger.info(
                     "running svd (" + tfIdfMatrixFile.getAbsolutePath() + ", " + outputDirName + "X, " + dim + ")...");
             new SVD(tfIdfMatrixFile.getAbsolutePath(), outputDirName + "X", dim, svdCommand);
+            if (svdCommand == null) {
+                // RandomizedSVD already writes Ut in dense binary format
+                return;
+            }
 
             File denseTextUtFile = new File(outputDirName + "X-Ut");
             File tmpDenseTextUtFile = new File(outputDirName + "X-Ut.tmp");
@@ -171,7 +179,7 @@ public class CreateLsa {
             Option langOpt = OptionBuilder.withArgName("string").hasArg()
                     .withDescription("if specified, use a language-specific stemmer").withLongOpt("lang").create("l");
             Option svdOpt = OptionBuilder.withArgName("command").hasArg()
-                    .withDescription("SVD command").withLongOpt("svd").isRequired()
+                    .withDescription("SVD command (if not specified, use RandomizedSVD)").withLongOpt("svd")
                     .create();
 
             options.addOption("h", "help", false, "print this message");
@@ -219,7 +227,7 @@ public class CreateLsa {
             Stemmer stemmer = null;
             if (line.hasOption("lang")) {
                 try {
-                    stemmer = StemmerFactory.getInstance(line.getOptionValue("lang"));
+                    stemmer = StemmerFactory.getConcurrentInstance(line.getOptionValue("lang"));
                 } catch (StemmerNotFoundException e) {
                     logger.error(e);
                 }
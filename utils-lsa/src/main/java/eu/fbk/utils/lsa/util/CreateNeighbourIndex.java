@@ -0,0 +1,96 @@
+package eu.fbk.utils.lsa.util;
+
+import eu.fbk.utils.lsa.FloatLSA;
+import eu.fbk.utils.lsa.HnswIndex;
+import org.apache.commons.cli.*;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import java.io.File;
+
+/**
+ * Builds the approximate nearest neighbour indexes of an LSA model
+ * and stores them in root-hnsw-row (terms) and root-hnsw-col
+ * (documents), next to the other files of the model.
+ */
+public class CreateNeighbourIndex {
+
+    /**
+     * Define a static logger variable so that it references the
+     * Logger instance named <code>CreateNeighbourIndex</code>.
+     */
+    static Logger logger = Logger.getLogger(CreateNeighbourIndex.class.getName());
+
+    public static void main(String[] args) {
+        String logConfig = System.getProperty("log-config");
+        if (logConfig == null) {
+            logConfig = "log-config.txt";
+        }
+
+        PropertyConfigurator.configure(logConfig);
+
+        Options options = new Options();
+        try {
+            Option rootFileOpt = OptionBuilder.withArgName("string").hasArg()
+                    .withDescription("Root of files from which to read the model").isRequired()
+                    .withLongOpt("root-file").create("i");
+            Option dimOpt = OptionBuilder.withArgName("int").hasArg()
+                    .withDescription("Number of dimensions (default is " + SVD.DEFAULT_DIM + ")")
+                    .withLongOpt("dimension").create("d");
+            Option mOpt = OptionBuilder.withArgName("int").hasArg()
+                    .withDescription("Max number of neighbours per node (default is " + HnswIndex.DEFAULT_M + ")")
+                    .withLongOpt("m").create("m");
+            Option efOpt = OptionBuilder.withArgName("int").hasArg()
+                    .withDescription("Size of the candidate list at construction time (default is "
+                            + HnswIndex.DEFAULT_EF_CONSTRUCTION + ")").withLongOpt("ef-construction").create("e");
+            Option vtFileOpt = OptionBuilder.withArgName("file").hasArg()
+                    .withDescription("If specified, index the documents of this Vt matrix (dense binary format)")
+                    .withLongOpt("vt-file").create("v");
+
+            options.addOption("h", "help", false, "print this message");
+            options.addOption("n", "normalize", false, "normalize the term vectors");
+            options.addOption("idf", "idf", false, "rescale the term vectors using the idf");
+
+            options.addOption(rootFileOpt);
+            options.addOption(dimOpt);
+            options.addOption(mOpt);
+            options.addOption(efOpt);
+            options.addOption(vtFileOpt);
+
+            CommandLineParser parser = new PosixParser();
+            CommandLine line = parser.parse(options, args);
+
+            String root = line.getOptionValue("root-file");
+
+            int dim = SVD.DEFAULT_DIM;
+            if (line.hasOption("dimension")) {
+                dim = Integer.parseInt(line.getOptionValue("dimension"));
+            }
+
+            int m = HnswIndex.DEFAULT_M;
+            if (line.hasOption("m")) {
+                m = Integer.parseInt(line.getOptionValue("m"));
+            }
+
+            int efConstruction = HnswIndex.DEFAULT_EF_CONSTRUCTION;
+            if (line.hasOption("ef-construction")) {
+                efConstruction = Integer.parseInt(line.getOptionValue("ef-construction"));
+            }
+
+            FloatLSA lsa = new FloatLSA(root, dim, line.hasOption("idf"), line.hasOption("normalize"));
+            lsa.buildTermNeighbourIndex(m, efConstruction);
+            if (line.hasOption("vt-file")) {
+                lsa.buildDocumentNeighbourIndex(new File(line.getOptionValue("vt-file")), m, efConstruction);
+            }
+            lsa.writeNeighbourIndexes(root);
+        } catch (ParseException e) {
+            // oops, something went wrong
+            System.out.println("Parsing failed: " + e.getMessage() + "\n");
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(400, "java -cp dist/jcore.jar eu.fbk.utils.lsa.util.CreateNeighbourIndex", "\n",
+                    options, "\n", true);
+        } catch (Exception e) {
+            logger.error(e);
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package eu.fbk.utils.lsa.util;
+
+import eu.fbk.utils.core.Environment;
+import eu.fbk.utils.lsa.io.DenseBinaryMatrixFileWriter;
+import org.apache.commons.cli.*;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+
+import java.io.*;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * In-process truncated SVD of a matrix in sparse binary format
+ * (see <code>SparseBinaryMatrixFileWriter</code>), computed with the
+ * randomized range finder of Halko, Martinsson and Tropp (2011) with
+ * power iterations.
+ * <p>
+ * The sparse matrix-matrix products, which dominate the running
+ * time, run in parallel on <code>Environment.getPool()</code>. The
+ * Gaussian test matrix is never stored: its rows are generated
+ * block by block from a per-row seed, and the nr x l and nc x l
+ * blocks are kept in single precision. The
+ * results are written as SVDLIBC does, but in the formats read by
+ * <code>FloatLSA</code> and <code>AbstractLSI</code>: root-Ut and
+ * root-Vt in dense binary format (one singular vector per row) and
+ * root-S in dense text format.
+ */
+public class RandomizedSVD {
+
+    /**
+     * Define a static logger variable so that it references the
+     * Logger instance named <code>RandomizedSVD</code>.
+     */
+    static Logger logger = Logger.getLogger(RandomizedSVD.class.getName());
+
+    public static final int DEFAULT_OVERSAMPLING = 10;
+
+    public static final int DEFAULT_POWER_ITERATIONS = 3;
+
+    // eigenvalues below this fraction of the largest one are considered null
+    private static final double EPSILON = 1e-12;
+
+    // seed of the first row of the Gaussian test matrix
+    private static final long SEED = 42;
+
+    // number of rows of the Gaussian test matrix generated at once
+    private static final int OMEGA_BLOCK_SIZE = 1 << 15;
+
+    private static DecimalFormat df = new DecimalFormat("###,###,###,###");
+
+    /**
+     * The number of rows.
+     */
+    private int nr;
+
+    /**
+     * The number of columns.
+     */
+    private int nc;
+
+    // compressed sparse columns
+    private int[] colPtr;
+
+    private int[] colRow;
+
+    private float[] colValue;
+
+    // compressed sparse rows
+    private int[] rowPtr;
+
+    private int[] rowCol;
+
+    private float[] rowValue;
+
+    // number of parallel tasks per product
+    private int tasks;
+
+    // number of non zero values processed by the products so far
+    private long flops;
+
+    private long begin;
+
+    /**
+     * Reads the matrix to factorize.
+     */
+    public RandomizedSVD(File matrixFile) throws IOException {
+        begin = System.currentTimeMillis();
+        tasks = 4 * Environment.getCores();
+        read(matrixFile);
+        transpose();
+    }
+
+    //
+    public int rows() {
+        return nr;
+    }
+
+    //
+    public int columns() {
+        return nc;
+    }
+
+    //
+    private void read(File f) throws IOException {
+        logger.info("reading matrix from " + f + "...");
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 20));
+        try {
+            nr = in.readInt();
+            nc = in.readInt();
+            int nz = in.readInt();
+            logger.info("matrix " + df.format(nr) + " x " + df.format(nc) + ", " + df.format(nz) + " non zero values");
+
+            colPtr = new int[nc + 1];
+            colRow = new int[nz];
+            colValue = new float[nz];
+            int k = 0;
+            for (int j = 0; j < nc; j++) {
+                int l = in.readInt();
+                for (int i = 0; i < l; i++) {
+                    colRow[k] = in.readInt();
+                    colValue[k] = in.readFloat();
+                    k++;
+                }
+                colPtr[j + 1] = k;
+            }
+        } finally {
+            in.close();
+        }
+
+        logger.info("read in " + elapsed());
+    }
+
+    // builds the compressed sparse rows from the compressed sparse columns
+    private void transpose() {
+        int nz = colPtr[nc];
+        rowPtr = new int[nr + 1];
+        rowCol = new int[nz];
+        rowValue = new float[nz];
+        for (int k = 0; k < nz; k++) {
+            rowPtr[colRow[k] + 1]++;
+        }
+        for (int i = 0; i < nr; i++) {
+            rowPtr[i + 1] += rowPtr[i];
+        }
+
+        int[] next = new int[nr];
+        System.arraycopy(rowPtr, 0, next, 0, nr);
+        for (int j = 0; j < nc; j++) {
+            for (int k = colPtr[j]; k < colPtr[j + 1]; k++) {
+                int p = next[colRow[k]]++;
+                rowCol[p] = j;
+                rowValue[p] = colValue[k];
+            }
+        }
+    }
+
+    /**
+     * Computes the first dim singular triples and writes them
+     * in root-Ut, root-S and root-Vt.
+     */
+    public void factorize(String root, int dim, int oversampling, int iterations) throws IOException {
+        final int l = Math.min(dim + oversampling, Math.min(nr, nc));
+        logger.info("factorizing with " + l + " random vectors and " + iterations + " power iterations on "
+                + Environment.getCores() + " cores...");
+
+        // range finder: Q = orth(A * omega)
+        float[][] q = orthonormalize(multiplyRandom(l));
+        progress("range");
+
+        // power iterations: Q = orth(A * orth(At * Q))
+        for (int it = 0; it < iterations; it++) {
+            q = orthonormalize(multiply(orthonormalize(multiplyTransposed(q, l)), l));
+            progress("power iteration " + (it + 1));
+        }
+
+        // B = Qt * A = Zt, B * Bt = Zt * Z = W * lambda * Wt
+        float[][] z = multiplyTransposed(q, l);
+        double[][] gram = gram(z, l);
+        double[][] w = new double[l][l];
+        double[] lambda = eigen(gram, w);
+        progress("projection");
+
+        // sort by decreasing eigenvalue
+        Integer[] order = new Integer[l];
+        for (int i = 0; i < l; i++) {
+            order[i] = i;
+        }
+        final double[] values = lambda;
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            public int compare(Integer i1, Integer i2) {
+                return Double.compare(values[i2], values[i1]);
+            }
+        });
+
+        final int k = Math.min(dim, l);
+        final float[] s = new float[k];
+        final double[][] wk = new double[l][k];
+        final double[][] wv = new double[l][k];
+        for (int c = 0; c < k; c++) {
+            int e = order[c];
+            double sigma = Math.sqrt(Math.max(lambda[e], 0));
+            s[c] = (float) sigma;
+            for (int h = 0; h < l; h++) {
+                wk[h][c] = w[h][e];
+                wv[h][c] = sigma == 0 ? 0 : w[h][e] / sigma;
+            }
+        }
+
+        // U = Q * W, V = Z * W / sigma
+        final float[][] ut = new float[k][nr];
+        final float[][] vt = new float[k][nc];
+        project(q, wk, ut, l, k);
+        project(z, wv, vt, l, k);
+
+        write(root, s, ut, vt);
+        progress("done");
+    }
+
+    // (X * W)t, X is n x l, W is l x k, the result is k x n
+    private void project(final float[][] x, final double[][] w, final float[][] out, final int l, final int k) {
+        run(x.length, new Range() {
+
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    float[] xi = x[i];
+                    for (int c = 0; c < k; c++) {
+                        double sum = 0;
+                        for (int h = 0; h < l; h++) {
+                            sum += xi[h] * w[h][c];
+                        }
+                        out[c][i] = (float) sum;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A * omega, where omega is a nc x l Gaussian matrix; the rows of
+     * omega are generated in blocks of OMEGA_BLOCK_SIZE, each one from
+     * its own seed, so that the result does not depend on the number
+     * of cores. The result is nr x l.
+     */
+    private float[][] multiplyRandom(final int l) {
+        final float[][] y = new float[nr][l];
+        final float[][] omega = new float[Math.min(nc, OMEGA_BLOCK_SIZE)][l];
+
+        // position of the first column not yet multiplied in each row
+        final int[] next = new int[nr];
+        System.arraycopy(rowPtr, 0, next, 0, nr);
+        for (int first = 0; first < nc; first += OMEGA_BLOCK_SIZE) {
+            final int offset = first;
+            final int last = Math.min(nc, first + OMEGA_BLOCK_SIZE);
+            run(last - offset, new Range() {
+
+                public void run(int from, int to) {
+                    for (int j = from; j < to; j++) {
+                        gaussian(new SplittableRandom(SEED + offset + j), omega[j]);
+                    }
+                }
+            });
+
+            // columns are sorted in each row
+            run(nr, new Range() {
+
+                public void run(int from, int to) {
+                    double[] sum = new double[l];
+                    for (int i = from; i < to; i++) {
+                        int p = next[i];
+                        if (p == rowPtr[i + 1] || rowCol[p] >= last) {
+                            continue;
+                        }
+
+                        Arrays.fill(sum, 0);
+                        for (; p < rowPtr[i + 1] && rowCol[p] < last; p++) {
+                            double v = rowValue[p];
+                            float[] xj = omega[rowCol[p] - offset];
+                            for (int h = 0; h < l; h++) {
+                                sum[h] += v * xj[h];
+                            }
+                        }
+                        next[i] = p;
+
+                        float[] yi = y[i];
+                        for (int h = 0; h < l; h++) {
+                            yi[h] += (float) sum[h];
+                        }
+                    }
+                }
+            });
+        }
+        flops += (long) rowPtr[nr] * l;
+        return y;
+    }
+
+    // fills x with standard normal deviates (polar method)
+    private static void gaussian(SplittableRandom random, float[] x) {
+        for (int h = 0; h < x.length; h += 2) {
+            double v1, v2, s;
+            do {
+                v1 = 2 * random.nextDouble() - 1;
+                v2 = 2 * random.nextDouble() - 1;
+                s = v1 * v1 + v2 * v2;
+            } while (s >= 1 || s == 0);
+            double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+            x[h] = (float) (v1 * multiplier);
+            if (h + 1 < x.length) {
+                x[h + 1] = (float) (v2 * multiplier);
+            }
+        }
+    }
+
+    // A * X, X is nc x l, the result is nr x l
+    private float[][] multiply(final float[][] x, final int l) {
+        final float[][] y = new float[nr][l];
+        run(nr, new Range() {
+
+            public void run(int from, int to) {
+                double[] sum = new double[l];
+                for (int i = from; i < to; i++) {
+                    Arrays.fill(sum, 0);
+                    for (int p = rowPtr[i]; p < rowPtr[i + 1]; p++) {
+                        double v = rowValue[p];
+                        float[] xj = x[rowCol[p]];
+                        for (int h = 0; h < l; h++) {
+                            sum[h] += v * xj[h];
+                        }
+                    }
+
+                    float[] yi = y[i];
+                    for (int h = 0; h < l; h++) {
+                        yi[h] = (float) sum[h];
+                    }
+                }
+            }
+        });
+        flops += (long) rowPtr[nr] * l;
+        return y;
+    }
+
+    // At * Y, Y is nr x l, the result is nc x l
+    private float[][] multiplyTransposed(final float[][] y, final int l) {
+        final float[][] z = new float[nc][l];
+        run(nc, new Range() {
+
+            public void run(int from, int to) {
+                double[] sum = new double[l];
+                for (int j = from; j < to; j++) {
+                    Arrays.fill(sum, 0);
+                    for (int p = colPtr[j]; p < colPtr[j + 1]; p++) {
+                        double v = colValue[p];
+                        float[] yi = y[colRow[p]];
+                        for (int h = 0; h < l; h++) {
+                            sum[h] += v * yi[h];
+                        }
+                    }
+
+                    float[] zj = z[j];
+                    for (int h = 0; h < l; h++) {
+                        zj[h] = (float) sum[h];
+                    }
+                }
+            }
+        });
+        flops += (long) colPtr[nc] * l;
+        return z;
+    }
+
+    // Xt * X, X is n x l
+    private double[][] gram(final float[][] x, final int l) {
+        final List<double[][]> partials = new ArrayList<double[][]>();
+        run(x.length, new Range() {
+
+            public void run(int from, int to) {
+                double[][] g = new double[l][l];
+                for (int i = from; i < to; i++) {
+                    float[] xi = x[i];
+                    for (int a = 0; a < l; a++) {
+                        double v = xi[a];
+                        if (v != 0) {
+                            for (int b = a; b < l; b++) {
+                                g[a][b] += v * xi[b];
+                            }
+                        }
+                    }
+                }
+                synchronized (partials) {
+                    partials.add(g);
+                }
+            }
+        });
+
+        double[][] g = new double[l][l];
+        for (double[][] partial : partials) {
+            for (int a = 0; a < l; a++) {
+                for (int b = a; b < l; b++) {
+                    g[a][b] += partial[a][b];
+                }
+            }
+        }
+        for (int a = 0; a < l; a++) {
+            for (int b = 0; b < a; b++) {
+                g[a][b] = g[b][a];
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Orthonormalizes the columns of X (n x l) in place as
+     * X * W * lambda^-1/2, where Xt * X = W * lambda * Wt; the
+     * step is repeated twice for numerical stability. Columns
+     * in the null space are set to zero.
+     */
+    private float[][] orthonormalize(final float[][] x) {
+        final int l = x[0].length;
+        for (int pass = 0; pass < 2; pass++) {
+            double[][] w = new double[l][l];
+            double[] lambda = eigen(gram(x, l), w);
+            double max = 0;
+            for (int a = 0; a < l; a++) {
+                max = Math.max(max, lambda[a]);
+            }
+
+            final double[][] t = new double[l][l];
+            for (int a = 0; a < l; a++) {
+                for (int b = 0; b < l; b++) {
+                    t[a][b] = lambda[b] > EPSILON * max ? w[a][b] / Math.sqrt(lambda[b]) : 0;
+                }
+            }
+
+            run(x.length, new Range() {
+
+                public void run(int from, int to) {
+                    float[] row = new float[l];
+                    for (int i = from; i < to; i++) {
+                        float[] xi = x[i];
+                        for (int b = 0; b < l; b++) {
+                            double sum = 0;
+                            for (int a = 0; a < l; a++) {
+                                sum += xi[a] * t[a][b];
+                            }
+                            row[b] = (float) sum;
+                        }
+                        System.arraycopy(row, 0, xi, 0, l);
+                    }
+                }
+            });
+        }
+        return x;
+    }
+
+    /**
+     * Computes eigenvalues and eigenvectors (columns of w) of the
+     * symmetric matrix a with the cyclic Jacobi method; a is modified.
+     */
+    static double[] eigen(double[][] a, double[][] w) {
+        int n = a.length;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                w[i][j] = i == j ? 1 : 0;
+            }
+        }
+
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0;
+            double norm = 0;
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    if (i != j) {
+                        off += a[i][j] * a[i][j];
+                    }
+                    norm += a[i][j] * a[i][j];
+                }
+            }
+            if (off <= 1e-30 * norm) {
+                break;
+            }
+
+            for (int p = 0; p < n - 1; p++) {
+                for (int r = p + 1; r < n; r++) {
+                    double apr = a[p][r];
+                    if (apr == 0) {
+                        continue;
+                    }
+
+                    double theta = (a[r][r] - a[p][p]) / (2 * apr);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+
+                    for (int k = 0; k < n; k++) {
+                        double akp = a[k][p];
+                        double akr = a[k][r];
+                        a[k][p] = c * akp - s * akr;
+                        a[k][r] = s * akp + c * akr;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double apk = a[p][k];
+                        double ark = a[r][k];
+                        a[p][k] = c * apk - s * ark;
+                        a[r][k] = s * apk + c * ark;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double wkp = w[k][p];
+                        double wkr = w[k][r];
+                        w[k][p] = c * wkp - s * wkr;
+                        w[k][r] = s * wkp + c * wkr;
+                    }
+                }
+            }
+        }
+
+        double[] lambda = new double[n];
+        for (int i = 0; i < n; i++) {
+            lambda[i] = a[i][i];
+        }
+        return lambda;
+    }
+
+    //
+    private void write(String root, float[] s, float[][] ut, float[][] vt) throws IOException {
+        File utFile = new File(root + "-Ut");
+        logger.info("writing " + utFile + "...");
+        DenseBinaryMatrixFileWriter utWriter = new DenseBinaryMatrixFileWriter(utFile);
+        utWriter.write(ut);
+        utWriter.close();
+
+        File vtFile = new File(root + "-Vt");
+        logger.info("writing " + vtFile + "...");
+        DenseBinaryMatrixFileWriter vtWriter = new DenseBinaryMatrixFileWriter(vtFile);
+        vtWriter.write(vt);
+        vtWriter.close();
+
+        File sFile = new File(root + "-S");
+        logger.info("writing " + sFile + "...");
+        PrintWriter pw = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(sFile), "UTF-8")));
+        pw.println(s.length);
+        for (int i = 0; i < s.length; i++) {
+            pw.println(s[i]);
+        }
+        pw.close();
+    }
+
+    //
+    private void progress(String step) {
+        long time = System.currentTimeMillis() - begin;
+        logger.info(step + " completed in " + elapsed() + " (" + df.format(flops) + " multiply-adds, "
+                + df.format(time == 0 ? 0 : flops / time * 1000) + "/s)");
+    }
+
+    //
+    private String elapsed() {
+        return df.format(System.currentTimeMillis() - begin) + " ms";
+    }
+
+    // splits [0, size) in ranges processed in parallel
+    private void run(int size, final Range range) {
+        List<Runnable> runnables = new ArrayList<Runnable>();
+        int step = Math.max(1, (size + tasks - 1) / tasks);
+        for (int from = 0; from < size; from += step) {
+            final int begin = from;
+            final int end = Math.min(size, from + step);
+            runnables.add(new Runnable() {
+
+                public void run() {
+                    range.run(begin, end);
+                }
+            });
+        }
+        Environment.run(runnables);
+    }
+
+    //
+    private interface Range {
+
+        void run(int from, int to);
+    }
+
+    public static void main(String[] args) {
+        String logConfig = System.getProperty("log-config");
+        if (logConfig == null) {
+            logConfig = "log-config.txt";
+        }
+
+        PropertyConfigurator.configure(logConfig);
+
+        Options options = new Options();
+        try {
+            Option matrixFileOpt = OptionBuilder.withArgName("file").hasArg()
+                    .withDescription("file from which to read the matrix to factorize (sparse binary format)")
+                    .isRequired().withLongOpt("matrix-file").create("m");
+            Option rootFileOpt = OptionBuilder.withArgName("string").hasArg().withDescription(
+                    "Root of files in which to store resulting U,S,V (default is " + SVD.DEFAULT_FILE_ROOT + ")")
+                    .withLongOpt("root-file").create("o");
+            Option dimOpt = OptionBuilder.withArgName("int").hasArg()
+                    .withDescription("Desired SVD triples (default is " + SVD.DEFAULT_DIM + ")")
+                    .withLongOpt("dimension").create("d");
+            Option oversamplingOpt = OptionBuilder.withArgName("int").hasArg()
+                    .withDescription("Number of additional random vectors (default is " + DEFAULT_OVERSAMPLING + ")")
+                    .withLongOpt("oversampling").create("p");
+            Option iterationsOpt = OptionBuilder.withArgName("int").hasArg()
+                    .withDescription("Number of power iterations (default is " + DEFAULT_POWER_ITERATIONS + ")")
+                    .withLongOpt("iterations").create("q");
+
+            options.addOption("h", "help", false, "print this message");
+
+            options.addOption(matrixFileOpt);
+            options.addOption(rootFileOpt);
+            options.addOption(dimOpt);
+            options.addOption(oversamplingOpt);
+            options.addOption(iterationsOpt);
+
+            CommandLineParser parser = new PosixParser();
+            CommandLine line = parser.parse(options, args);
+
+            String rootFile = SVD.DEFAULT_FILE_ROOT;
+            if (line.hasOption("root-file")) {
+                rootFile = line.getOptionValue("root-file");
+            }
+            int dim = SVD.DEFAULT_DIM;
+            if (line.hasOption("dimension")) {
+                dim = Integer.parseInt(line.getOptionValue("dimension"));
+            }
+            int oversampling = DEFAULT_OVERSAMPLING;
+            if (line.hasOption("oversampling")) {
+                oversampling = Integer.parseInt(line.getOptionValue("oversampling"));
+            }
+            int iterations = DEFAULT_POWER_ITERATIONS;
+            if (line.hasOption("iterations")) {
+                iterations = Integer.parseInt(line.getOptionValue("iterations"));
+            }
+
+            RandomizedSVD svd = new RandomizedSVD(new File(line.getOptionValue("matrix-file")));
+            svd.factorize(rootFile, dim, oversampling, iterations);
+        } catch (ParseException e) {
+            // oops, something went wrong
+            System.out.println("Parsing failed: " + e.getMessage() + "\n");
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(400, "java -cp dist/jcore.jar eu.fbk.utils.lsa.util.RandomizedSVD", "\n", options,
+                    "\n", true);
+        } catch (IOException e) {
+            logger.error(e);
+        }
+    }
+}
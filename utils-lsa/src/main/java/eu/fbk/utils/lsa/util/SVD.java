@@ -32,6 +32,18 @@ public class SVD {
 //    Configuration config;
 
     public SVD(String matrixFile, String rootFile, int dim, String svdlibcCommand) {
+        if (svdlibcCommand == null) {
+            // no external command, factorize in process
+            try {
+                RandomizedSVD svd = new RandomizedSVD(new File(matrixFile));
+                svd.factorize(rootFile, dim, RandomizedSVD.DEFAULT_OVERSAMPLING,
+                        RandomizedSVD.DEFAULT_POWER_ITERATIONS);
+            } catch (IOException e) {
+                logger.error(e);
+            }
+            return;
+        }
+
         try {
 //            String name = "configuration/config.xml";
 //            logger.info("configuration file " + name);
@@ -107,7 +119,7 @@ public class SVD {
                     .withDescription("Desired SVD triples (default is " + DEFAULT_DIM + ")").withLongOpt("dimension")
                     .create("d");
             Option svdOpt = OptionBuilder.withArgName("command").hasArg()
-                    .withDescription("SVD command").withLongOpt("svd").isRequired()
+                    .withDescription("SVD command (if not specified, use RandomizedSVD)").withLongOpt("svd")
                     .create("s");
 
             options.addOption("h", "help", false, "print this message");
@@ -0,0 +1,118 @@
+package eu.fbk.utils.mylibsvm;
+
+import java.util.Arrays;
+
+//
+// Primal weights of the decision functions of a model with
+// linear kernel: w = sum_i coef_i * SV_i, stored as sparse
+// vectors sorted by feature index. A decision value is then
+// computed with one sparse dot product instead of one kernel
+// evaluation per support vector.
+//
+final class LinearWeights {
+
+    final int[][] index;
+
+    final double[][] value;
+
+    LinearWeights(svm_model model) {
+        int maxIndex = 0;
+        for (int i = 0; i < model.l; i++) {
+            for (svm_node node : model.SV[i]) {
+                maxIndex = Math.max(maxIndex, node.index);
+            }
+        }
+
+        // dense accumulator and list of the features it holds
+        double[] w = new double[maxIndex + 1];
+        boolean[] used = new boolean[maxIndex + 1];
+        int[] features = new int[maxIndex + 1];
+
+        if (model.param.svm_type == svm_parameter.ONE_CLASS ||
+                model.param.svm_type == svm_parameter.EPSILON_SVR ||
+                model.param.svm_type == svm_parameter.NU_SVR) {
+            index = new int[1][];
+            value = new double[1][];
+            int n = add(model, model.sv_coef[0], 0, model.l, w, used, features, 0);
+            collect(0, w, used, features, n);
+        } else {
+            int nr_class = model.nr_class;
+            index = new int[nr_class * (nr_class - 1) / 2][];
+            value = new double[index.length][];
+
+            int[] start = new int[nr_class];
+            for (int i = 1; i < nr_class; i++) {
+                start[i] = start[i - 1] + model.nSV[i - 1];
+            }
+
+            // same coefficients used by svm.svm_predict_values
+            int p = 0;
+            for (int i = 0; i < nr_class; i++) {
+                for (int j = i + 1; j < nr_class; j++) {
+                    int n = add(model, model.sv_coef[j - 1], start[i], model.nSV[i], w, used, features, 0);
+                    n = add(model, model.sv_coef[i], start[j], model.nSV[j], w, used, features, n);
+                    collect(p++, w, used, features, n);
+                }
+            }
+        }
+    }
+
+    // w += coef[k] * SV[k] for the len support vectors from start
+    private static int add(svm_model model, double[] coef, int start, int len,
+            double[] w, boolean[] used, int[] features, int n) {
+        for (int k = start; k < start + len; k++) {
+            for (svm_node node : model.SV[k]) {
+                if (!used[node.index]) {
+                    used[node.index] = true;
+                    features[n++] = node.index;
+                }
+                w[node.index] += coef[k] * node.value;
+            }
+        }
+        return n;
+    }
+
+    // moves the accumulated weights to the p-th decision function and clears them
+    private void collect(int p, double[] w, boolean[] used, int[] features, int n) {
+        Arrays.sort(features, 0, n);
+        index[p] = new int[n];
+        value[p] = new double[n];
+        for (int k = 0; k < n; k++) {
+            int f = features[k];
+            index[p][k] = f;
+            value[p][k] = w[f];
+            w[f] = 0;
+            used[f] = false;
+        }
+    }
+
+    // number of decision functions
+    int size() {
+        return index.length;
+    }
+
+    // x . w of the p-th decision function
+    double dot(int p, svm_node[] x) {
+        int[] idx = index[p];
+        double[] val = value[p];
+        double sum = 0;
+        int xlen = x.length;
+        int i = 0;
+        int j = 0;
+        while (i < xlen && j < idx.length) {
+            if (x[i].index == idx[j]) {
+                sum += x[i++].value * val[j++];
+            } else if (x[i].index > idx[j]) {
+                // skips the weights not in x
+                int from = j + 1;
+                j = Arrays.binarySearch(idx, from, idx.length, x[i].index);
+                if (j < 0) {
+                    j = -j - 1;
+                }
+            } else {
+                ++i;
+            }
+        }
+        return sum;
+    }
+}
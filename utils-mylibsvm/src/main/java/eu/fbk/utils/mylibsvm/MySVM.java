@@ -387,6 +387,7 @@ public class MySVM extends svm {
         //long end = System.currentTimeMillis();
         //System.out.println("done in " + (end - begin) + " ms");
 
+        svm.svm_prepare_model(model);
         return model;
     } // end my_svm_load_model
 
@@ -486,6 +487,7 @@ public class MySVM extends svm {
         //long end = System.currentTimeMillis();
         //System.out.println("done in " + (end - begin) + " ms");
 
+        svm.svm_prepare_model(model);
         return model;
     } // end my_svm_load_prob_model
 
@@ -727,6 +729,7 @@ public class MySVM extends svm {
         System.out.println("support vector parsed in " + (end - begin) + " ms");
 
         fp.close();
+        svm.svm_prepare_model(model);
         return model;
     } // end load
 
@@ -871,6 +874,7 @@ public class MySVM extends svm {
         logger.info(model.l + " support vectors parsed in " + (end - begin) + " ms");
 
         fp.close();
+        svm.svm_prepare_model(model);
         return model;
     } // end load
 
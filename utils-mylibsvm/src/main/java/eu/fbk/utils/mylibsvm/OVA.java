@@ -16,6 +16,8 @@ import org.apache.log4j.PropertyConfigurator;
 import java.io.*;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This class allows training a svn that used one-verus-all
@@ -47,8 +49,8 @@ public class OVA {
         List<Pair> dataList = readDataset(dataset);
         for (int i = 0; i < n; i++) {
             logger.info("CROSS VALIDATION START " + i + "/" + n);
-            File train = new File(dataset.getAbsolutePath() + "_train_" + n);
-            File test = new File(dataset.getAbsolutePath() + "_test_" + n);
+            List<Pair> train = new ArrayList<Pair>();
+            List<Pair> test = new ArrayList<Pair>();
             split(dataList, train, test, i, n);
             double[] part = run(train, test, root, w);
             for (int k = 0; k < part.length; k++) {
@@ -67,72 +69,64 @@ public class OVA {
 
     }
 
-    private void split(List<Pair> dataList, File train, File test, int j, int n) throws IOException {
-        PrintWriter testWriter = new PrintWriter(new FileWriter(test));
-        PrintWriter trainWriter = new PrintWriter(new FileWriter(train));
-
+    private void split(List<Pair> dataList, List<Pair> train, List<Pair> test, int j, int n) {
         for (int i = 0; i < dataList.size(); i++) {
             int k = i + j;
             if ((k % n) == 0) {
-                testWriter.println(dataList.get(i).c + " " + dataList.get(i).e);
+                test.add(dataList.get(i));
             } else {
-                trainWriter.println(dataList.get(i).c + " " + dataList.get(i).e);
+                train.add(dataList.get(i));
             }
         }
-        testWriter.close();
-        trainWriter.close();
     }
 
     public double[] run(File train, File test, String root, double w) throws IOException {
-        List<Pair> trainList = readDataset(train);
-        List<Pair> testList = readDataset(test);
+        return run(readDataset(train), readDataset(test), root, w);
+    }
+
+    /**
+     * Trains a binary classifier for each class and classifies the
+     * test examples. Classifiers are trained in memory, concurrently
+     * if an executor is set with <code>svm.svm_set_executor</code>.
+     */
+    public double[] run(final List<Pair> trainList, List<Pair> testList, String root, double w) throws IOException {
         Set<String> set = classes(trainList);
 
-        String[] y = new String[set.size()];
-        List<List<Double[]>> d = new ArrayList<List<Double[]>>();
-        /*double[] w = {
-			2, 2.5, 1, 4, 2.5, 2.5, 2.5, 4, 4
-		};*/
-        Iterator<String> it = set.iterator();
-        int i = 0;
-        while (it.hasNext()) {
-            String c = it.next();
-            y[i] = c;
-            logger.info(c);
-            String trainFile = root + "_train_" + c;
-            String testFile = root + "_test_" + c;
-            String modelFile = root + "_mdl_" + c;
-            String outFile = root + "_out_" + c;
-
-            writeProblem(trainList, c, trainFile);
-            writeProblem(testList, c, testFile);
-            svm_train t = new svm_train();
-            String[] argv = new String[8];
-            argv[0] = "-t";
-            argv[1] = "0";
-            argv[2] = "-m";
-            argv[3] = "2000";
-            argv[4] = "-w1";
-            //argv[5] =	 "2";
-            argv[5] = new Double(w).toString();
-            //argv[5] =	new Double(w[Integer.parseInt(c)-1]).toString();
-            logger.info("class " + c + " => " + argv[5]);
-
-            argv[6] = trainFile;
-            argv[7] = modelFile;
-
-            t.main(argv);
-
-            svm_multiclass_predict p = new svm_multiclass_predict();
-            String[] argc = new String[3];
-            argc[0] = testFile;
-            argc[1] = modelFile;
-            argc[2] = outFile;
-            p.main(argc);
-
-            d.add(readOutput(new File(outFile)));
-            i++;
-        } // end while
+        final String[] y = set.toArray(new String[set.size()]);
+
+        // examples are parsed once and shared by all classifiers
+        final svm_node[][] trainX = parse(trainList);
+        final svm_node[][] testX = parse(testList);
+        final svm_parameter param = parameter(trainX, w);
+        logger.info(y.length + " classes, w1 => " + w);
+
+        final List<List<Double[]>> d = new ArrayList<List<Double[]>>();
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (int i = 0; i < y.length; i++) {
+            final int c = i;
+            d.add(null);
+            tasks.add(new Runnable() {
+
+                public void run() {
+                    logger.info(y[c]);
+                    svm_problem prob = problem(trainList, trainX, y[c]);
+                    String error = svm.svm_check_parameter(prob, param);
+                    if (error != null) {
+                        throw new IllegalArgumentException(error);
+                    }
+                    svm_model model = svm.svm_train(prob, param);
+
+                    // label and score of each test example
+                    List<Double[]> out = new ArrayList<Double[]>(testX.length);
+                    for (svm_node[] x : testX) {
+                        double[] res = svm.svm_predict_score(model, x);
+                        out.add(new Double[] { res[1], res[0] });
+                    }
+                    d.set(c, out);
+                }
+            });
+        } // end for i
+        svm.svm_run(tasks);
 
         PrintWriter pw = new PrintWriter(new FileWriter(root + "_result"));
         List<Double> resList = new ArrayList<Double>();
@@ -219,26 +213,6 @@ public class OVA {
         return res;
     }
 
-    private List<Double[]> readOutput(File f) throws IOException {
-        List<Double[]> list = new ArrayList<Double[]>();
-        LineNumberReader lr = new LineNumberReader(new FileReader(f));
-        String line = null;
-
-        while ((line = lr.readLine()) != null) {
-            String[] s = line.split("\t");
-            Double[] d = new Double[2];
-            d[0] = Double.parseDouble(s[0]);
-            d[1] = Double.parseDouble(s[1]);
-            list.add(d);
-			/*if (Double.parseDouble(s[0]) == 1)
-				list.add(Double.parseDouble(s[1]));
-			else
-				list.add(0.0);*/
-        }
-        return list;
-
-    }
-
     //
     class Pair {
 
@@ -252,20 +226,60 @@ public class OVA {
 
     }
 
-    //
-    private void writeProblem(List<Pair> list, String c, String name) throws IOException {
-        PrintWriter pw = new PrintWriter(new FileWriter(name));
-
+    // parses the features of the examples
+    private svm_node[][] parse(List<Pair> list) {
+        svm_node[][] x = new svm_node[list.size()][];
         for (int i = 0; i < list.size(); i++) {
-            if (c.equals(list.get(i).c)) {
-                pw.print("1");
-            } else {
-                pw.print("0");
+            StringTokenizer st = new StringTokenizer(list.get(i).e, " \t\n\r\f:");
+            int m = st.countTokens() / 2;
+            x[i] = new svm_node[m];
+            for (int j = 0; j < m; j++) {
+                x[i][j] = new svm_node();
+                x[i][j].index = Integer.parseInt(st.nextToken());
+                x[i][j].value = Double.parseDouble(st.nextToken());
             }
+        } // end for i
+        return x;
+    }
 
-            pw.println(" " + list.get(i).e);
+    // the examples of class c are positive (1), the others negative (0)
+    private svm_problem problem(List<Pair> list, svm_node[][] x, String c) {
+        svm_problem prob = new svm_problem();
+        prob.l = list.size();
+        prob.x = x;
+        prob.y = new double[prob.l];
+        for (int i = 0; i < prob.l; i++) {
+            prob.y[i] = c.equals(list.get(i).c) ? 1 : 0;
         } // end for i
-        pw.close();
+        return prob;
+    }
+
+    // svm_train -t 0 -m 2000 -w1 w
+    private svm_parameter parameter(svm_node[][] x, double w) {
+        int max_index = 0;
+        for (svm_node[] v : x) {
+            if (v.length > 0) {
+                max_index = Math.max(max_index, v[v.length - 1].index);
+            }
+        }
+
+        svm_parameter param = new svm_parameter();
+        param.svm_type = svm_parameter.C_SVC;
+        param.kernel_type = svm_parameter.LINEAR;
+        param.degree = 3;
+        param.gamma = max_index > 0 ? 1.0 / max_index : 0;
+        param.coef0 = 0;
+        param.nu = 0.5;
+        param.cache_size = 2000;
+        param.C = 1;
+        param.eps = 1e-3;
+        param.p = 0.1;
+        param.shrinking = 1;
+        param.probability = 0;
+        param.nr_weight = 1;
+        param.weight_label = new int[] { 1 };
+        param.weight = new double[] { w };
+        return param;
     }
 
     private Set<String> classes(List<Pair> list) {
@@ -303,6 +317,17 @@ public class OVA {
         //new OVA(new File(args[0]), Integer.parseInt(args[1]), args[2], Double.parseDouble(args[3]));
 
         //
-        new OVA(new File(args[0]), new File(args[1]), args[2], Double.parseDouble(args[3]));
+        ExecutorService executor = null;
+        if (args.length > 4) {
+            executor = Executors.newFixedThreadPool(Integer.parseInt(args[4]));
+            svm.svm_set_executor(executor);
+        }
+        try {
+            new OVA(new File(args[0]), new File(args[1]), args[2], Double.parseDouble(args[3]));
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
     }
 }
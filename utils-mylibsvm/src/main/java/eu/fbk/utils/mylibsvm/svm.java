@@ -3,7 +3,18 @@ package eu.fbk.utils.mylibsvm;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 
 //
 // Kernel Cache
@@ -11,10 +22,38 @@ import java.util.StringTokenizer;
 // l is the number of total data items
 // size is the cache size limit in bytes
 //
+// the entries that are not cached are computed by column,
+// split among nr_thread tasks of the common fork-join pool
+// when there are enough of them; the Solver uses the cache
+// from a single thread
+//
 class Cache {
 
-    private final int l;
+    // computes the entries of the columns of a Q matrix
+    interface Column {
+
+        // data[j] = Q[i][j] for j in [from,to)
+        void fill(int i, float[] data, int from, int to);
+    }
+
+    // minimum number of entries computed by a single task
+    static final int MIN_CHUNK = 1024;
+
+    final int l;
     private long size;
+    private final Column column;
+    private final int nr_thread;
+
+    // statistics: columns found in the cache, columns (partially) computed, kernel evaluations
+    long hits, misses, evaluations;
+
+    static Cache create(int l, svm_parameter param, Column column) {
+        long size = (long) (param.cache_size * (1 << 20));
+        if (param.cache_off_heap != 0) {
+            return new OffHeapCache(l, size, column, param.nr_thread);
+        }
+        return new Cache(l, size, column, param.nr_thread);
+    }
 
     private final class head_t {
 
@@ -26,9 +65,19 @@ class Cache {
     private final head_t[] head;
     private head_t lru_head;
 
-    Cache(int l_, long size_) {
+    // used by the subclasses that manage their own storage
+    Cache(int l_, Column column_, int nr_thread_) {
+        l = l_;
+        column = column_;
+        nr_thread = nr_thread_;
+        head = null;
+    }
+
+    Cache(int l_, long size_, Column column_, int nr_thread_) {
         l = l_;
         size = size_;
+        column = column_;
+        nr_thread = nr_thread_;
         head = new head_t[l];
         for (int i = 0; i < l; i++) {
             head[i] = new head_t();
@@ -94,6 +143,47 @@ class Cache {
         return len;
     }
 
+    // returns the column index in [0,len), computing the entries not cached
+    float[] get_column(int index, int len) {
+        float[][] data = new float[1][];
+        int start = get_data(index, data, len);
+        if (start < len) {
+            compute(index, data[0], start, len);
+        } else {
+            hits++;
+        }
+        return data[0];
+    }
+
+    // computes data[from,to) of the column index
+    final void compute(final int index, final float[] data, int from, int to) {
+        misses++;
+        evaluations += to - from;
+        int n = Math.min(nr_thread, (to - from) / MIN_CHUNK);
+        if (n < 2) {
+            column.fill(index, data, from, to);
+            return;
+        }
+
+        // the first chunk is computed by the calling thread
+        int chunk = (to - from + n - 1) / n;
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[n - 1];
+        for (int t = 1; t < n; t++) {
+            final int begin = from + t * chunk;
+            final int end = Math.min(to, begin + chunk);
+            tasks[t - 1] = ForkJoinPool.commonPool().submit(new Runnable() {
+
+                public void run() {
+                    column.fill(index, data, begin, end);
+                }
+            });
+        }
+        column.fill(index, data, from, from + chunk);
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
     void swap_index(int i, int j) {
         if (i == j) {
             return;
@@ -147,6 +237,174 @@ class Cache {
             }
         }
     }
+
+    public String toString() {
+        return "cache hits = " + hits + ", misses = " + misses + ", kernel evaluations = " + evaluations;
+    }
+}
+
+//
+// Kernel Cache stored out of the Java heap
+//
+// each cached column has a slot of l floats in a direct buffer
+// (at most 2GB each, allocated when first used) and the slots
+// are recycled in LRU order. get_column copies the column in
+// one of two arrays, alternately, as the Solver uses at most
+// two columns at a time. The memory is limited by
+// -XX:MaxDirectMemorySize instead of -Xmx
+//
+final class OffHeapCache extends Cache {
+
+    private final int[] slot;    // slot of each column, -1 if not cached
+    private final int[] len;    // [0,len) is cached
+    private final int[] prev, next;    // circular list of the cached columns, l is the head
+    private final int[] free;    // free slots
+    private int nr_free;
+    private final int nr_slot;
+    private final int slots_per_buffer;
+    private final FloatBuffer[] buffers;
+    private final float[][] out;
+    private int next_out;
+
+    OffHeapCache(int l_, long size_, Column column_, int nr_thread_) {
+        super(l_, column_, nr_thread_);
+        // cache must be large enough for two columns
+        nr_slot = (int) Math.min(l, Math.max(2, size_ / (4L * l)));
+        slots_per_buffer = Math.max(1, Integer.MAX_VALUE / 4 / l);
+        buffers = new FloatBuffer[(nr_slot + slots_per_buffer - 1) / slots_per_buffer];
+        free = new int[nr_slot];
+        for (int s = 0; s < nr_slot; s++) {
+            free[s] = nr_slot - 1 - s;
+        }
+        nr_free = nr_slot;
+        slot = new int[l];
+        Arrays.fill(slot, -1);
+        len = new int[l];
+        prev = new int[l + 1];
+        next = new int[l + 1];
+        prev[l] = next[l] = l;
+        out = new float[2][l];
+    }
+
+    private void lru_delete(int h) {
+        next[prev[h]] = next[h];
+        prev[next[h]] = prev[h];
+    }
+
+    private void lru_insert(int h) {
+        next[h] = l;
+        prev[h] = prev[l];
+        next[prev[h]] = h;
+        prev[l] = h;
+    }
+
+    // returns a free slot, evicting the least recently used column if needed
+    private int allocate() {
+        if (nr_free > 0) {
+            return free[--nr_free];
+        }
+        int old = next[l];
+        lru_delete(old);
+        int s = slot[old];
+        slot[old] = -1;
+        len[old] = 0;
+        return s;
+    }
+
+    private FloatBuffer buffer(int s) {
+        int b = s / slots_per_buffer;
+        if (buffers[b] == null) {
+            int n = Math.min(slots_per_buffer, nr_slot - b * slots_per_buffer);
+            buffers[b] = ByteBuffer.allocateDirect(n * l * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        FloatBuffer buffer = buffers[b];
+        buffer.position((s % slots_per_buffer) * l);
+        return buffer;
+    }
+
+    float[] get_column(int index, int n) {
+        float[] data = out[next_out];
+        next_out = 1 - next_out;
+
+        int s = slot[index];
+        int cached = 0;
+        if (s >= 0) {
+            lru_delete(index);
+            cached = Math.min(n, len[index]);
+            buffer(s).get(data, 0, cached);
+        } else {
+            s = allocate();
+            slot[index] = s;
+        }
+
+        if (cached < n) {
+            compute(index, data, cached, n);
+            FloatBuffer buffer = buffer(s);
+            buffer.position(buffer.position() + cached);
+            buffer.put(data, cached, n - cached);
+            len[index] = n;
+        } else {
+            hits++;
+        }
+        lru_insert(index);
+        return data;
+    }
+
+    void swap_index(int i, int j) {
+        if (i == j) {
+            return;
+        }
+
+        if (slot[i] >= 0) {
+            lru_delete(i);
+        }
+        if (slot[j] >= 0) {
+            lru_delete(j);
+        }
+        do {
+            int _ = slot[i];
+            slot[i] = slot[j];
+            slot[j] = _;
+        } while (false);
+        do {
+            int _ = len[i];
+            len[i] = len[j];
+            len[j] = _;
+        } while (false);
+        if (slot[i] >= 0) {
+            lru_insert(i);
+        }
+        if (slot[j] >= 0) {
+            lru_insert(j);
+        }
+
+        if (i > j) {
+            do {
+                int _ = i;
+                i = j;
+                j = _;
+            } while (false);
+        }
+        for (int h = next[l]; h != l; ) {
+            int h_next = next[h];
+            if (len[h] > i) {
+                if (len[h] > j) {
+                    FloatBuffer buffer = buffer(slot[h]);
+                    int offset = buffer.position();
+                    float _ = buffer.get(offset + i);
+                    buffer.put(offset + i, buffer.get(offset + j));
+                    buffer.put(offset + j, _);
+                } else {
+                    // give up
+                    lru_delete(h);
+                    free[nr_free++] = slot[h];
+                    slot[h] = -1;
+                    len[h] = 0;
+                }
+            }
+            h = h_next;
+        }
+    }
 }
 
 //
@@ -163,6 +421,8 @@ abstract class QMatrix {
     abstract float[] get_QD();
 
     abstract void swap_index(int i, int j);
+
+    abstract Cache get_cache();
 };
 
 abstract class Kernel extends QMatrix {
@@ -739,6 +999,7 @@ class Solver {
         si.upper_bound_n = Cn;
 
         logger.info("optimization finished, #iter = " + iter);
+        svm.info(Q.get_cache() + "\n");
     }
 
     // return 1 if already optimal, return 0 otherwise
@@ -1182,7 +1443,7 @@ final class Solver_NU extends Solver {
 //
 // Q matrices for various formulations
 //
-class SVC_Q extends Kernel {
+class SVC_Q extends Kernel implements Cache.Column {
 
     private final byte[] y;
     private final Cache cache;
@@ -1191,22 +1452,25 @@ class SVC_Q extends Kernel {
     SVC_Q(svm_problem prob, svm_parameter param, byte[] y_) {
         super(prob.l, prob.x, param);
         y = (byte[]) y_.clone();
-        cache = new Cache(prob.l, (long) (param.cache_size * (1 << 20)));
+        cache = Cache.create(prob.l, param, this);
         QD = new float[prob.l];
         for (int i = 0; i < prob.l; i++) {
             QD[i] = (float) kernel_function(i, i);
         }
     }
 
-    float[] get_Q(int i, int len) {
-        float[][] data = new float[1][];
-        int start, j;
-        if ((start = cache.get_data(i, data, len)) < len) {
-            for (j = start; j < len; j++) {
-                data[0][j] = (float) (y[i] * y[j] * kernel_function(i, j));
-            }
+    public void fill(int i, float[] data, int from, int to) {
+        for (int j = from; j < to; j++) {
+            data[j] = (float) (y[i] * y[j] * kernel_function(i, j));
         }
-        return data[0];
+    }
+
+    float[] get_Q(int i, int len) {
+        return cache.get_column(i, len);
+    }
+
+    Cache get_cache() {
+        return cache;
     }
 
     float[] get_QD() {
@@ -1229,29 +1493,32 @@ class SVC_Q extends Kernel {
     }
 }
 
-class ONE_CLASS_Q extends Kernel {
+class ONE_CLASS_Q extends Kernel implements Cache.Column {
 
     private final Cache cache;
     private final float[] QD;
 
     ONE_CLASS_Q(svm_problem prob, svm_parameter param) {
         super(prob.l, prob.x, param);
-        cache = new Cache(prob.l, (long) (param.cache_size * (1 << 20)));
+        cache = Cache.create(prob.l, param, this);
         QD = new float[prob.l];
         for (int i = 0; i < prob.l; i++) {
             QD[i] = (float) kernel_function(i, i);
         }
     }
 
-    float[] get_Q(int i, int len) {
-        float[][] data = new float[1][];
-        int start, j;
-        if ((start = cache.get_data(i, data, len)) < len) {
-            for (j = start; j < len; j++) {
-                data[0][j] = (float) kernel_function(i, j);
-            }
+    public void fill(int i, float[] data, int from, int to) {
+        for (int j = from; j < to; j++) {
+            data[j] = (float) kernel_function(i, j);
         }
-        return data[0];
+    }
+
+    float[] get_Q(int i, int len) {
+        return cache.get_column(i, len);
+    }
+
+    Cache get_cache() {
+        return cache;
     }
 
     float[] get_QD() {
@@ -1269,7 +1536,7 @@ class ONE_CLASS_Q extends Kernel {
     }
 }
 
-class SVR_Q extends Kernel {
+class SVR_Q extends Kernel implements Cache.Column {
 
     private final int l;
     private final Cache cache;
@@ -1282,7 +1549,7 @@ class SVR_Q extends Kernel {
     SVR_Q(svm_problem prob, svm_parameter param) {
         super(prob.l, prob.x, param);
         l = prob.l;
-        cache = new Cache(l, (long) (param.cache_size * (1 << 20)));
+        cache = Cache.create(l, param, this);
         QD = new float[2 * l];
         sign = new byte[2 * l];
         index = new int[2 * l];
@@ -1316,25 +1583,30 @@ class SVR_Q extends Kernel {
         } while (false);
     }
 
+    public void fill(int i, float[] data, int from, int to) {
+        for (int j = from; j < to; j++) {
+            data[j] = (float) kernel_function(i, j);
+        }
+    }
+
     float[] get_Q(int i, int len) {
-        float[][] data = new float[1][];
         int j, real_i = index[i];
-        if (cache.get_data(real_i, data, l) < l) {
-            for (j = 0; j < l; j++) {
-                data[0][j] = (float) kernel_function(real_i, j);
-            }
-        }
+        float[] data = cache.get_column(real_i, l);
 
         // reorder and copy
         float buf[] = buffer[next_buffer];
         next_buffer = 1 - next_buffer;
         byte si = sign[i];
         for (j = 0; j < len; j++) {
-            buf[j] = (float) si * sign[j] * data[0][index[j]];
+            buf[j] = (float) si * sign[j] * data[index[j]];
         }
         return buf;
     }
 
+    Cache get_cache() {
+        return cache;
+    }
+
     float[] get_QD() {
         return QD;
     }
@@ -1367,6 +1639,76 @@ public class svm {
         }
     };
 
+    // executor used to train independent binary problems concurrently (null = sequential)
+    private static volatile ExecutorService executor = null;
+
+    // set in the threads that are training a binary problem for svm_run
+    private static final ThreadLocal<Boolean> in_task = new ThreadLocal<Boolean>();
+
+    /**
+     * Sets the executor used by <code>svm_train</code> to train the
+     * one-vs-one decision functions concurrently, or null to train
+     * them sequentially (default). Each binary problem allocates its
+     * own kernel cache of <code>param.cache_size</code> MB.
+     */
+    public static void svm_set_executor(ExecutorService executor) {
+        svm.executor = executor;
+    }
+
+    public static ExecutorService svm_get_executor() {
+        return executor;
+    }
+
+    // runs the tasks on the executor and waits for their completion; tasks
+    // submitted from a task run in the calling thread, so that a bounded
+    // executor cannot deadlock
+    static void svm_run(List<Runnable> tasks) {
+        ExecutorService executor = svm.executor;
+        if (executor == null || tasks.size() < 2 || in_task.get() != null) {
+            for (Runnable task : tasks) {
+                task.run();
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+        for (final Runnable task : tasks) {
+            futures.add(executor.submit(new Runnable() {
+
+                public void run() {
+                    in_task.set(Boolean.TRUE);
+                    try {
+                        task.run();
+                    } finally {
+                        in_task.remove();
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
     static void info(String s) {
         svm_print_string.print(s);
     }
@@ -2086,33 +2428,58 @@ public class svm {
             }
 
             logger.debug("building problems...");
+            final svm_node[][] fx = x;
+            final svm_parameter fparam = param;
+            final int[] fstart = start, fcount = count;
+            final double[] fweighted_C = weighted_C;
+            final decision_function[] ff = f;
+            final double[] fprobA = probA, fprobB = probB;
+            List<Runnable> tasks = new ArrayList<Runnable>(f.length);
             int p = 0;
             for (i = 0; i < nr_class; i++) {
                 for (int j = i + 1; j < nr_class; j++) {
-                    svm_problem sub_prob = new svm_problem();
+                    final int fi = i, fj = j, fp = p++;
+                    tasks.add(new Runnable() {
+
+                        public void run() {
+                            svm_problem sub_prob = new svm_problem();
+                            int si = fstart[fi], sj = fstart[fj];
+                            int ci = fcount[fi], cj = fcount[fj];
+                            sub_prob.l = ci + cj;
+                            sub_prob.x = new svm_node[sub_prob.l][];
+                            sub_prob.y = new double[sub_prob.l];
+                            int k;
+                            for (k = 0; k < ci; k++) {
+                                sub_prob.x[k] = fx[si + k];
+                                sub_prob.y[k] = +1;
+                            }
+                            for (k = 0; k < cj; k++) {
+                                sub_prob.x[ci + k] = fx[sj + k];
+                                sub_prob.y[ci + k] = -1;
+                            }
+
+                            if (fparam.probability == 1) {
+                                double[] probAB = new double[2];
+                                svm_binary_svc_probability(sub_prob, fparam, fweighted_C[fi], fweighted_C[fj], probAB);
+                                fprobA[fp] = probAB[0];
+                                fprobB[fp] = probAB[1];
+                            }
+
+                            ff[fp] = svm_train_one(sub_prob, fparam, fweighted_C[fi], fweighted_C[fj]);
+                        }
+                    });
+                } // end for j
+            }
+
+            // the decision functions are independent, they can be trained in any order
+            svm_run(tasks);
+
+            p = 0;
+            for (i = 0; i < nr_class; i++) {
+                for (int j = i + 1; j < nr_class; j++) {
                     int si = start[i], sj = start[j];
                     int ci = count[i], cj = count[j];
-                    sub_prob.l = ci + cj;
-                    sub_prob.x = new svm_node[sub_prob.l][];
-                    sub_prob.y = new double[sub_prob.l];
                     int k;
-                    for (k = 0; k < ci; k++) {
-                        sub_prob.x[k] = x[si + k];
-                        sub_prob.y[k] = +1;
-                    }
-                    for (k = 0; k < cj; k++) {
-                        sub_prob.x[ci + k] = x[sj + k];
-                        sub_prob.y[ci + k] = -1;
-                    }
-
-                    if (param.probability == 1) {
-                        double[] probAB = new double[2];
-                        svm_binary_svc_probability(sub_prob, param, weighted_C[i], weighted_C[j], probAB);
-                        probA[p] = probAB[0];
-                        probB[p] = probAB[1];
-                    }
-
-                    f[p] = svm_train_one(sub_prob, param, weighted_C[i], weighted_C[j]);
                     for (k = 0; k < ci; k++) {
                         if (!nonzero[si + k] && Math.abs(f[p].alpha[k]) > 0) {
                             nonzero[si + k] = true;
@@ -2124,7 +2491,7 @@ public class svm {
                         }
                     }
                     ++p;
-                } // end for j
+                }
             }
 
             // build output
@@ -2367,8 +2734,25 @@ public class svm {
         }
     }
 
+    // precomputes the primal weights of a model with linear kernel
+    static void svm_prepare_model(svm_model model) {
+        if (model != null && model.param.kernel_type == svm_parameter.LINEAR) {
+            model.linear = new LinearWeights(model);
+        }
+    }
+
     public static void svm_predict_values(svm_model model, svm_node[] x, double[] dec_values) {
-        if (model.param.svm_type == svm_parameter.ONE_CLASS ||
+        if (model.param.kernel_type == svm_parameter.LINEAR) {
+            LinearWeights linear = model.linear;
+            if (linear == null) {
+                // the model was trained or deserialized, not loaded
+                linear = new LinearWeights(model);
+                model.linear = linear;
+            }
+            for (int p = 0; p < linear.size(); p++) {
+                dec_values[p] = linear.dot(p, x) - model.rho[p];
+            }
+        } else if (model.param.svm_type == svm_parameter.ONE_CLASS ||
                 model.param.svm_type == svm_parameter.EPSILON_SVR ||
                 model.param.svm_type == svm_parameter.NU_SVR) {
             double[] sv_coef = model.sv_coef[0];
@@ -2383,10 +2767,6 @@ public class svm {
             int nr_class = model.nr_class;
             int l = model.l;
 
-            //
-            // CHECK IF IT'S POSSIBLE TO OPTIMIZE
-            // WHEN THE KERNEL IS LINEAR
-            //
             double[] kvalue = new double[l];
             for (i = 0; i < l; i++) {
                 kvalue[i] = Kernel.k_function(x, model.SV[i], model.param);
@@ -2987,6 +3367,7 @@ public class svm {
         }
 
         fp.close();
+        svm_prepare_model(model);
         return model;
     }
 
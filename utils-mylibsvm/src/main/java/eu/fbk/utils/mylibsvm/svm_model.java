@@ -23,6 +23,8 @@ public class svm_model implements java.io.Serializable {
     int[] nSV;        // number of SVs for each class (nSV[k])
     // nSV[0] + nSV[1] + ... + nSV[k-1] = l
 
+    transient LinearWeights linear;    // primal weights, for linear kernel only
+
     //
     public String toString() {
         StringBuilder sb = new StringBuilder();
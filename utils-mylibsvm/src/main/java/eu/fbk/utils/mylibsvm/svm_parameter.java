@@ -36,6 +36,8 @@ public class svm_parameter implements Cloneable, java.io.Serializable {
     public double p;    // for EPSILON_SVR
     public int shrinking;    // use the shrinking heuristics
     public int probability; // do probability estimates
+    public int nr_thread;    // threads computing a kernel column (0 or 1 = sequential)
+    public int cache_off_heap;    // keep the kernel cache out of the Java heap
 
     public Object clone() {
         try {
@@ -66,6 +68,10 @@ public class svm_parameter implements Cloneable, java.io.Serializable {
         sb.append(p);
         sb.append("\nshrinking = ");
         sb.append(shrinking);
+        sb.append("\nnr_thread = ");
+        sb.append(nr_thread);
+        sb.append("\ncache_off_heap = ");
+        sb.append(cache_off_heap);
         return sb.toString();
     }
 }
@@ -9,6 +9,8 @@ import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class svm_train {
 
@@ -28,6 +30,7 @@ public class svm_train {
     private String error_msg;
     private int cross_validation;
     private int nr_fold;
+    private int nr_thread = 1;    // set by parse_command_line
 
     private static void exit_with_help() {
         //java eu.fbk.utils.mylibsvm.svm_train
@@ -58,6 +61,9 @@ public class svm_train {
                         + "-b probability_estimates : whether to train a SVC or SVR model for probability estimates, 0 or 1 (default 0)\n"
                         + "-wi weight : set the parameter C of class i to weight*C, for C-SVC (default 1)\n"
                         + "-v n : n-fold cross validation mode\n"
+                        + "-j threads : number of binary problems trained concurrently (default 1)\n"
+                        + "-k threads : number of threads computing a kernel column (default 1)\n"
+                        + "-o off_heap : whether to keep the kernel cache out of the Java heap, 0 or 1 (default 0)\n"
                         + "-q : quiet mode (no outputs)\n"
         );
         System.exit(1);
@@ -226,11 +232,24 @@ public class svm_train {
             System.exit(1);
         }
 
-        if (cross_validation != 0) {
-            do_cross_validation();
-        } else {
-            model = svm.svm_train(prob, param);
-            svm.svm_save_model(model_file_name, model);
+        ExecutorService executor = null;
+        if (nr_thread > 1) {
+            executor = Executors.newFixedThreadPool(nr_thread);
+            svm.svm_set_executor(executor);
+        }
+
+        try {
+            if (cross_validation != 0) {
+                do_cross_validation();
+            } else {
+                model = svm.svm_train(prob, param);
+                svm.svm_save_model(model_file_name, model);
+            }
+        } finally {
+            if (executor != null) {
+                svm.svm_set_executor(null);
+                executor.shutdown();
+            }
         }
     }
 
@@ -277,6 +296,8 @@ public class svm_train {
         param.p = 0.1;
         param.shrinking = 1;
         param.probability = 0;
+        param.nr_thread = 1;
+        param.cache_off_heap = 0;
         param.nr_weight = 0;
         param.weight_label = new int[0];
         param.weight = new double[0];
@@ -343,6 +364,15 @@ public class svm_train {
                     exit_with_help();
                 }
                 break;
+            case 'j':
+                nr_thread = atoi(argv[i]);
+                break;
+            case 'k':
+                param.nr_thread = atoi(argv[i]);
+                break;
+            case 'o':
+                param.cache_off_heap = atoi(argv[i]);
+                break;
             case 'w':
                 ++param.nr_weight;
             {
@@ -4,7 +4,9 @@ import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.*;
+import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -19,24 +21,46 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public abstract class Classifier {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Classifier.class);
 
+    // binary model format, stored in entry 'model.bin'
+    private static final String BINARY_ENTRY = "model.bin";
+
+    private static final int BINARY_MAGIC = 0x46424B4D; // "FBKM"
+
+    private static final int BINARY_VERSION = 1;
+
+    // number of vectors taken at a time by each thread in batch predictions
+    private static final int BATCH_SIZE = 256;
+
     private final Parameters parameters;
 
     private final String modelHash;
 
+    // used to encode Vector objects, reusing buffers
+    private final ThreadLocal<IndexedVector.Builder> builders;
+
     private Classifier(final Parameters parameters, final String modelHash) {
         this.parameters = parameters;
         this.modelHash = modelHash;
+        this.builders = ThreadLocal.withInitial(() -> new IndexedVector.Builder(getFeatures()));
     }
 
     public Parameters getParameters() {
@@ -57,20 +81,134 @@ public abstract class Classifier {
             throw new IllegalArgumentException(
                     "Probabilities not supported by algorithm " + getParameters().getAlgorithm());
         }
-        return doPredict(withProbabilities, vectors);
+        final ImmutableList.Builder<LabelledVector> builder = ImmutableList.builder();
+        doPredict(withProbabilities, vectors, builder::add);
+        return builder.build();
     }
 
-    abstract LabelledVector doPredict(final boolean withProbabilities, final Vector vector);
+    /**
+     * Predicts the labels of the supplied vectors using all the available cores, streaming the
+     * results to the consumer. Vectors are read from the iterable as needed, in batches; the
+     * consumer is called by one thread at a time, in the same order of the input vectors.
+     */
+    public final void predict(final boolean withProbabilities,
+            final Iterable<? extends Vector> vectors,
+            final Consumer<? super LabelledVector> consumer) {
+        if (withProbabilities && !getParameters().getAlgorithm().supportsProbabilities()) {
+            throw new IllegalArgumentException(
+                    "Probabilities not supported by algorithm " + getParameters().getAlgorithm());
+        }
+        doPredict(withProbabilities, vectors, consumer);
+    }
 
-    List<LabelledVector> doPredict(final boolean withProbabilities,
-            final Iterable<? extends Vector> vectors) {
+    /**
+     * Returns a new builder of vectors whose features are resolved against the model of this
+     * classifier. The builder should be reused for multiple vectors.
+     */
+    public final IndexedVector.Builder newVector() {
+        return new IndexedVector.Builder(getFeatures());
+    }
 
-        // simple implementation; could be overridden
-        final ImmutableList.Builder<LabelledVector> builder = ImmutableList.builder();
-        for (final Vector vector : vectors) {
-            builder.add(doPredict(withProbabilities, vector));
+    /**
+     * Predicts the label of a vector built with {@link #newVector()}. If not null, the supplied
+     * array is filled with the probability of each label.
+     */
+    public final int predict(final IndexedVector vector, @Nullable final float[] probabilities) {
+        Preconditions.checkArgument(vector.table == getFeatures(),
+                "Vector not built for this classifier");
+        if (probabilities != null) {
+            if (!getParameters().getAlgorithm().supportsProbabilities()) {
+                throw new IllegalArgumentException("Probabilities not supported by algorithm "
+                        + getParameters().getAlgorithm());
+            }
+            Preconditions.checkArgument(probabilities.length >= this.parameters.getNumLabels(),
+                    "Expected at least %s probabilities", this.parameters.getNumLabels());
         }
-        return builder.build();
+        return doPredict(vector, probabilities);
+    }
+
+    LabelledVector doPredict(final boolean withProbabilities, final Vector vector) {
+        final IndexedVector indexedVector = this.builders.get().set(vector).build();
+        if (withProbabilities) {
+            final float[] probabilities = new float[this.parameters.getNumLabels()];
+            final int label = doPredict(indexedVector, probabilities);
+            return vector.label(label, probabilities);
+        } else {
+            return vector.label(doPredict(indexedVector, null));
+        }
+    }
+
+    abstract int doPredict(IndexedVector vector, @Nullable float[] probabilities);
+
+    private void doPredict(final boolean withProbabilities,
+            final Iterable<? extends Vector> vectors,
+            final Consumer<? super LabelledVector> consumer) {
+
+        // Predict small collections in the calling thread
+        if (vectors instanceof Collection<?> && ((Collection<?>) vectors).size() <= BATCH_SIZE) {
+            for (final Vector vector : vectors) {
+                consumer.accept(doPredict(withProbabilities, vector));
+            }
+            return;
+        }
+
+        // Otherwise, each thread repeatedly takes a batch, predicts it and waits for its turn
+        // to deliver the results; counters are the numbers of batches taken and delivered
+        final Iterator<? extends Vector> iterator = vectors.iterator();
+        final int[] counters = new int[2];
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final List<Runnable> runnables = Lists.newArrayList();
+        for (int i = 0; i < Environment.getCores(); ++i) {
+            runnables.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Vector[] batch = new Vector[BATCH_SIZE];
+                    final LabelledVector[] results = new LabelledVector[BATCH_SIZE];
+                    try {
+                        while (true) {
+                            int size = 0;
+                            final int sequence;
+                            synchronized (iterator) {
+                                while (size < BATCH_SIZE && iterator.hasNext()) {
+                                    batch[size++] = iterator.next();
+                                }
+                                sequence = counters[0]++;
+                            }
+                            if (size == 0) {
+                                return;
+                            }
+                            for (int j = 0; j < size; ++j) {
+                                results[j] = doPredict(withProbabilities, batch[j]);
+                            }
+                            synchronized (counters) {
+                                while (counters[1] != sequence) {
+                                    if (failed.get()) {
+                                        return;
+                                    }
+                                    counters.wait();
+                                }
+                                for (int j = 0; j < size; ++j) {
+                                    consumer.accept(results[j]);
+                                }
+                                ++counters[1];
+                                counters.notifyAll();
+                            }
+                        }
+                    } catch (final Throwable ex) {
+                        // wake up threads waiting for the results of this one
+                        failed.set(true);
+                        synchronized (counters) {
+                            counters.notifyAll();
+                        }
+                        Throwables.throwIfUnchecked(ex);
+                        throw new RuntimeException(ex);
+                    }
+                }
+
+            });
+        }
+        Environment.run(runnables);
     }
 
     @Override
@@ -106,18 +244,35 @@ public abstract class Classifier {
                 properties.store(writer, "");
             }
 
-            // Store custom entries
-            doWrite(p);
+            // Store the model in entry 'model.bin': header, feature table, model data
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(p.resolve(BINARY_ENTRY))))) {
+                out.writeInt(BINARY_MAGIC);
+                out.writeInt(BINARY_VERSION);
+                out.writeInt(this.modelHash.length());
+                out.writeChars(this.modelHash);
+                FeatureTable.pad(out);
+                getFeatures().write(out);
+                doWrite(out);
+            }
 
         } finally {
             Util.closeVFS(p);
         }
     }
 
-    void doWrite(final Path path) throws IOException {
-        // can be overridden by subclasses
+    abstract FeatureTable getFeatures();
+
+    // trains classifiers on a training set encoded once, possibly warm-starting from a
+    // previous classifier trained on the same set
+    private interface Trainer {
+
+        Classifier train(Parameters parameters, @Nullable Classifier previous) throws IOException;
+
     }
 
+    abstract void doWrite(DataOutputStream out) throws IOException;
+
     public static Classifier readFrom(final Path path) throws IOException {
 
         final Path p = Util.openVFS(path, false);
@@ -129,26 +284,59 @@ public abstract class Classifier {
             }
             final Parameters parameters = Parameters.forProperties(properties, null);
 
-            // Select the implementation class and delegate to its doRead() static method
+            // Select the implementation class and delegate to its doRead() static method,
+            // using the binary format if available or the old text layout otherwise
             final Class<? extends Classifier> implementationClass = implementationFor(parameters);
-            if (implementationClass.equals(LibLinearClassifier.class)) {
-                return LibLinearClassifier.doRead(parameters, p);
-            } else if (implementationClass.equals(LibSvmClassifier.class)) {
-                return LibSvmClassifier.doRead(parameters, p);
+            final Path binaryPath = p.resolve(BINARY_ENTRY);
+            if (Files.exists(binaryPath)) {
+                final ByteBuffer buffer = map(binaryPath);
+                if (buffer.getInt() != BINARY_MAGIC) {
+                    throw new IOException("Not a binary model: " + binaryPath);
+                }
+                final int version = buffer.getInt();
+                if (version != BINARY_VERSION) {
+                    throw new IOException("Unsupported binary model version " + version);
+                }
+                final char[] hash = new char[buffer.getInt()];
+                buffer.asCharBuffer().get(hash);
+                buffer.position(buffer.position() + 2 * hash.length);
+                FeatureTable.align(buffer);
+                final String modelHash = new String(hash);
+                final FeatureTable features = FeatureTable.read(buffer);
+                if (implementationClass.equals(LibLinearClassifier.class)) {
+                    return LibLinearClassifier.doRead(parameters, modelHash, features, buffer);
+                } else if (implementationClass.equals(LibSvmClassifier.class)) {
+                    return LibSvmClassifier.doRead(parameters, modelHash, features, buffer);
+                }
             } else {
-                throw new IllegalArgumentException(
-                        "No suitable implementation for parameters " + parameters);
+                if (implementationClass.equals(LibLinearClassifier.class)) {
+                    return LibLinearClassifier.doRead(parameters, p);
+                } else if (implementationClass.equals(LibSvmClassifier.class)) {
+                    return LibSvmClassifier.doRead(parameters, p);
+                }
             }
+            throw new IllegalArgumentException(
+                    "No suitable implementation for parameters " + parameters);
 
         } finally {
             Util.closeVFS(p);
         }
     }
 
+    private static ByteBuffer map(final Path path) throws IOException {
+        if (path.getFileSystem() == FileSystems.getDefault()) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        // e.g., entry of a zip file, which cannot be mapped
+        return ByteBuffer.wrap(Files.readAllBytes(path));
+    }
+
     public static Classifier train(final Parameters parameters,
             final Iterable<LabelledVector> trainingSet) throws IOException {
 
-        Preconditions.checkArgument(Iterables.size(trainingSet) > 0, "No training examples");
+        Preconditions.checkArgument(!Iterables.isEmpty(trainingSet), "No training examples");
 
         final Class<? extends Classifier> implementationClass = implementationFor(parameters);
         if (implementationClass.equals(LibLinearClassifier.class)) {
@@ -165,46 +353,169 @@ public abstract class Classifier {
             final Iterable<LabelledVector> trainingSet,
             final Comparator<ConfusionMatrix> comparator, final int maxVectors)
             throws IOException {
+        return train(parametersGrid, trainingSet, comparator, maxVectors, false);
+    }
 
-        Preconditions.checkArgument(Iterables.size(trainingSet) > 0, "No training examples");
+    /**
+     * Selects the best parameters of the grid by cross-validation and trains a classifier with
+     * them on the whole training set. The training set of each fold is encoded only once;
+     * parameters differing only in C are evaluated in order of increasing C if the trainer can
+     * warm-start from the previous solution (LIBLINEAR primal solvers), otherwise each
+     * parameters combination and fold is evaluated in a separate task. With successive halving,
+     * all the parameters are evaluated on the first fold, and only the best half of them moves
+     * on to the next fold. Large training sets are evaluated one fold at a time, so that only
+     * the encoded training set of a fold is kept in memory.
+     */
+    public static Classifier train(final Iterable<Parameters> parametersGrid,
+            final Iterable<LabelledVector> trainingSet,
+            final Comparator<ConfusionMatrix> comparator, final int maxVectors,
+            final boolean successiveHalving) throws IOException {
 
-        final List<List<LabelledVector>> partitions = Vector.split(trainingSet, 3, maxVectors);
-        final List<Parameters> parametersList = ImmutableList.copyOf(parametersGrid);
-        final Map<ConfusionMatrix, Parameters> map = Maps.newHashMap();
+        Preconditions.checkArgument(!Iterables.isEmpty(trainingSet), "No training examples");
 
-        final AtomicInteger index = new AtomicInteger(0);
-        final List<ListenableFuture<?>> futures = Lists.newArrayList();
-        final ListeningExecutorService executor = MoreExecutors
-                .listeningDecorator(Environment.getPool());
-        for (int i = 0; i < Environment.getCores() / 2; ++i) {
-            futures.add(executor.submit(new Callable<Object>() {
+        final List<? extends Iterable<LabelledVector>> partitions = split(trainingSet, 3,
+                maxVectors);
+        final List<Parameters> parametersList = ImmutableList.copyOf(parametersGrid);
+        final int numConfigurations = parametersList.size();
+        final int numFolds = partitions.size();
+        int size = 0;
+        for (final Iterable<LabelledVector> partition : partitions) {
+            size += Iterables.size(partition);
+        }
+        final boolean foldByFold = successiveHalving || size > 200000;
+
+        // Group parameters differing only in C if warm start is possible, sorting each group by
+        // increasing C; other parameters form a group on their own
+        final Map<Object, List<Integer>> groups = Maps.newLinkedHashMap();
+        for (int i = 0; i < numConfigurations; ++i) {
+            final Parameters p = parametersList.get(i);
+            final Object key = !canWarmStart(p) ? i
+                    : new Parameters(p.algorithm, p.numLabels, p.weights, 1.0f, p.bias, p.dual,
+                            p.gamma, p.coeff, p.degree);
+            List<Integer> group = groups.get(key);
+            if (group == null) {
+                group = Lists.newArrayList();
+                groups.put(key, group);
+            }
+            group.add(i);
+        }
+        for (final List<Integer> group : groups.values()) {
+            Collections.sort(group, new Comparator<Integer>() {
 
                 @Override
-                public Object call() throws IOException {
-                    while (true) {
-                        final int i = index.getAndIncrement();
-                        if (i >= parametersList.size()) {
-                            return null;
-                        }
-                        final Parameters parameters = parametersList.get(i);
-                        final ConfusionMatrix matrix = crossValidate(parameters, partitions);
-                        synchronized (map) {
-                            map.put(matrix, parameters);
-                        }
-                        LOGGER.debug("Performances for parameters combination {}/{} - {}:\n{}",
-                                i + 1, parametersList.size(), parameters, matrix);
+                public int compare(final Integer left, final Integer right) {
+                    return Float.compare(parametersList.get(left).c,
+                            parametersList.get(right).c);
+                }
+
+            });
+        }
+
+        // Evaluate parameters fold by fold (successive halving, large training sets) or on all
+        // the folds at once, running a task for each chain of parameters and fold
+        final ConfusionMatrix[] matrices = new ConfusionMatrix[numConfigurations];
+        final long[] times = new long[numConfigurations];
+        final int[] numEvaluatedFolds = new int[numConfigurations];
+        final Set<Integer> alive = Sets.newHashSet();
+        for (int i = 0; i < numConfigurations; ++i) {
+            alive.add(i);
+        }
+        int fold = 0;
+        while (fold < numFolds) {
+            final int numRungFolds = foldByFold ? 1 : numFolds;
+            final List<List<Integer>> chains = Lists.newArrayList();
+            for (final List<Integer> group : groups.values()) {
+                final List<Integer> path = Lists.newArrayList();
+                for (final Integer index : group) {
+                    if (alive.contains(index)) {
+                        path.add(index);
                     }
                 }
+                if (!path.isEmpty()) {
+                    chains.add(path);
+                }
+            }
+            splitChains(chains, Environment.getCores() / numRungFolds);
+            final List<Runnable> runnables = Lists.newArrayList();
+            for (int i = fold; i < fold + numRungFolds; ++i) {
+                final Map<Class<?>, Trainer> trainers = trainersFor(parametersList, alive,
+                        partitions, i);
+                final Iterable<LabelledVector> testSet = partitions.get(i);
+                for (final List<Integer> chain : chains) {
+                    final Trainer trainer = trainers
+                            .get(implementationFor(parametersList.get(chain.get(0))));
+                    runnables.add(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            Classifier previous = null;
+                            for (final Integer index : chain) {
+                                final long ts = System.nanoTime();
+                                final Parameters parameters = parametersList.get(index);
+                                final Classifier classifier;
+                                try {
+                                    classifier = trainer.train(parameters, previous);
+                                } catch (final IOException ex) {
+                                    throw new UncheckedIOException(ex);
+                                }
+                                final ConfusionMatrix matrix = LabelledVector.evaluate(testSet,
+                                        classifier.predict(false, testSet),
+                                        parameters.getNumLabels());
+                                previous = classifier;
+                                synchronized (matrices) {
+                                    matrices[index] = matrices[index] == null ? matrix
+                                            : ConfusionMatrix.sum(ImmutableList.of(
+                                                    matrices[index], matrix));
+                                    times[index] += System.nanoTime() - ts;
+                                    ++numEvaluatedFolds[index];
+                                }
+                            }
+                        }
 
-            }));
+                    });
+                }
+            }
+            try {
+                Environment.run(runnables);
+            } catch (final UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+            fold += numRungFolds;
+
+            // Keep the best half of the parameters for the next fold
+            if (successiveHalving && fold < numFolds && alive.size() > 1) {
+                final List<Integer> ranking = Lists.newArrayList(alive);
+                Collections.sort(ranking, new Comparator<Integer>() {
+
+                    @Override
+                    public int compare(final Integer left, final Integer right) {
+                        return comparator.compare(matrices[left], matrices[right]);
+                    }
+
+                });
+                alive.retainAll(ranking.subList(0, (ranking.size() + 1) / 2));
+            }
         }
-        Futures.getChecked(Futures.allAsList(futures), IOException.class);
 
-        final ConfusionMatrix bestMatrix = Ordering.from(comparator).min(map.keySet());
-        final Parameters bestParameters = map.get(bestMatrix);
+        // Log performances and timing of each parameters combination
+        for (int i = 0; i < numConfigurations; ++i) {
+            LOGGER.debug("Performances for parameters combination {}/{} - {} ({} folds, {} ms)"
+                    + ":\n{}", i + 1, numConfigurations, parametersList.get(i),
+                    numEvaluatedFolds[i], times[i] / 1000000, matrices[i]);
+        }
+
+        // Train a classifier with the best parameters, among the ones evaluated on all folds
+        Integer best = null;
+        for (final Integer index : alive) {
+            if (best == null || comparator.compare(matrices[index], matrices[best]) < 0) {
+                best = index;
+            }
+        }
+        final Parameters bestParameters = parametersList.get(best);
         LOGGER.debug("Best parameter combination: {}", bestParameters);
         final Classifier bestClassifier = train(bestParameters,
-                Ordering.natural().immutableSortedCopy(trainingSet));
+                trainingSet instanceof VectorStore ? trainingSet
+                        : Ordering.natural().immutableSortedCopy(trainingSet));
         return bestClassifier;
     }
 
@@ -229,8 +540,17 @@ public abstract class Classifier {
             @Nullable Map<String, Integer> results, final int maxVectors) throws IOException {
 
         Preconditions.checkArgument(numPartitions >= 2);
-        Preconditions.checkArgument(Iterables.size(trainingSet) > 0, "No training examples");
-        return crossValidate(parameters, Vector.split(trainingSet, numPartitions, maxVectors), results);
+        Preconditions.checkArgument(!Iterables.isEmpty(trainingSet), "No training examples");
+        return crossValidate(parameters, split(trainingSet, numPartitions, maxVectors), results);
+    }
+
+    // stores are split on disk, other vectors are sorted and split in memory
+    private static List<? extends Iterable<LabelledVector>> split(
+            final Iterable<LabelledVector> vectors, final int numPartitions, final int maxVectors) {
+        if (vectors instanceof VectorStore) {
+            return ((VectorStore) vectors).split(numPartitions, maxVectors);
+        }
+        return Vector.split(vectors, numPartitions, maxVectors);
     }
 
     public static ConfusionMatrix crossValidate(final Parameters parameters,
@@ -260,13 +580,15 @@ public abstract class Classifier {
                 @Override
                 public ConfusionMatrix call() throws IOException {
                     final Iterable<LabelledVector> testSet = partitionList.get(index);
-                    final List<LabelledVector> trainingSet = Lists.newArrayList();
-
+                    final List<Iterable<LabelledVector>> trainingPartitions = Lists
+                            .newArrayList();
                     for (int j = 0; j < partitionList.size(); ++j) {
                         if (j != index) {
-                            Iterables.addAll(trainingSet, partitionList.get(j));
+                            trainingPartitions.add(partitionList.get(j));
                         }
                     }
+                    final Iterable<LabelledVector> trainingSet = Iterables
+                            .concat(trainingPartitions);
                     final Classifier classifier = train(parameters, trainingSet);
                     final List<LabelledVector> predictedSet = classifier.predict(false, testSet);
                     if (results != null) {
@@ -290,6 +612,79 @@ public abstract class Classifier {
                 .sum(Futures.getChecked(Futures.allAsList(futures), IOException.class));
     }
 
+    // encodes the training set of the fold once for each implementation of the parameters
+    private static Map<Class<?>, Trainer> trainersFor(final List<Parameters> parametersList,
+            final Set<Integer> indexes,
+            final List<? extends Iterable<LabelledVector>> partitions, final int fold) {
+        final List<Iterable<LabelledVector>> foldPartitions = Lists.newArrayList();
+        for (int i = 0; i < partitions.size(); ++i) {
+            if (i != fold) {
+                foldPartitions.add(partitions.get(i));
+            }
+        }
+        final Iterable<LabelledVector> foldSet = Iterables.concat(foldPartitions);
+        final Map<Class<?>, Trainer> trainers = Maps.newHashMap();
+        for (final Integer index : indexes) {
+            final Parameters parameters = parametersList.get(index);
+            final Class<? extends Classifier> implementationClass = implementationFor(parameters);
+            if (!trainers.containsKey(implementationClass)) {
+                trainers.put(implementationClass, trainerFor(parameters, foldSet));
+            }
+        }
+        return trainers;
+    }
+
+    // splits chains of warm-started parameters so that there are at least numTasks chains,
+    // trading some warm starts for parallelism
+    private static void splitChains(final List<List<Integer>> chains, final int numTasks) {
+        final int numChains = chains.size();
+        final int numSegments = Math.max(1, (numTasks + numChains - 1) / Math.max(1, numChains));
+        for (int i = 0; i < numChains; ++i) {
+            final List<Integer> chain = chains.get(i);
+            final int segments = Math.min(chain.size(), numSegments);
+            for (int j = 1; j < segments; ++j) {
+                chains.add(chain.subList(j * chain.size() / segments,
+                        (j + 1) * chain.size() / segments));
+            }
+            chains.set(i, chain.subList(0, chain.size() / segments));
+        }
+    }
+
+    // whether the trainer for the parameters warm-starts from the previous classifier: only the
+    // Java LIBLINEAR trainer does, and LIBLINEAR supports it only for primal L2-regularized
+    // solvers
+    private static boolean canWarmStart(final Parameters parameters) {
+        if (implementationFor(parameters) != LibLinearClassifier.class
+                || LibLinearClassifier.NATIVE_LIB_AVAILABLE) {
+            return false;
+        }
+        final SolverType solver = LibLinearClassifier.encodeParameters(parameters)
+                .getSolverType();
+        return solver == SolverType.L2R_LR || solver == SolverType.L2R_L2LOSS_SVC;
+    }
+
+    private static Trainer trainerFor(final Parameters parameters,
+            final Iterable<LabelledVector> trainingSet) {
+        final Class<? extends Classifier> implementationClass = implementationFor(parameters);
+        if (implementationClass.equals(LibLinearClassifier.class)
+                && !LibLinearClassifier.NATIVE_LIB_AVAILABLE) {
+            return new LibLinearClassifier.JavaTrainer(trainingSet);
+        } else if (implementationClass.equals(LibSvmClassifier.class)
+                && !LibSvmClassifier.NATIVE_LIB_AVAILABLE) {
+            return new LibSvmClassifier.JavaTrainer(trainingSet);
+        }
+        // native tools read the training set from a file: nothing to reuse
+        return new Trainer() {
+
+            @Override
+            public Classifier train(final Parameters parameters,
+                    @Nullable final Classifier previous) throws IOException {
+                return Classifier.train(parameters, trainingSet);
+            }
+
+        };
+    }
+
     @Nullable
     private static Class<? extends Classifier> implementationFor(final Parameters parameters) {
         if (parameters.getAlgorithm().isLinear()) {
@@ -788,46 +1183,133 @@ public abstract class Classifier {
         private static final boolean NATIVE_LIB_AVAILABLE = testNative("train",
                 "Using native LIBLINEAR tools");
 
-        private final Dictionary<String> dictionary;
+        private final FeatureTable features;
+
+        private final double bias;
+
+        private final int numFeatures;
+
+        private final int[] labels;
+
+        // weight of label i for feature index j at (j - 1) * labels + i (LIBLINEAR layout)
+        private final DoubleBuffer weights;
 
-        private final Model model;
+        // per-thread decision values
+        private final ThreadLocal<double[]> scratch;
 
         private LibLinearClassifier(final Parameters parameters, final String modelHash,
-                final Dictionary<String> dictionary, final Model model) {
+                final FeatureTable features, final double bias, final int numFeatures,
+                final int[] labels, final DoubleBuffer weights) {
             super(parameters, modelHash);
-            this.dictionary = Preconditions.checkNotNull(dictionary);
-            this.model = model;
+            this.features = Preconditions.checkNotNull(features);
+            this.bias = bias;
+            this.numFeatures = numFeatures;
+            this.labels = labels;
+            this.weights = weights;
+            this.scratch = ThreadLocal.withInitial(() -> new double[labels.length]);
+        }
+
+        private LibLinearClassifier(final Parameters parameters, final String modelHash,
+                final Dictionary<String> dictionary, final Model model) {
+            this(parameters, modelHash, FeatureTable.forDictionary(dictionary), model.getBias(),
+                    model.getNrFeature(), model.getLabels(),
+                    DoubleBuffer.wrap(model.getFeatureWeights()));
         }
 
         @Override
-        LabelledVector doPredict(final boolean withProbabilities, final Vector vector) {
-            final Feature[] features = encodeVector(this.dictionary, vector);
-            if (withProbabilities) {
-                final int numLabels = getParameters().getNumLabels();
-                final double[] p = new double[numLabels];
-                final int label = (int) Linear.predictProbability(this.model, features, p);
-                final float[] probabilities = new float[numLabels];
+        int doPredict(final IndexedVector vector, @Nullable final float[] probabilities) {
+            final double[] p = this.scratch.get();
+            Arrays.fill(p, 0.0);
+            final int label = predictValues(vector, p);
+            if (probabilities != null) {
+                // same as Linear.predictProbability(), which accepts only the LR solvers
+                if (!getParameters().getAlgorithm().supportsProbabilities()) {
+                    throw new IllegalArgumentException("Probabilities not supported by algorithm "
+                            + getParameters().getAlgorithm());
+                }
+                final int numWeights = this.labels.length == 2 ? 1 : this.labels.length;
+                for (int i = 0; i < numWeights; ++i) {
+                    p[i] = 1 / (1 + Math.exp(-p[i]));
+                }
+                if (this.labels.length == 2) {
+                    p[1] = 1. - p[0];
+                } else {
+                    double sum = 0;
+                    for (int i = 0; i < this.labels.length; ++i) {
+                        sum += p[i];
+                    }
+                    for (int i = 0; i < this.labels.length; ++i) {
+                        p[i] = p[i] / sum;
+                    }
+                }
                 for (int i = 0; i < p.length; ++i) {
-                    final int labelIndex = this.model.getLabels()[i];
-                    probabilities[labelIndex] = (float) p[i];
+                    probabilities[this.labels[i]] = (float) p[i];
                 }
-                return vector.label(label, probabilities);
-            } else {
-                final double label = Linear.predict(this.model, features);
-                return vector.label((int) label);
             }
+            return label;
+        }
+
+        // same as Linear.predictValues(), for the classification solvers we use
+        private int predictValues(final IndexedVector vector, final double[] values) {
+            final int n = this.bias >= 0 ? this.numFeatures + 1 : this.numFeatures;
+            final int numWeights = this.labels.length == 2 ? 1 : this.labels.length;
+            final int size = vector.size();
+            for (int j = 0; j < size; ++j) {
+                final int index = vector.indexes[j];
+                if (index <= n) {
+                    final double value = vector.values[j];
+                    for (int i = 0; i < numWeights; ++i) {
+                        values[i] += this.weights.get((index - 1) * numWeights + i) * value;
+                    }
+                }
+            }
+            if (this.labels.length == 2) {
+                return values[0] > 0 ? this.labels[0] : this.labels[1];
+            }
+            int best = 0;
+            for (int i = 1; i < this.labels.length; ++i) {
+                if (values[i] > values[best]) {
+                    best = i;
+                }
+            }
+            return this.labels[best];
         }
 
         @Override
-        void doWrite(final Path path) throws IOException {
+        FeatureTable getFeatures() {
+            return this.features;
+        }
 
-            // Write the dictionary
-            this.dictionary.writeTo(path.resolve("dictionary"));
+        @Override
+        void doWrite(final DataOutputStream out) throws IOException {
+            out.writeDouble(this.bias);
+            out.writeInt(this.numFeatures);
+            out.writeInt(this.labels.length);
+            for (final int label : this.labels) {
+                out.writeInt(label);
+            }
+            final int numWeights = this.weights.capacity();
+            out.writeInt(numWeights);
+            FeatureTable.pad(out);
+            for (int i = 0; i < numWeights; ++i) {
+                out.writeDouble(this.weights.get(i));
+            }
+        }
 
-            // Write the model
-            try (BufferedWriter writer = Files.newBufferedWriter(path.resolve("model"))) {
-                Linear.saveModel(writer, this.model);
+        static Classifier doRead(final Parameters parameters, final String modelHash,
+                final FeatureTable features, final ByteBuffer buffer) {
+            final double bias = buffer.getDouble();
+            final int numFeatures = buffer.getInt();
+            final int[] labels = new int[buffer.getInt()];
+            for (int i = 0; i < labels.length; ++i) {
+                labels[i] = buffer.getInt();
             }
+            final int numWeights = buffer.getInt();
+            FeatureTable.align(buffer);
+            final DoubleBuffer weights = FeatureTable.slice(buffer, 8 * numWeights)
+                    .asDoubleBuffer();
+            return new LibLinearClassifier(parameters, modelHash, features, bias, numFeatures,
+                    labels, weights);
         }
 
         static Classifier doRead(final Parameters parameters, final Path path) throws IOException {
@@ -860,14 +1342,32 @@ public abstract class Classifier {
         private static Classifier trainJava(final Parameters parameters,
                 final Iterable<LabelledVector> trainingSet) throws IOException {
 
-            // Prepare the svm_parameter object based on supplied parameters
-            final Parameter parameter = encodeParameters(parameters);
-            parameter.setEps(getDefaultEpsilon(parameters) * 0.1f);
-
             // Encode the training set as an svm_problem object, filling a dictionary meanwhile
             final Dictionary<String> dictionary = Dictionary.create();
             dictionary.indexFor("_unused"); // just to avoid using feature index 0
-            final Problem problem = encodeProblem(dictionary, trainingSet, parameters);
+            final Problem problem = encodeProblem(dictionary, trainingSet,
+                    MoreObjects.firstNonNull(parameters.getBias(), -1f).doubleValue());
+
+            return trainJava(parameters, dictionary, problem, null);
+        }
+
+        private static Classifier trainJava(final Parameters parameters,
+                final Dictionary<String> dictionary, final Problem problem,
+                @Nullable final double[] initialWeights) throws IOException {
+
+            // Multi-class problems are solved as independent one-vs-rest problems: train them
+            // concurrently if possible
+            final int[] labels = labelsOf(problem);
+            if (labels.length > 2 && Environment.getCores() > 1) {
+                return trainOneVsRest(parameters, dictionary, problem, labels, initialWeights);
+            }
+
+            // Prepare the svm_parameter object based on supplied parameters
+            final Parameter parameter = encodeParameters(parameters);
+            parameter.setEps(getDefaultEpsilon(parameters) * 0.1f);
+            if (initialWeights != null) {
+                parameter.setInitSol(initialWeights);
+            }
 
             // Perform training
             final Model model = Linear.train(problem, parameter);
@@ -882,6 +1382,105 @@ public abstract class Classifier {
             return new LibLinearClassifier(parameters, modelHash, dictionary, model);
         }
 
+        // same as Linear.train() for solvers other than MCSVM_CS, which trains the binary
+        // problem of each label in sequence
+        private static Classifier trainOneVsRest(final Parameters parameters,
+                final Dictionary<String> dictionary, final Problem problem, final int[] labels,
+                @Nullable final double[] initialWeights) throws IOException {
+
+            final int numLabels = labels.length;
+            final int n = problem.n;
+            final double[] weights = new double[n * numLabels];
+            final float[] labelWeights = parameters.getWeights();
+
+            final List<Runnable> runnables = Lists.newArrayList();
+            for (int i = 0; i < numLabels; ++i) {
+                final int labelIndex = i;
+                final int label = labels[i];
+                runnables.add(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        // Share the encoded vectors, moving a positive one first so that
+                        // LIBLINEAR uses +1 as its first label (i.e., w is not negated)
+                        final Problem binary = new Problem();
+                        binary.l = problem.l;
+                        binary.n = problem.n;
+                        binary.bias = problem.bias;
+                        binary.x = problem.x.clone();
+                        binary.y = new double[problem.l];
+                        int first = -1;
+                        for (int j = 0; j < problem.l; ++j) {
+                            final boolean positive = (int) problem.y[j] == label;
+                            binary.y[j] = positive ? 1.0 : -1.0;
+                            first = first < 0 && positive ? j : first;
+                        }
+                        final Feature[] x = binary.x[0];
+                        binary.x[0] = binary.x[first];
+                        binary.x[first] = x;
+                        binary.y[first] = binary.y[0];
+                        binary.y[0] = 1.0;
+
+                        final Parameter parameter = encodeParameters(parameters);
+                        parameter.setEps(getDefaultEpsilon(parameters) * 0.1f);
+                        final double weight = labelWeights == null
+                                || label >= labelWeights.length ? 1.0 : labelWeights[label];
+                        parameter.setWeights(new double[] { weight }, new int[] { 1 });
+                        if (initialWeights != null) {
+                            final double[] w = new double[n];
+                            for (int j = 0; j < n; ++j) {
+                                w[j] = initialWeights[j * numLabels + labelIndex];
+                            }
+                            parameter.setInitSol(w);
+                        }
+
+                        final double[] w = Linear.train(binary, parameter).getFeatureWeights();
+                        for (int j = 0; j < n; ++j) {
+                            weights[j * numLabels + labelIndex] = w[j];
+                        }
+                    }
+
+                });
+            }
+            Environment.run(runnables);
+
+            // Compute a model hash based on the same information stored by LIBLINEAR
+            final double bias = problem.bias;
+            final int numFeatures = bias >= 0 ? n - 1 : n;
+            final StringBuilder builder = new StringBuilder();
+            builder.append("solver_type ").append(encodeParameters(parameters).getSolverType())
+                    .append("\nnr_class ").append(numLabels).append("\nlabel");
+            for (final int label : labels) {
+                builder.append(' ').append(label);
+            }
+            builder.append("\nnr_feature ").append(numFeatures).append("\nbias ").append(bias)
+                    .append("\nw\n");
+            for (int j = 0; j < n; ++j) {
+                for (int i = 0; i < numLabels; ++i) {
+                    builder.append(weights[j * numLabels + i]).append(' ');
+                }
+                builder.append('\n');
+            }
+            final String modelHash = computeHash(dictionary, builder.toString());
+
+            return new LibLinearClassifier(parameters, modelHash,
+                    FeatureTable.forDictionary(dictionary), bias, numFeatures, labels,
+                    DoubleBuffer.wrap(weights));
+        }
+
+        // labels in order of first occurrence, as in LIBLINEAR
+        private static int[] labelsOf(final Problem problem) {
+            int[] labels = new int[0];
+            for (int j = 0; j < problem.l; ++j) {
+                final int label = (int) problem.y[j];
+                if (!Ints.contains(labels, label)) {
+                    labels = Arrays.copyOf(labels, labels.length + 1);
+                    labels[labels.length - 1] = label;
+                }
+            }
+            return labels;
+        }
+
         private static Classifier trainNative(final Parameters parameters,
                 final Iterable<LabelledVector> trainingSet) throws IOException {
 
@@ -889,7 +1488,8 @@ public abstract class Classifier {
             Preconditions.checkNotNull(trainingSet);
             Preconditions.checkArgument(Iterables.size(trainingSet) >= 2);
 
-            // Encode the training set in a file, filling a dictionary meanwhile
+            // Encode the training set in a file, filling a dictionary meanwhile. Note that the
+            // native tool reads its input twice (it rewinds it), so it cannot be streamed
             final Dictionary<String> dictionary = Dictionary.create();
             dictionary.indexFor("_unused"); // just to avoid using feature index 0
             final File trainingFile = File.createTempFile("training.", ".txt");
@@ -1013,11 +1613,11 @@ public abstract class Classifier {
         }
 
         private static Problem encodeProblem(final Dictionary<String> dictionary,
-                final Iterable<LabelledVector> vectors, final Parameters parameters) {
+                final Iterable<LabelledVector> vectors, final double bias) {
             final int size = Iterables.size(vectors);
             final Problem problem = new Problem();
             problem.l = size;
-            problem.bias = MoreObjects.firstNonNull(parameters.getBias(), -1f).doubleValue();
+            problem.bias = bias;
             problem.x = new Feature[size][];
             problem.y = new double[size];
             int index = 0;
@@ -1037,6 +1637,47 @@ public abstract class Classifier {
             return problem;
         }
 
+        private static final class JavaTrainer implements Trainer {
+
+            private final Dictionary<String> dictionary;
+
+            // encoded without bias
+            private final Problem problem;
+
+            JavaTrainer(final Iterable<LabelledVector> trainingSet) {
+                final Dictionary<String> dictionary = Dictionary.create();
+                dictionary.indexFor("_unused"); // just to avoid using feature index 0
+                this.problem = encodeProblem(dictionary, trainingSet, -1.0);
+                this.dictionary = dictionary.freeze();
+            }
+
+            @Override
+            public Classifier train(final Parameters parameters,
+                    @Nullable final Classifier previous) throws IOException {
+
+                // Share the encoded vectors, changing only the bias
+                final Problem problem = new Problem();
+                problem.l = this.problem.l;
+                problem.x = this.problem.x;
+                problem.y = this.problem.y;
+                problem.bias = MoreObjects.firstNonNull(parameters.getBias(), -1f).doubleValue();
+                problem.n = this.problem.n + (problem.bias >= 0 ? 1 : 0);
+
+                // Warm start from the previous solution
+                double[] initialWeights = null;
+                if (previous instanceof LibLinearClassifier && canWarmStart(parameters)) {
+                    final DoubleBuffer weights = ((LibLinearClassifier) previous).weights;
+                    initialWeights = new double[weights.capacity()];
+                    for (int i = 0; i < initialWeights.length; ++i) {
+                        initialWeights[i] = weights.get(i);
+                    }
+                }
+
+                return trainJava(parameters, this.dictionary, problem, initialWeights);
+            }
+
+        }
+
         private static Feature[] encodeVector(final Dictionary<String> dictionary,
                 final Vector vector) {
             final int size = vector.size();
@@ -1080,50 +1721,177 @@ public abstract class Classifier {
 
         private static final int SHRINKING = 1; // default value in libsvm docs
 
-        private final Dictionary<String> dictionary;
+        private final FeatureTable features;
 
         private final svm_model model;
 
+        // per-thread svm_node objects and probability estimates, reused between predictions
+        private final ThreadLocal<svm_node[]> nodes;
+
+        private final ThreadLocal<double[]> scratch;
+
         private LibSvmClassifier(final Parameters parameters, final String modelHash,
-                final Dictionary<String> dictionary, final svm_model model) {
+                final FeatureTable features, final svm_model model) {
             super(parameters, modelHash);
-            this.dictionary = dictionary.freeze();
+            this.features = features;
             this.model = model;
+            this.nodes = ThreadLocal.withInitial(() -> new svm_node[0]);
+            this.scratch = ThreadLocal.withInitial(() -> new double[model.nr_class]);
+        }
+
+        private LibSvmClassifier(final Parameters parameters, final String modelHash,
+                final Dictionary<String> dictionary, final svm_model model) {
+            this(parameters, modelHash, FeatureTable.forDictionary(dictionary), model);
         }
 
         @Override
-        LabelledVector doPredict(final boolean withProbabilities, final Vector vector) {
-            final svm_node[] nodes = encodeVector(this.dictionary, vector);
-            if (withProbabilities) {
-                final int numLabels = getParameters().getNumLabels();
-                final double[] p = new double[numLabels];
+        int doPredict(final IndexedVector vector, @Nullable final float[] probabilities) {
+            // LIBSVM wants an array of the exact size, but svm_node objects can be reused
+            svm_node[] pool = this.nodes.get();
+            if (pool.length < vector.size()) {
+                final int oldLength = pool.length;
+                pool = Arrays.copyOf(pool, Math.max(vector.size(), oldLength * 2));
+                for (int i = oldLength; i < pool.length; ++i) {
+                    pool[i] = new svm_node();
+                }
+                this.nodes.set(pool);
+            }
+            final svm_node[] nodes = Arrays.copyOf(pool, vector.size());
+            for (int i = 0; i < nodes.length; ++i) {
+                nodes[i].index = vector.indexes[i];
+                nodes[i].value = vector.values[i];
+            }
+            if (probabilities != null) {
+                final double[] p = this.scratch.get();
+                Arrays.fill(p, 0.0);
                 final int label = (int) svm.svm_predict_probability(this.model, nodes, p);
-                final float[] probabilities = new float[numLabels];
                 for (int i = 0; i < p.length; ++i) {
-                    final int labelIndex = this.model.label[i];
-                    probabilities[labelIndex] = (float) p[i];
+                    probabilities[this.model.label[i]] = (float) p[i];
                 }
-                return vector.label(label, probabilities);
+                return label;
             } else {
-                final int label = (int) svm.svm_predict(this.model, nodes);
-                return vector.label(label);
+                return (int) svm.svm_predict(this.model, nodes);
             }
         }
 
         @Override
-        void doWrite(final Path path) throws IOException {
+        FeatureTable getFeatures() {
+            return this.features;
+        }
 
-            // Write the dictionary
-            this.dictionary.writeTo(path.resolve("dictionary"));
+        @Override
+        void doWrite(final DataOutputStream out) throws IOException {
+            final svm_model m = this.model;
+            final int numClasses = m.nr_class;
+            final int numPairs = numClasses * (numClasses - 1) / 2;
+            out.writeInt(m.param.svm_type);
+            out.writeInt(m.param.kernel_type);
+            out.writeInt(m.param.degree);
+            out.writeInt(numClasses);
+            out.writeInt(m.l);
+            out.writeBoolean(m.probA != null);
+            out.writeBoolean(m.probB != null);
+            FeatureTable.pad(out);
+            out.writeDouble(m.param.gamma);
+            out.writeDouble(m.param.coef0);
+            for (int i = 0; i < numClasses; ++i) {
+                out.writeInt(m.label[i]);
+                out.writeInt(m.nSV[i]);
+            }
+            FeatureTable.pad(out);
+            for (int i = 0; i < numPairs; ++i) {
+                out.writeDouble(m.rho[i]);
+                out.writeDouble(m.probA != null ? m.probA[i] : 0);
+                out.writeDouble(m.probB != null ? m.probB[i] : 0);
+            }
+            for (int i = 0; i < numClasses - 1; ++i) {
+                for (int j = 0; j < m.l; ++j) {
+                    out.writeDouble(m.sv_coef[i][j]);
+                }
+            }
 
-            // Write the model
-            final File tmpFile = File.createTempFile("svm", ".bin");
-            tmpFile.deleteOnExit();
-            svm.svm_save_model(tmpFile.getAbsolutePath(), this.model);
-            final String modelString = com.google.common.io.Files.toString(tmpFile,
-                    Charset.defaultCharset());
-            tmpFile.delete();
-            Files.write(path.resolve("model"), modelString.getBytes(Charsets.UTF_8));
+            // support vectors: offsets, then indexes and values of all nodes
+            int offset = 0;
+            out.writeInt(offset);
+            for (int j = 0; j < m.l; ++j) {
+                offset += m.SV[j].length;
+                out.writeInt(offset);
+            }
+            for (int j = 0; j < m.l; ++j) {
+                for (final svm_node node : m.SV[j]) {
+                    out.writeInt(node.index);
+                }
+            }
+            FeatureTable.pad(out);
+            for (int j = 0; j < m.l; ++j) {
+                for (final svm_node node : m.SV[j]) {
+                    out.writeDouble(node.value);
+                }
+            }
+        }
+
+        static Classifier doRead(final Parameters parameters, final String modelHash,
+                final FeatureTable features, final ByteBuffer buffer) {
+            final svm_model m = new svm_model();
+            m.param = new svm_parameter();
+            m.param.svm_type = buffer.getInt();
+            m.param.kernel_type = buffer.getInt();
+            m.param.degree = buffer.getInt();
+            final int numClasses = buffer.getInt();
+            final int numPairs = numClasses * (numClasses - 1) / 2;
+            m.nr_class = numClasses;
+            m.l = buffer.getInt();
+            final boolean hasProbA = buffer.get() != 0;
+            final boolean hasProbB = buffer.get() != 0;
+            FeatureTable.align(buffer);
+            m.param.gamma = buffer.getDouble();
+            m.param.coef0 = buffer.getDouble();
+            m.label = new int[numClasses];
+            m.nSV = new int[numClasses];
+            for (int i = 0; i < numClasses; ++i) {
+                m.label[i] = buffer.getInt();
+                m.nSV[i] = buffer.getInt();
+            }
+            FeatureTable.align(buffer);
+            m.rho = new double[numPairs];
+            m.probA = hasProbA ? new double[numPairs] : null;
+            m.probB = hasProbB ? new double[numPairs] : null;
+            for (int i = 0; i < numPairs; ++i) {
+                m.rho[i] = buffer.getDouble();
+                final double probA = buffer.getDouble();
+                final double probB = buffer.getDouble();
+                if (hasProbA) {
+                    m.probA[i] = probA;
+                }
+                if (hasProbB) {
+                    m.probB[i] = probB;
+                }
+            }
+            m.sv_coef = new double[numClasses - 1][m.l];
+            final DoubleBuffer coefs = FeatureTable.slice(buffer, 8 * (numClasses - 1) * m.l)
+                    .asDoubleBuffer();
+            for (int i = 0; i < numClasses - 1; ++i) {
+                coefs.get(m.sv_coef[i]);
+            }
+
+            // LIBSVM needs the support vectors as svm_node objects
+            final IntBuffer offsets = FeatureTable.slice(buffer, 4 * (m.l + 1)).asIntBuffer();
+            final int numNodes = offsets.get(m.l);
+            final IntBuffer indexes = FeatureTable.slice(buffer, 4 * numNodes).asIntBuffer();
+            FeatureTable.align(buffer);
+            final DoubleBuffer values = FeatureTable.slice(buffer, 8 * numNodes).asDoubleBuffer();
+            m.SV = new svm_node[m.l][];
+            for (int j = 0; j < m.l; ++j) {
+                final int start = offsets.get(j);
+                final svm_node[] nodes = new svm_node[offsets.get(j + 1) - start];
+                for (int k = 0; k < nodes.length; ++k) {
+                    nodes[k] = new svm_node();
+                    nodes[k].index = indexes.get(start + k);
+                    nodes[k].value = values.get(start + k);
+                }
+                m.SV[j] = nodes;
+            }
+            return new LibSvmClassifier(parameters, modelHash, features, m);
         }
 
         static Classifier doRead(final Parameters parameters, final Path path) throws IOException {
@@ -1158,13 +1926,20 @@ public abstract class Classifier {
         private static Classifier trainJava(final Parameters parameters,
                 final Iterable<LabelledVector> trainingSet) throws IOException {
 
-            // Prepare the svm_parameter object based on supplied parameters
-            final svm_parameter parameter = encodeParameters(parameters);
-
             // Encode the training set as an svm_problem object, filling a dictionary meanwhile
             final Dictionary<String> dictionary = Dictionary.create();
             final svm_problem problem = encodeProblem(dictionary, trainingSet);
 
+            return trainJava(parameters, dictionary, problem);
+        }
+
+        private static Classifier trainJava(final Parameters parameters,
+                final Dictionary<String> dictionary, final svm_problem problem)
+                throws IOException {
+
+            // Prepare the svm_parameter object based on supplied parameters
+            final svm_parameter parameter = encodeParameters(parameters);
+
             // Perform training
             final svm_model model = svm.svm_train(problem, parameter);
 
@@ -1324,6 +2099,26 @@ public abstract class Classifier {
             return problem;
         }
 
+        private static final class JavaTrainer implements Trainer {
+
+            private final Dictionary<String> dictionary;
+
+            private final svm_problem problem;
+
+            JavaTrainer(final Iterable<LabelledVector> trainingSet) {
+                final Dictionary<String> dictionary = Dictionary.create();
+                this.problem = encodeProblem(dictionary, trainingSet);
+                this.dictionary = dictionary.freeze();
+            }
+
+            @Override
+            public Classifier train(final Parameters parameters,
+                    @Nullable final Classifier previous) throws IOException {
+                return trainJava(parameters, this.dictionary, this.problem);
+            }
+
+        }
+
         private static svm_node[] encodeVector(final Dictionary<String> dictionary,
                 final Vector vector) {
             final int size = vector.size();
@@ -7,13 +7,17 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import eu.fbk.utils.core.Environment;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public final class FeatureStats implements Serializable {
 
@@ -55,40 +59,7 @@ public final class FeatureStats implements Serializable {
 
     public static Map<String, FeatureStats> forVectors(final int numLabels,
             final Iterable<? extends Vector> vectors, @Nullable final Predicate<String> selector) {
-
-        final Map<String, Builder> builders = Maps.newLinkedHashMap();
-        for (final Vector vector : vectors) {
-            for (final String feature : vector.getFeatures()) {
-                if (feature.length() > 0 && feature.charAt(0) == '_') {
-                    continue;
-                }
-                if ((selector == null || selector.apply(feature))
-                        && !builders.containsKey(feature)) {
-                    builders.put(feature, builder(numLabels));
-                }
-            }
-        }
-
-        final int[] counts = new int[numLabels];
-        for (final Vector vector : vectors) {
-            final int size = vector.size();
-            final int label = vector instanceof LabelledVector ? ((LabelledVector) vector)
-                    .getLabel() : 0;
-            ++counts[label];
-            for (int i = 0; i < size; ++i) {
-                final String feature = vector.getFeature(i);
-                final Builder builder = builders.get(feature);
-                if (builder != null) {
-                    builder.add(vector.getValue(i), label);
-                }
-            }
-        }
-
-        final Map<String, FeatureStats> result = Maps.newLinkedHashMap();
-        for (final String feature : Ordering.natural().sortedCopy(builders.keySet())) {
-            result.put(feature, builders.get(feature).build(feature, counts));
-        }
-        return result;
+        return accumulator(numLabels, selector).addAll(vectors).get();
     }
 
     public String getName() {
@@ -307,6 +278,145 @@ public final class FeatureStats implements Serializable {
         return new Builder(numLabels);
     }
 
+    public static Accumulator accumulator(final int numLabels,
+            @Nullable final Predicate<String> selector) {
+        return new Accumulator(numLabels, selector);
+    }
+
+    /**
+     * Accumulates the statistics of the features of a stream of vectors, which can be
+     * retrieved at any time with {@link #get()}. Accumulators are not thread-safe: they can be
+     * filled in parallel with {@link #addAll(Iterable)} or by merging the accumulators of
+     * different threads with {@link #merge(Accumulator)}.
+     */
+    public static final class Accumulator {
+
+        // number of vectors taken at a time by each thread in addAll()
+        private static final int BATCH_SIZE = 1024;
+
+        private final int numLabels;
+
+        @Nullable
+        private final Predicate<String> selector;
+
+        private final int[] counts;
+
+        private final Map<String, Builder> builders;
+
+        // features not accepted by the selector, so not to test them again
+        private final Set<String> rejected;
+
+        private Accumulator(final int numLabels, @Nullable final Predicate<String> selector) {
+            this.numLabels = numLabels;
+            this.selector = selector;
+            this.counts = new int[numLabels];
+            this.builders = Maps.newHashMap();
+            this.rejected = Sets.newHashSet();
+        }
+
+        public Accumulator add(final Vector vector) {
+            final int size = vector.size();
+            final int label = vector instanceof LabelledVector ? ((LabelledVector) vector)
+                    .getLabel() : 0;
+            ++this.counts[label];
+            for (int i = 0; i < size; ++i) {
+                final String feature = vector.getFeature(i);
+                Builder builder = this.builders.get(feature);
+                if (builder == null) {
+                    if (feature.length() > 0 && feature.charAt(0) == '_'
+                            || this.rejected.contains(feature)) {
+                        continue;
+                    } else if (this.selector != null && !this.selector.apply(feature)) {
+                        this.rejected.add(feature);
+                        continue;
+                    }
+                    builder = builder(this.numLabels);
+                    this.builders.put(feature, builder);
+                }
+                builder.add(vector.getValue(i), label);
+            }
+            return this;
+        }
+
+        /**
+         * Adds the supplied vectors using all the available cores, each one accumulating the
+         * statistics of different vectors that are merged at the end.
+         */
+        public Accumulator addAll(final Iterable<? extends Vector> vectors) {
+            final Iterator<? extends Vector> iterator = vectors.iterator();
+            final List<Accumulator> partials = Lists.newArrayList();
+            final List<Runnable> runnables = Lists.newArrayList();
+            for (int i = 0; i < Environment.getCores(); ++i) {
+                runnables.add(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        final Accumulator partial = new Accumulator(
+                                Accumulator.this.numLabels, Accumulator.this.selector);
+                        final Vector[] batch = new Vector[BATCH_SIZE];
+                        while (true) {
+                            int size = 0;
+                            synchronized (iterator) {
+                                while (size < BATCH_SIZE && iterator.hasNext()) {
+                                    batch[size++] = iterator.next();
+                                }
+                            }
+                            if (size == 0) {
+                                break;
+                            }
+                            for (int j = 0; j < size; ++j) {
+                                partial.add(batch[j]);
+                            }
+                        }
+                        synchronized (partials) {
+                            partials.add(partial);
+                        }
+                    }
+
+                });
+            }
+            Environment.run(runnables);
+            for (final Accumulator partial : partials) {
+                merge(partial);
+            }
+            return this;
+        }
+
+        public Accumulator merge(final Accumulator accumulator) {
+            Preconditions.checkArgument(accumulator.numLabels == this.numLabels);
+            for (int i = 0; i < this.numLabels; ++i) {
+                this.counts[i] += accumulator.counts[i];
+            }
+            for (final Map.Entry<String, Builder> entry : accumulator.builders.entrySet()) {
+                final Builder builder = this.builders.get(entry.getKey());
+                if (builder == null) {
+                    this.builders.put(entry.getKey(), builder(this.numLabels).merge(
+                            entry.getValue()));
+                } else {
+                    builder.merge(entry.getValue());
+                }
+            }
+            this.rejected.addAll(accumulator.rejected);
+            return this;
+        }
+
+        /**
+         * Returns the statistics of the vectors added so far, sorted by feature.
+         */
+        public Map<String, FeatureStats> get() {
+            final Map<String, FeatureStats> result = Maps.newLinkedHashMap();
+            for (final String feature : Ordering.natural().sortedCopy(this.builders.keySet())) {
+                result.put(feature, this.builders.get(feature).build(feature, this.counts));
+            }
+            return result;
+        }
+
+    }
+
+    /**
+     * Accumulates the values of a feature. Means and variances are updated incrementally
+     * (Welford's method) and builders can be merged (Chan et al. formula).
+     */
     public static final class Builder {
 
         private final int[] countsNonZero;
@@ -315,16 +425,20 @@ public final class FeatureStats implements Serializable {
 
         private final float[] maxs;
 
-        private final float[] sums;
+        // number of values, mean and sum of squared differences from the mean
+        private final long[] ns;
+
+        private final double[] means;
 
-        private final float[] squareSums;
+        private final double[] m2s;
 
         private Builder(final int numLabels) {
             this.countsNonZero = new int[numLabels];
             this.mins = new float[numLabels];
             this.maxs = new float[numLabels];
-            this.sums = new float[numLabels];
-            this.squareSums = new float[numLabels];
+            this.ns = new long[numLabels];
+            this.means = new double[numLabels];
+            this.m2s = new double[numLabels];
         }
 
         public Builder add(final float value) {
@@ -332,14 +446,7 @@ public final class FeatureStats implements Serializable {
         }
 
         public Builder add(final float value, final int label) {
-            if (value != 0.0f) {
-                ++this.countsNonZero[label];
-            }
-            this.mins[label] = Math.min(this.mins[label], value);
-            this.maxs[label] = Math.max(this.maxs[label], value);
-            this.sums[label] += value;
-            this.squareSums[label] += value * value;
-            return this;
+            return add(value, label, 1);
         }
 
         public Builder add(final float value, final int label, final int repetitions) {
@@ -348,20 +455,43 @@ public final class FeatureStats implements Serializable {
             }
             this.mins[label] = Math.min(this.mins[label], value);
             this.maxs[label] = Math.max(this.maxs[label], value);
-            this.sums[label] += value * repetitions;
-            this.squareSums[label] += value * value * repetitions;
+            this.ns[label] += repetitions;
+            final double delta = value - this.means[label];
+            this.means[label] += delta * repetitions / this.ns[label];
+            this.m2s[label] += delta * (value - this.means[label]) * repetitions;
+            return this;
+        }
+
+        public Builder merge(final Builder builder) {
+            Preconditions.checkArgument(builder.ns.length == this.ns.length);
+            for (int i = 0; i < this.ns.length; ++i) {
+                this.countsNonZero[i] += builder.countsNonZero[i];
+                this.mins[i] = Math.min(this.mins[i], builder.mins[i]);
+                this.maxs[i] = Math.max(this.maxs[i], builder.maxs[i]);
+                final long n = this.ns[i] + builder.ns[i];
+                if (n > 0) {
+                    final double delta = builder.means[i] - this.means[i];
+                    this.m2s[i] += builder.m2s[i] + delta * delta * this.ns[i] * builder.ns[i]
+                            / n;
+                    this.means[i] += delta * builder.ns[i] / n;
+                    this.ns[i] = n;
+                }
+            }
             return this;
         }
 
         public FeatureStats build(final String name, final int... counts) {
-            Preconditions.checkArgument(counts.length == this.sums.length);
+            Preconditions.checkArgument(counts.length == this.ns.length);
             final float[] mins = this.mins.clone();
             final float[] maxs = this.maxs.clone();
-            final float[] means = new float[this.sums.length];
-            final float[] squareMeans = new float[this.sums.length];
-            for (int i = 0; i < this.sums.length; ++i) {
-                means[i] = this.sums[i] / counts[i];
-                squareMeans[i] = this.squareSums[i] / counts[i];
+            final float[] means = new float[this.ns.length];
+            final float[] squareMeans = new float[this.ns.length];
+            for (int i = 0; i < this.ns.length; ++i) {
+                // values not added (vectors without the feature) are zeros
+                final double sum = this.ns[i] * this.means[i];
+                final double squareSum = this.m2s[i] + sum * this.means[i];
+                means[i] = (float) (sum / counts[i]);
+                squareMeans[i] = (float) (squareSum / counts[i]);
                 if (counts[i] > this.countsNonZero[i]) {
                     mins[i] = Math.min(mins[i], 0);
                     maxs[i] = Math.max(maxs[i], 0);
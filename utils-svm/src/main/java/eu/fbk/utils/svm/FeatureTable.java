@@ -0,0 +1,194 @@
+package eu.fbk.utils.svm;
+
+import com.google.common.base.Preconditions;
+import eu.fbk.utils.core.Dictionary;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Maps the features of a model to their indexes. A table is either backed by a frozen
+ * {@link Dictionary} (models trained or read from the old text layout) or by a sorted string
+ * table that is searched in place in a (possibly memory-mapped) binary model file.
+ * <p>
+ * The binary layout is: the number {@code n} of features, {@code n + 1} char offsets, the
+ * {@code n} indexes and the chars of the features sorted by {@link String#compareTo}, padded
+ * to a multiple of 8 bytes.
+ */
+abstract class FeatureTable {
+
+    static FeatureTable forDictionary(final Dictionary<String> dictionary) {
+        return new DictionaryTable(dictionary.freeze());
+    }
+
+    static FeatureTable read(final ByteBuffer buffer) {
+        return new SortedTable(buffer);
+    }
+
+    abstract int size();
+
+    /**
+     * Returns the index of the feature, or -1 if the feature is unknown.
+     */
+    abstract int indexOf(String feature);
+
+    abstract void write(DataOutputStream out) throws IOException;
+
+    static void pad(final DataOutputStream out) throws IOException {
+        while (out.size() % 8 != 0) {
+            out.writeByte(0);
+        }
+    }
+
+    static void align(final ByteBuffer buffer) {
+        buffer.position((buffer.position() + 7) & ~7);
+    }
+
+    /**
+     * Returns the next {@code bytes} bytes of the buffer, advancing its position.
+     */
+    static ByteBuffer slice(final ByteBuffer buffer, final int bytes) {
+        final ByteBuffer slice = buffer.slice();
+        slice.limit(bytes);
+        buffer.position(buffer.position() + bytes);
+        return slice.order(buffer.order());
+    }
+
+    private static final class DictionaryTable extends FeatureTable {
+
+        private final Dictionary<String> dictionary;
+
+        DictionaryTable(final Dictionary<String> dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        int size() {
+            return this.dictionary.size();
+        }
+
+        @Override
+        int indexOf(final String feature) {
+            final Integer index = this.dictionary.indexFor(feature);
+            return index == null ? -1 : index;
+        }
+
+        @Override
+        void write(final DataOutputStream out) throws IOException {
+            final int size = this.dictionary.size();
+            final String[] features = new String[size];
+            final Integer[] order = new Integer[size];
+            for (int i = 0; i < size; ++i) {
+                features[i] = this.dictionary.elementFor(i);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+
+                @Override
+                public int compare(final Integer left, final Integer right) {
+                    return features[left].compareTo(features[right]);
+                }
+
+            });
+
+            out.writeInt(size);
+            int offset = 0;
+            out.writeInt(offset);
+            for (final Integer index : order) {
+                offset += features[index].length();
+                out.writeInt(offset);
+            }
+            for (final Integer index : order) {
+                out.writeInt(index);
+            }
+            for (final Integer index : order) {
+                out.writeChars(features[index]);
+            }
+            pad(out);
+        }
+
+    }
+
+    private static final class SortedTable extends FeatureTable {
+
+        private final int size;
+
+        private final IntBuffer offsets;
+
+        private final IntBuffer indexes;
+
+        private final CharBuffer chars;
+
+        private final ByteBuffer bytes;
+
+        SortedTable(final ByteBuffer buffer) {
+            final int start = buffer.position();
+            this.size = buffer.getInt();
+            Preconditions.checkArgument(this.size >= 0, "Invalid feature table size");
+            this.offsets = slice(buffer, 4 * (this.size + 1)).asIntBuffer();
+            this.indexes = slice(buffer, 4 * this.size).asIntBuffer();
+            this.chars = slice(buffer, 2 * this.offsets.get(this.size)).asCharBuffer();
+            align(buffer);
+            final ByteBuffer whole = buffer.duplicate();
+            whole.position(start);
+            whole.limit(buffer.position());
+            this.bytes = whole.slice();
+        }
+
+        @Override
+        int size() {
+            return this.size;
+        }
+
+        @Override
+        int indexOf(final String feature) {
+            int low = 0;
+            int high = this.size - 1;
+            while (low <= high) {
+                final int mid = low + high >>> 1;
+                final int cmp = compare(mid, feature);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return this.indexes.get(mid);
+                }
+            }
+            return -1;
+        }
+
+        // same order of String.compareTo
+        private int compare(final int position, final String feature) {
+            final int start = this.offsets.get(position);
+            final int length = this.offsets.get(position + 1) - start;
+            final int n = Math.min(length, feature.length());
+            for (int i = 0; i < n; ++i) {
+                final char c = this.chars.get(start + i);
+                final char d = feature.charAt(i);
+                if (c != d) {
+                    return c - d;
+                }
+            }
+            return length - feature.length();
+        }
+
+        @Override
+        void write(final DataOutputStream out) throws IOException {
+            final ByteBuffer bytes = this.bytes.duplicate();
+            final byte[] chunk = new byte[8192];
+            while (bytes.hasRemaining()) {
+                final int n = Math.min(chunk.length, bytes.remaining());
+                bytes.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,157 @@
+package eu.fbk.utils.svm;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * A vector whose features are already resolved to the indexes of a {@link Classifier} model,
+ * stored as sorted {@code int} indexes and {@code float} values. Features unknown to the model
+ * are dropped when the vector is built, so encoding happens only once per document.
+ * <p>
+ * Instances are obtained from the {@link Builder} returned by {@link Classifier#newVector()} and
+ * can only be passed to that classifier.
+ */
+public final class IndexedVector {
+
+    private static final int[] NO_INDEXES = new int[0];
+
+    private static final float[] NO_VALUES = new float[0];
+
+    final FeatureTable table;
+
+    final int[] indexes;
+
+    final float[] values;
+
+    private IndexedVector(final FeatureTable table, final int[] indexes, final float[] values) {
+        this.table = table;
+        this.indexes = indexes;
+        this.values = values;
+    }
+
+    public int size() {
+        return this.indexes.length;
+    }
+
+    public int getIndex(final int position) {
+        return this.indexes[position];
+    }
+
+    public float getValue(final int position) {
+        return this.values[position];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < this.indexes.length; ++i) {
+            builder.append(i == 0 ? "" : " ").append(this.indexes[i]).append(':')
+                    .append(this.values[i]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Accumulates the features of a vector. The buffers of the builder are reused after each
+     * {@link #build()}, so a builder should be kept (per thread) and used for many documents.
+     * Setting a feature again replaces its value, as in {@link Vector.Builder}.
+     */
+    public static final class Builder {
+
+        private final FeatureTable table;
+
+        // (index << 32 | insertion position), sorted on build
+        private long[] keys;
+
+        private float[] values;
+
+        private int size;
+
+        Builder(final FeatureTable table) {
+            this.table = table;
+            this.keys = new long[16];
+            this.values = new float[16];
+        }
+
+        /**
+         * Returns the index of a feature in the model, or -1 if the feature is unknown. The
+         * index can be cached by the caller and passed to {@link #set(int, float)}.
+         */
+        public int indexOf(final String feature) {
+            return feature.charAt(0) == '_' ? -1 : this.table.indexOf(feature);
+        }
+
+        public Builder set(final int index, final float value) {
+            Preconditions.checkArgument(index >= 0, "Invalid feature index %s", index);
+            if (this.size == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.keys[this.size] = (long) index << 32 | this.size;
+            this.values[this.size] = value;
+            ++this.size;
+            return this;
+        }
+
+        public Builder set(final String feature, final float value) {
+            final int index = indexOf(feature);
+            if (index >= 0) {
+                set(index, value);
+            }
+            return this;
+        }
+
+        public Builder set(final String... features) {
+            for (final String feature : features) {
+                set(feature, 1.0f);
+            }
+            return this;
+        }
+
+        public Builder set(final Vector vector) {
+            final int size = vector.doSize();
+            for (int i = 0; i < size; ++i) {
+                set(vector.doGetFeature(i), vector.doGetValue(i));
+            }
+            return this;
+        }
+
+        public Builder clear() {
+            this.size = 0;
+            return this;
+        }
+
+        /**
+         * Returns the vector of the features set so far and clears the builder.
+         */
+        public IndexedVector build() {
+            Arrays.sort(this.keys, 0, this.size);
+            int count = 0;
+            for (int i = 0; i < this.size; ++i) {
+                if ((i == this.size - 1 || this.keys[i + 1] >>> 32 != this.keys[i] >>> 32)
+                        && this.values[(int) this.keys[i]] != 0.0f) {
+                    ++count;
+                }
+            }
+            final int[] indexes = count == 0 ? NO_INDEXES : new int[count];
+            final float[] values = count == 0 ? NO_VALUES : new float[count];
+            int j = 0;
+            for (int i = 0; i < this.size; ++i) {
+                // the last value set for an index is the one sorted last
+                if (i == this.size - 1 || this.keys[i + 1] >>> 32 != this.keys[i] >>> 32) {
+                    final float value = this.values[(int) this.keys[i]];
+                    if (value != 0.0f) {
+                        indexes[j] = (int) (this.keys[i] >>> 32);
+                        values[j] = value;
+                        ++j;
+                    }
+                }
+            }
+            this.size = 0;
+            return new IndexedVector(this.table, indexes, values);
+        }
+
+    }
+
+}
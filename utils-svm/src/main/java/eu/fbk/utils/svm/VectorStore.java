@@ -0,0 +1,528 @@
+package eu.fbk.utils.svm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A disk-backed collection of labelled vectors, which are read from memory-mapped files and
+ * materialized only while iterating. Only the feature names are kept in memory.
+ * <p>
+ * A store is a directory with the following files:
+ * <ul>
+ * <li>{@code features}: the number of features followed by their names (modified UTF-8);</li>
+ * <li>{@code records}: a fixed-size record for each vector, with its label, its number of
+ * features and the offsets of its data in the other files;</li>
+ * <li>{@code indexes}: the sorted feature indexes of each vector, delta-encoded as varints;</li>
+ * <li>{@code values}: the feature values of each vector, as floats (omitted if all 1.0);</li>
+ * <li>{@code ids}: the IDs of the vectors that have them, as length-prefixed UTF-8 strings.</li>
+ * </ul>
+ * Stores are read-only collections that can be passed to {@link Classifier#train(Classifier.Parameters, Iterable)} and to the
+ * cross-validation methods of {@link Classifier}, which partition them with
+ * {@link #split(int, int)} instead of sorting them in memory.
+ */
+public final class VectorStore extends AbstractCollection<LabelledVector> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VectorStore.class);
+
+    // label (int), size (int), index offset, value offset, ID offset (longs)
+    private static final int RECORD_SIZE = 32;
+
+    private final Path path;
+
+    private final String[] features;
+
+    private final Segments records;
+
+    private final Segments indexes;
+
+    private final Segments values;
+
+    private final Segments ids;
+
+    private final int size;
+
+    private VectorStore(final Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(path.resolve("features"))))) {
+            this.features = new String[in.readInt()];
+            for (int i = 0; i < this.features.length; ++i) {
+                this.features[i] = in.readUTF().intern();
+            }
+        }
+        this.path = path;
+        this.records = new Segments(path.resolve("records"));
+        this.indexes = new Segments(path.resolve("indexes"));
+        this.values = new Segments(path.resolve("values"));
+        this.ids = new Segments(path.resolve("ids"));
+        this.size = (int) (this.records.size / RECORD_SIZE);
+    }
+
+    public static VectorStore open(final Path path) throws IOException {
+        return new VectorStore(path);
+    }
+
+    public static Writer create(final Path path) throws IOException {
+        return new Writer(path);
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    public LabelledVector get(final int index) {
+        Preconditions.checkElementIndex(index, this.size);
+        final long record = (long) index * RECORD_SIZE;
+        final int label = this.records.getInt(record);
+        final int size = this.records.getInt(record + 4);
+        long indexOffset = this.records.getLong(record + 8);
+        final long valueOffset = this.records.getLong(record + 16);
+        final long idOffset = this.records.getLong(record + 24);
+
+        final Map<String, Float> map = Maps.newHashMapWithExpectedSize(size);
+        int featureIndex = 0;
+        for (int i = 0; i < size; ++i) {
+            int delta = 0;
+            for (int shift = 0;; shift += 7) {
+                final byte b = this.indexes.get(indexOffset++);
+                delta |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            featureIndex += delta;
+            final float value = valueOffset < 0 ? 1.0f
+                    : this.values.getFloat(valueOffset + 4L * i);
+            map.put(this.features[featureIndex], value);
+        }
+
+        String id = null;
+        if (idOffset >= 0) {
+            // IDs are not aligned: read them byte by byte
+            int length = 0;
+            for (int i = 0; i < 4; ++i) {
+                length = length << 8 | this.ids.get(idOffset + i) & 0xFF;
+            }
+            final byte[] bytes = new byte[length];
+            for (int i = 0; i < length; ++i) {
+                bytes[i] = this.ids.get(idOffset + 4 + i);
+            }
+            id = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return Vector.create(map, id).label(label);
+    }
+
+    @Override
+    public Iterator<LabelledVector> iterator() {
+        return select(null, 0, this.size).iterator();
+    }
+
+    /**
+     * Deterministically splits the store in {@code numPartitions} partitions, reading only
+     * labels and features and without sorting. As in {@link Vector#split(Iterable, int, int)},
+     * vectors with the same {@code _cluster.} feature are assigned as a whole to the smallest
+     * partition (largest clusters first), while the other vectors are distributed so that each
+     * partition gets the same share of each label. If the store is larger than
+     * {@code maxVectors}, the number of vectors per label is scaled down and the vectors not in
+     * clusters are taken in a fixed pseudo-random order, so that the sample keeps the label
+     * proportions of the store.
+     */
+    public List<Iterable<LabelledVector>> split(final int numPartitions, final int maxVectors) {
+
+        Preconditions.checkArgument(numPartitions > 0 && numPartitions < Byte.MAX_VALUE);
+
+        // Read labels and clusters, counting the vectors of each label and cluster
+        final int[] labels = new int[this.size];
+        final int[] clusters = new int[this.size];
+        final Map<String, Integer> clusterIDs = Maps.newHashMap();
+        final List<String> clusterNames = Lists.newArrayList();
+        int[] clusterSizes = new int[16];
+        int[] distribution = new int[1];
+        for (int index = 0; index < this.size; ++index) {
+            final int label = this.records.getInt((long) index * RECORD_SIZE);
+            distribution = label < distribution.length ? distribution
+                    : Arrays.copyOf(distribution, label + 1);
+            ++distribution[label];
+            labels[index] = label;
+            final String cluster = getCluster(index);
+            if (cluster == null) {
+                clusters[index] = -1;
+            } else {
+                Integer id = clusterIDs.get(cluster);
+                if (id == null) {
+                    id = clusterNames.size();
+                    clusterIDs.put(cluster, id);
+                    clusterNames.add(cluster);
+                    if (id == clusterSizes.length) {
+                        clusterSizes = Arrays.copyOf(clusterSizes, id * 2);
+                    }
+                }
+                clusters[index] = id;
+                ++clusterSizes[id];
+            }
+        }
+
+        // Scale target distribution if total vectors > max output vectors
+        if (this.size > maxVectors) {
+            final float scale = (float) maxVectors / (float) this.size;
+            for (int i = 0; i < distribution.length; ++i) {
+                distribution[i] = (int) (distribution[i] * scale);
+            }
+        }
+
+        // Assign clusters, largest first, to the smallest partition (-1 = not assigned)
+        final int[] sizes = new int[numPartitions];
+        final int[] clusterPartitions = new int[clusterNames.size()];
+        final int[] clusterSizesFinal = clusterSizes;
+        final List<Integer> clusterOrder = Lists.newArrayList(clusterIDs.values());
+        clusterOrder.sort((id1, id2) -> {
+            final int result = clusterSizesFinal[id2] - clusterSizesFinal[id1];
+            return result != 0 ? result
+                    : clusterNames.get(id1).compareTo(clusterNames.get(id2));
+        });
+        Arrays.fill(clusterPartitions, -1);
+        int allocated = 0;
+        for (final int id : clusterOrder) {
+            if (maxVectors > 0 && allocated + clusterSizes[id] > maxVectors) {
+                break;
+            }
+            int smallest = 0;
+            for (int i = 1; i < numPartitions; ++i) {
+                if (sizes[i] < sizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            clusterPartitions[id] = smallest;
+            sizes[smallest] += clusterSizes[id];
+            allocated += clusterSizes[id];
+        }
+
+        // Assign clustered vectors (-1 = not sampled), counting labels in each partition
+        final byte[] assignment = new byte[this.size];
+        final int[][] partitionDistributions = new int[numPartitions][distribution.length];
+        final int[] unclustered = new int[this.size];
+        int numUnclustered = 0;
+        for (int index = 0; index < this.size; ++index) {
+            if (clusters[index] < 0) {
+                assignment[index] = -1;
+                unclustered[numUnclustered++] = index;
+            } else {
+                final int partition = clusterPartitions[clusters[index]];
+                assignment[index] = (byte) partition;
+                if (partition >= 0) {
+                    ++partitionDistributions[partition][labels[index]];
+                }
+            }
+        }
+
+        // Assign the other vectors in a fixed random order, each to the partition farthest
+        // from its share of the vector label, skipping vectors whose label share is complete
+        final Random random = new Random(this.size);
+        for (int i = numUnclustered - 1; i > 0; --i) {
+            final int j = random.nextInt(i + 1);
+            final int index = unclustered[i];
+            unclustered[i] = unclustered[j];
+            unclustered[j] = index;
+        }
+        for (int i = 0; i < numUnclustered && allocated < maxVectors; ++i) {
+            final int index = unclustered[i];
+            final int label = labels[index];
+            int selected = 0;
+            int selectedDelta = 0;
+            for (int partition = 0; partition < numPartitions; ++partition) {
+                final int delta = distribution[label] - numPartitions
+                        * partitionDistributions[partition][label];
+                if (partition == 0 || delta > selectedDelta) {
+                    selected = partition;
+                    selectedDelta = delta;
+                }
+            }
+            if (selectedDelta > 0) {
+                assignment[index] = (byte) selected;
+                ++partitionDistributions[selected][label];
+                ++sizes[selected];
+                ++allocated;
+            }
+        }
+
+        final List<Iterable<LabelledVector>> result = Lists.newArrayList();
+        for (int i = 0; i < numPartitions; ++i) {
+            result.add(select(assignment, i, sizes[i]));
+        }
+        LOGGER.debug("Split store {} in {} partitions of sizes {}", this.path, numPartitions,
+                Arrays.toString(sizes));
+        return ImmutableList.copyOf(result);
+    }
+
+    @Nullable
+    private String getCluster(final int index) {
+        final long record = (long) index * RECORD_SIZE;
+        final int size = this.records.getInt(record + 4);
+        long indexOffset = this.records.getLong(record + 8);
+        String result = null;
+        int featureIndex = 0;
+        for (int i = 0; i < size; ++i) {
+            int delta = 0;
+            for (int shift = 0;; shift += 7) {
+                final byte b = this.indexes.get(indexOffset++);
+                delta |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            featureIndex += delta;
+            final String feature = this.features[featureIndex];
+            if (feature.startsWith("_cluster.")) {
+                if (result == null || feature.compareTo(result) < 0) {
+                    result = feature; // same choice of Vector.split
+                }
+            }
+        }
+        return result;
+    }
+
+    // vectors assigned to the partition supplied (null assignment = all vectors)
+    private Collection<LabelledVector> select(@Nullable final byte[] assignment,
+            final int partition, final int size) {
+        return new AbstractCollection<LabelledVector>() {
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<LabelledVector> iterator() {
+                return new AbstractIterator<LabelledVector>() {
+
+                    private int index = 0;
+
+                    @Override
+                    protected LabelledVector computeNext() {
+                        while (this.index < VectorStore.this.size) {
+                            final int i = this.index++;
+                            if (assignment == null || assignment[i] == partition) {
+                                return get(i);
+                            }
+                        }
+                        return endOfData();
+                    }
+
+                };
+            }
+
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "vector store " + this.path + " (" + this.size + " vectors, "
+                + this.features.length + " features)";
+    }
+
+    /**
+     * Appends vectors to a new store. The store can be opened once the writer is closed.
+     */
+    public static final class Writer implements Closeable {
+
+        private final Path path;
+
+        private final Map<String, Integer> dictionary;
+
+        private final List<String> features;
+
+        private final DataOutputStream records;
+
+        private final CountingStream indexes;
+
+        private final CountingStream values;
+
+        private final CountingStream ids;
+
+        private Writer(final Path path) throws IOException {
+            Files.createDirectories(path);
+            this.path = path;
+            this.dictionary = Maps.newHashMap();
+            this.features = Lists.newArrayList();
+            this.records = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(path.resolve("records"))));
+            this.indexes = new CountingStream(path.resolve("indexes"));
+            this.values = new CountingStream(path.resolve("values"));
+            this.ids = new CountingStream(path.resolve("ids"));
+        }
+
+        public Writer add(final Vector vector) throws IOException {
+
+            // Encode features, sorting their indexes together with the vector positions
+            final int size = vector.size();
+            final long[] keys = new long[size];
+            boolean allOnes = true;
+            for (int i = 0; i < size; ++i) {
+                final String feature = vector.getFeature(i);
+                Integer index = this.dictionary.get(feature);
+                if (index == null) {
+                    index = this.features.size();
+                    this.dictionary.put(feature, index);
+                    this.features.add(feature);
+                }
+                keys[i] = (long) index << 32 | i;
+                allOnes &= vector.getValue(i) == 1.0f;
+            }
+            Arrays.sort(keys);
+
+            // Write the record
+            final int label = vector instanceof LabelledVector ? ((LabelledVector) vector)
+                    .getLabel() : 0;
+            this.records.writeInt(label);
+            this.records.writeInt(size);
+            this.records.writeLong(this.indexes.count);
+            this.records.writeLong(allOnes ? -1L : this.values.count);
+            this.records.writeLong(vector.getId() == null ? -1L : this.ids.count);
+
+            // Write indexes, values and ID
+            int last = 0;
+            for (final long key : keys) {
+                final int index = (int) (key >>> 32);
+                int delta = index - last;
+                while ((delta & ~0x7F) != 0) {
+                    this.indexes.out.writeByte(delta & 0x7F | 0x80);
+                    delta >>>= 7;
+                }
+                this.indexes.out.writeByte(delta);
+                last = index;
+            }
+            if (!allOnes) {
+                for (final long key : keys) {
+                    this.values.out.writeFloat(vector.getValue((int) key));
+                }
+            }
+            if (vector.getId() != null) {
+                final byte[] bytes = vector.getId().getBytes(StandardCharsets.UTF_8);
+                this.ids.out.writeInt(bytes.length);
+                this.ids.out.write(bytes);
+            }
+            return this;
+        }
+
+        public Writer addAll(final Iterable<? extends Vector> vectors) throws IOException {
+            for (final Vector vector : vectors) {
+                add(vector);
+            }
+            return this;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.records.close();
+            this.indexes.out.close();
+            this.values.out.close();
+            this.ids.out.close();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(this.path.resolve("features"))))) {
+                out.writeInt(this.features.size());
+                for (final String feature : this.features) {
+                    out.writeUTF(feature);
+                }
+            }
+        }
+
+    }
+
+    private static final class CountingStream {
+
+        final DataOutputStream out;
+
+        long count;
+
+        CountingStream(final Path path) throws IOException {
+            // bytes are counted before buffering, so that count is the offset of the next write
+            this.out = new DataOutputStream(new FilterOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(path))) {
+
+                @Override
+                public void write(final int b) throws IOException {
+                    this.out.write(b);
+                    ++CountingStream.this.count;
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len)
+                        throws IOException {
+                    this.out.write(b, off, len);
+                    CountingStream.this.count += len;
+                }
+
+            });
+        }
+
+    }
+
+    // a file mapped in segments of 1GB, so to address files larger than 2GB
+    private static final class Segments {
+
+        private static final int SHIFT = 30;
+
+        private static final long MASK = (1L << SHIFT) - 1;
+
+        final long size;
+
+        private final ByteBuffer[] buffers;
+
+        Segments(final Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                this.size = channel.size();
+                this.buffers = new ByteBuffer[(int) (this.size >>> SHIFT) + 1];
+                for (int i = 0; i < this.buffers.length; ++i) {
+                    final long start = (long) i << SHIFT;
+                    this.buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                            Math.min(1L << SHIFT, this.size - start));
+                }
+            }
+        }
+
+        byte get(final long position) {
+            return this.buffers[(int) (position >>> SHIFT)].get((int) (position & MASK));
+        }
+
+        // ints, longs and floats never cross segments, as they are aligned in their files
+        int getInt(final long position) {
+            return this.buffers[(int) (position >>> SHIFT)].getInt((int) (position & MASK));
+        }
+
+        long getLong(final long position) {
+            return this.buffers[(int) (position >>> SHIFT)].getLong((int) (position & MASK));
+        }
+
+        float getFloat(final long position) {
+            return this.buffers[(int) (position >>> SHIFT)].getFloat((int) (position & MASK));
+        }
+
+    }
+
+}
@@ -18,6 +18,7 @@ import org.apache.commons.cli.*;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 
@@ -76,6 +77,16 @@ public class FormPageSearcher extends FreqSetSearcher {
             OptionBuilder.withDescription("read the keys' frequencies from the specified file");
             OptionBuilder.withLongOpt("key-freq");
             final Option freqFileOpt = OptionBuilder.create("f");
+            OptionBuilder.withArgName("file");
+            OptionBuilder.hasArg();
+            OptionBuilder.withDescription("export the index in the specified value set file (see MappedFreqSetSearcher)");
+            OptionBuilder.withLongOpt("export");
+            final Option exportOpt = OptionBuilder.create("x");
+            OptionBuilder.withArgName("bytes");
+            OptionBuilder.hasArg();
+            OptionBuilder.withDescription("cache the values found in the index using at most the specified number of bytes");
+            OptionBuilder.withLongOpt("cache-size");
+            final Option cacheSizeOpt = OptionBuilder.create("c");
             OptionBuilder.withArgName("minimum-freq");
             // Option keyFieldNameOpt =
             // OptionBuilder.withArgName("key-field-name").hasArg().withDescription("use the specified name for the field key").withLongOpt("key-field-name").create("k");
@@ -101,6 +112,8 @@ public class FormPageSearcher extends FreqSetSearcher {
             options.addOption(interactiveModeOpt);
             options.addOption(searchOpt);
             options.addOption(freqFileOpt);
+            options.addOption(exportOpt);
+            options.addOption(cacheSizeOpt);
             // options.addOption(keyFieldNameOpt);
             // options.addOption(valueFieldNameOpt);
             options.addOption(minimumKeyFreqOpt);
@@ -133,6 +146,12 @@ public class FormPageSearcher extends FreqSetSearcher {
              * (line.hasOption("value-field-name")) {
              * pageFormSearcher.setValueFieldName(line.getOptionValue("value-field-name")); }
              */
+            if (line.hasOption("export")) {
+                MappedFreqSetSearcher.write(pageFormSearcher, new File(line.getOptionValue("export")));
+            }
+            if (line.hasOption("cache-size")) {
+                pageFormSearcher.setCacheSize(Long.parseLong(line.getOptionValue("cache-size")));
+            }
             if (line.hasOption("key-freq")) {
                 pageFormSearcher.loadCache(line.getOptionValue("key-freq"), minFreq);
             }
@@ -0,0 +1,411 @@
+/*
+ * Copyright (2013) Fondazione Bruno Kessler (http://www.fbk.eu/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.fbk.utils.twm;
+
+import eu.fbk.utils.core.Environment;
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe cache of the values of a {@link FreqSetSearcher} bounded by an (estimated) number
+ * of bytes.
+ * <p>
+ * Keys are spread over independent segments, each one guarded by its own lock. Each segment
+ * follows the W-TinyLFU policy: new entries enter a small LRU window (1% of the budget); entries
+ * leaving the window are admitted in the main space (a segmented LRU with probation and
+ * protected queues) only if their estimated access frequency, kept by a count-min sketch with
+ * periodic aging, is higher than the one of the entry that would be evicted.
+ */
+public class FreqSetCache {
+
+    /**
+     * Define a static logger variable so that it references the Logger instance named
+     * <code>FreqSetCache</code>.
+     */
+    static Logger logger = Logger.getLogger(FreqSetCache.class.getName());
+
+    // percentage of the budget of the admission window
+    private static final double WINDOW_RATIO = 0.01;
+
+    // percentage of the main space reserved to the protected queue
+    private static final double PROTECTED_RATIO = 0.8;
+
+    // size used to estimate the number of entries from the budget
+    private static final int AVERAGE_ENTRY_SIZE = 512;
+
+    private static final int WINDOW = 0;
+
+    private static final int PROBATION = 1;
+
+    private static final int PROTECTED = 2;
+
+    private final long maxBytes;
+
+    private final Segment[] segments;
+
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    public FreqSetCache(final long maxBytes) {
+        this(maxBytes, 4 * Environment.getCores());
+    }
+
+    public FreqSetCache(final long maxBytes, final int concurrencyLevel) {
+        int n = 1;
+        while (n < concurrencyLevel) {
+            n <<= 1;
+        }
+        this.maxBytes = maxBytes;
+        this.segments = new Segment[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            this.segments[i] = new Segment(maxBytes / n);
+        }
+        logger.info("cache of " + maxBytes + " bytes (" + n + " segments)");
+    }
+
+    /**
+     * Returns the values of the specified key, or null if the key is not cached.
+     */
+    public FreqSetSearcher.Entry[] get(final String key) {
+        final int h = spread(key.hashCode());
+        final FreqSetSearcher.Entry[] result = this.segments[h & this.mask].get(key, h);
+        if (result == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Caches the values of the specified key. The entry may be immediately rejected if it is
+     * accessed less frequently than the entries already cached.
+     */
+    public void put(final String key, final FreqSetSearcher.Entry[] value) {
+        final int h = spread(key.hashCode());
+        this.segments[h & this.mask].put(key, value, h);
+    }
+
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    public long hitCount() {
+        return this.hits.sum();
+    }
+
+    public long missCount() {
+        return this.misses.sum();
+    }
+
+    public long evictionCount() {
+        return this.evictions.sum();
+    }
+
+    public double hitRate() {
+        final long hits = hitCount();
+        final long total = hits + missCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Returns the number of cached keys.
+     */
+    public int size() {
+        int size = 0;
+        for (final Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated number of bytes used by the cached entries.
+     */
+    public long weightedSize() {
+        long size = 0;
+        for (final Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.window.bytes + segment.probation.bytes + segment.protect.bytes;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + ", bytes=" + weightedSize() + "/" + this.maxBytes + ", hits="
+                + hitCount() + ", misses=" + missCount() + ", evictions=" + evictionCount()
+                + ", hit rate=" + hitRate();
+    }
+
+    /**
+     * Returns the estimated number of bytes used by a key and its values.
+     */
+    static int weigh(final String key, final FreqSetSearcher.Entry[] value) {
+        // node, key and array headers
+        int weight = 64 + 2 * key.length() + 16 + 4 * value.length;
+        for (final FreqSetSearcher.Entry entry : value) {
+            // entry, string and char array
+            weight += 32 + 40 + 2 * entry.getValue().length();
+        }
+        return weight;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final class Node {
+
+        final String key;
+
+        final int hash;
+
+        FreqSetSearcher.Entry[] value;
+
+        int weight;
+
+        int queue;
+
+        Node prev;
+
+        Node next;
+
+        Node(final String key, final int hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+    }
+
+    // a doubly linked list of nodes, from the least to the most recently used
+    private static final class Queue {
+
+        final Node head = new Node(null, 0);
+
+        long bytes;
+
+        Queue() {
+            this.head.prev = this.head;
+            this.head.next = this.head;
+        }
+
+        Node first() {
+            return this.head.next == this.head ? null : this.head.next;
+        }
+
+        void add(final Node node) {
+            node.prev = this.head.prev;
+            node.next = this.head;
+            this.head.prev.next = node;
+            this.head.prev = node;
+            this.bytes += node.weight;
+        }
+
+        void remove(final Node node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            this.bytes -= node.weight;
+        }
+
+        void moveToBack(final Node node) {
+            remove(node);
+            add(node);
+        }
+    }
+
+    // count-min sketch of 4-bit counters with periodic aging
+    private static final class Sketch {
+
+        private static final int[] SEEDS = { 0x97cb3127, 0xb3b1ad0b, 0x4a2c1f5d, 0x8d4f3a67 };
+
+        private final byte[][] counters;
+
+        private final int mask;
+
+        private final int sampleSize;
+
+        private int additions;
+
+        Sketch(final int capacity) {
+            int width = 64;
+            while (width < capacity) {
+                width <<= 1;
+            }
+            this.counters = new byte[SEEDS.length][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        private int index(final int hash, final int i) {
+            final int h = hash * SEEDS[i];
+            return (h ^ h >>> 15) & this.mask;
+        }
+
+        int frequency(final int hash) {
+            int min = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                min = Math.min(min, this.counters[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        void increment(final int hash) {
+            for (int i = 0; i < SEEDS.length; i++) {
+                final int j = index(hash, i);
+                if (this.counters[i][j] < 15) {
+                    this.counters[i][j]++;
+                }
+            }
+
+            if (++this.additions == this.sampleSize) {
+                // halves all counters to forget old accesses
+                for (final byte[] row : this.counters) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                this.additions /= 2;
+            }
+        }
+    }
+
+    private final class Segment {
+
+        final Map<String, Node> map = new HashMap<String, Node>();
+
+        final Queue window = new Queue();
+
+        final Queue probation = new Queue();
+
+        final Queue protect = new Queue();
+
+        final long windowMax;
+
+        final long mainMax;
+
+        final long protectedMax;
+
+        final Sketch sketch;
+
+        Segment(final long maxBytes) {
+            this.windowMax = Math.max(1, (long) (maxBytes * WINDOW_RATIO));
+            this.mainMax = maxBytes - this.windowMax;
+            this.protectedMax = (long) (this.mainMax * PROTECTED_RATIO);
+            this.sketch = new Sketch((int) Math.min(1 << 24, maxBytes / AVERAGE_ENTRY_SIZE));
+        }
+
+        synchronized FreqSetSearcher.Entry[] get(final String key, final int hash) {
+            this.sketch.increment(hash);
+            final Node node = this.map.get(key);
+            if (node == null) {
+                return null;
+            }
+
+            if (node.queue == WINDOW) {
+                this.window.moveToBack(node);
+            } else if (node.queue == PROBATION) {
+                // promotes the node and demotes the protected entries in excess
+                this.probation.remove(node);
+                node.queue = PROTECTED;
+                this.protect.add(node);
+                while (this.protect.bytes > this.protectedMax) {
+                    final Node first = this.protect.first();
+                    this.protect.remove(first);
+                    first.queue = PROBATION;
+                    this.probation.add(first);
+                }
+            } else {
+                this.protect.moveToBack(node);
+            }
+            return node.value;
+        }
+
+        synchronized void put(final String key, final FreqSetSearcher.Entry[] value,
+                final int hash) {
+            final Node old = this.map.remove(key);
+            if (old != null) {
+                queue(old).remove(old);
+            }
+
+            final Node node = new Node(key, hash);
+            node.value = value;
+            node.weight = weigh(key, value);
+            node.queue = WINDOW;
+            this.map.put(key, node);
+            this.window.add(node);
+
+            // the least recently used entries of the window are candidates for the main space
+            while (this.window.bytes > this.windowMax) {
+                final Node candidate = this.window.first();
+                this.window.remove(candidate);
+                admit(candidate);
+            }
+        }
+
+        private void admit(final Node candidate) {
+            while (this.probation.bytes + this.protect.bytes + candidate.weight > this.mainMax) {
+                Node victim = this.probation.first();
+                if (victim == null) {
+                    victim = this.protect.first();
+                }
+                if (victim == null) {
+                    break;
+                }
+
+                if (this.sketch.frequency(candidate.hash) <= this.sketch.frequency(victim.hash)) {
+                    evict(candidate);
+                    return;
+                }
+                queue(victim).remove(victim);
+                evict(victim);
+            }
+
+            if (candidate.weight > this.mainMax) {
+                evict(candidate);
+                return;
+            }
+            candidate.queue = PROBATION;
+            this.probation.add(candidate);
+        }
+
+        private void evict(final Node node) {
+            this.map.remove(node.key);
+            FreqSetCache.this.evictions.increment();
+        }
+
+        private Queue queue(final Node node) {
+            return node.queue == WINDOW ? this.window : node.queue == PROBATION ? this.probation
+                    : this.protect;
+        }
+    }
+
+}
@@ -20,10 +20,10 @@ import org.apache.lucene.index.TermDocs;
 
 import java.io.*;
 import java.text.DecimalFormat;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -58,6 +58,10 @@ public abstract class FreqSetSearcher extends AbstractSearcher {
 
     private Map<String, Entry[]> cache;
 
+    private FreqSetCache boundedCache;
+
+    private final Entry[] emptyResult = new Entry[0];
+
     private Term keyTerm;
 
     protected String keyFieldName;
@@ -112,6 +116,22 @@ public abstract class FreqSetSearcher extends AbstractSearcher {
         this.valueFieldName = valueFieldName;
     }
 
+    /**
+     * Caches the values found in the index on demand, using at most the specified number of
+     * bytes (0 to disable the cache). Unlike {@link #loadCache(File, int)}, the cache adapts to
+     * the keys actually searched and can be shared by many threads.
+     */
+    public void setCacheSize(final long maxBytes) {
+        this.boundedCache = maxBytes > 0 ? new FreqSetCache(maxBytes) : null;
+    }
+
+    /**
+     * Returns the cache set by {@link #setCacheSize(long)}, or null.
+     */
+    public FreqSetCache getCache() {
+        return this.boundedCache;
+    }
+
     public void loadCache(final String name) throws IOException {
         loadCache(new File(name));
     }
@@ -130,7 +150,7 @@ public abstract class FreqSetSearcher extends AbstractSearcher {
 
         if (this.threadSafe) {
             logger.info(this.getClass().getName() + "'s cache is thread safe");
-            this.cache = Collections.synchronizedMap(new HashMap<String, Entry[]>());
+            this.cache = new ConcurrentHashMap<String, Entry[]>();
         } else {
             logger.warn(this.getClass().getName() + "'s cache isn't thread safe");
             this.cache = new HashMap<String, Entry[]>();
@@ -188,6 +208,14 @@ public abstract class FreqSetSearcher extends AbstractSearcher {
             return result;
         }
 
+        final FreqSetCache boundedCache = this.boundedCache;
+        if (boundedCache != null) {
+            result = boundedCache.get(key);
+            if (result != null) {
+                return result;
+            }
+        }
+
         try {
             // begin = System.nanoTime();
             final TermDocs termDocs = indexReader.termDocs(this.keyTerm.createTerm(key));
@@ -201,9 +229,14 @@ public abstract class FreqSetSearcher extends AbstractSearcher {
                 // end = System.nanoTime();
                 // logger.debug(termDocs.freq() + " deserialized in " + tf.format(end - begin) +
                 // " ns");
-
-                return result;
+            } else {
+                // missing keys are cached too
+                result = this.emptyResult;
             }
+            if (boundedCache != null) {
+                boundedCache.put(key, result);
+            }
+            return result;
         } catch (final IOException e) {
             logger.error(e);
         }
@@ -0,0 +1,722 @@
+/*
+ * Copyright (2013) Fondazione Bruno Kessler (http://www.fbk.eu/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.fbk.utils.twm;
+
+import org.apache.commons.cli.*;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DecimalFormat;
+import java.util.*;
+
+/**
+ * Read-only searcher over the values of a {@link FreqSetSearcher} exported in a compact binary
+ * file, which is memory-mapped instead of being loaded on the heap.
+ * <p>
+ * Keys are located with a minimal perfect hash (hash and displace), forms are dictionary encoded
+ * and frequencies are quantized to 16 bits on a logarithmic scale (relative error below 0.02%).
+ * The file is written once with {@link #write(FreqSetSearcher, File)} and never modified;
+ * {@link #search(CharSequence, Result)} does not allocate memory and can be called concurrently
+ * by many threads, each one with its own {@link Result}.
+ * <p>
+ * Each section of the file (keys, values, forms) must be smaller than 2 GB.
+ */
+public class MappedFreqSetSearcher {
+
+    /**
+     * Define a static logger variable so that it references the Logger instance named
+     * <code>MappedFreqSetSearcher</code>.
+     */
+    static Logger logger = Logger.getLogger(MappedFreqSetSearcher.class.getName());
+
+    public static final int MAGIC = 0x46534554;
+
+    public static final int VERSION = 1;
+
+    // average number of keys per bucket of the perfect hash
+    private static final int BUCKET_SIZE = 3;
+
+    // max displacement tried for a bucket
+    private static final int MAX_DISPLACEMENT = 1 << 24;
+
+    // quantization steps per power of 2
+    private static final double QUANTUM = 2048;
+
+    // size of the header in bytes
+    private static final int HEADER_SIZE = 32;
+
+    private static DecimalFormat tf = new DecimalFormat("000,000,000.#");
+
+    private final int size;
+
+    private final int buckets;
+
+    private final int forms;
+
+    private final IntBuffer displacements;
+
+    private final IntBuffer keyOffsets;
+
+    private final CharBuffer keyChars;
+
+    private final IntBuffer valueOffsets;
+
+    private final ByteBuffer values;
+
+    private final IntBuffer formOffsets;
+
+    private final CharBuffer formChars;
+
+    public MappedFreqSetSearcher(final File f) throws IOException {
+        logger.info("mapping " + f + "...");
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            if (raf.readInt() != MAGIC) {
+                throw new IOException(f + " is not a value set file");
+            }
+            final int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported version " + version + " in " + f);
+            }
+            this.size = raf.readInt();
+            this.buckets = raf.readInt();
+            this.forms = raf.readInt();
+            final int keyLength = raf.readInt();
+            final int valueLength = raf.readInt();
+            final int formLength = raf.readInt();
+
+            final FileChannel channel = raf.getChannel();
+            long position = HEADER_SIZE;
+            this.displacements = map(channel, position, 4L * this.buckets).asIntBuffer();
+            position += 4L * this.buckets;
+            this.keyOffsets = map(channel, position, 4L * (this.size + 1)).asIntBuffer();
+            position += 4L * (this.size + 1);
+            this.keyChars = map(channel, position, 2L * keyLength).asCharBuffer();
+            position += 2L * keyLength;
+            this.valueOffsets = map(channel, position, 4L * this.size).asIntBuffer();
+            position += 4L * this.size;
+            this.values = map(channel, position, valueLength);
+            position += valueLength;
+            this.formOffsets = map(channel, position, 4L * (this.forms + 1)).asIntBuffer();
+            position += 4L * (this.forms + 1);
+            this.formChars = map(channel, position, 2L * formLength).asCharBuffer();
+        } finally {
+            // the mapping remains valid after the channel is closed
+            raf.close();
+        }
+        logger.info(this.size + " keys and " + this.forms + " forms mapped");
+    }
+
+    private static MappedByteBuffer map(final FileChannel channel, final long position,
+            final long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    /**
+     * Returns the number of keys.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of distinct forms.
+     */
+    public int getFormCount() {
+        return this.forms;
+    }
+
+    /**
+     * Returns the form with the specified id.
+     */
+    public String getForm(final int id) {
+        final int begin = this.formOffsets.get(id);
+        final int end = this.formOffsets.get(id + 1);
+        final char[] chars = new char[end - begin];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = this.formChars.get(begin + i);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Returns the position of the values of the specified key, or -1 if the key is not present.
+     */
+    public int find(final CharSequence key) {
+        if (this.size == 0) {
+            return -1;
+        }
+
+        final long h = hash(key);
+        final int d = this.displacements.get(bucket(h, this.buckets));
+        final int slot = d < 0 ? -d - 1 : slot(h, d, this.size);
+
+        // the perfect hash maps unknown keys to arbitrary slots
+        final int begin = this.keyOffsets.get(slot);
+        final int end = this.keyOffsets.get(slot + 1);
+        if (end - begin != key.length()) {
+            return -1;
+        }
+        for (int i = begin; i < end; i++) {
+            if (this.keyChars.get(i) != key.charAt(i - begin)) {
+                return -1;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Searches the specified key and stores its values in the result. Returns false if the key
+     * is not present; in this case the result is empty.
+     */
+    public boolean search(final CharSequence key, final Result result) {
+        final int slot = find(key);
+        if (slot == -1) {
+            result.offset = 0;
+            result.size = 0;
+            return false;
+        }
+
+        final int offset = this.valueOffsets.get(slot);
+        result.offset = offset + 4;
+        result.size = this.values.getInt(offset);
+        return true;
+    }
+
+    /**
+     * Returns a new result bound to this searcher. Results are not thread-safe and should be
+     * reused by the thread that created them.
+     */
+    public Result newResult() {
+        return new Result();
+    }
+
+    /**
+     * The values of a key: forms and frequencies sorted as in the index. The result is
+     * overwritten by each search.
+     */
+    public class Result {
+
+        private int offset;
+
+        private int size;
+
+        private final Form form = new Form();
+
+        private Result() {
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        /**
+         * Returns the id of the i-th form.
+         */
+        public int getFormId(final int i) {
+            return MappedFreqSetSearcher.this.values.getInt(this.offset + 6 * i);
+        }
+
+        /**
+         * Returns the relative frequency of the i-th form.
+         */
+        public double getFreq(final int i) {
+            return dequantize(MappedFreqSetSearcher.this.values.getChar(this.offset + 6 * i + 4));
+        }
+
+        /**
+         * Returns a view of the i-th form, which is valid until the next call of this method.
+         */
+        public CharSequence getValue(final int i) {
+            final int id = getFormId(i);
+            this.form.begin = MappedFreqSetSearcher.this.formOffsets.get(id);
+            this.form.end = MappedFreqSetSearcher.this.formOffsets.get(id + 1);
+            return this.form;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < this.size; i++) {
+                sb.append(i);
+                sb.append(AbstractSearcher.HORIZONTAL_TABULATION);
+                sb.append(getFreq(i));
+                sb.append(AbstractSearcher.HORIZONTAL_TABULATION);
+                sb.append(getValue(i));
+                sb.append(AbstractSearcher.LINE_FEED);
+            }
+            return sb.toString();
+        }
+    }
+
+    // a form in the mapped dictionary
+    private class Form implements CharSequence {
+
+        private int begin;
+
+        private int end;
+
+        @Override
+        public int length() {
+            return this.end - this.begin;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return MappedFreqSetSearcher.this.formChars.get(this.begin + index);
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return toString().subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            final char[] chars = new char[length()];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = charAt(i);
+            }
+            return new String(chars);
+        }
+    }
+
+    static long hash(final CharSequence s) {
+        // FNV-1a over the chars
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int bucket(final long h, final int buckets) {
+        return (int) ((h >>> 32) % buckets);
+    }
+
+    private static int slot(final long h, final int d, final int size) {
+        return (int) ((mix(h + d * 0x9e3779b97f4a7c15L) >>> 1) % size);
+    }
+
+    static char quantize(final double freq) {
+        final long q = Math.round(-Math.log(freq) / Math.log(2) * QUANTUM);
+        return (char) Math.max(0, Math.min(Character.MAX_VALUE, q));
+    }
+
+    static double dequantize(final char q) {
+        return Math.pow(2, -q / QUANTUM);
+    }
+
+    /**
+     * Exports the values of the specified searcher.
+     */
+    public static void write(final FreqSetSearcher searcher, final File f) throws IOException {
+        final IndexReader indexReader = searcher.getIndexReader();
+        final String keyFieldName = searcher.getKeyFieldName();
+        final String valueFieldName = searcher.getValueFieldName();
+        final TermEnum termEnum = indexReader.terms(new Term(keyFieldName, ""));
+        try {
+            write(new Iterator<Map.Entry<String, byte[]>>() {
+
+                private Map.Entry<String, byte[]> next = advance(true);
+
+                private Map.Entry<String, byte[]> advance(boolean first) {
+                    try {
+                        while (first || termEnum.next()) {
+                            first = false;
+                            final Term term = termEnum.term();
+                            if (term == null || !term.field().equals(keyFieldName)) {
+                                return null;
+                            }
+                            final TermDocs termDocs = indexReader.termDocs(term);
+                            try {
+                                if (termDocs.next()) {
+                                    final Document doc = indexReader.document(termDocs.doc());
+                                    return new AbstractMap.SimpleImmutableEntry<String, byte[]>(
+                                            term.text(), doc.getBinaryValue(valueFieldName));
+                                }
+                            } finally {
+                                termDocs.close();
+                            }
+                        }
+                        return null;
+                    } catch (final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return this.next != null;
+                }
+
+                @Override
+                public Map.Entry<String, byte[]> next() {
+                    if (this.next == null) {
+                        throw new NoSuchElementException();
+                    }
+                    final Map.Entry<String, byte[]> result = this.next;
+                    this.next = advance(false);
+                    return result;
+                }
+            }, f, searcher.getNotificationPoint());
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            termEnum.close();
+        }
+    }
+
+    /**
+     * Writes the keys and values (in the format stored in the Lucene index) returned by the
+     * iterator.
+     */
+    static void write(final Iterator<Map.Entry<String, byte[]>> it, final File f,
+            final int notificationPoint) throws IOException {
+        logger.info("writing " + f + "...");
+        final long begin = System.nanoTime();
+
+        // the values are written in a temporary file in the order of the keys
+        final File valueFile = File.createTempFile("values", ".tmp", f.getAbsoluteFile()
+                .getParentFile());
+        valueFile.deleteOnExit();
+        final List<String> keyList = new ArrayList<String>();
+        final List<Integer> offsetList = new ArrayList<Integer>();
+        final Map<String, Integer> formMap = new HashMap<String, Integer>();
+        final List<String> formList = new ArrayList<String>();
+        long valueLength = 0;
+        final DataOutputStream valueStream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(valueFile)));
+        try {
+            while (it.hasNext()) {
+                final Map.Entry<String, byte[]> entry = it.next();
+                final DataInputStream dataStream = new DataInputStream(new ByteArrayInputStream(
+                        entry.getValue()));
+
+                // number of distinct forms
+                final int size = dataStream.readInt();
+
+                // total number of forms
+                final int sum = dataStream.readInt();
+
+                keyList.add(entry.getKey());
+                offsetList.add((int) valueLength);
+                valueStream.writeInt(size);
+                for (int j = 0; j < size; j++) {
+                    final String form = dataStream.readUTF();
+                    Integer id = formMap.get(form);
+                    if (id == null) {
+                        id = formList.size();
+                        formMap.put(form, id);
+                        formList.add(form);
+                    }
+                    valueStream.writeInt(id);
+                    valueStream.writeChar(quantize((double) dataStream.readInt() / sum));
+                }
+
+                valueLength += 4 + 6 * size;
+                if (valueLength > Integer.MAX_VALUE) {
+                    throw new IOException("too many values (" + valueLength + " bytes)");
+                }
+                if (keyList.size() % notificationPoint == 0) {
+                    logger.debug(keyList.size() + " keys read (" + formList.size() + " forms) "
+                            + new Date());
+                }
+            }
+        } finally {
+            valueStream.close();
+        }
+
+        final int size = keyList.size();
+        final int buckets = Math.max(1, size / BUCKET_SIZE);
+        final int[] displacements = new int[buckets];
+        final int[] slots = build(keyList, displacements);
+
+        // the keys and their value offsets are stored in the order of the slots
+        final int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[slots[i]] = i;
+        }
+
+        long keyLength = 0;
+        for (final String key : keyList) {
+            keyLength += key.length();
+        }
+        long formLength = 0;
+        for (final String form : formList) {
+            formLength += form.length();
+        }
+        if (keyLength > Integer.MAX_VALUE / 2 || formLength > Integer.MAX_VALUE / 2) {
+            throw new IOException("too many keys (" + keyLength + " chars) or forms ("
+                    + formLength + " chars)");
+        }
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(f)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(buckets);
+            out.writeInt(formList.size());
+            out.writeInt((int) keyLength);
+            out.writeInt((int) valueLength);
+            out.writeInt((int) formLength);
+
+            for (int i = 0; i < buckets; i++) {
+                out.writeInt(displacements[i]);
+            }
+
+            int offset = 0;
+            for (int i = 0; i < size; i++) {
+                out.writeInt(offset);
+                offset += keyList.get(order[i]).length();
+            }
+            out.writeInt(offset);
+            for (int i = 0; i < size; i++) {
+                out.writeChars(keyList.get(order[i]));
+            }
+
+            for (int i = 0; i < size; i++) {
+                out.writeInt(offsetList.get(order[i]));
+            }
+            final InputStream in = new BufferedInputStream(new FileInputStream(valueFile));
+            try {
+                final byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+
+            offset = 0;
+            for (final String form : formList) {
+                out.writeInt(offset);
+                offset += form.length();
+            }
+            out.writeInt(offset);
+            for (final String form : formList) {
+                out.writeChars(form);
+            }
+        } finally {
+            out.close();
+            valueFile.delete();
+        }
+
+        final long end = System.nanoTime();
+        logger.info(size + " keys and " + formList.size() + " forms written in "
+                + tf.format(end - begin) + " ns");
+    }
+
+    /**
+     * Builds the minimal perfect hash of the keys: fills the displacement of each bucket and
+     * returns the slot of each key.
+     */
+    private static int[] build(final List<String> keyList, final int[] displacements)
+            throws IOException {
+        final int size = keyList.size();
+        final int buckets = displacements.length;
+        final long[] hashes = new long[size];
+        final int[] bucketSize = new int[buckets];
+        for (int i = 0; i < size; i++) {
+            hashes[i] = hash(keyList.get(i));
+            bucketSize[bucket(hashes[i], buckets)]++;
+        }
+
+        // keys grouped by bucket
+        final int[] bucketStart = new int[buckets + 1];
+        for (int b = 0; b < buckets; b++) {
+            bucketStart[b + 1] = bucketStart[b] + bucketSize[b];
+        }
+        final int[] members = new int[size];
+        final int[] fill = Arrays.copyOf(bucketStart, buckets);
+        for (int i = 0; i < size; i++) {
+            members[fill[bucket(hashes[i], buckets)]++] = i;
+        }
+
+        // buckets sorted by decreasing size
+        int maxSize = 0;
+        for (int b = 0; b < buckets; b++) {
+            maxSize = Math.max(maxSize, bucketSize[b]);
+        }
+        final int[] sizeStart = new int[maxSize + 2];
+        for (int b = 0; b < buckets; b++) {
+            sizeStart[maxSize - bucketSize[b] + 1]++;
+        }
+        for (int s = 1; s < sizeStart.length; s++) {
+            sizeStart[s] += sizeStart[s - 1];
+        }
+        final int[] sorted = new int[buckets];
+        for (int b = 0; b < buckets; b++) {
+            sorted[sizeStart[maxSize - bucketSize[b]]++] = b;
+        }
+
+        final int[] slots = new int[size];
+        final boolean[] used = new boolean[size];
+        final int[] candidates = new int[maxSize];
+        int free = 0;
+        for (final int b : sorted) {
+            final int n = bucketSize[b];
+            if (n == 0) {
+                break;
+            }
+
+            if (n == 1) {
+                // single keys take the next free slot directly
+                while (used[free]) {
+                    free++;
+                }
+                used[free] = true;
+                slots[members[bucketStart[b]]] = free;
+                displacements[b] = -free - 1;
+                continue;
+            }
+
+            int d = 0;
+            search:
+            for (; d < MAX_DISPLACEMENT; d++) {
+                for (int j = 0; j < n; j++) {
+                    final int slot = slot(hashes[members[bucketStart[b] + j]], d, size);
+                    if (used[slot]) {
+                        continue search;
+                    }
+                    for (int k = 0; k < j; k++) {
+                        if (candidates[k] == slot) {
+                            continue search;
+                        }
+                    }
+                    candidates[j] = slot;
+                }
+                break;
+            }
+            if (d == MAX_DISPLACEMENT) {
+                throw new IOException("unable to build the perfect hash (bucket " + b + ", "
+                        + n + " keys)");
+            }
+
+            displacements[b] = d;
+            for (int j = 0; j < n; j++) {
+                used[candidates[j]] = true;
+                slots[members[bucketStart[b] + j]] = candidates[j];
+            }
+        }
+        return slots;
+    }
+
+    public void interactive() throws Exception {
+        final Result result = newResult();
+        final BufferedReader myInput = new BufferedReader(new InputStreamReader(System.in));
+        while (true) {
+            System.out
+                    .println("\nPlease write a key and type <return> to continue (CTRL C to exit):");
+
+            final String query = myInput.readLine();
+            if (query == null) {
+                break;
+            }
+            final long begin = System.nanoTime();
+            final boolean found = search(query, result);
+            final long end = System.nanoTime();
+            if (found) {
+                logger.info(result);
+                logger.info(query + " found in " + tf.format(end - begin) + " ns");
+            } else {
+                logger.info(query + " not found in " + tf.format(end - begin) + " ns");
+            }
+        }
+    }
+
+    public static void main(final String args[]) throws Exception {
+        String logConfig = System.getProperty("log-config");
+        if (logConfig == null) {
+            logConfig = "configuration/log-config.txt";
+        }
+
+        PropertyConfigurator.configure(logConfig);
+        final Options options = new Options();
+        try {
+            OptionBuilder.withArgName("file");
+            OptionBuilder.hasArg();
+            OptionBuilder.withDescription("open the value set file with the specified name");
+            OptionBuilder.isRequired();
+            OptionBuilder.withLongOpt("file");
+            final Option fileOpt = OptionBuilder.create("f");
+            OptionBuilder.withArgName("interactive-mode");
+            OptionBuilder.withDescription("enter in the interactive mode");
+            OptionBuilder.withLongOpt("interactive-mode");
+            final Option interactiveModeOpt = OptionBuilder.create("t");
+            OptionBuilder.withArgName("search");
+            OptionBuilder.hasArg();
+            OptionBuilder.withDescription("search for the specified key");
+            OptionBuilder.withLongOpt("search");
+            final Option searchOpt = OptionBuilder.create("s");
+            options.addOption("h", "help", false, "print this message");
+
+            options.addOption(fileOpt);
+            options.addOption(interactiveModeOpt);
+            options.addOption(searchOpt);
+
+            final CommandLineParser parser = new PosixParser();
+            final CommandLine line = parser.parse(options, args);
+
+            if (line.hasOption("help")) {
+                throw new ParseException("");
+            }
+
+            final MappedFreqSetSearcher searcher = new MappedFreqSetSearcher(new File(
+                    line.getOptionValue("file")));
+            if (line.hasOption("search")) {
+                final Result result = searcher.newResult();
+                searcher.search(line.getOptionValue("search"), result);
+                logger.info(result);
+            }
+            if (line.hasOption("interactive-mode")) {
+                searcher.interactive();
+            }
+        } catch (final ParseException e) {
+            // oops, something went wrong
+            if (e.getMessage().length() > 0) {
+                System.out.println("Parsing failed: " + e.getMessage() + "\n");
+            }
+            final HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp(400, "java -cp dist/thewikimachine.jar eu.fbk.utils.twm.MappedFreqSetSearcher",
+                    "\n", options, "\n", true);
+        }
+    }
+
+}